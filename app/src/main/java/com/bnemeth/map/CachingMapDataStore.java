@@ -0,0 +1,347 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+import org.mapsforge.map.reader.MapFile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Map data store that keeps the decoded map data of recently rendered areas, in front of another
+ * store.
+ * <p>
+ * Map data is read and decoded per base tile, the square of 4x4 tiles a tile belongs to, and the
+ * tiles of a base tile are cut from the same decoded data: the ways whose bounding box reaches
+ * the tile and the POIs inside it, like MapFile would return them. Neighbouring tiles and the
+ * overdraw tiles around the view fall into the same base tiles, so most tiles decode nothing.
+ * <p>
+ * The cache is bounded by an estimate of the bytes the decoded data takes, the least recently
+ * used base tiles are dropped first. It is shared by all render threads: a base tile is read by
+ * the first thread that needs it, the others wait for that read instead of repeating it. Only
+ * {@link #readMapData(Tile)}, what the renderer asks for, is cached, the other reads go to the
+ * underlying store.
+ */
+public class CachingMapDataStore extends MapDataStore implements MemoryConsumer {
+
+    static final int BASE_TILE_SHIFT = 2;
+
+    // estimated sizes of the decoded objects, with their list and array references
+    private static final int WAY_BYTES = 96;
+    private static final int POI_BYTES = 64;
+    private static final int LAT_LONG_BYTES = 32;
+    private static final int TAG_BYTES = 8;
+
+    private static final class Key {
+        final byte zoomLevel;
+        final int x;
+        final int y;
+
+        Key(byte zoomLevel, int x, int y) {
+            this.zoomLevel = zoomLevel;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return zoomLevel == key.zoomLevel && x == key.x && y == key.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * (31 * zoomLevel + x)) + y;
+        }
+    }
+
+    /**
+     * The decoded data of a base tile, with the bounding boxes of its ways. Filled by one thread,
+     * the others wait for {@link #loaded}.
+     */
+    static final class Entry {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        MapReadResult data;
+        // minimum latitude, minimum longitude, maximum latitude, maximum longitude of every way
+        double[] wayBounds;
+        long bytes;
+
+        void fill(MapReadResult data) {
+            this.data = data;
+            wayBounds = new double[data.ways.size() * 4];
+            long bytes = 0;
+            int i = 0;
+            for (Way way : data.ways) {
+                double minLatitude = Double.MAX_VALUE;
+                double minLongitude = Double.MAX_VALUE;
+                double maxLatitude = -Double.MAX_VALUE;
+                double maxLongitude = -Double.MAX_VALUE;
+                for (LatLong[] part : way.latLongs) {
+                    for (LatLong latLong : part) {
+                        minLatitude = Math.min(minLatitude, latLong.latitude);
+                        minLongitude = Math.min(minLongitude, latLong.longitude);
+                        maxLatitude = Math.max(maxLatitude, latLong.latitude);
+                        maxLongitude = Math.max(maxLongitude, latLong.longitude);
+                    }
+                    bytes += (long) part.length * LAT_LONG_BYTES;
+                }
+                wayBounds[i++] = minLatitude;
+                wayBounds[i++] = minLongitude;
+                wayBounds[i++] = maxLatitude;
+                wayBounds[i++] = maxLongitude;
+                bytes += WAY_BYTES + 32 + tagBytes(way.tags);
+            }
+            for (PointOfInterest poi : data.pointOfInterests) {
+                bytes += POI_BYTES + tagBytes(poi.tags);
+            }
+            this.bytes = bytes;
+        }
+
+        MapReadResult cut(BoundingBox tile, BoundingBox wayArea) {
+            MapReadResult result = new MapReadResult();
+            result.isWater = data.isWater;
+            List<Way> ways = data.ways;
+            for (int i = 0, n = ways.size(); i < n; i++) {
+                int bounds = i * 4;
+                if (wayBounds[bounds] <= wayArea.maxLatitude && wayBounds[bounds + 2] >= wayArea.minLatitude
+                        && wayBounds[bounds + 1] <= wayArea.maxLongitude
+                        && wayBounds[bounds + 3] >= wayArea.minLongitude) {
+                    result.ways.add(ways.get(i));
+                }
+            }
+            for (PointOfInterest poi : data.pointOfInterests) {
+                if (tile.contains(poi.position)) {
+                    result.pointOfInterests.add(poi);
+                }
+            }
+            return result;
+        }
+
+        private static long tagBytes(List<Tag> tags) {
+            // the tags themselves are shared, only the lists are decoded
+            return 16 + (long) tags.size() * TAG_BYTES;
+        }
+    }
+
+    private final MapDataStore source;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final TileCacheStats stats;
+    private long bytes;
+
+    private Metrics.Histogram readTime;
+    private Metrics.ThreadTimer renderTimer;
+
+    /**
+     * @param source   the store to read from.
+     * @param maxBytes the estimated bytes the decoded map data may take.
+     */
+    public CachingMapDataStore(MapDataStore source, long maxBytes) {
+        super(null);
+        this.source = source;
+        this.stats = new TileCacheStats("map data", maxBytes);
+    }
+
+    /**
+     * Records the read time of the map data of a tile and starts the render timer of the tile,
+     * like {@link RegionMapDataStore#setMetrics(Metrics)}, which the underlying store must then
+     * not be given, and includes the counters of the cache in the dump.
+     */
+    public void setMetrics(Metrics metrics) {
+        readTime = metrics.histogram(Metrics.MAP_READ);
+        renderTimer = metrics.timer(Metrics.TILE_RENDER);
+        metrics.register(stats);
+    }
+
+    @Override
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Changes the byte budget, dropping base tiles right away if the cache is now too large.
+     */
+    @Override
+    public synchronized void setCapacityBytes(long capacityBytes) {
+        stats.capacityBytes = capacityBytes;
+        evict(null);
+    }
+
+    public MapDataStore getSource() {
+        return source;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        return source.boundingBox();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+            stats.bytes.set(0);
+        }
+        source.close();
+    }
+
+    @Override
+    public long getDataTimestamp(Tile tile) {
+        return source.getDataTimestamp(tile);
+    }
+
+    @Override
+    public MapReadResult readLabels(Tile tile) {
+        return source.readLabels(tile);
+    }
+
+    @Override
+    public MapReadResult readLabels(Tile upperLeft, Tile lowerRight) {
+        return source.readLabels(upperLeft, lowerRight);
+    }
+
+    /**
+     * The renderer reads the map data of a tile first, so this is where rendering a tile starts.
+     */
+    @Override
+    public MapReadResult readMapData(Tile tile) {
+        if (readTime == null) {
+            return read(tile);
+        }
+        renderTimer.start();
+        long start = System.nanoTime();
+        MapReadResult result = read(tile);
+        readTime.recordSince(start);
+        return result;
+    }
+
+    @Override
+    public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+        return source.readMapData(upperLeft, lowerRight);
+    }
+
+    @Override
+    public MapReadResult readPoiData(Tile tile) {
+        return source.readPoiData(tile);
+    }
+
+    @Override
+    public MapReadResult readPoiData(Tile upperLeft, Tile lowerRight) {
+        return source.readPoiData(upperLeft, lowerRight);
+    }
+
+    @Override
+    public LatLong startPosition() {
+        return source.startPosition();
+    }
+
+    @Override
+    public Byte startZoomLevel() {
+        return source.startZoomLevel();
+    }
+
+    @Override
+    public boolean supportsTile(Tile tile) {
+        return source.supportsTile(tile);
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private MapReadResult read(Tile tile) {
+        int shift = Math.min(BASE_TILE_SHIFT, tile.zoomLevel);
+        Key key = new Key(tile.zoomLevel, tile.tileX >> shift, tile.tileY >> shift);
+        Entry entry;
+        boolean owner = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            stats.misses.incrementAndGet();
+            load(key, entry, tile.tileSize);
+        } else {
+            stats.hits.incrementAndGet();
+            try {
+                entry.loaded.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return source.readMapData(tile);
+            }
+        }
+        if (entry.data == null) {
+            // the read failed, let the tile fail on its own
+            return source.readMapData(tile);
+        }
+
+        BoundingBox area = tile.getBoundingBox();
+        MapReadResult result = entry.cut(area, area.extendMeters(MapFile.wayFilterDistance));
+        if (result.ways.isEmpty() && !result.isWater) {
+            // whether a tile without ways is sea is only known for the tile itself
+            return source.readMapData(tile);
+        }
+        return result;
+    }
+
+    private void load(Key key, Entry entry, int tileSize) {
+        try {
+            int shift = Math.min(BASE_TILE_SHIFT, key.zoomLevel);
+            int last = Tile.getMaxTileNumber(key.zoomLevel);
+            Tile upperLeft = new Tile(key.x << shift, key.y << shift, key.zoomLevel, tileSize);
+            Tile lowerRight = new Tile(Math.min(last, ((key.x + 1) << shift) - 1),
+                    Math.min(last, ((key.y + 1) << shift) - 1), key.zoomLevel, tileSize);
+            entry.fill(source.readMapData(upperLeft, lowerRight));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                entries.remove(key);
+            }
+            throw e;
+        } finally {
+            entry.loaded.countDown();
+        }
+        synchronized (this) {
+            if (entries.get(key) != entry) {
+                // dropped by close() while it was read
+                return;
+            }
+            bytes += entry.bytes;
+            evict(entry);
+        }
+    }
+
+    /**
+     * Drops the least recently used base tiles until the cache fits its budget, except the one
+     * just read.
+     */
+    private void evict(Entry keep) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > stats.capacityBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == keep || eldest.loaded.getCount() > 0) {
+                // being read, counted once it is complete
+                continue;
+            }
+            iterator.remove();
+            bytes -= eldest.bytes;
+            stats.evictions.incrementAndGet();
+        }
+        stats.bytes.set(bytes);
+    }
+}
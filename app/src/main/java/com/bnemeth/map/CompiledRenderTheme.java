@@ -0,0 +1,277 @@
+package com.bnemeth.map;
+
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+import org.mapsforge.map.rendertheme.XmlRenderThemeMenuCallback;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A render theme that is parsed from XML once and then loaded from a compact binary copy.
+ * <p>
+ * The binary file holds a table of all distinct strings of the theme, the list of referenced
+ * symbol and pattern files and the element tree as a stream of start and end tag events whose
+ * names and attribute values are indices into the string table. Text and comments are dropped.
+ * <p>
+ * Loading memory-maps the file and hands it to mapsforge's RenderThemeHandler through
+ * {@link CompiledThemeParser}, which replays the events instead of tokenizing XML. The file is
+ * recompiled whenever the source key, e.g. size and modification time of the XML file, changes.
+ */
+public class CompiledRenderTheme implements XmlRenderTheme {
+
+    static final int MAGIC = 0x4D465442; // "MFTB"
+    static final int VERSION = 1;
+
+    static final byte EVENT_END_DOCUMENT = 1;
+    static final byte EVENT_START_TAG = 2;
+    static final byte EVENT_END_TAG = 3;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final XmlRenderTheme source;
+    private final File compiledFile;
+    private final String sourceKey;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param source       the XML theme.
+     * @param compiledFile where the binary copy is kept.
+     * @param sourceKey    changes whenever the XML changes, e.g. its size and modification time.
+     */
+    public CompiledRenderTheme(XmlRenderTheme source, File compiledFile, String sourceKey) {
+        this.source = source;
+        this.compiledFile = compiledFile;
+        this.sourceKey = sourceKey;
+        CompiledThemeParser.install();
+    }
+
+    public File getCompiledFile() {
+        return compiledFile;
+    }
+
+    /**
+     * Makes sure the binary copy exists and is mapped, compiling the XML if it is missing or
+     * outdated. Safe to call ahead of time from a background thread.
+     */
+    public synchronized ByteBuffer load() throws IOException {
+        if (buffer == null) {
+            buffer = map(compiledFile, sourceKey);
+            if (buffer == null) {
+                compile(source, compiledFile, sourceKey);
+                buffer = map(compiledFile, sourceKey);
+                if (buffer == null) {
+                    throw new IOException("Could not load compiled theme " + compiledFile);
+                }
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Names of all symbol and pattern files the theme references, as written in the XML.
+     */
+    public List<String> getAssetReferences() throws IOException {
+        ByteBuffer data = load();
+        String[] strings = readStrings(data);
+        int count = data.getInt();
+        List<String> assets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            assets.add(strings[data.getShort() & 0xffff]);
+        }
+        return assets;
+    }
+
+    @Override
+    public XmlRenderThemeMenuCallback getMenuCallback() {
+        return source.getMenuCallback();
+    }
+
+    @Override
+    public String getRelativePathPrefix() {
+        return source.getRelativePathPrefix();
+    }
+
+    @Override
+    public InputStream getRenderThemeAsStream() throws FileNotFoundException {
+        try {
+            return new CompiledStream(load());
+        } catch (IOException e) {
+            // mapsforge only allows this one checked exception here
+            FileNotFoundException exception = new FileNotFoundException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    @Override
+    public void setMenuCallback(XmlRenderThemeMenuCallback menuCallback) {
+        source.setMenuCallback(menuCallback);
+    }
+
+    /**
+     * Parses the XML theme with the given parser and writes the binary copy, replacing the file
+     * only once it is complete.
+     */
+    static void compile(XmlPullParser parser, InputStream xml, File compiledFile, String sourceKey)
+            throws IOException {
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        Set<Integer> assets = new LinkedHashSet<>();
+        ByteArrayOutputStream events = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream eventOut = new DataOutputStream(events);
+
+        try {
+            parser.setInput(xml, null);
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    eventOut.writeByte(EVENT_START_TAG);
+                    eventOut.writeShort(intern(parser.getName(), stringIndex, strings));
+                    int count = parser.getAttributeCount();
+                    eventOut.writeShort(count);
+                    for (int i = 0; i < count; i++) {
+                        String name = parser.getAttributeName(i);
+                        int value = intern(parser.getAttributeValue(i), stringIndex, strings);
+                        eventOut.writeShort(intern(name, stringIndex, strings));
+                        eventOut.writeShort(value);
+                        if ("src".equals(name)) {
+                            assets.add(value);
+                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    eventOut.writeByte(EVENT_END_TAG);
+                }
+                eventType = parser.next();
+            }
+            eventOut.writeByte(EVENT_END_DOCUMENT);
+        } catch (XmlPullParserException e) {
+            throw new IOException("Could not compile theme: " + e.getMessage());
+        } finally {
+            xml.close();
+        }
+
+        File temp = new File(compiledFile.getPath() + ".tmp");
+        File parent = compiledFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, sourceKey);
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                writeString(out, string);
+            }
+            out.writeInt(assets.size());
+            for (int asset : assets) {
+                out.writeShort(asset);
+            }
+            events.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(compiledFile)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    private static void compile(XmlRenderTheme source, File compiledFile, String sourceKey) throws IOException {
+        try {
+            XmlPullParser parser = CompiledThemeParser.newPlatformParser();
+            compile(parser, source.getRenderThemeAsStream(), compiledFile, sourceKey);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the compiled file, or returns null if it does not exist or was compiled from another
+     * version of the source. The returned buffer is positioned behind the source key.
+     */
+    static MappedByteBuffer map(File compiledFile, String sourceKey) throws IOException {
+        return MappedFiles.map(compiledFile, MAGIC, VERSION, sourceKey);
+    }
+
+    /**
+     * Reads the string table, leaving the buffer positioned at the asset list.
+     */
+    static String[] readStrings(ByteBuffer data) {
+        String[] strings = new String[data.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(data);
+        }
+        return strings;
+    }
+
+    private static int intern(String string, Map<String, Integer> index, List<String> strings) throws IOException {
+        Integer i = index.get(string);
+        if (i == null) {
+            i = strings.size();
+            if (i > 0xffff) {
+                throw new IOException("Too many distinct strings in theme");
+            }
+            index.put(string, i);
+            strings.add(string);
+        }
+        return i;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Stream handed to mapsforge. Only {@link CompiledThemeParser} reads it, through the buffer.
+     */
+    static class CompiledStream extends InputStream {
+        final ByteBuffer buffer;
+
+        CompiledStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
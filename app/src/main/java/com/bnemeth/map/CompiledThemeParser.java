@@ -0,0 +1,351 @@
+package com.bnemeth.map;
+
+import org.mapsforge.map.rendertheme.rule.RenderThemeHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * XmlPullParser that replays a {@link CompiledRenderTheme} and forwards everything else to the
+ * platform parser.
+ * <p>
+ * mapsforge creates its parsers through a factory that can be replaced, see
+ * {@link RenderThemeHandler#setXmlPullParserFactory(XmlPullParserFactory)}. The parser cannot
+ * know what it is going to parse until {@link #setInput(InputStream, String)}, so it always wraps
+ * a platform parser and only switches to the binary events when it gets a compiled stream.
+ */
+public class CompiledThemeParser implements XmlPullParser {
+
+    private static XmlPullParserFactory platformFactory;
+
+    /**
+     * Installs the factory for CompiledThemeParser into mapsforge, once.
+     */
+    static synchronized void install() {
+        if (platformFactory != null) {
+            return;
+        }
+        try {
+            platformFactory = RenderThemeHandler.getXmlPullParserFactory();
+            RenderThemeHandler.setXmlPullParserFactory(new Factory());
+        } catch (XmlPullParserException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static synchronized XmlPullParser newPlatformParser() throws XmlPullParserException {
+        if (platformFactory == null) {
+            platformFactory = RenderThemeHandler.getXmlPullParserFactory();
+        }
+        return platformFactory.newPullParser();
+    }
+
+    private static class Factory extends XmlPullParserFactory {
+        @Override
+        public XmlPullParser newPullParser() throws XmlPullParserException {
+            return new CompiledThemeParser(platformFactory.newPullParser());
+        }
+    }
+
+    private final XmlPullParser delegate;
+
+    private ByteBuffer events;
+    private String[] strings;
+    private int eventType;
+    private int depth;
+    private String[] names = new String[16];
+    private int attributeCount;
+    private String[] attributes = new String[32];
+    private int eventNumber;
+
+    CompiledThemeParser(XmlPullParser delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+        if (!(inputStream instanceof CompiledRenderTheme.CompiledStream)) {
+            events = null;
+            delegate.setInput(inputStream, inputEncoding);
+            return;
+        }
+
+        ByteBuffer buffer = ((CompiledRenderTheme.CompiledStream) inputStream).buffer;
+        strings = CompiledRenderTheme.readStrings(buffer);
+        int assets = buffer.getInt();
+        buffer.position(buffer.position() + assets * 2);
+        events = buffer;
+        eventType = START_DOCUMENT;
+        depth = 0;
+        attributeCount = -1;
+        eventNumber = 0;
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        events = null;
+        delegate.setInput(in);
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (events == null) {
+            return delegate.next();
+        }
+
+        if (eventType == END_TAG) {
+            depth--;
+        }
+        eventNumber++;
+        attributeCount = -1;
+
+        byte event = events.get();
+        switch (event) {
+            case CompiledRenderTheme.EVENT_START_TAG:
+                if (depth + 1 >= names.length) {
+                    names = grow(names, names.length * 2);
+                }
+                names[++depth] = strings[events.getShort() & 0xffff];
+                attributeCount = events.getShort() & 0xffff;
+                if (attributeCount * 2 > attributes.length) {
+                    attributes = new String[attributeCount * 2];
+                }
+                for (int i = 0; i < attributeCount * 2; i++) {
+                    attributes[i] = strings[events.getShort() & 0xffff];
+                }
+                eventType = START_TAG;
+                break;
+            case CompiledRenderTheme.EVENT_END_TAG:
+                eventType = END_TAG;
+                break;
+            case CompiledRenderTheme.EVENT_END_DOCUMENT:
+                eventType = END_DOCUMENT;
+                break;
+            default:
+                throw new XmlPullParserException("Corrupt compiled theme at " + getPositionDescription());
+        }
+        return eventType;
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return events == null ? delegate.nextToken() : next();
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        if (events == null) {
+            return delegate.nextTag();
+        }
+        // the compiled stream only has tags
+        return next();
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (events == null) {
+            return delegate.nextText();
+        }
+        require(START_TAG, null, null);
+        next();
+        require(END_TAG, null, null);
+        return "";
+    }
+
+    @Override
+    public void require(int type, String namespace, String name) throws XmlPullParserException, IOException {
+        if (events == null) {
+            delegate.require(type, namespace, name);
+            return;
+        }
+        if (type != eventType || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " " + name + " at " + getPositionDescription());
+        }
+    }
+
+    @Override
+    public int getEventType() throws XmlPullParserException {
+        return events == null ? delegate.getEventType() : eventType;
+    }
+
+    @Override
+    public String getName() {
+        if (events == null) {
+            return delegate.getName();
+        }
+        return eventType == START_TAG || eventType == END_TAG ? names[depth] : null;
+    }
+
+    @Override
+    public int getDepth() {
+        return events == null ? delegate.getDepth() : depth;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return events == null ? delegate.getAttributeCount() : attributeCount;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        if (events == null) {
+            return delegate.getAttributeName(index);
+        }
+        checkAttributeIndex(index);
+        return attributes[index * 2];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        if (events == null) {
+            return delegate.getAttributeValue(index);
+        }
+        checkAttributeIndex(index);
+        return attributes[index * 2 + 1];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        if (events == null) {
+            return delegate.getAttributeValue(namespace, name);
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            if (attributes[i * 2].equals(name)) {
+                return attributes[i * 2 + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        return events == null ? delegate.getAttributeNamespace(index) : "";
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return events == null ? delegate.getAttributePrefix(index) : null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        return events == null ? delegate.getAttributeType(index) : "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        return events == null && delegate.isAttributeDefault(index);
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        return events == null && delegate.isEmptyElementTag();
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return events == null ? delegate.getPositionDescription() : "compiled theme event " + eventNumber;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return events == null ? delegate.getLineNumber() : -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return events == null ? delegate.getColumnNumber() : -1;
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        return events == null && delegate.isWhitespace();
+    }
+
+    @Override
+    public String getText() {
+        return events == null ? delegate.getText() : null;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        return events == null ? delegate.getTextCharacters(holderForStartAndLength) : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return events == null ? delegate.getNamespace() : "";
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return events == null ? delegate.getNamespace(prefix) : null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return events == null ? delegate.getPrefix() : null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return events == null ? delegate.getNamespaceCount(depth) : 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        return events == null ? delegate.getNamespacePrefix(pos) : null;
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        return events == null ? delegate.getNamespaceUri(pos) : null;
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        delegate.setFeature(name, state);
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return delegate.getFeature(name);
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        delegate.setProperty(name, value);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return delegate.getProperty(name);
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return events == null ? delegate.getInputEncoding() : "UTF-8";
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) throws XmlPullParserException {
+        delegate.defineEntityReplacementText(entityName, replacementText);
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("Attribute " + index + " of " + attributeCount);
+        }
+    }
+
+    private static String[] grow(String[] array, int length) {
+        String[] grown = new String[length];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
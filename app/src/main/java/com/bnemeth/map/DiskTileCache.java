@@ -0,0 +1,249 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.common.Observable;
+import org.mapsforge.map.model.common.Observer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent tile cache on disk, bounded by the total size of the tile files.
+ * <p>
+ * The directory is expected to belong to one combination of map and theme, see
+ * {@link LayeredTileCache}. Its content is indexed lazily on first access, ordered by file
+ * modification time, so the least recently written tiles of the previous run are evicted first.
+ */
+public class DiskTileCache implements TileCache {
+
+    static final String FILE_EXTENSION = ".tile";
+
+    private final File directory;
+    private final GraphicFactory graphicFactory;
+    private final int tileSize;
+    private final Observable observable = new Observable();
+    private final TileCacheStats stats;
+
+    private LinkedHashMap<String, Long> index;
+
+    public DiskTileCache(File directory, long capacityBytes, GraphicFactory graphicFactory, int tileSize) {
+        this.directory = directory;
+        this.graphicFactory = graphicFactory;
+        this.tileSize = tileSize;
+        this.stats = new TileCacheStats("disk", capacityBytes);
+    }
+
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    public synchronized void setCapacityBytes(long capacityBytes) {
+        stats.capacityBytes = capacityBytes;
+        evict();
+    }
+
+    /**
+     * Reads the directory into the index. Called on first access, but can be called ahead of
+     * time from a background thread to take the directory scan off the rendering path.
+     */
+    public synchronized void load() {
+        if (index != null) {
+            return;
+        }
+
+        index = new LinkedHashMap<>(256, 0.75f, true);
+        List<File> files = new ArrayList<>();
+        collectTiles(directory, files);
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ma = a.lastModified();
+                long mb = b.lastModified();
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+
+        int prefix = directory.getPath().length() + 1;
+        long bytes = 0;
+        for (File file : files) {
+            String path = file.getPath();
+            String key = path.substring(prefix, path.length() - FILE_EXTENSION.length())
+                    .replace(File.separatorChar, '/');
+            index.put(key, file.length());
+            bytes += file.length();
+        }
+        stats.bytes.set(bytes);
+        evict();
+    }
+
+    @Override
+    public synchronized boolean containsKey(Job key) {
+        load();
+        return index.containsKey(key.getKey());
+    }
+
+    @Override
+    public void destroy() {
+        // the files are kept for the next start
+    }
+
+    @Override
+    public TileBitmap get(Job key) {
+        synchronized (this) {
+            load();
+            if (index.get(key.getKey()) == null) {
+                stats.misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        File file = fileFor(key.getKey());
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                TileBitmap bitmap = graphicFactory.createTileBitmap(in, tileSize, key.hasAlpha);
+                bitmap.setTimestamp(file.lastModified());
+                stats.hits.incrementAndGet();
+                return bitmap;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            // missing or corrupt file, forget about it and let the tile be rendered again
+            remove(key.getKey());
+            stats.misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Override
+    public int getCapacity() {
+        return (int) (stats.capacityBytes / (tileSize * tileSize));
+    }
+
+    @Override
+    public int getCapacityFirstLevel() {
+        return getCapacity();
+    }
+
+    @Override
+    public TileBitmap getImmediately(Job key) {
+        return get(key);
+    }
+
+    @Override
+    public synchronized void purge() {
+        load();
+        for (String key : index.keySet()) {
+            fileFor(key).delete();
+        }
+        index.clear();
+        stats.bytes.set(0);
+    }
+
+    @Override
+    public void put(Job key, TileBitmap bitmap) {
+        File file = fileFor(key.getKey());
+        File temp = null;
+        try {
+            file.getParentFile().mkdirs();
+            // a name of its own, the same tile may be written by two threads at once
+            temp = File.createTempFile("tile", ".tmp", file.getParentFile());
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                bitmap.compress(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (this) {
+            load();
+            Long old = index.put(key.getKey(), file.length());
+            stats.bytes.addAndGet(file.length() - (old != null ? old : 0));
+            evict();
+        }
+        observable.notifyObservers();
+    }
+
+    @Override
+    public void setWorkingSet(Set<Job> workingSet) {
+        // the working set is kept in memory by the first tier
+    }
+
+    @Override
+    public void addObserver(Observer observer) {
+        observable.addObserver(observer);
+    }
+
+    @Override
+    public void removeObserver(Observer observer) {
+        observable.removeObserver(observer);
+    }
+
+    private synchronized void remove(String key) {
+        Long size = index.remove(key);
+        if (size != null) {
+            stats.bytes.addAndGet(-size);
+            fileFor(key).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext() && stats.bytes.get() > stats.capacityBytes) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            fileFor(entry.getKey()).delete();
+            stats.bytes.addAndGet(-entry.getValue());
+            stats.evictions.incrementAndGet();
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+
+    private static void collectTiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectTiles(child, files);
+            } else if (child.getName().endsWith(FILE_EXTENSION)) {
+                files.add(child);
+            } else {
+                // leftovers of interrupted writes
+                child.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.bnemeth.map;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Elevations from the SRTM HGT files of a directory, one file per degree of latitude and longitude,
+ * named after their south west corner like N47E019.hgt.
+ * <p>
+ * A file is a square grid of big endian 16 bit heights in meters, rows from north to south, with
+ * 1201 (3 arc seconds) or 3601 (1 arc second) samples a side, the edges shared with the
+ * neighbours. Files are memory-mapped read only on first use, so their heights never reach the
+ * heap, and only a bounded number of them stays mapped. Reads are thread safe.
+ */
+public class ElevationData {
+
+    private static final Pattern NAME = Pattern.compile("([NS])(\\d{2})([EW])(\\d{3})\\.hgt",
+            Pattern.CASE_INSENSITIVE);
+    private static final short VOID = Short.MIN_VALUE;
+
+    /**
+     * One mapped file.
+     */
+    static final class Cell {
+        final int south;
+        final int west;
+        final int size;
+        final ShortBuffer heights;
+
+        Cell(int south, int west, int size, ShortBuffer heights) {
+            this.south = south;
+            this.west = west;
+            this.size = size;
+            this.heights = heights;
+        }
+
+        /**
+         * Bilinear height at a position inside the cell, NaN in voids.
+         */
+        float height(double latitude, double longitude) {
+            int last = size - 1;
+            double row = (south + 1 - latitude) * last;
+            double column = (longitude - west) * last;
+            int r = Math.max(0, Math.min(last - 1, (int) row));
+            int c = Math.max(0, Math.min(last - 1, (int) column));
+            double fr = row - r;
+            double fc = column - c;
+            int index = r * size + c;
+            short nw = heights.get(index);
+            short ne = heights.get(index + 1);
+            short sw = heights.get(index + size);
+            short se = heights.get(index + size + 1);
+            if (nw == VOID || ne == VOID || sw == VOID || se == VOID) {
+                return Float.NaN;
+            }
+            double north = nw + (ne - nw) * fc;
+            double southHeight = sw + (se - sw) * fc;
+            return (float) (north + (southHeight - north) * fr);
+        }
+    }
+
+    private final Map<Long, File> files = new HashMap<>();
+    private final int maxMappedFiles;
+    private final LinkedHashMap<Long, Cell> mapped = new LinkedHashMap<>(16, 0.75f, true);
+    private final String key;
+
+    /**
+     * @param directory      the directory with the HGT files.
+     * @param maxMappedFiles how many files may be mapped at the same time.
+     */
+    public ElevationData(File directory, int maxMappedFiles) {
+        this.maxMappedFiles = maxMappedFiles;
+        File[] found = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && NAME.matcher(file.getName()).matches();
+            }
+        });
+        CRC32 crc = new CRC32();
+        if (found != null) {
+            Arrays.sort(found);
+            for (File file : found) {
+                Matcher matcher = NAME.matcher(file.getName());
+                matcher.matches();
+                int south = Integer.parseInt(matcher.group(2)) * (matcher.group(1).equalsIgnoreCase("S") ? -1 : 1);
+                int west = Integer.parseInt(matcher.group(4)) * (matcher.group(3).equalsIgnoreCase("W") ? -1 : 1);
+                files.put(cellKey(south, west), file);
+                crc.update((file.getName() + ':' + file.length() + ':' + file.lastModified() + ':').getBytes());
+            }
+        }
+        this.key = Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Name of an HGT file covering the given cell.
+     */
+    static String fileName(int south, int west) {
+        return String.format(Locale.US, "%s%02d%s%03d.hgt", south < 0 ? "S" : "N", Math.abs(south),
+                west < 0 ? "W" : "E", Math.abs(west));
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    /**
+     * Changes whenever a file is added, removed or replaced.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * The height in meters, or NaN where there is no data.
+     */
+    public float getHeight(double latitude, double longitude) {
+        Cell cell = getCell((int) Math.floor(latitude), (int) Math.floor(longitude));
+        return cell == null ? Float.NaN : cell.height(latitude, longitude);
+    }
+
+    /**
+     * Fills a grid of heights, NaN where there is no data.
+     *
+     * @param latitudes  the latitudes of the rows.
+     * @param longitudes the longitudes of the columns.
+     * @param heights    the heights, row by row.
+     */
+    public void getHeights(double[] latitudes, double[] longitudes, float[] heights) {
+        // a grid mostly lies in one cell, look it up again only when leaving it
+        Cell cell = null;
+        int cellSouth = Integer.MIN_VALUE;
+        int cellWest = Integer.MIN_VALUE;
+        int index = 0;
+        for (double latitude : latitudes) {
+            int south = (int) Math.floor(latitude);
+            for (double longitude : longitudes) {
+                int west = (int) Math.floor(longitude);
+                if (south != cellSouth || west != cellWest) {
+                    cell = getCell(south, west);
+                    cellSouth = south;
+                    cellWest = west;
+                }
+                heights[index++] = cell == null ? Float.NaN : cell.height(latitude, longitude);
+            }
+        }
+    }
+
+    synchronized Cell getCell(int south, int west) {
+        Long cellKey = cellKey(south, west);
+        Cell cell = mapped.get(cellKey);
+        if (cell != null) {
+            return cell;
+        }
+        File file = files.get(cellKey);
+        if (file == null) {
+            return null;
+        }
+        try {
+            cell = map(file, south, west);
+        } catch (IOException | IllegalArgumentException e) {
+            // unreadable, do not try again
+            e.printStackTrace();
+            files.remove(cellKey);
+            return null;
+        }
+        mapped.put(cellKey, cell);
+        Iterator<Cell> iterator = mapped.values().iterator();
+        while (mapped.size() > maxMappedFiles && iterator.hasNext()) {
+            // unmapped once the readers still using it are done and it is collected
+            iterator.next();
+            iterator.remove();
+        }
+        return cell;
+    }
+
+    private static Cell map(File file, int south, int west) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            int size = (int) Math.round(Math.sqrt(length / 2));
+            if (size < 2 || (long) size * size * 2 != length) {
+                throw new IllegalArgumentException(file + " is not a square grid of heights");
+            }
+            // the mapping stays valid after the file is closed, heights are big endian like Java
+            ShortBuffer heights = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).asShortBuffer();
+            return new Cell(south, west, size, heights);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Long cellKey(int south, int west) {
+        return ((long) south << 32) | (west & 0xFFFFFFFFL);
+    }
+}
@@ -16,11 +16,16 @@ package com.bnemeth.map;
  */
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.location.Location;
 import android.location.LocationListener;
@@ -29,36 +34,46 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.FileUtils;
+import android.os.Handler;
+import android.util.Log;
+import android.view.KeyEvent;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import org.mapsforge.core.model.BoundingBox;
 import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Point;
 import org.mapsforge.core.util.IOUtils;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 import org.mapsforge.map.android.rendertheme.AssetsRenderTheme;
 import org.mapsforge.map.android.util.AndroidUtil;
 import org.mapsforge.map.android.view.MapView;
-import org.mapsforge.map.datastore.MapDataStore;
 import org.mapsforge.map.layer.Layers;
-import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.renderer.TileRendererLayer;
-import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.common.Observer;
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 import org.mapsforge.map.rendertheme.ExternalRenderTheme;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.util.Enumeration;
-import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A very basic Android app example.
@@ -68,22 +83,102 @@ import java.util.zip.ZipFile;
  */
 public class GettingStarted extends Activity {
 
+    private static final String TAG = "GettingStarted";
+
     // Name of the map file in device storage
     private static final String MAP_FILE = "hungary.map";
 
+    private static final String MAP_ARCHIVE_URL = "http://openmaps.eu/dltosm.php?dl=hungary_openmaps_eu_europe.map.zip";
+
+    // Where the unpacked map and its block index (MAP_UPDATE_URL + ".blocks", written with
+    // MapUpdater.writeBlockIndex) are published; openmaps.eu only offers the archive
+    private static final String MAP_UPDATE_URL = null;
+
+    // Map files open at the same time, enough for a view across a corner of three countries
+    private static final int MAX_OPEN_MAP_FILES = 4;
+
+    // Decoded map data kept for the render threads, a few screens of a dense city at zoom 16
+    private static final long MAP_DATA_CACHE_BYTES = 16L * 1024 * 1024;
+
+    // Viewport of the last session, the snapshot shows the map there
+    private static final String VIEWPORT_PREFERENCES = "viewport";
+    private static final String SNAPSHOT_FILE = "snapshot.jpg";
+
+    // SRTM elevation files (N47E019.hgt) for the relief, in the map directory
+    private static final String ELEVATION_DIRECTORY = "dem";
+    private static final long HILLSHADE_DISK_BYTES = 32L * 1024 * 1024;
+
+    // The track recorded while following the GPS, continued across sessions
+    private static final String TRACK_FILE = "track.bin";
+
+    // The visible area is exported this many zoom levels deeper, for print
+    private static final int EXPORT_ZOOM_LEVELS = 2;
+    private static final String EXPORT_FILE = "export.png";
+
+    // How long the memory pressure has to be gone before the caches may grow another step
+    private static final long MEMORY_RELAX_MILLIS = 30 * 1000;
+
+    // How often the metrics are written to the log
+    private static final long METRICS_DUMP_MILLIS = 60 * 1000;
+
     private MapView mapView;
 
+    private StartupPipeline startup;
+
+    private final Metrics metrics = new Metrics();
+    private final MemoryBudget memoryBudget = new MemoryBudget();
+    private boolean started;
+
+    private final Handler handler = new Handler();
+
+    private TilePrefetcher tilePrefetcher;
+
+    private LayeredTileCache tileCache;
+
+    private volatile SvgSymbolCache svgSymbols;
+
+    private volatile SearchIndex searchIndex;
+
+    private volatile RoadGraph roadGraph;
+
+    // only used on the routing thread
+    private Router router;
+
+    private RouteLayer routeLayer;
+
+    private volatile XmlRenderTheme renderTheme;
+
     final MyLocationOverlay overlay = new MyLocationOverlay();;
 
+    private TrackRecorder trackRecorder;
+
     private Boolean IsRequestLocationUpdatesRunning = false;
     private Location LastLocation = null;
     LocationListener ContinuousLocationListener = null;
 
     DownloadManager DownloadManager = null;
 
+    private final ExecutorService extractionExecutor = Executors.newSingleThreadExecutor();
+
+    // route queries take milliseconds and must not wait behind a download or an index build
+    private final ExecutorService routingExecutor = Executors.newSingleThreadExecutor();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startup = new StartupPipeline(3, new StartupPipeline.Listener() {
+            @Override
+            public void onMark(String name, long atMillis, long tookMillis) {
+                Log.i(TAG, "Startup: " + name + " at " + atMillis + " ms"
+                        + (tookMillis > 0 ? ", took " + tookMillis + " ms" : ""));
+            }
+
+            @Override
+            public void onFailure(String name, Exception error) {
+                Log.e(TAG, "Startup: " + name + " failed", error);
+            }
+        });
+
         /*
          * Before you make any calls on the mapsforge library, you need to initialize the
          * AndroidGraphicFactory. Behind the scenes, this initialization process gathers a bit of
@@ -94,6 +189,7 @@ public class GettingStarted extends Activity {
          * specific activity. But it can also be created in the onCreate() method in your activity.
          */
         AndroidGraphicFactory.createInstance(getApplication());
+        startup.mark("graphic factory");
 
         /*
          * A MapView is an Android View (or ViewGroup) that displays a mapsforge map. You can have
@@ -116,37 +212,260 @@ public class GettingStarted extends Activity {
         findViewById(R.id.buttonGpsCenter).setBackgroundColor(Color.TRANSPARENT);
         findViewById(R.id.buttonGpsCenterContinuous).setBackgroundColor(Color.TRANSPARENT);
         findViewById(R.id.buttonDownloadMap).setBackgroundColor(Color.TRANSPARENT);
+
+        EditText searchText = findViewById(R.id.editSearch);
+        searchText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                if (actionId != EditorInfo.IME_ACTION_SEARCH) {
+                    return false;
+                }
+                search(view.getText().toString());
+                return true;
+            }
+        });
+
+        /*
+         * The metrics of rendering, caching and drawing are written to the log every minute, and
+         * a long press on the GPS button shows them.
+         */
+        findViewById(R.id.buttonGpsCenter).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                showMetrics();
+                return true;
+            }
+        });
+        handler.postDelayed(dumpMetrics, METRICS_DUMP_MILLIS);
+
+        /*
+         * A long press on the download button exports the visible area in more detail as PNG.
+         */
+        findViewById(R.id.buttonDownloadMap).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                exportMap();
+                return true;
+            }
+        });
+        startup.mark("create");
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        // back on screen, whatever trimmed the caches in the background no longer holds
+        if (memoryBudget.getStep() > 0) {
+            handler.removeCallbacks(relaxMemory);
+            handler.post(relaxMemory);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        started = false;
+        handler.removeCallbacks(relaxMemory);
+        super.onStop();
+    }
+
+    /**
+     * Shrinks the caches in steps as the system runs low on memory, down to the tiles on screen
+     * once the app is in the background, so it is not the first one killed there. While the app
+     * is visible they grow back a step at a time once the system stopped asking.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (memoryBudget.trim(level)) {
+            Log.i(TAG, "Trim memory " + level + ": " + memoryBudget);
+        }
+        handler.removeCallbacks(relaxMemory);
+        if (started) {
+            handler.postDelayed(relaxMemory, MEMORY_RELAX_MILLIS);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
     }
 
+    private final Runnable relaxMemory = new Runnable() {
+        @Override
+        public void run() {
+            if (memoryBudget.relax()) {
+                handler.postDelayed(this, MEMORY_RELAX_MILLIS);
+            }
+            Log.i(TAG, "Relax memory: " + memoryBudget);
+        }
+    };
+
     @Override
     protected void onDestroy() {
         /*
          * Whenever your activity exits, some cleanup operations have to be performed lest your app
          * runs out of memory.
          */
+        if (tilePrefetcher != null) {
+            tilePrefetcher.destroy();
+        }
+        handler.removeCallbacks(dumpMetrics);
+        handler.removeCallbacks(relaxMemory);
+        if (trackRecorder != null) {
+            try {
+                trackRecorder.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.i(TAG, "Metrics:\n" + metrics);
+        Log.i(TAG, "Memory: " + memoryBudget);
+        saveSnapshot();
+        if (tileCache != null) {
+            Log.i(TAG, "Tile cache: " + tileCache);
+        }
+        if (svgSymbols != null) {
+            Log.i(TAG, "SVG symbols: " + svgSymbols);
+            svgSymbols.close();
+        }
         mapView.destroyAll();
         AndroidGraphicFactory.clearResourceMemoryCache();
         super.onDestroy();
 
         unregisterReceiver(onComplete);
+        extractionExecutor.shutdown();
+        routingExecutor.shutdown();
     }
 
     private void InitMap(){
-        try {
-            /*
-             * We then make some simple adjustments, such as showing a scale bar and zoom controls.
-             */
-            mapView.getMapScaleBar().setVisible(true);
-            mapView.setBuiltInZoomControls(false);
+        /*
+         * We then make some simple adjustments, such as showing a scale bar and zoom controls.
+         */
+        mapView.getMapScaleBar().setVisible(true);
+        mapView.setBuiltInZoomControls(false);
 
-            /*
-             * To avoid redrawing all the tiles all the time, we need to set up a tile cache with an
-             * utility method.
-             */
-            TileCache tileCache = AndroidUtil.createTileCache(this, "mapcache",
-                    mapView.getModel().displayModel.getTileSize(), 1f,
-                    mapView.getModel().frameBufferModel.getOverdrawFactor());
+        /*
+         * The map also needs to know which area to display and at what zoom level. It starts
+         * where it was left, which is also where the snapshot was taken.
+         */
+        SharedPreferences viewport = getSharedPreferences(VIEWPORT_PREFERENCES, MODE_PRIVATE);
+        mapView.setCenter(new LatLong(
+                Double.longBitsToDouble(viewport.getLong("latitude", Double.doubleToLongBits(47.498333))),
+                Double.longBitsToDouble(viewport.getLong("longitude", Double.doubleToLongBits(19.0408337))))); // Budapest
+        mapView.setZoomLevel((byte) viewport.getInt("zoom", 12));
+
+        overlay.setMetrics(metrics);
+        mapView.getLayerManager().getLayers().add(overlay);
+
+        /*
+         * Opening the maps, loading the theme and preparing the tile cache take a while, so they
+         * run on background threads, the first two in parallel. Meanwhile the snapshot of the
+         * last session is shown, and once all is ready the layers are added on the main thread.
+         */
+        final File mapDirectory = getExternalFilesDir(null);
+        final File cacheDirectory = getCacheDir();
+        final File themeFile = new File(mapDirectory, "Vectorial_V7/Vectorial_V7.xml");
+        final int tileSize = mapView.getModel().displayModel.getTileSize();
+        final double overdrawFactor = mapView.getModel().frameBufferModel.getOverdrawFactor();
+
+        showSnapshot();
+
+        /*
+         * Every downloaded country is a map file of its own. The region store only opens the
+         * files the displayed tiles touch, and keeps a few of them open.
+         */
+        final Future<RegionMapDataStore> mapStage = startup.stage("open map", new Callable<RegionMapDataStore>() {
+            @Override
+            public RegionMapDataStore call() {
+                RegionMapDataStore mapDataStore = new RegionMapDataStore(mapDirectory,
+                        new File(cacheDirectory, "regions.index"), MAX_OPEN_MAP_FILES, null);
+                mapDataStore.boundingBox();
+                return mapDataStore;
+            }
+        });
+
+        /*
+         * The theme XML is only parsed when it changed, otherwise the compiled copy next to it
+         * is loaded.
+         */
+        final Future<CompiledRenderTheme> themeStage = startup.stage("load theme", new Callable<CompiledRenderTheme>() {
+            @Override
+            public CompiledRenderTheme call() throws Exception {
+                CompiledRenderTheme theme = new CompiledRenderTheme(new ExternalRenderTheme(themeFile),
+                        new File(themeFile.getPath() + ".bin"), themeFile.length() + ":" + themeFile.lastModified());
+                theme.load();
+                return theme;
+            }
+        });
+
+        //XmlRenderTheme theme = new AssetsRenderTheme(this, "OpenmapsTheme/","theme.xml");
+
+        ///XmlRenderTheme theme = new AssetsRenderTheme(this, "", themeFile.getAbsolutePath());
+        //XmlRenderTheme theme = new AssetsRenderTheme(getApplicationContext(), "Openmaps/", "Theme.xml");
 
+        /*
+         * To avoid redrawing all the tiles all the time, we need to set up a tile cache. The
+         * memory tier is sized from the device memory class, the disk tier keeps the rendered
+         * tiles of this map and theme across restarts. Its directory is scanned here, so the
+         * first tile lookups do not have to.
+         */
+        final Future<LayeredTileCache> cacheStage = startup.stage("warm cache", new Callable<LayeredTileCache>() {
+            @Override
+            public LayeredTileCache call() throws Exception {
+                LayeredTileCache cache = LayeredTileCache.create(GettingStarted.this, "mapcache", tileSize,
+                        overdrawFactor, mapStage.get().getFiles(), themeStage.get(), AndroidGraphicFactory.INSTANCE);
+                cache.getDiskTier().load();
+                cache.setMetrics(metrics);
+                return cache;
+            }
+        });
+
+        startup.stage("attach layers", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    final RegionMapDataStore mapDataStore = mapStage.get();
+                    final CompiledRenderTheme theme = themeStage.get();
+                    final LayeredTileCache cache = cacheStage.get();
+                    /*
+                     * The SVG symbols of the theme are rasterized once per size and scale and kept
+                     * as PNG in a pack, which is only read once the first tile needs a symbol.
+                     */
+                    final SvgSymbolCache symbols = new SvgSymbolCache(AndroidGraphicFactory.INSTANCE,
+                            new File(cacheDirectory, "symbols.pack"),
+                            LayeredTileCache.hash(Collections.<File>emptyList(), theme, tileSize));
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) {
+                                addMapLayers(mapDataStore, theme, cache, symbols);
+                            } else {
+                                symbols.close();
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    // the map will not come, the snapshot of the last one must not stay for good
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            hideSnapshot();
+                        }
+                    });
+                    throw e;
+                }
+                return null;
+            }
+        });
+        startup.shutdown();
+    }
+
+    private void addMapLayers(RegionMapDataStore mapDataStore, XmlRenderTheme theme, LayeredTileCache cache,
+                              SvgSymbolCache symbols){
+        try {
             /*
              * Now we need to set up the process of displaying a map. A map can have several layers,
              * stacked on top of each other. A layer can be a map or some visual elements, such as
@@ -155,60 +474,490 @@ public class GettingStarted extends Activity {
              * tiles, a map file from which the tiles are generated and Rendertheme that defines the
              * appearance of the map.
              */
-            File mapFile = new File(getExternalFilesDir(null), MAP_FILE);
-            MapDataStore mapDataStore = new MapFile(mapFile);
-            TileRendererLayer tileRendererLayer = new TileRendererLayer(tileCache, mapDataStore,
-                    mapView.getModel().mapViewPosition, AndroidGraphicFactory.INSTANCE);
-
-            //tileRendererLayer.setXmlRenderTheme(InternalRenderTheme.DEFAULT);
+            tileCache = cache;
+            tileCache.addObserver(firstTileObserver);
+            svgSymbols = symbols;
+            metrics.register(svgSymbols.getStats());
+            MemoryTileCache memoryTier = tileCache.getMemoryTier();
+            memoryBudget.register(memoryTier, memoryTier.getStats().getCapacityBytes());
 
-            File themeFile = new File(getExternalFilesDir(null), "Vectorial_V7/Vectorial_V7.xml");
-            XmlRenderTheme theme = new ExternalRenderTheme(themeFile);
+            /*
+             * Neighbouring tiles and the overdraw tiles around the view mostly read the same map
+             * blocks, so the render threads share the decoded data of the last few screens.
+             */
+            CachingMapDataStore cachingMapDataStore = new CachingMapDataStore(mapDataStore, MAP_DATA_CACHE_BYTES);
+            cachingMapDataStore.setMetrics(metrics);
+            memoryBudget.register(cachingMapDataStore, MAP_DATA_CACHE_BYTES);
 
-            //XmlRenderTheme theme = new AssetsRenderTheme(this, "OpenmapsTheme/","theme.xml");
+            final Metrics.Histogram drawTime = metrics.histogram(Metrics.DRAW + "tiles");
+            TileRendererLayer tileRendererLayer = new TileRendererLayer(tileCache, cachingMapDataStore,
+                    mapView.getModel().mapViewPosition, false, false, true, svgSymbols) {
+                @Override
+                public void draw(BoundingBox boundingBox, byte zoomLevel, org.mapsforge.core.graphics.Canvas canvas,
+                                 Point topLeftPoint) {
+                    long start = System.nanoTime();
+                    super.draw(boundingBox, zoomLevel, canvas, topLeftPoint);
+                    drawTime.recordSince(start);
+                }
+            };
 
-            ///XmlRenderTheme theme = new AssetsRenderTheme(this, "", themeFile.getAbsolutePath());
-            //XmlRenderTheme theme = new AssetsRenderTheme(getApplicationContext(), "Openmaps/", "Theme.xml");
+            //tileRendererLayer.setXmlRenderTheme(InternalRenderTheme.DEFAULT);
 
             tileRendererLayer.setXmlRenderTheme(theme);
+            renderTheme = theme;
 
             /*
              * On its own a tileRendererLayer does not know where to display the map, so we need to
-             * associate it with our mapView.
+             * associate it with our mapView, below the location overlay.
              */
-            mapView.getLayerManager().getLayers().add(tileRendererLayer);
+            mapView.getLayerManager().getLayers().add(0, tileRendererLayer);
 
             /*
-             * The map also needs to know which area to display and at what zoom level.
-             * Note: this map position is specific to Berlin area.
+             * The tiles are rendered without their labels, the renderer keeps them in a label
+             * store instead. The label layer places them over the whole view at once, so they
+             * neither break nor repeat at tile borders, and keeps what it placed while panning.
              */
-            mapView.setCenter(new LatLong(47.498333,19.0408337)); // Budapest
-            mapView.setZoomLevel((byte) 12);
+            LabelPlacementLayer labelLayer = new LabelPlacementLayer(AndroidGraphicFactory.INSTANCE,
+                    tileRendererLayer.getLabelStore());
+            labelLayer.setMetrics(metrics);
+            mapView.getLayerManager().getLayers().add(1, labelLayer);
+            startup.mark("layers attached");
 
-            /*
-            Layers layers = mapView.getLayerManager().getLayers();
-            LatLong latLong = new LatLong(47.545809, 19.034227);
-
-            Paint paint = AndroidGraphicFactory.INSTANCE.createPaint();
-            paint.setColor(Color.BLACK);
-            paint.setStrokeWidth(10);
-            paint.setStyle(Style.FILL);
+            addHillshadeLayer();
 
+            if (mapDataStore.getFiles().isEmpty()) {
+                // no map yet, no tile will replace the snapshot
+                hideSnapshot();
+            }
 
-            Circle circle = new Circle(latLong, 20, paint, paint);
-            layers.add(circle);*/
+            /*
+             * Search reads a memory-mapped index of the names and POIs of the maps. It is only
+             * built when the map files changed, otherwise the existing one is opened.
+             */
+            updateSearchIndex();
 
-            //overlay = new MyLocationOverlay();
+            /*
+             * Routing reads a memory-mapped road graph of the maps, which is built like the search
+             * index. A long press on the map shows the fastest route there.
+             */
+            routeLayer = new RouteLayer(AndroidGraphicFactory.INSTANCE) {
+                @Override
+                public boolean onLongPress(LatLong tapLatLong, Point layerXY, Point tapXY) {
+                    route(tapLatLong);
+                    return true;
+                }
+            };
+            Layers layers = mapView.getLayerManager().getLayers();
+            layers.add(layers.indexOf(overlay), routeLayer);
+            updateRoadGraph();
 
-            mapView.getLayerManager().getLayers().add(overlay);
+            /*
+             * The tiles that show the whole country are rendered once into a memory-mapped
+             * pyramid file, which the tile cache serves them from. Until it is built, and again
+             * after the map or the theme changed, they are rendered live.
+             */
+            updateTilePyramid(theme);
 
+            /*
+             * While GPS tracking moves the map, the prefetcher renders the tiles ahead of the user
+             * into the same tile cache, so they are ready when the map gets there.
+             */
+            tilePrefetcher = new TilePrefetcher(tileRendererLayer, tileCache, mapView, svgSymbols, 2);
+            tilePrefetcher.setMetrics(metrics);
         }
         catch (Exception e) {
             /*
              * In case of map file errors avoid crash, but developers should handle these cases!
              */
             e.printStackTrace();
+            hideSnapshot();
+        }
+    }
+
+    /**
+     * Adds the relief shading right above the map tiles and below their labels, if there is
+     * elevation data. The theme paints the land opaque, so the shading goes over the map and lets
+     * it show through.
+     */
+    private void addHillshadeLayer(){
+        ElevationData elevation = new ElevationData(new File(getExternalFilesDir(null), ELEVATION_DIRECTORY), 8);
+        if (elevation.isEmpty()) {
+            return;
+        }
+        int tileSize = mapView.getModel().displayModel.getTileSize();
+        long memoryBytes = (long) AndroidUtil.getMinimumCacheSize(this, tileSize,
+                mapView.getModel().frameBufferModel.getOverdrawFactor(), 1f) * tileSize * tileSize * 4;
+        // the shading itself is not part of the hash, change the id when changing it
+        LayeredTileCache cache = LayeredTileCache.create(this, "hillshade1", elevation.getKey() + "-" + tileSize,
+                memoryBytes, HILLSHADE_DISK_BYTES, tileSize, AndroidGraphicFactory.INSTANCE);
+        memoryBudget.register(cache.getMemoryTier(), memoryBytes);
+        HillshadeLayer hillshadeLayer = new HillshadeLayer(cache, mapView.getModel().mapViewPosition, elevation,
+                AndroidGraphicFactory.INSTANCE, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        mapView.getLayerManager().getLayers().add(1, hillshadeLayer);
+    }
+
+    /**
+     * Notified for every tile that enters the memory cache, rendered or read from disk.
+     */
+    private final Observer firstTileObserver = new Observer() {
+        @Override
+        public void onChange() {
+            if (startup.markOnce("first tile")) {
+                Log.i(TAG, "Startup: " + startup);
+                Log.i(TAG, "SVG symbols: " + svgSymbols);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        hideSnapshot();
+                    }
+                });
+            }
+        }
+    };
+
+    private final Runnable dumpMetrics = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Metrics:\n" + metrics);
+            handler.postDelayed(this, METRICS_DUMP_MILLIS);
+        }
+    };
+
+    private void showMetrics(){
+        new AlertDialog.Builder(this)
+                .setTitle("Metrics")
+                .setMessage(metrics.toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Shows the snapshot of the last session, decoded in the background, unless a tile is
+     * already there.
+     */
+    private void showSnapshot(){
+        final File snapshotFile = new File(getCacheDir(), SNAPSHOT_FILE);
+        startup.stage("decode snapshot", new Callable<Void>() {
+            @Override
+            public Void call() {
+                final Bitmap snapshot = snapshotFile.exists() ? BitmapFactory.decodeFile(snapshotFile.getPath()) : null;
+                if (snapshot == null) {
+                    return null;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (startup.hasMark("first tile") || isFinishing()) {
+                            snapshot.recycle();
+                            return;
+                        }
+                        ImageView snapshotView = findViewById(R.id.snapshotView);
+                        snapshotView.setImageBitmap(snapshot);
+                        snapshotView.setVisibility(View.VISIBLE);
+                        startup.mark("snapshot shown");
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    private void hideSnapshot(){
+        ImageView snapshotView = findViewById(R.id.snapshotView);
+        snapshotView.setVisibility(View.GONE);
+        snapshotView.setImageDrawable(null);
+        if (tileCache != null) {
+            tileCache.removeObserver(firstTileObserver);
+        }
+    }
+
+    /**
+     * Keeps the viewport and, if the map was drawn, a picture of it for the next start. The
+     * picture is taken here and compressed in the background.
+     */
+    private void saveSnapshot(){
+        LatLong center = mapView.getModel().mapViewPosition.getCenter();
+        getSharedPreferences(VIEWPORT_PREFERENCES, MODE_PRIVATE).edit()
+                .putLong("latitude", Double.doubleToLongBits(center.latitude))
+                .putLong("longitude", Double.doubleToLongBits(center.longitude))
+                .putInt("zoom", mapView.getModel().mapViewPosition.getZoomLevel())
+                .commit();
+
+        if (!startup.hasMark("first tile") || mapView.getWidth() == 0 || mapView.getHeight() == 0) {
+            return;
         }
+        final Bitmap snapshot = Bitmap.createBitmap(mapView.getWidth(), mapView.getHeight(), Bitmap.Config.RGB_565);
+        mapView.draw(new Canvas(snapshot));
+        final File snapshotFile = new File(getCacheDir(), SNAPSHOT_FILE);
+        extractionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(snapshotFile.getPath() + ".tmp");
+                try {
+                    OutputStream out = new FileOutputStream(temp);
+                    try {
+                        snapshot.compress(Bitmap.CompressFormat.JPEG, 85, out);
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(snapshotFile)) {
+                        temp.delete();
+                    }
+                }
+                catch (IOException e){
+                    e.printStackTrace();
+                    temp.delete();
+                }
+                finally {
+                    snapshot.recycle();
+                }
+            }
+        });
+    }
+
+    private void updateSearchIndex(){
+        extractionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // a store of its own, the one of the map only knows the files found at start
+                RegionMapDataStore mapDataStore = new RegionMapDataStore(getExternalFilesDir(null),
+                        new File(getCacheDir(), "regions.index"), MAX_OPEN_MAP_FILES, null);
+                try {
+                    File indexFile = new File(getCacheDir(), "search.index");
+                    String sourceKey = SearchIndex.sourceKey(mapDataStore.getFiles());
+                    SearchIndex index = SearchIndex.open(indexFile, sourceKey);
+                    if (index == null && !mapDataStore.getFiles().isEmpty()) {
+                        long start = System.currentTimeMillis();
+                        SearchIndex.build(mapDataStore, indexFile, sourceKey);
+                        index = SearchIndex.open(indexFile, sourceKey);
+                        Log.i(TAG, "Search index: " + index.getEntryCount() + " entries in "
+                                + (System.currentTimeMillis() - start) + " ms");
+                    }
+                    searchIndex = index;
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                }
+                finally {
+                    mapDataStore.close();
+                }
+            }
+        });
+    }
+
+    private void updateRoadGraph(){
+        extractionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegionMapDataStore mapDataStore = new RegionMapDataStore(getExternalFilesDir(null),
+                        new File(getCacheDir(), "regions.index"), MAX_OPEN_MAP_FILES, null);
+                try {
+                    File graphFile = new File(getCacheDir(), "roads.graph");
+                    String sourceKey = SearchIndex.sourceKey(mapDataStore.getFiles());
+                    RoadGraph graph = RoadGraph.open(graphFile, sourceKey);
+                    if (graph == null && !mapDataStore.getFiles().isEmpty()) {
+                        long start = System.currentTimeMillis();
+                        RoadGraph.build(mapDataStore, graphFile, sourceKey);
+                        graph = RoadGraph.open(graphFile, sourceKey);
+                        Log.i(TAG, "Road graph: " + graph.getVertexCount() + " vertices, " + graph.getEdgeCount()
+                                + " edges in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                    roadGraph = graph;
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                }
+                finally {
+                    mapDataStore.close();
+                }
+            }
+        });
+    }
+
+    private void updateTilePyramid(final XmlRenderTheme theme){
+        final LayeredTileCache cache = tileCache;
+        final SvgSymbolCache symbols = svgSymbols;
+        final DisplayModel displayModel = mapView.getModel().displayModel;
+        extractionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegionMapDataStore mapDataStore = new RegionMapDataStore(getExternalFilesDir(null),
+                        new File(getCacheDir(), "regions.index"), MAX_OPEN_MAP_FILES, null);
+                RenderThemeFuture renderThemeFuture = null;
+                try {
+                    File pyramidFile = new File(getCacheDir(), "overview.pyramid");
+                    String key = LayeredTileCache.hash(mapDataStore.getFiles(), theme, displayModel.getTileSize());
+                    TilePyramid pyramid = TilePyramid.open(pyramidFile, key, symbols);
+                    if (pyramid == null && !mapDataStore.getFiles().isEmpty()) {
+                        long start = System.currentTimeMillis();
+                        renderThemeFuture = new RenderThemeFuture(symbols, theme, displayModel);
+                        renderThemeFuture.run();
+                        TilePyramid.build(mapDataStore, renderThemeFuture, displayModel, symbols, pyramidFile, key,
+                                TilePyramid.MIN_ZOOM, TilePyramid.MAX_ZOOM);
+                        pyramid = TilePyramid.open(pyramidFile, key, symbols);
+                        Log.i(TAG, "Tile pyramid: " + pyramid + " in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                    if (pyramid != null) {
+                        metrics.register(pyramid.getStats());
+                    }
+                    cache.setPyramid(pyramid);
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                }
+                finally {
+                    if (renderThemeFuture != null) {
+                        renderThemeFuture.decrementRefCount();
+                    }
+                    mapDataStore.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Renders the visible area {@link #EXPORT_ZOOM_LEVELS} zoom levels deeper on all cores and
+     * writes it as PNG next to the maps.
+     */
+    private void exportMap(){
+        final XmlRenderTheme theme = renderTheme;
+        if (theme == null){
+            Toast.makeText(this, "Map is not ready", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final BoundingBox boundingBox = mapView.getBoundingBox();
+        final byte zoomLevel = (byte) Math.min(mapView.getModel().mapViewPosition.getZoomLevel() + EXPORT_ZOOM_LEVELS,
+                mapView.getModel().mapViewPosition.getZoomLevelMax());
+        final DisplayModel displayModel = mapView.getModel().displayModel;
+        extractionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RegionMapDataStore mapDataStore = new RegionMapDataStore(getExternalFilesDir(null),
+                        new File(getCacheDir(), "regions.index"), MAX_OPEN_MAP_FILES, null);
+                RenderThemeFuture renderThemeFuture = new RenderThemeFuture(AndroidGraphicFactory.INSTANCE, theme,
+                        displayModel);
+                final File exportFile = new File(getExternalFilesDir(null), EXPORT_FILE);
+                try {
+                    renderThemeFuture.run();
+                    long start = System.currentTimeMillis();
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(exportFile));
+                    try {
+                        new MapExporter(mapDataStore, renderThemeFuture, displayModel, AndroidGraphicFactory.INSTANCE,
+                                androidPixels, Runtime.getRuntime().availableProcessors())
+                                .exportPng(boundingBox, zoomLevel, out, exportProgress);
+                    } finally {
+                        out.close();
+                    }
+                    Log.i(TAG, "Export: " + exportFile.length() / 1024 + " KB in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(GettingStarted.this, "Exported to " + exportFile, Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+                catch (Exception e){
+                    e.printStackTrace();
+                    exportFile.delete();
+                }
+                finally {
+                    showProgress("Exporting", -1);
+                    renderThemeFuture.decrementRefCount();
+                    mapDataStore.close();
+                }
+            }
+        });
+    }
+
+    private final MapExporter.PixelReader androidPixels = new MapExporter.PixelReader() {
+        @Override
+        public void getPixels(org.mapsforge.core.graphics.Bitmap bitmap, int[] pixels) {
+            int width = bitmap.getWidth();
+            AndroidGraphicFactory.getBitmap(bitmap).getPixels(pixels, 0, width, 0, 0, width, bitmap.getHeight());
+        }
+    };
+
+    private final MapExporter.ProgressListener exportProgress = new MapExporter.ProgressListener() {
+        private int lastPercent = -1;
+
+        @Override
+        public void onProgress(int tilesWritten, int tilesTotal) {
+            int percent = tilesWritten * 100 / tilesTotal;
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                showProgress("Exporting", percent);
+            }
+        }
+    };
+
+    /**
+     * Finds the route from the last position, or the center of the map, to the destination in
+     * the background and shows it.
+     */
+    private void route(final LatLong destination){
+        final RoadGraph graph = roadGraph;
+        if (graph == null){
+            Toast.makeText(this, "Road graph is not ready", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final LatLong start = LastLocation != null
+                ? new LatLong(LastLocation.getLatitude(), LastLocation.getLongitude())
+                : mapView.getModel().mapViewPosition.getCenter();
+        routingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the graph is replaced when the map is updated
+                if (router == null || router.getGraph() != graph) {
+                    router = new Router(graph);
+                }
+                long startTime = System.nanoTime();
+                final Router.Route route = router.route(start.latitude, start.longitude,
+                        destination.latitude, destination.longitude);
+                Log.i(TAG, "Route: " + route + ", " + router.getSettledCount() + " vertices settled in "
+                        + (System.nanoTime() - startTime) / 1000000 + " ms");
+                routeLayer.setRoute(route);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (route == null) {
+                            Toast.makeText(GettingStarted.this, "No route found", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        StringBuilder text = new StringBuilder(route.toString());
+                        for (int i = 0; i < Math.min(4, route.instructions.size()); i++) {
+                            text.append('\n').append(route.instructions.get(i));
+                        }
+                        Toast.makeText(GettingStarted.this, text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
+    private void search(String query){
+        SearchIndex index = searchIndex;
+        if (index == null){
+            Toast.makeText(this, "Search index is not ready", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        LatLong position = LastLocation != null
+                ? new LatLong(LastLocation.getLatitude(), LastLocation.getLongitude())
+                : mapView.getModel().mapViewPosition.getCenter();
+        List<SearchIndex.Result> results = index.search(query, position.latitude, position.longitude, 5);
+        if (results.isEmpty()){
+            Toast.makeText(this, "Nothing found", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (SearchIndex.Result result : results) {
+            text.append(text.length() == 0 ? "" : "\n").append(result);
+        }
+        Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+        mapView.setCenter(new LatLong(results.get(0).latitude, results.get(0).longitude));
+        mapView.setZoomLevel((byte) 17);
     }
 
     public void buttonGpsCenterClick(View view){
@@ -276,6 +1025,7 @@ public class GettingStarted extends Activity {
         }
 
         button.setBackgroundColor(Color.GRAY);
+        startTrack();
 
         ContinuousLocationListener = new LocationListener() {
             @Override
@@ -286,6 +1036,23 @@ public class GettingStarted extends Activity {
                     mapView.setCenter(new LatLong(location.getLatitude(), location.getLongitude()));
                 }
                 LastLocation = location;
+
+                /*
+                 * The newest track point is where the location overlay is, so the redraw the
+                 * overlay asks for also shows the track.
+                 */
+                if (trackRecorder != null) {
+                    try {
+                        trackRecorder.add(location.getTime(), location.getLatitude(), location.getLongitude());
+                    }
+                    catch (IOException e) {
+                        Log.w(TAG, "Could not record the track", e);
+                    }
+                }
+
+                if (tilePrefetcher != null) {
+                    tilePrefetcher.onLocation(location);
+                }
             }
 
             @Override
@@ -318,22 +1085,47 @@ public class GettingStarted extends Activity {
         }
     }
 
+    /**
+     * Opens the recorded track and shows it below the location overlay, once per activity.
+     */
+    private void startTrack(){
+        if (trackRecorder != null) {
+            return;
+        }
+        try {
+            trackRecorder = new TrackRecorder(new File(getFilesDir(), TRACK_FILE));
+            Layers layers = mapView.getLayerManager().getLayers();
+            layers.add(layers.indexOf(overlay), new TrackLayer(AndroidGraphicFactory.INSTANCE, trackRecorder));
+            Log.i(TAG, "Track: " + trackRecorder.size() + " points");
+        }
+        catch (IOException e) {
+            // follow the position without recording it
+            e.printStackTrace();
+        }
+    }
+
     public void buttonDownloadMapClick(View view){
         try{
             registerReceiver(onComplete, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
 
-            File existingMapFile = new File(getExternalFilesDir(null), "hungary.zip");
-            if (existingMapFile.exists()){
-                existingMapFile.delete();
+            /*
+             * The map is downloaded by the updater, which continues an interrupted download and,
+             * where a block index is published, fetches only the changed parts of the map.
+             */
+            extractionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateMapFile();
+                }
+            });
+            // run after the update, on the same executor, and rebuild what the new map changed
+            updateSearchIndex();
+            updateRoadGraph();
+            if (renderTheme != null && tileCache != null) {
+                updateTilePyramid(renderTheme);
             }
 
-            //File mapFile = new File(getExternalFilesDir(null), MAP_FILE);
             DownloadManager = (DownloadManager)getSystemService(Context.DOWNLOAD_SERVICE);
-            Uri uri = Uri.parse("http://openmaps.eu/dltosm.php?dl=hungary_openmaps_eu_europe.map.zip");
-            DownloadManager.Request request =  new DownloadManager.Request(uri);
-            request.setDestinationInExternalFilesDir(this, null, "hungary.zip");
-            DownloadManager.enqueue(request);
-
             File existingThemeFile = new File(getExternalFilesDir(null), "Vectorial_V7/Vectorial_V7.xml");
             if (!existingThemeFile.exists()){
                 File existingThemeFileZip = new File(getExternalFilesDir(null), "Vectorial_V7.zip");
@@ -355,92 +1147,131 @@ public class GettingStarted extends Activity {
 
     BroadcastReceiver onComplete= new BroadcastReceiver() {
         public void onReceive(Context ctxt, Intent intent) {
-           extractMapFile();
-           extractThemeFile();
+            /*
+             * Extracting takes seconds, so it must not run on the main thread. The single threaded
+             * executor also keeps the theme extraction from overlapping with the map update.
+             */
+            extractionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    extractThemeFile();
+                }
+            });
         }
+    };
 
-        private void extractMapFile(){
-            try{
-                File mapFile = new File(getExternalFilesDir(null), "hungary.zip");
-                if (!mapFile.exists()){
+    private void updateMapFile(){
+        File mapFile = new File(getExternalFilesDir(null), MAP_FILE);
+        MapUpdater updater = new MapUpdater(downloadProgress);
+        try{
+            if (MAP_UPDATE_URL != null && mapFile.exists()){
+                try{
+                    MapUpdater.Result result = updater.update(new URL(MAP_UPDATE_URL),
+                            new URL(MAP_UPDATE_URL + ".blocks"), mapFile);
+                    Log.i(TAG, "Map update: " + result);
                     return;
                 }
-
-                ZipFile zipFile = new ZipFile(mapFile);
-                //InputStream stream = zipFile.getInputStream();
-                for(Enumeration e = zipFile.entries(); e.hasMoreElements();){
-                    ZipEntry entry = (ZipEntry)e.nextElement();
-                    if(entry.isDirectory()){
-                        continue;
-                    }
-
-                    File file = new File(getExternalFilesDir(null), MAP_FILE);
-                    BufferedInputStream stream = new BufferedInputStream(zipFile.getInputStream(entry));
-                    BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
-
-                    try {
-                        //IOUtils.copy(stream, outputStream);
-                        copyStream(stream, outputStream);
-                    }
-                    finally {
-                        stream.close();
-                        outputStream.close();
-                    }
+                catch (IOException e){
+                    // no block index or no range requests, fall back to the archive
+                    Log.w(TAG, "Map update failed, downloading the archive", e);
                 }
-
-                mapFile.delete();
             }
-            catch (Exception e){
-                e.printStackTrace();
+
+            /*
+             * The archive is deleted once extracted, the ETag and Last-Modified of its last
+             * complete download are kept to only download it again when it changed.
+             */
+            File state = new File(getExternalFilesDir(null), "hungary.zip.state");
+            if (!mapFile.exists()){
+                state.delete();
             }
+            MapUpdater.Result result = updater.downloadIfModified(new URL(MAP_ARCHIVE_URL),
+                    new File(getExternalFilesDir(null), "hungary.zip"), state);
+            Log.i(TAG, result != null ? "Map download: " + result : "Map archive not modified");
+        }
+        catch (IOException e){
+            e.printStackTrace();
         }
+        finally {
+            showExtractionProgress(-1);
+        }
+        // only finds an archive if it was downloaded, or if extracting it failed before
+        extractMapFile();
+    }
 
-        private  void extractThemeFile(){
-            try{
-                File mapFile = new File(getExternalFilesDir(null), "Vectorial_V7.zip");
-                if (!mapFile.exists()){
-                    return;
-                }
+    private void extractMapFile(){
+        File mapZipFile = new File(getExternalFilesDir(null), "hungary.zip");
+        if (!mapZipFile.exists()){
+            return;
+        }
 
-                ZipFile zipFile = new ZipFile(mapFile);
-                //InputStream stream = zipFile.getInputStream();
-                for(Enumeration e = zipFile.entries(); e.hasMoreElements();){
-                    ZipEntry entry = (ZipEntry)e.nextElement();
-                    if(entry.isDirectory()){
-                        File dir = new File(getExternalFilesDir(null), entry.getName());
-                        dir.mkdir();
-                        continue;
-                    }
+        try{
+            new MapExtractor(extractionProgress).extractSingle(mapZipFile, new File(getExternalFilesDir(null), MAP_FILE));
+            mapZipFile.delete();
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+        finally {
+            showExtractionProgress(-1);
+        }
+    }
 
-                    File file = new File(getExternalFilesDir(null), entry.getName());
-                    BufferedInputStream stream = new BufferedInputStream(zipFile.getInputStream(entry));
-                    BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+    private void extractThemeFile(){
+        File themeZipFile = new File(getExternalFilesDir(null), "Vectorial_V7.zip");
+        if (!themeZipFile.exists()){
+            return;
+        }
 
-                    try {
-                        //IOUtils.copy(stream, outputStream);
-                        copyStream(stream, outputStream);
-                    }
-                    finally {
-                        stream.close();
-                        outputStream.close();
-                    }
-                }
+        try{
+            new MapExtractor(extractionProgress).extractAll(themeZipFile, getExternalFilesDir(null));
+            themeZipFile.delete();
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+        finally {
+            showExtractionProgress(-1);
+        }
+    }
 
-                mapFile.delete();
-            }
-            catch (Exception e){
-                e.printStackTrace();
+    private final MapExtractor.ProgressListener extractionProgress = new MapExtractor.ProgressListener() {
+        private int lastPercent = -1;
+
+        @Override
+        public void onProgress(long bytesWritten, long bytesTotal) {
+            int percent = bytesTotal > 0 ? (int) (bytesWritten * 100 / bytesTotal) : 0;
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                showExtractionProgress(percent);
             }
         }
     };
 
-    public static void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
+    private final MapExtractor.ProgressListener downloadProgress = new MapExtractor.ProgressListener() {
+        private int lastPercent = -1;
+
+        @Override
+        public void onProgress(long bytesWritten, long bytesTotal) {
+            int percent = bytesTotal > 0 ? (int) (bytesWritten * 100 / bytesTotal) : 0;
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                showProgress("Downloading", percent);
+            }
         }
-    }
+    };
 
+    private void showExtractionProgress(final int percent){
+        showProgress("Extracting", percent);
+    }
 
-}
\ No newline at end of file
+    private void showProgress(final String action, final int percent){
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Button button = findViewById(R.id.buttonDownloadMap);
+                button.setText(percent < 0 ? "Download map" : action + " " + percent + "%");
+            }
+        });
+    }
+}
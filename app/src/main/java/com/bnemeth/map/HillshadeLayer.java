@@ -0,0 +1,154 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.layer.TileLayer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.IMapViewPosition;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relief shading drawn over the map tiles, computed from local elevation data.
+ * <p>
+ * Like a TileRendererLayer it draws what its tile cache has and queues the missing tiles, but
+ * the tiles are shaded by a pool of worker threads of its own, so relief never holds up the
+ * rendering of the map. The tiles are transparent and the cache is expected to keep them on disk
+ * as well, elevations do not change.
+ */
+public class HillshadeLayer extends TileLayer<Job> {
+
+    public static final byte MIN_ZOOM_LEVEL = 8;
+    public static final byte MAX_ZOOM_LEVEL = 17;
+
+    private final ElevationData elevation;
+    private final GraphicFactory graphicFactory;
+    private final int threads;
+    private final double exaggeration;
+    private ExecutorService workers;
+
+    /**
+     * @param threads the number of threads shading tiles in parallel.
+     */
+    public HillshadeLayer(TileCache tileCache, IMapViewPosition mapViewPosition, ElevationData elevation,
+                          GraphicFactory graphicFactory, int threads) {
+        super(tileCache, mapViewPosition, graphicFactory.createMatrix(), true, true);
+        this.elevation = elevation;
+        this.graphicFactory = graphicFactory;
+        this.threads = threads;
+        // the relief of the plains would hardly show otherwise
+        this.exaggeration = 2;
+    }
+
+    @Override
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+        if (zoomLevel >= MIN_ZOOM_LEVEL && zoomLevel <= MAX_ZOOM_LEVEL) {
+            super.draw(boundingBox, zoomLevel, canvas, topLeftPoint);
+        }
+    }
+
+    @Override
+    protected Job createJob(Tile tile) {
+        return new Job(tile, isTransparent);
+    }
+
+    @Override
+    protected boolean isTileStale(Tile tile, TileBitmap bitmap) {
+        return false;
+    }
+
+    @Override
+    protected synchronized void onAdd() {
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HillshadeLayer-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Worker());
+        }
+        super.onAdd();
+    }
+
+    @Override
+    protected synchronized void onRemove() {
+        stopWorkers();
+        super.onRemove();
+    }
+
+    /*
+     * The tile cache is destroyed by MapView.destroyAll(), like the one of every TileLayer.
+     */
+    @Override
+    public void onDestroy() {
+        stopWorkers();
+        super.onDestroy();
+    }
+
+    private synchronized void stopWorkers() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /**
+     * Takes the tiles from the job queue until interrupted, the queue hands every tile to one
+     * worker only.
+     */
+    private class Worker implements Runnable {
+        private final Hillshader hillshader = new Hillshader(elevation, exaggeration);
+        private int[] pixels = new int[0];
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job;
+                try {
+                    job = jobQueue.get();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (!tileCache.containsKey(job)) {
+                        TileBitmap bitmap = shade(job.tile);
+                        tileCache.put(job, bitmap);
+                        bitmap.decrementRefCount();
+                        requestRedraw();
+                    }
+                } catch (RuntimeException e) {
+                    // broken elevation data, leave the tile without relief
+                    e.printStackTrace();
+                } finally {
+                    jobQueue.remove(job);
+                }
+            }
+        }
+
+        private TileBitmap shade(Tile tile) {
+            int size = tile.tileSize;
+            if (pixels.length != size * size) {
+                pixels = new int[size * size];
+            }
+            hillshader.shade(tile, pixels);
+            TileBitmap bitmap = graphicFactory.createTileBitmap(size, true);
+            AndroidGraphicFactory.getBitmap(bitmap).setPixels(pixels, 0, size, 0, 0, size, size);
+            return bitmap;
+        }
+    }
+}
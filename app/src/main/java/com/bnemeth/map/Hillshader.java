@@ -0,0 +1,111 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * Computes the relief shading of a tile from {@link ElevationData}, as ARGB pixels meant to be
+ * drawn over the map: slopes facing away from the light are darkened, slopes facing it lightened
+ * a little, and flat ground as well as places without data stay transparent.
+ * <p>
+ * The light comes from the north west, 45 degrees above the horizon. The normal of every pixel is
+ * taken from the heights of its eight neighbours (Horn's method), the heights are sampled at the
+ * pixel centers. A shader keeps its buffers between tiles, so every thread needs its own.
+ */
+public class Hillshader {
+
+    private static final double AZIMUTH = Math.toRadians(315);
+    private static final double ALTITUDE = Math.toRadians(45);
+    private static final int MAX_SHADOW_ALPHA = 140;
+    private static final int MAX_HIGHLIGHT_ALPHA = 70;
+
+    private final ElevationData elevation;
+    private final double exaggeration;
+    private final double lightX;
+    private final double lightY;
+    private final double lightZ;
+
+    private double[] latitudes = new double[0];
+    private double[] longitudes = new double[0];
+    private float[] heights = new float[0];
+
+    /**
+     * @param exaggeration factor for the heights, above 1 for more pronounced relief.
+     */
+    public Hillshader(ElevationData elevation, double exaggeration) {
+        this.elevation = elevation;
+        this.exaggeration = exaggeration;
+        // towards the light, x to the east and y to the south like pixels
+        lightX = Math.sin(AZIMUTH) * Math.cos(ALTITUDE);
+        lightY = -Math.cos(AZIMUTH) * Math.cos(ALTITUDE);
+        lightZ = Math.sin(ALTITUDE);
+    }
+
+    /**
+     * Shades a tile.
+     *
+     * @param pixels at least tileSize * tileSize ARGB pixels, row by row.
+     * @return false if there is no elevation data in the tile, the pixels are then all transparent.
+     */
+    public boolean shade(Tile tile, int[] pixels) {
+        int size = tile.tileSize;
+        int grid = size + 2;
+        if (latitudes.length != grid) {
+            latitudes = new double[grid];
+            longitudes = new double[grid];
+            heights = new float[grid * grid];
+        }
+
+        // pixel centers of the tile and a border of one pixel around it
+        long mapSize = MercatorProjection.getMapSize(tile.zoomLevel, size);
+        double left = (double) tile.tileX * size - 0.5;
+        double top = (double) tile.tileY * size - 0.5;
+        for (int i = 0; i < grid; i++) {
+            longitudes[i] = MercatorProjection.pixelXToLongitude(
+                    Math.max(0, Math.min(mapSize, left + i)), mapSize);
+            latitudes[i] = MercatorProjection.pixelYToLatitude(
+                    Math.max(0, Math.min(mapSize, top + i)), mapSize);
+        }
+        elevation.getHeights(latitudes, longitudes, heights);
+
+        boolean found = false;
+        double flat = lightZ;
+        for (int y = 0; y < size; y++) {
+            // Mercator keeps angles, a pixel is as wide as high at every latitude
+            double cellMeters = MercatorProjection.calculateGroundResolution(latitudes[y + 1], mapSize);
+            double scale = exaggeration / (8 * cellMeters);
+            int row = (y + 1) * grid + 1;
+            for (int x = 0; x < size; x++) {
+                int center = row + x;
+                float a = heights[center - grid - 1];
+                float b = heights[center - grid];
+                float c = heights[center - grid + 1];
+                float d = heights[center - 1];
+                float f = heights[center + 1];
+                float g = heights[center + grid - 1];
+                float h = heights[center + grid];
+                float i = heights[center + grid + 1];
+                double dzdx = ((c + 2 * f + i) - (a + 2 * d + g)) * scale;
+                double dzdy = ((g + 2 * h + i) - (a + 2 * b + c)) * scale;
+                if (Double.isNaN(dzdx) || Double.isNaN(dzdy)) {
+                    pixels[y * size + x] = 0;
+                    continue;
+                }
+                found = true;
+
+                // the normal is (-dzdx, -dzdy, 1)
+                double shade = (lightZ - dzdx * lightX - dzdy * lightY) / Math.sqrt(dzdx * dzdx + dzdy * dzdy + 1);
+                int pixel;
+                if (shade < flat) {
+                    int alpha = (int) (MAX_SHADOW_ALPHA * (flat - Math.max(0, shade)) / flat);
+                    pixel = alpha << 24;
+                } else {
+                    int alpha = (int) (MAX_HIGHLIGHT_ALPHA * (shade - flat) / (1 - flat));
+                    pixel = alpha << 24 | 0xFFFFFF;
+                }
+                pixels[y * size + x] = pixel;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,315 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Matrix;
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Rectangle;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.Layer;
+import org.mapsforge.map.layer.labels.LabelStore;
+import org.mapsforge.map.util.LayerUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Draws the labels and symbols a TileRendererLayer left in its label store, placed across tile
+ * borders without collisions.
+ * <p>
+ * Placement is incremental: every label seen at a zoom level is decided once, placed or dropped,
+ * and the decision is kept while the map pans, so only the labels of newly exposed or newly
+ * rendered tiles are solved, against the labels already placed. A label crossing a tile border is
+ * stored with both tiles, equal containers are one label here. New labels are placed by priority,
+ * and a grid of {@link #CELL_SIZE} pixel cells over the map keeps the collision test to the
+ * labels nearby.
+ * <p>
+ * The placements of the last {@link #MAX_ZOOM_LEVELS} zoom levels are kept, so zooming back and
+ * forth shows the same labels without solving them again. A zoom level holding more than
+ * {@link #MAX_LABELS} labels forgets the ones far from the view. Only the render thread draws, so
+ * nothing here is synchronized.
+ */
+public class LabelPlacementLayer extends Layer {
+
+    static final int CELL_SIZE = 64;
+    static final int MAX_ZOOM_LEVELS = 3;
+    static final int MAX_LABELS = 4096;
+    // how far around the view labels are kept when a zoom level is pruned, in tiles
+    private static final int KEEP_TILES = 2;
+    // how far from its anchor point the boundary of a label is looked for, in cells
+    private static final int MAX_SEARCH_CELLS = 4;
+    // the widest label, in cells
+    private static final int MAX_LABEL_CELLS = 64;
+
+    private static final Comparator<MapElementContainer> BY_PRIORITY = new Comparator<MapElementContainer>() {
+        @Override
+        public int compare(MapElementContainer a, MapElementContainer b) {
+            return b.getPriority() < a.getPriority() ? -1 : (b.getPriority() == a.getPriority() ? 0 : 1);
+        }
+    };
+
+    /**
+     * A placed label and the grid cells its boundary covers.
+     */
+    private static final class Label {
+        final MapElementContainer item;
+        final int minColumn;
+        final int minRow;
+        final int maxColumn;
+        final int maxRow;
+
+        Label(MapElementContainer item, int minColumn, int minRow, int maxColumn, int maxRow) {
+            this.item = item;
+            this.minColumn = minColumn;
+            this.minRow = minRow;
+            this.maxColumn = maxColumn;
+            this.maxRow = maxRow;
+        }
+    }
+
+    /**
+     * The labels of one zoom level.
+     */
+    static final class Placement {
+        // every label decided, placed or not
+        final Set<MapElementContainer> seen = new HashSet<>();
+        // in the order they were placed
+        final List<Label> placed = new ArrayList<>();
+        final Map<Long, List<Label>> grid = new HashMap<>();
+        int version = -1;
+        Tile upperLeft;
+        Tile lowerRight;
+
+        /**
+         * Places the labels not decided yet.
+         *
+         * @return how many labels were solved.
+         */
+        int add(List<MapElementContainer> items) {
+            List<MapElementContainer> fresh = new ArrayList<>();
+            for (MapElementContainer item : items) {
+                if (!seen.contains(item)) {
+                    fresh.add(item);
+                }
+            }
+            Collections.sort(fresh, BY_PRIORITY);
+            int solved = 0;
+            int[] cells = new int[4];
+            for (MapElementContainer item : fresh) {
+                if (!seen.add(item)) {
+                    // a copy from a neighbouring tile
+                    continue;
+                }
+                solved++;
+                if (findCells(item, cells) && !clashes(item, cells)) {
+                    place(new Label(item, cells[0], cells[1], cells[2], cells[3]));
+                }
+            }
+            return solved;
+        }
+
+        boolean isPlaced(MapElementContainer item) {
+            for (Label label : placed) {
+                if (label.item.equals(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Forgets the labels outside an area, the ones dropped are decided again when seen next.
+         */
+        void retain(Rectangle area) {
+            List<Label> kept = new ArrayList<>();
+            for (Label label : placed) {
+                if (label.item.intersects(area)) {
+                    kept.add(label);
+                }
+            }
+            seen.clear();
+            placed.clear();
+            grid.clear();
+            for (Label label : kept) {
+                seen.add(label.item);
+                place(label);
+            }
+        }
+
+        private boolean clashes(MapElementContainer item, int[] cells) {
+            for (int row = cells[1]; row <= cells[3]; row++) {
+                for (int column = cells[0]; column <= cells[2]; column++) {
+                    List<Label> labels = grid.get(cellKey(column, row));
+                    if (labels == null) {
+                        continue;
+                    }
+                    for (Label label : labels) {
+                        if (item.clashesWith(label.item)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void place(Label label) {
+            placed.add(label);
+            for (int row = label.minRow; row <= label.maxRow; row++) {
+                for (int column = label.minColumn; column <= label.maxColumn; column++) {
+                    Long key = cellKey(column, row);
+                    List<Label> labels = grid.get(key);
+                    if (labels == null) {
+                        labels = new ArrayList<>(4);
+                        grid.put(key, labels);
+                    }
+                    labels.add(label);
+                }
+            }
+        }
+    }
+
+    private final LabelStore labelStore;
+    private final Matrix matrix;
+    private final LinkedHashMap<Byte, Placement> placements = new LinkedHashMap<Byte, Placement>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Byte, Placement> eldest) {
+            return size() > MAX_ZOOM_LEVELS;
+        }
+    };
+
+    private Metrics.Histogram placementTime;
+    private Metrics.Counter solvedLabels;
+
+    public LabelPlacementLayer(GraphicFactory graphicFactory, LabelStore labelStore) {
+        this.labelStore = labelStore;
+        this.matrix = graphicFactory.createMatrix();
+    }
+
+    /**
+     * Records the placement time of every frame into {@link Metrics#LABEL_PLACEMENT}, and counts
+     * the labels solved.
+     */
+    public void setMetrics(Metrics metrics) {
+        placementTime = metrics.histogram(Metrics.LABEL_PLACEMENT);
+        solvedLabels = metrics.counter("labels.solved");
+    }
+
+    @Override
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+        long start = System.nanoTime();
+        int tileSize = displayModel.getTileSize();
+        Tile upperLeft = LayerUtil.getUpperLeft(boundingBox, zoomLevel, tileSize);
+        Tile lowerRight = LayerUtil.getLowerRight(boundingBox, zoomLevel, tileSize);
+        Placement placement = getPlacement(zoomLevel);
+
+        int version = labelStore.getVersion();
+        if (version != placement.version || !upperLeft.equals(placement.upperLeft)
+                || !lowerRight.equals(placement.lowerRight)) {
+            placement.version = version;
+            placement.upperLeft = upperLeft;
+            placement.lowerRight = lowerRight;
+            int solved = placement.add(labelStore.getVisibleItems(upperLeft, lowerRight));
+            if (solvedLabels != null) {
+                solvedLabels.add(solved);
+            }
+            if (placement.placed.size() > MAX_LABELS) {
+                int margin = KEEP_TILES * tileSize;
+                placement.retain(new Rectangle(upperLeft.tileX * (double) tileSize - margin,
+                        upperLeft.tileY * (double) tileSize - margin,
+                        (lowerRight.tileX + 1) * (double) tileSize + margin,
+                        (lowerRight.tileY + 1) * (double) tileSize + margin));
+            }
+        }
+        if (placementTime != null) {
+            placementTime.recordSince(start);
+        }
+
+        Rectangle view = new Rectangle(topLeftPoint.x, topLeftPoint.y, topLeftPoint.x + canvas.getWidth(),
+                topLeftPoint.y + canvas.getHeight());
+        for (Label label : placement.placed) {
+            if (label.item.intersects(view)) {
+                label.item.draw(canvas, topLeftPoint, matrix, displayModel.getFilter());
+            }
+        }
+    }
+
+    /**
+     * Forgets every placement, for when the labels in the store are replaced.
+     */
+    public void clear() {
+        placements.clear();
+    }
+
+    Placement getPlacement(byte zoomLevel) {
+        Placement placement = placements.get(zoomLevel);
+        if (placement == null) {
+            placement = new Placement();
+            placements.put(zoomLevel, placement);
+        }
+        return placement;
+    }
+
+    boolean hasPlacement(byte zoomLevel) {
+        return placements.containsKey(zoomLevel);
+    }
+
+    /**
+     * Finds the range of cells the boundary of a label covers. The boundary itself is not public,
+     * so the cells are tested: first around the anchor point until one intersects, then along its
+     * row and column, a rectangle covers whole rows and columns of cells.
+     *
+     * @param cells receives the first column and row and the last column and row.
+     * @return false if no cell near the anchor point intersects the label.
+     */
+    static boolean findCells(MapElementContainer item, int[] cells) {
+        Point anchor = item.getPoint();
+        int anchorColumn = (int) Math.floor(anchor.x / CELL_SIZE);
+        int anchorRow = (int) Math.floor(anchor.y / CELL_SIZE);
+        for (int distance = 0; distance <= MAX_SEARCH_CELLS; distance++) {
+            for (int row = anchorRow - distance; row <= anchorRow + distance; row++) {
+                // only the ring at this distance
+                int step = row == anchorRow - distance || row == anchorRow + distance ? 1 : 2 * distance;
+                for (int column = anchorColumn - distance; column <= anchorColumn + distance; column += step) {
+                    if (item.intersects(cell(column, row))) {
+                        cells[0] = extend(item, column, row, -1, 0);
+                        cells[1] = extend(item, column, row, 0, -1);
+                        cells[2] = extend(item, column, row, 1, 0);
+                        cells[3] = extend(item, column, row, 0, 1);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int extend(MapElementContainer item, int column, int row, int dx, int dy) {
+        for (int i = 0; i < MAX_LABEL_CELLS; i++) {
+            if (!item.intersects(cell(column + dx, row + dy))) {
+                break;
+            }
+            column += dx;
+            row += dy;
+        }
+        return dx != 0 ? column : row;
+    }
+
+    private static Rectangle cell(int column, int row) {
+        return new Rectangle((double) column * CELL_SIZE, (double) row * CELL_SIZE,
+                (double) (column + 1) * CELL_SIZE, (double) (row + 1) * CELL_SIZE);
+    }
+
+    private static Long cellKey(int column, int row) {
+        return ((long) column << 32) | (row & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,274 @@
+package com.bnemeth.map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.android.util.AndroidUtil;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.common.Observer;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Tile cache with a memory tier sized from the device memory class in front of a persistent
+ * disk tier bounded by bytes.
+ * <p>
+ * The disk tier lives in a directory named after a hash of the map files and the render theme, so
+ * tiles survive restarts but are never served for another map or theme. Directories of other
+ * combinations are deleted when the cache is created.
+ * <p>
+ * A {@link TilePyramid} can be set as a read-only tier between the two, it serves the tiles of
+ * the low zoom levels instead of the disk tier.
+ */
+public class LayeredTileCache implements TileCache {
+
+    /** Share of the app heap (memory class) used for the memory tier. */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+    private static final long DEFAULT_DISK_BYTES = 64L * 1024 * 1024;
+    /** Changes with the way the app draws tiles: 2 leaves the labels to LabelPlacementLayer. */
+    private static final int TILE_VERSION = 2;
+
+    private final MemoryTileCache memory;
+    private final DiskTileCache disk;
+    private volatile TilePyramid pyramid;
+
+    private Metrics.ThreadTimer renderTimer;
+
+    public LayeredTileCache(MemoryTileCache memory, DiskTileCache disk) {
+        this.memory = memory;
+        this.disk = disk;
+    }
+
+    /**
+     * Creates the cache for the given map files and render theme below the app cache directory.
+     */
+    public static LayeredTileCache create(Context context, String id, int tileSize, double overdrawFactor,
+                                          List<File> mapFiles, XmlRenderTheme renderTheme,
+                                          GraphicFactory graphicFactory)
+            throws IOException {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryBytes = activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_CLASS_DIVISOR;
+        long screenBytes = (long) AndroidUtil.getMinimumCacheSize(context, tileSize, overdrawFactor, 1f)
+                * tileSize * tileSize * 4;
+
+        return create(context, id, hash(mapFiles, renderTheme, tileSize), Math.max(memoryBytes, screenBytes),
+                DEFAULT_DISK_BYTES, tileSize, graphicFactory);
+    }
+
+    /**
+     * Creates a cache below the app cache directory for tiles whose look is identified by the
+     * given hash, deleting the tiles of other hashes.
+     */
+    public static LayeredTileCache create(Context context, String id, String hash, long memoryBytes,
+                                          long diskBytes, int tileSize, GraphicFactory graphicFactory) {
+        return create(new File(context.getCacheDir(), id), hash, memoryBytes, diskBytes, tileSize, graphicFactory);
+    }
+
+    static LayeredTileCache create(File root, String hash, long memoryBytes, long diskBytes, int tileSize,
+                                   GraphicFactory graphicFactory) {
+        deleteOtherDirectories(root, hash);
+        return new LayeredTileCache(new MemoryTileCache(memoryBytes, tileSize),
+                new DiskTileCache(new File(root, hash), diskBytes, graphicFactory, tileSize));
+    }
+
+    /**
+     * Hash of everything that changes the look of a tile: the map files (identified by path, size
+     * and modification time, hashing their content would take too long), the render theme content,
+     * the tile size and scale, and the version of the tiles.
+     */
+    static String hash(List<File> mapFiles, XmlRenderTheme renderTheme, int tileSize) throws IOException {
+        CRC32 crc = new CRC32();
+        for (File mapFile : mapFiles) {
+            crc.update((mapFile.getAbsolutePath() + ':' + mapFile.length() + ':' + mapFile.lastModified() + ':')
+                    .getBytes("UTF-8"));
+        }
+        crc.update((TILE_VERSION + ":" + tileSize + ":" + DisplayModel.getDeviceScaleFactor()
+                + ':' + renderTheme.getRelativePathPrefix()).getBytes("UTF-8"));
+
+        InputStream in = renderTheme.getRenderThemeAsStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Adds the counters of both tiers to the metrics, and stops the render timer started by the
+     * map data store when a rendered tile is put here.
+     */
+    public void setMetrics(Metrics metrics) {
+        metrics.register(memory.getStats());
+        metrics.register(disk.getStats());
+        renderTimer = metrics.timer(Metrics.TILE_RENDER);
+    }
+
+    public MemoryTileCache getMemoryTier() {
+        return memory;
+    }
+
+    public DiskTileCache getDiskTier() {
+        return disk;
+    }
+
+    public TilePyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * Serves the tiles the pyramid has from it from now on, or none if it is null. Can be called
+     * from any thread, the tiles of its zoom levels already in memory stay there.
+     */
+    public void setPyramid(TilePyramid pyramid) {
+        this.pyramid = pyramid;
+    }
+
+    @Override
+    public boolean containsKey(Job key) {
+        TilePyramid pyramid = this.pyramid;
+        return memory.containsKey(key) || (pyramid != null && pyramid.contains(key.tile)) || disk.containsKey(key);
+    }
+
+    @Override
+    public void destroy() {
+        memory.destroy();
+        disk.destroy();
+    }
+
+    @Override
+    public TileBitmap get(Job key) {
+        TileBitmap bitmap = memory.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = getFromPyramidOrDisk(key);
+        if (bitmap != null) {
+            memory.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public int getCapacity() {
+        return Math.max(memory.getCapacity(), disk.getCapacity());
+    }
+
+    @Override
+    public int getCapacityFirstLevel() {
+        return memory.getCapacity();
+    }
+
+    @Override
+    public TileBitmap getImmediately(Job key) {
+        return memory.get(key);
+    }
+
+    @Override
+    public void purge() {
+        memory.purge();
+        disk.purge();
+    }
+
+    /**
+     * Called by the render threads with the tile they just rendered. Tiles of the pyramid are only
+     * rendered while it is being built, they are not written to disk.
+     */
+    @Override
+    public void put(Job key, TileBitmap bitmap) {
+        if (renderTimer != null) {
+            renderTimer.stop();
+        }
+        memory.put(key, bitmap);
+        TilePyramid pyramid = this.pyramid;
+        if (pyramid == null || !pyramid.contains(key.tile)) {
+            disk.put(key, bitmap);
+        }
+    }
+
+    /**
+     * Like the mapsforge TwoLevelTileCache, tiles of the working set that are only in the pyramid
+     * or on disk are loaded into memory here, since the layer only draws what
+     * {@link #getImmediately(Job)} finds.
+     */
+    @Override
+    public void setWorkingSet(Set<Job> workingSet) {
+        memory.setWorkingSet(workingSet);
+        TilePyramid pyramid = this.pyramid;
+        for (Job job : workingSet) {
+            if (!memory.containsKey(job)
+                    && ((pyramid != null && pyramid.contains(job.tile)) || disk.containsKey(job))) {
+                TileBitmap bitmap = getFromPyramidOrDisk(job);
+                if (bitmap != null) {
+                    memory.put(job, bitmap);
+                    bitmap.decrementRefCount();
+                }
+            }
+        }
+    }
+
+    private TileBitmap getFromPyramidOrDisk(Job key) {
+        TilePyramid pyramid = this.pyramid;
+        if (pyramid != null && pyramid.contains(key.tile)) {
+            return pyramid.get(key);
+        }
+        return disk.get(key);
+    }
+
+    /*
+     * Every put goes through the memory tier, so its notifications are enough and observers are
+     * not notified twice for one tile.
+     */
+    @Override
+    public void addObserver(Observer observer) {
+        memory.addObserver(observer);
+    }
+
+    @Override
+    public void removeObserver(Observer observer) {
+        memory.removeObserver(observer);
+    }
+
+    @Override
+    public String toString() {
+        TilePyramid pyramid = this.pyramid;
+        return memory.getStats() + (pyramid != null ? ", " + pyramid.getStats() : "") + ", " + disk.getStats();
+    }
+
+    private static void deleteOtherDirectories(File root, String keep) {
+        File[] children = root.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.getName().equals(keep)) {
+                deleteRecursively(child);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
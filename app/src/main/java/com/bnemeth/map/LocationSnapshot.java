@@ -0,0 +1,58 @@
+package com.bnemeth.map;
+
+/**
+ * Latest position fix, published by one writer and read by any thread without locks or
+ * allocations.
+ * <p>
+ * This is a sequence lock: the version is odd while a write is in progress, and a reader retries
+ * until it saw the same even version before and after copying the values. All fields are
+ * volatile, so the copied values cannot be reordered around the version checks.
+ */
+public class LocationSnapshot {
+
+    private volatile int version;
+    private volatile double latitude;
+    private volatile double longitude;
+    private volatile float accuracy;
+
+    /**
+     * Publishes a new fix. Must only be called from one thread at a time.
+     */
+    public void set(double latitude, double longitude, float accuracy) {
+        int next = version + 1;
+        version = next;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        version = next + 1;
+    }
+
+    /**
+     * Copies a consistent fix into the reader's own instance and returns its version, 0 if no fix
+     * was published yet.
+     */
+    public int copyTo(Reader reader) {
+        while (true) {
+            int before = version;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            reader.latitude = latitude;
+            reader.longitude = longitude;
+            reader.accuracy = accuracy;
+            if (version == before) {
+                return before / 2;
+            }
+        }
+    }
+
+    /**
+     * A copy of the fix, owned by one reading thread.
+     */
+    public static class Reader {
+        public double latitude;
+        public double longitude;
+        public float accuracy;
+    }
+}
@@ -0,0 +1,267 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.layer.labels.TileBasedLabelStore;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Renders an area of the map off screen into a PNG of any size, e.g. Budapest at 10000x10000
+ * pixels for print.
+ * <p>
+ * The area is cut into tiles that worker threads render in parallel, without labels like the
+ * tiles of the map layer. The exporting thread takes them one row of tiles at a time, draws the
+ * row into a band as wide as the image, places the labels over it with a
+ * {@link LabelPlacementLayer} and streams the rows of pixels of the band into a {@link PngWriter}.
+ * The label layer keeps what it placed as it moves down the image, so labels are not cut at the
+ * borders of tiles or bands. The workers render at most two rows of tiles ahead, so the memory
+ * needed grows with the width of the image only.
+ */
+public class MapExporter {
+
+    public interface ProgressListener {
+        /**
+         * Called on the exporting thread after every row of tiles that has been drawn.
+         */
+        void onProgress(int tilesWritten, int tilesTotal);
+    }
+
+    /**
+     * Reads the pixels of a bitmap, which the graphics backends keep in their own way.
+     */
+    public interface PixelReader {
+        /**
+         * @param pixels width * height ARGB pixels, row by row.
+         */
+        void getPixels(Bitmap bitmap, int[] pixels);
+    }
+
+    private final MapDataStore mapDataStore;
+    private final RenderThemeFuture renderThemeFuture;
+    private final DisplayModel displayModel;
+    private final GraphicFactory graphicFactory;
+    private final PixelReader pixelReader;
+    private final int threads;
+
+    /**
+     * @param displayModel its tile size and scale factor are the ones of the image, a larger scale
+     *                     draws lines and labels larger for print.
+     */
+    public MapExporter(MapDataStore mapDataStore, RenderThemeFuture renderThemeFuture, DisplayModel displayModel,
+                       GraphicFactory graphicFactory, PixelReader pixelReader, int threads) {
+        this.mapDataStore = mapDataStore;
+        this.renderThemeFuture = renderThemeFuture;
+        this.displayModel = displayModel;
+        this.graphicFactory = graphicFactory;
+        this.pixelReader = pixelReader;
+        this.threads = threads;
+    }
+
+    /**
+     * The lowest zoom level at which the area is at least the given number of pixels wide.
+     */
+    public static byte zoomLevelFor(BoundingBox boundingBox, int width, int tileSize) {
+        byte zoomLevel = 0;
+        while (zoomLevel < 22 && getPixelBounds(boundingBox, zoomLevel, tileSize)[2] < width) {
+            zoomLevel++;
+        }
+        return zoomLevel;
+    }
+
+    /**
+     * The pixels of the area at the zoom level: left, top, width and height.
+     */
+    public static long[] getPixelBounds(BoundingBox boundingBox, byte zoomLevel, int tileSize) {
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, tileSize);
+        long left = (long) Math.floor(MercatorProjection.longitudeToPixelX(boundingBox.minLongitude, mapSize));
+        long right = (long) Math.ceil(MercatorProjection.longitudeToPixelX(boundingBox.maxLongitude, mapSize));
+        long top = (long) Math.floor(MercatorProjection.latitudeToPixelY(boundingBox.maxLatitude, mapSize));
+        long bottom = (long) Math.ceil(MercatorProjection.latitudeToPixelY(boundingBox.minLatitude, mapSize));
+        return new long[]{left, top, Math.max(1, right - left), Math.max(1, bottom - top)};
+    }
+
+    /**
+     * Renders the area at the zoom level and writes it as PNG, without closing the stream.
+     *
+     * @param progressListener may be null.
+     */
+    public void exportPng(BoundingBox boundingBox, byte zoomLevel, OutputStream out,
+                          ProgressListener progressListener) throws IOException {
+        final int tileSize = displayModel.getTileSize();
+        long[] bounds = getPixelBounds(boundingBox, zoomLevel, tileSize);
+        if (bounds[2] > Integer.MAX_VALUE / tileSize || bounds[3] > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image too large: " + bounds[2] + "x" + bounds[3]);
+        }
+        long left = bounds[0];
+        long top = bounds[1];
+        int width = (int) bounds[2];
+        int height = (int) bounds[3];
+        final int firstColumn = (int) (left / tileSize);
+        final int firstRow = (int) (top / tileSize);
+        final int columns = (int) ((left + width - 1) / tileSize) - firstColumn + 1;
+        final int rows = (int) ((top + height - 1) / tileSize) - firstRow + 1;
+        final int total = columns * rows;
+
+        // the labels of the rows around the one drawn, and the tiles rendered ahead
+        final TileBasedLabelStore labelStore = new TileBasedLabelStore(4 * columns + threads);
+        final DatabaseRenderer renderer = new DatabaseRenderer(mapDataStore, graphicFactory, null, labelStore,
+                false, true, null);
+        LabelPlacementLayer labelLayer = new LabelPlacementLayer(graphicFactory, labelStore);
+        labelLayer.setDisplayModel(displayModel);
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MapExporter-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads, threadFactory);
+        /*
+         * The PNG is compressed on a thread of its own while the next band is drawn. Deflate
+         * streams cannot be compressed in parallel before API level 19, but rendering a tile takes
+         * many times longer than compressing it.
+         */
+        ExecutorService encoder = Executors.newSingleThreadExecutor(threadFactory);
+        ArrayDeque<Future<TileBitmap>> rendering = new ArrayDeque<>();
+        ArrayDeque<TileBitmap> row = new ArrayDeque<>();
+        Bitmap band = graphicFactory.createBitmap(width, tileSize);
+        Canvas canvas = graphicFactory.createCanvas();
+        canvas.setBitmap(band);
+        int[][] buffers = {new int[width * tileSize], new int[width * tileSize]};
+        Future<?>[] encoding = new Future<?>[2];
+        final PngWriter png = new PngWriter(out, width, height, Deflater.BEST_SPEED);
+        int submitted = 0;
+        try {
+            for (int r = 0; r < rows; r++) {
+                // this row and the next are needed for the labels, more keeps the workers busy
+                int ahead = Math.min(total, (r + 2) * columns + threads);
+                for (; submitted < ahead; submitted++) {
+                    final Tile tile = new Tile(firstColumn + submitted % columns, firstRow + submitted / columns,
+                            zoomLevel, tileSize);
+                    rendering.add(executor.submit(new Callable<TileBitmap>() {
+                        @Override
+                        public TileBitmap call() throws IOException {
+                            TileBitmap bitmap = renderer.executeJob(new RendererJob(tile, mapDataStore,
+                                    renderThemeFuture, displayModel, 1f, false, false));
+                            if (bitmap == null) {
+                                throw new IOException("Could not render " + tile);
+                            }
+                            return bitmap;
+                        }
+                    }));
+                }
+                for (int c = 0; c < columns; c++) {
+                    row.add(take(rendering.remove()));
+                }
+                // the labels of the next row reach into this one
+                int next = r + 1 < rows ? columns : 0;
+                for (Future<TileBitmap> future : rendering) {
+                    if (next-- == 0) {
+                        break;
+                    }
+                    take(future);
+                }
+
+                // the band of this row, in the pixels of the image
+                long bandTop = (firstRow + r) * (long) tileSize;
+                int c = 0;
+                for (TileBitmap bitmap : row) {
+                    canvas.drawBitmap(bitmap, (int) ((firstColumn + c) * (long) tileSize - left), 0);
+                    bitmap.decrementRefCount();
+                    c++;
+                }
+                row.clear();
+                Tile upperLeft = new Tile(firstColumn, Math.max(firstRow, firstRow + r - 1), zoomLevel, tileSize);
+                Tile lowerRight = new Tile(firstColumn + columns - 1, Math.min(firstRow + rows - 1, firstRow + r + 1),
+                        zoomLevel, tileSize);
+                labelLayer.draw(upperLeft.getBoundingBox().extendBoundingBox(lowerRight.getBoundingBox()),
+                        zoomLevel, canvas, new Point(left, bandTop));
+
+                // a buffer is filled again once the band before the last is compressed
+                final int[] pixels = buffers[r % 2];
+                if (encoding[r % 2] != null) {
+                    take(encoding[r % 2]);
+                }
+                pixelReader.getPixels(band, pixels);
+                final int from = (int) Math.max(0, top - bandTop);
+                final int to = (int) Math.min(tileSize, top + height - bandTop);
+                final int stride = width;
+                encoding[r % 2] = encoder.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int y = from; y < to; y++) {
+                            png.writeRow(pixels, y * stride);
+                        }
+                        return null;
+                    }
+                });
+                if (progressListener != null) {
+                    progressListener.onProgress((r + 1) * columns, total);
+                }
+            }
+            for (Future<?> future : encoding) {
+                if (future != null) {
+                    take(future);
+                }
+            }
+            png.finish();
+        } finally {
+            executor.shutdownNow();
+            encoder.shutdownNow();
+            for (TileBitmap bitmap : row) {
+                bitmap.decrementRefCount();
+            }
+            for (Future<TileBitmap> future : rendering) {
+                if (!future.cancel(true) && future.isDone()) {
+                    try {
+                        future.get().decrementRefCount();
+                    } catch (Exception e) {
+                        // failed, nothing to release
+                    }
+                }
+            }
+            band.decrementRefCount();
+        }
+    }
+
+    private static <T> T take(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
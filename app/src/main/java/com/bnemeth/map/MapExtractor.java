@@ -0,0 +1,164 @@
+package com.bnemeth.map;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts downloaded map and theme archives.
+ * <p>
+ * Every entry is streamed through one large reusable buffer into a temporary ".part" file next
+ * to its destination. The CRC32 of the written bytes is checked against the zip entry before the
+ * temporary file is renamed over the destination, so a reader never sees a half written map.
+ * <p>
+ * This class does no threading on its own, callers are expected to run it off the main thread.
+ */
+public class MapExtractor {
+
+    public interface ProgressListener {
+        /**
+         * Called after every buffer that has been written.
+         *
+         * @param bytesWritten uncompressed bytes written so far for the whole archive.
+         * @param bytesTotal   uncompressed size of the whole archive, or -1 if unknown.
+         */
+        void onProgress(long bytesWritten, long bytesTotal);
+    }
+
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final String TEMP_SUFFIX = ".part";
+
+    private final byte[] buffer;
+    private final ProgressListener progressListener;
+    private final CRC32 crc = new CRC32();
+
+    private long bytesWritten;
+    private long bytesTotal;
+
+    public MapExtractor(ProgressListener progressListener) {
+        this(BUFFER_SIZE, progressListener);
+    }
+
+    public MapExtractor(int bufferSize, ProgressListener progressListener) {
+        this.buffer = new byte[bufferSize];
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Extracts the first file entry of the archive to the given file, ignoring its name in the
+     * archive. This is how the single .map file of a country download is unpacked.
+     */
+    public void extractSingle(File archive, File target) throws IOException {
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                start(entry.getSize());
+                extractEntry(zipFile, entry, target);
+                return;
+            }
+            throw new ZipException("No file entry in " + archive);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Extracts all entries of the archive below the given directory, keeping their relative
+     * paths. This is how theme archives with their symbol folders are unpacked.
+     */
+    public void extractAll(File archive, File targetDir) throws IOException {
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            long total = 0;
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (total >= 0 && entry.getSize() >= 0) {
+                    total += entry.getSize();
+                } else {
+                    total = -1;
+                }
+            }
+            start(total);
+
+            String canonicalDir = targetDir.getCanonicalPath() + File.separator;
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                File file = new File(targetDir, entry.getName());
+                if (!file.getCanonicalPath().startsWith(canonicalDir)) {
+                    throw new ZipException("Entry outside of target directory: " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+
+                File parent = file.getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                extractEntry(zipFile, entry, file);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void start(long total) {
+        bytesWritten = 0;
+        bytesTotal = total;
+        if (progressListener != null) {
+            progressListener.onProgress(0, bytesTotal);
+        }
+    }
+
+    private void extractEntry(ZipFile zipFile, ZipEntry entry, File target) throws IOException {
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        boolean success = false;
+
+        crc.reset();
+        InputStream in = zipFile.getInputStream(entry);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                bytesWritten += read;
+                if (progressListener != null) {
+                    progressListener.onProgress(bytesWritten, bytesTotal);
+                }
+            }
+            out.getFD().sync();
+            success = true;
+        } finally {
+            in.close();
+            out.close();
+            if (!success) {
+                temp.delete();
+            }
+        }
+
+        if (entry.getCrc() != -1 && entry.getCrc() != crc.getValue()) {
+            temp.delete();
+            throw new ZipException("CRC mismatch for " + entry.getName());
+        }
+
+        // rename() replaces the destination atomically, an open MapFile keeps reading the old one
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + target);
+        }
+    }
+}
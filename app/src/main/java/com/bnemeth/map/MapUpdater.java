@@ -0,0 +1,744 @@
+package com.bnemeth.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads map files, resuming interrupted downloads and fetching only the changed parts of a
+ * map that is already on the device.
+ * <p>
+ * For an update the server publishes a block index next to the map, see
+ * {@link #writeBlockIndex(File, int, OutputStream)}: the length and SHA-1 of the new file, and a
+ * weak rolling checksum and an MD5 digest of each of its blocks. The old file is scanned once with
+ * the rolling checksum like rsync does, so blocks are found again at any offset, also when data
+ * was inserted before them. The new file is then written front to back into a ".part" file, the
+ * found blocks copied from the old file and the others fetched with HTTP range requests, every
+ * block checked against its digest before it is written.
+ * <p>
+ * Since the ".part" file only ever holds checked blocks, an interrupted update or download
+ * continues where it stopped, also after the app was restarted. The finished file is verified as
+ * a whole before it is renamed over the old one.
+ * <p>
+ * A file that is only offered as a whole, like a map archive, is downloaded again only if it
+ * changed on the server since the last complete download, see
+ * {@link #downloadIfModified(URL, File, File)}.
+ * <p>
+ * This class does no threading on its own, callers are expected to run it off the main thread.
+ */
+public class MapUpdater {
+
+    static final int MAGIC = 0x4D424C4B; // "MBLK"
+    static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    static final String TEMP_SUFFIX = MapExtractor.TEMP_SUFFIX;
+    /** Identifies the file a ".part" file belongs to, so it is not continued with another one. */
+    static final String INFO_SUFFIX = ".part.info";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /** Neighbouring missing blocks are fetched with one request, up to this many. */
+    private static final int MAX_BLOCKS_PER_REQUEST = 256;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    public static class Result {
+        /** Bytes received from the server, including the block index. */
+        public final long bytesDownloaded;
+        /** Bytes copied from the old file. */
+        public final long bytesReused;
+        public final long fileLength;
+        public final long millis;
+
+        Result(long bytesDownloaded, long bytesReused, long fileLength, long millis) {
+            this.bytesDownloaded = bytesDownloaded;
+            this.bytesReused = bytesReused;
+            this.fileLength = fileLength;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return fileLength / 1024 + " KB in " + millis + " ms, " + bytesDownloaded / 1024 + " KB downloaded, "
+                    + bytesReused / 1024 + " KB reused";
+        }
+    }
+
+    /**
+     * The parsed block index of a map file.
+     */
+    static class BlockIndex {
+        final int blockSize;
+        final long fileLength;
+        final byte[] sha1;
+        final int[] weak;
+        final byte[][] strong;
+
+        BlockIndex(int blockSize, long fileLength, byte[] sha1, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.fileLength = fileLength;
+            this.sha1 = sha1;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, fileLength - (long) block * blockSize);
+        }
+    }
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final MapExtractor.ProgressListener progressListener;
+
+    // transfer attempts per call, every attempt continues the ".part" file of the one before
+    int attempts = 3;
+
+    private long bytesDownloaded;
+    private long bytesReused;
+    // the validators of the last download response
+    private String etag;
+    private String lastModified;
+
+    public MapUpdater(MapExtractor.ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Updates the map file to the one at mapUrl. If the map file exists, only the blocks that are
+     * not found in it are downloaded, otherwise the whole file is.
+     *
+     * @param mapUrl        the new map file, the server must support range requests.
+     * @param blockIndexUrl its block index.
+     * @param mapFile       the map file to update or create.
+     */
+    public Result update(URL mapUrl, URL blockIndexUrl, File mapFile) throws IOException {
+        long start = System.currentTimeMillis();
+        bytesDownloaded = 0;
+        bytesReused = 0;
+
+        BlockIndex index = readBlockIndex(blockIndexUrl);
+        String version = toHex(index.sha1);
+        if (mapFile.isFile() && mapFile.length() == index.fileLength && version.equals(toHex(sha1(mapFile)))) {
+            return new Result(bytesDownloaded, 0, index.fileLength, System.currentTimeMillis() - start);
+        }
+
+        long[] found = new long[index.blockCount()];
+        Arrays.fill(found, -1);
+        if (mapFile.isFile()) {
+            findBlocks(mapFile, index, found);
+        }
+
+        File temp = new File(mapFile.getPath() + TEMP_SUFFIX);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                patch(mapUrl, mapFile, temp, index, found, version);
+                break;
+            } catch (IOException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+            }
+        }
+
+        if (!Arrays.equals(index.sha1, sha1(temp))) {
+            // blocks are checked one by one, so this only happens with a broken index
+            deletePart(temp);
+            throw new IOException("Checksum mismatch in " + temp);
+        }
+        replace(temp, mapFile);
+        return new Result(bytesDownloaded, bytesReused, index.fileLength, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Downloads a file as a whole, e.g. a map archive, continuing a ".part" file left by an
+     * interrupted download if the server still has the same version of the file.
+     */
+    public Result download(URL url, File target) throws IOException {
+        long start = System.currentTimeMillis();
+        bytesDownloaded = 0;
+        bytesReused = 0;
+
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadPart(url, temp, null, null);
+                break;
+            } catch (IOException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+            }
+        }
+        replace(temp, target);
+        return new Result(bytesDownloaded, 0, target.length(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Downloads a file as a whole like {@link #download(URL, File)}, but only if it changed on the
+     * server since the last complete download. The ETag and Last-Modified of that download are
+     * kept in the state file, so the target itself may be gone, e.g. an archive that was
+     * extracted and deleted. Delete the state file to download in any case.
+     *
+     * @return null if the file did not change.
+     */
+    public Result downloadIfModified(URL url, File target, File state) throws IOException {
+        long start = System.currentTimeMillis();
+        bytesDownloaded = 0;
+        bytesReused = 0;
+
+        String[] validators = state.isFile() ? readValidators(state) : new String[2];
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (!downloadPart(url, temp, validators[0], validators[1])) {
+                    return null;
+                }
+                break;
+            } catch (IOException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+            }
+        }
+        replace(temp, target);
+        writeValidators(state, etag, lastModified);
+        return new Result(bytesDownloaded, 0, target.length(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Writes the block index of a file, to be published next to it.
+     */
+    public static void writeBlockIndex(File file, int blockSize, OutputStream out) throws IOException {
+        MessageDigest sha1 = digest("SHA-1");
+        MessageDigest md5 = digest("MD5");
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        DataOutputStream blockOut = new DataOutputStream(blocks);
+        byte[] block = new byte[blockSize];
+        InputStream in = new FileInputStream(file);
+        try {
+            int length;
+            while ((length = readBlock(in, block)) > 0) {
+                sha1.update(block, 0, length);
+                blockOut.writeInt(weakChecksum(block, 0, length));
+                md5.update(block, 0, length);
+                blockOut.write(md5.digest());
+            }
+        } finally {
+            in.close();
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(blockSize);
+        data.writeLong(file.length());
+        data.write(sha1.digest());
+        blocks.writeTo(data);
+        data.flush();
+    }
+
+    static BlockIndex parseBlockIndex(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a block index");
+        }
+        int blockSize = in.readInt();
+        long fileLength = in.readLong();
+        if (blockSize <= 0 || fileLength < 0) {
+            throw new IOException("Invalid block index");
+        }
+        byte[] sha1 = new byte[20];
+        in.readFully(sha1);
+        int blocks = (int) ((fileLength + blockSize - 1) / blockSize);
+        int[] weak = new int[blocks];
+        byte[][] strong = new byte[blocks][16];
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong[i]);
+        }
+        return new BlockIndex(blockSize, fileLength, sha1, weak, strong);
+    }
+
+    /**
+     * The rsync checksum: the sum of the bytes in the low and the sum of the running sums in the
+     * high 16 bits.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private BlockIndex readBlockIndex(URL url) throws IOException {
+        HttpURLConnection connection = open(url, 0, -1, null);
+        try {
+            InputStream in = new CountingInputStream(connection.getInputStream());
+            try {
+                return parseBlockIndex(new BufferedInputStream(in));
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Scans the old file with the rolling checksum and records the offset of every full block of
+     * the new file that is found in it.
+     */
+    private void findBlocks(File mapFile, BlockIndex index, long[] found) throws IOException {
+        int blockSize = index.blockSize;
+        // the last block is only compared when it is a full one, a short one is simply fetched
+        int fullBlocks = (int) (index.fileLength / blockSize);
+        Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+        for (int i = 0; i < fullBlocks; i++) {
+            List<Integer> blocks = blocksByChecksum.get(index.weak[i]);
+            if (blocks == null) {
+                blocks = new ArrayList<>(1);
+                blocksByChecksum.put(index.weak[i], blocks);
+            }
+            blocks.add(i);
+        }
+        if (blocksByChecksum.isEmpty()) {
+            return;
+        }
+
+        MessageDigest md5 = digest("MD5");
+        // the window is kept twice in a row, so it can be digested without copying
+        byte[] window = new byte[blockSize * 2];
+        InputStream in = new BufferedInputStream(new FileInputStream(mapFile), BUFFER_SIZE);
+        try {
+            long offset = 0;
+            int filled = readBlock(in, window, blockSize);
+            System.arraycopy(window, 0, window, blockSize, filled);
+            if (filled < blockSize) {
+                return;
+            }
+            int head = 0;
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < blockSize; i++) {
+                a += window[i] & 0xff;
+                b += a;
+            }
+            while (true) {
+                List<Integer> candidates = blocksByChecksum.get((a & 0xffff) | (b << 16));
+                boolean matched = false;
+                if (candidates != null) {
+                    md5.update(window, head, blockSize);
+                    byte[] digest = md5.digest();
+                    for (int block : candidates) {
+                        if (found[block] < 0 && Arrays.equals(digest, index.strong[block])) {
+                            found[block] = offset;
+                            matched = true;
+                        }
+                    }
+                }
+
+                if (matched) {
+                    // continue behind the block, with a new window
+                    filled = readBlock(in, window, blockSize);
+                    if (filled < blockSize) {
+                        return;
+                    }
+                    System.arraycopy(window, 0, window, blockSize, blockSize);
+                    offset += blockSize;
+                    head = 0;
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        a += window[i] & 0xff;
+                        b += a;
+                    }
+                    continue;
+                }
+
+                int next = in.read();
+                if (next < 0) {
+                    return;
+                }
+                int out = window[head] & 0xff;
+                window[head] = (byte) next;
+                window[head + blockSize] = (byte) next;
+                head = head + 1 == blockSize ? 0 : head + 1;
+                a += next - out;
+                b += a - blockSize * out;
+                offset++;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the blocks that are not in the ".part" file yet.
+     */
+    private void patch(URL mapUrl, File mapFile, File temp, BlockIndex index, long[] found, String version)
+            throws IOException {
+        int first = (int) (preparePart(temp, version) / index.blockSize);
+        RandomAccessFile part = new RandomAccessFile(temp, "rw");
+        try {
+            // only whole blocks were checked, a partly written one is written again
+            part.setLength((long) first * index.blockSize);
+        } finally {
+            part.close();
+        }
+
+        MessageDigest md5 = digest("MD5");
+        byte[] block = new byte[index.blockSize];
+        RandomAccessFile old = mapFile.isFile() ? new RandomAccessFile(mapFile, "r") : null;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp, true), BUFFER_SIZE);
+        try {
+            int i = first;
+            while (i < index.blockCount()) {
+                if (found[i] >= 0) {
+                    old.seek(found[i]);
+                    old.readFully(block, 0, index.blockSize);
+                    writeBlock(out, block, i, index, md5);
+                    bytesReused += index.blockSize;
+                    i++;
+                    progress(i, index);
+                    continue;
+                }
+
+                int end = i + 1;
+                while (end < index.blockCount() && found[end] < 0 && end - i < MAX_BLOCKS_PER_REQUEST) {
+                    end++;
+                }
+                long from = (long) i * index.blockSize;
+                long to = Math.min((long) end * index.blockSize, index.fileLength);
+                HttpURLConnection connection = open(mapUrl, from, to, null);
+                try {
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("Range requests not supported for " + mapUrl);
+                    }
+                    InputStream in = new CountingInputStream(connection.getInputStream());
+                    try {
+                        for (; i < end; i++) {
+                            int length = index.blockLength(i);
+                            if (readBlock(in, block, length) < length) {
+                                throw new EOFException("Download of " + mapUrl + " ended at " + from);
+                            }
+                            writeBlock(out, block, i, index, md5);
+                            progress(i + 1, index);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                // make what was fetched survive an interruption of the next request
+                out.flush();
+            }
+        } finally {
+            out.close();
+            if (old != null) {
+                old.close();
+            }
+        }
+    }
+
+    private void writeBlock(OutputStream out, byte[] block, int i, BlockIndex index, MessageDigest md5)
+            throws IOException {
+        int length = index.blockLength(i);
+        md5.update(block, 0, length);
+        if (!Arrays.equals(md5.digest(), index.strong[i])) {
+            throw new IOException("Block " + i + " does not match the block index");
+        }
+        out.write(block, 0, length);
+    }
+
+    /**
+     * Downloads into the ".part" file, continuing it if there is one. Without a ".part" file the
+     * request is conditional on the given ETag and Last-Modified, if any.
+     *
+     * @return false if the server answered that the file is not modified.
+     */
+    private boolean downloadPart(URL url, File temp, String ifNoneMatch, String ifModifiedSince)
+            throws IOException {
+        File info = new File(temp.getPath().replace(TEMP_SUFFIX, INFO_SUFFIX));
+        long from = temp.isFile() && info.isFile() ? temp.length() : 0;
+        String validator = from > 0 ? readInfo(info) : null;
+
+        HttpURLConnection connection = from > 0 ? open(url, from, -1, validator)
+                : openIfModified(url, ifNoneMatch, ifModifiedSince);
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            }
+            etag = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+            boolean append = code == HttpURLConnection.HTTP_PARTIAL;
+            if (!append && code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+            if (!append) {
+                // no resume possible, or the file changed on the server
+                from = 0;
+                writeInfo(info, etag != null ? etag : lastModified);
+            }
+            long length = connection.getContentLength();
+            long total = length < 0 ? -1 : from + length;
+
+            InputStream in = new CountingInputStream(connection.getInputStream());
+            OutputStream out = new FileOutputStream(temp, append);
+            try {
+                long written = from;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    written += read;
+                    if (progressListener != null) {
+                        progressListener.onProgress(written, total);
+                    }
+                }
+                if (total >= 0 && written < total) {
+                    throw new EOFException("Download of " + url + " ended at " + written);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        info.delete();
+        return true;
+    }
+
+    /**
+     * Returns the length of the ".part" file if it belongs to the given version, otherwise
+     * starts a new one.
+     */
+    private static long preparePart(File temp, String version) throws IOException {
+        File info = new File(temp.getPath().replace(TEMP_SUFFIX, INFO_SUFFIX));
+        if (temp.isFile() && info.isFile() && version.equals(readInfo(info))) {
+            return temp.length();
+        }
+        deletePart(temp);
+        writeInfo(info, version);
+        return 0;
+    }
+
+    private static void deletePart(File temp) {
+        temp.delete();
+        new File(temp.getPath().replace(TEMP_SUFFIX, INFO_SUFFIX)).delete();
+    }
+
+    private static void replace(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            // renameTo does not replace existing files on every platform
+            target.delete();
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not rename " + temp + " to " + target);
+            }
+        }
+        new File(temp.getPath().replace(TEMP_SUFFIX, INFO_SUFFIX)).delete();
+    }
+
+    private static String readInfo(File info) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(info));
+        try {
+            return in.readUTF();
+        } catch (EOFException e) {
+            return "";
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeInfo(File info, String value) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(info));
+        try {
+            out.writeUTF(value != null ? value : "");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String[] readValidators(File state) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(state));
+        try {
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            return new String[]{etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified};
+        } catch (EOFException e) {
+            return new String[2];
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeValidators(File state, String etag, String lastModified) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(state));
+        try {
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Requests the whole file, unless it still has the given ETag or was not modified since the
+     * given Last-Modified.
+     */
+    private static HttpURLConnection openIfModified(URL url, String ifNoneMatch, String ifModifiedSince)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+        }
+        return connect(connection, url);
+    }
+
+    /**
+     * Requests the bytes from from to the end, or to to (exclusive) if it is not -1.
+     */
+    private static HttpURLConnection open(URL url, long from, long to, String validator) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (from > 0 || to >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + (to >= 0 ? String.valueOf(to - 1) : ""));
+            if (validator != null && !validator.isEmpty()) {
+                // the server sends the whole file instead if it changed since
+                connection.setRequestProperty("If-Range", validator);
+            }
+        }
+        return connect(connection, url);
+    }
+
+    private static HttpURLConnection connect(HttpURLConnection connection, URL url) throws IOException {
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        int code = connection.getResponseCode();
+        if (code >= 400) {
+            connection.disconnect();
+            throw new IOException("HTTP " + code + " for " + url);
+        }
+        return connection;
+    }
+
+    private void progress(int blocksWritten, BlockIndex index) {
+        if (progressListener != null) {
+            progressListener.onProgress(Math.min((long) blocksWritten * index.blockSize, index.fileLength),
+                    index.fileLength);
+        }
+    }
+
+    private byte[] sha1(File file) throws IOException {
+        MessageDigest sha1 = digest("SHA-1");
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha1.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return sha1.digest();
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has MD5 and SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        return readBlock(in, block, block.length);
+    }
+
+    /**
+     * Reads up to length bytes, less only at the end of the stream.
+     */
+    private static int readBlock(InputStream in, byte[] block, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = in.read(block, filled, length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Counts the bytes received, for the result.
+     */
+    private class CountingInputStream extends InputStream {
+        private final InputStream in;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                bytesDownloaded++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                bytesDownloaded += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.bnemeth.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read only FileChannel over a memory-mapped file.
+ * <p>
+ * MapFile reads its blocks through a FileChannel, one position() and read() under a lock on the
+ * channel for every block. Backed by mapped memory, a read is a copy from the page cache instead
+ * of a system call, and the pages are shared by every reader of the file. Files larger than a
+ * ByteBuffer can address are mapped in several segments.
+ * <p>
+ * The channel is read only, the writing methods throw NonWritableChannelException and only shared
+ * locks can be taken.
+ */
+public class MappedFileChannel extends FileChannel {
+
+    static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final File file;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+    private final List<SharedLock> locks = new ArrayList<>();
+    private long position;
+
+    private MappedFileChannel(File file, long size, MappedByteBuffer[] segments) {
+        this.file = file;
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Maps a whole file. The file is not kept open, the mapping stays valid without it.
+     */
+    public static MappedFileChannel open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return new MappedFileChannel(file, size, segments);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer destination) throws IOException {
+        int read = read(destination, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(ByteBuffer destination, long position) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Channel closed");
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (destination.hasRemaining() && position < size) {
+            // a duplicate, the buffers are shared between threads
+            ByteBuffer segment = segments[(int) (position >> SEGMENT_SHIFT)].duplicate();
+            segment.position((int) (position & (SEGMENT_SIZE - 1)));
+            if (segment.remaining() > destination.remaining()) {
+                segment.limit(segment.position() + destination.remaining());
+            }
+            int length = segment.remaining();
+            destination.put(segment);
+            read += length;
+            position += length;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+        long read = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int count = read(destinations[i]);
+            if (count < 0) {
+                return read == 0 ? -1 : read;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer source, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    /**
+     * Writes the mapped segments to the target, without a copy through a buffer of its own.
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative position " + position + " or count " + count);
+        }
+        if (!isOpen()) {
+            throw new IOException("Channel closed");
+        }
+        if (position >= size) {
+            return 0;
+        }
+        long end = position + Math.min(count, size - position);
+        long transferred = 0;
+        while (position < end) {
+            // a duplicate, the buffers are shared between threads
+            ByteBuffer segment = segments[(int) (position >> SEGMENT_SHIFT)].duplicate();
+            segment.position((int) (position & (SEGMENT_SIZE - 1)));
+            if (segment.remaining() > end - position) {
+                segment.limit(segment.position() + (int) (end - position));
+            }
+            int written = target.write(segment);
+            if (written == 0) {
+                // a non-blocking target that is full
+                break;
+            }
+            transferred += written;
+            position += written;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * Returns a read only view of the mapped segment when the range lies in one of them, and maps
+     * the range from the file otherwise.
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        if (mode != MapMode.READ_ONLY) {
+            throw new NonWritableChannelException();
+        }
+        if (position < 0 || size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid position " + position + " or size " + size);
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        int index = (int) (position >> SEGMENT_SHIFT);
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        if (position + size <= this.size && index < segments.length && offset + size <= segments[index].capacity()) {
+            // a duplicate, the buffers are shared between threads
+            ByteBuffer segment = segments[index].duplicate();
+            segment.position(offset);
+            segment.limit(offset + (int) size);
+            // the slice of a direct buffer is a MappedByteBuffer on the JVM and on Android
+            return (MappedByteBuffer) segment.slice();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(MapMode.READ_ONLY, position, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Takes a shared lock on the file, through a channel of its own that the lock closes when it is
+     * released. Exclusive locks need a writable channel.
+     */
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return lock(position, size, shared, true);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return lock(position, size, shared, false);
+    }
+
+    private FileLock lock(long position, long size, boolean shared, boolean wait) throws IOException {
+        if (!shared) {
+            throw new NonWritableChannelException();
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = wait ? channel.lock(position, size, true) : channel.tryLock(position, size, true);
+            if (lock == null) {
+                raf.close();
+                return null;
+            }
+            SharedLock sharedLock = new SharedLock(lock, raf);
+            synchronized (locks) {
+                locks.add(sharedLock);
+            }
+            return sharedLock;
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /*
+     * The mapping goes away when the buffers are collected, the locks are released with the
+     * channel.
+     */
+    @Override
+    protected void implCloseChannel() throws IOException {
+        List<SharedLock> held;
+        synchronized (locks) {
+            held = new ArrayList<>(locks);
+            locks.clear();
+        }
+        for (SharedLock lock : held) {
+            lock.release();
+        }
+    }
+
+    private class SharedLock extends FileLock {
+
+        private final FileLock lock;
+        private final RandomAccessFile raf;
+
+        SharedLock(FileLock lock, RandomAccessFile raf) {
+            super(MappedFileChannel.this, lock.position(), lock.size(), true);
+            this.lock = lock;
+            this.raf = raf;
+        }
+
+        @Override
+        public boolean isValid() {
+            return lock.isValid();
+        }
+
+        @Override
+        public void release() throws IOException {
+            synchronized (locks) {
+                locks.remove(this);
+            }
+            try {
+                if (lock.isValid()) {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
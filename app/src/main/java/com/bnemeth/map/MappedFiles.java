@@ -0,0 +1,48 @@
+package com.bnemeth.map;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Maps the files the app builds for itself: the search index, the road graph, the tile pyramid,
+ * the symbol pack and the compiled theme. Each starts with a magic number, a format version and
+ * the key of what it was built from, a UTF-8 string after its length as a short.
+ */
+class MappedFiles {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Maps the whole file, or returns null if it does not exist, has another format or version,
+     * was built from something else, or is cut off within the header. The returned buffer is
+     * positioned behind the key.
+     */
+    static MappedByteBuffer map(File file, int magic, int version, String key) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 10 || buffer.getInt() != magic || buffer.getInt() != version) {
+                return null;
+            }
+            int length = buffer.getShort() & 0xffff;
+            if (buffer.remaining() < length) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return key.equals(new String(bytes, UTF_8)) ? buffer : null;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+    }
+}
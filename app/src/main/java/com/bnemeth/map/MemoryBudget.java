@@ -0,0 +1,133 @@
+package com.bnemeth.map;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The memory the caches of the app may take, shrunk in steps when the system runs low on memory.
+ * <p>
+ * Every {@link MemoryConsumer} is registered with its full budget in bytes. A trim level
+ * reported by {@link ComponentCallbacks2#onTrimMemory(int)} maps to a step, and every consumer is
+ * limited to the share of its full budget that step allows, which makes it evict right away. The
+ * lowest step leaves a budget of nothing, the tile caches then only keep the tiles on screen.
+ * <p>
+ * The system does not report when the pressure is over, so {@link #relax()} raises the budgets
+ * again one step at a time, the caller decides when. Raising a budget frees no memory and
+ * allocates none, the caches only grow back as tiles and map data are used again.
+ */
+public class MemoryBudget {
+
+    /** The percentage of the full budgets left at each step, from no pressure to the most. */
+    static final int[] SHARES = {100, 75, 50, 25, 0};
+
+    private final Map<MemoryConsumer, Long> budgets = new LinkedHashMap<>();
+    private int step;
+    private int trims;
+
+    /**
+     * Adds a consumer with its full budget, limited to the share of the current step.
+     */
+    public synchronized void register(MemoryConsumer consumer, long budgetBytes) {
+        budgets.put(consumer, budgetBytes);
+        consumer.setCapacityBytes(budgetBytes * SHARES[step] / 100);
+    }
+
+    public synchronized void unregister(MemoryConsumer consumer) {
+        budgets.remove(consumer);
+    }
+
+    /**
+     * Shrinks the budgets to the step of the trim level, if that is lower than the current one.
+     * The levels of a running app take a step each, a hidden UI leaves a quarter and an app in the
+     * background nothing.
+     *
+     * @return whether the budgets shrank.
+     */
+    public synchronized boolean trim(int level) {
+        trims++;
+        int step = stepFor(level);
+        if (step <= this.step) {
+            return false;
+        }
+        this.step = step;
+        apply();
+        return true;
+    }
+
+    /**
+     * Raises the budgets one step.
+     *
+     * @return whether there is still a step to go.
+     */
+    public synchronized boolean relax() {
+        if (step > 0) {
+            step--;
+            apply();
+        }
+        return step > 0;
+    }
+
+    static int stepFor(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 4;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 3;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 2;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private void apply() {
+        for (Map.Entry<MemoryConsumer, Long> entry : budgets.entrySet()) {
+            entry.getKey().setCapacityBytes(entry.getValue() * SHARES[step] / 100);
+        }
+    }
+
+    public synchronized int getStep() {
+        return step;
+    }
+
+    /**
+     * The current bytes and budget of every consumer.
+     */
+    public synchronized List<TileCacheStats> getUsage() {
+        List<TileCacheStats> usage = new ArrayList<>();
+        for (MemoryConsumer consumer : budgets.keySet()) {
+            usage.add(consumer.getStats());
+        }
+        return usage;
+    }
+
+    /**
+     * The bytes all consumers currently take.
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (MemoryConsumer consumer : budgets.keySet()) {
+            bytes += consumer.getStats().getBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("MemoryBudget [share=").append(SHARES[step])
+                .append("%, trims=").append(trims).append(", bytes=").append(getBytes());
+        for (MemoryConsumer consumer : budgets.keySet()) {
+            TileCacheStats stats = consumer.getStats();
+            builder.append(", ").append(stats.name).append('=').append(stats.getBytes())
+                    .append('/').append(stats.getCapacityBytes());
+        }
+        return builder.append(']').toString();
+    }
+}
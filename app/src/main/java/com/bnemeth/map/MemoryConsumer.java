@@ -0,0 +1,13 @@
+package com.bnemeth.map;
+
+/**
+ * A cache bounded by bytes that gives memory back as soon as its budget shrinks, see
+ * {@link MemoryBudget}.
+ */
+public interface MemoryConsumer {
+    /** Its name, current bytes and budget. */
+    TileCacheStats getStats();
+
+    /** Changes the budget, evicting right away if the consumer is now too large. */
+    void setCapacityBytes(long capacityBytes);
+}
@@ -0,0 +1,152 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.common.Observable;
+import org.mapsforge.map.model.common.Observer;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory tile cache bounded by the bytes of the bitmaps it holds.
+ * <p>
+ * Like the mapsforge InMemoryTileCache it keeps a reference on every bitmap it holds and hands
+ * out an additional one from {@link #get(Job)}. Tiles of the current working set are never evicted,
+ * the layer only draws what is in memory: the budget bounds the tiles around them, and the cache
+ * exceeds it by what is on screen when it is smaller than that.
+ */
+public class MemoryTileCache implements TileCache, MemoryConsumer {
+
+    private final LinkedHashMap<Job, TileBitmap> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final Observable observable = new Observable();
+    private final TileCacheStats stats;
+    private final int tileBytes;
+
+    private Set<Job> workingSet = Collections.emptySet();
+
+    /**
+     * @param capacityBytes the maximum number of bitmap bytes to keep.
+     * @param tileSize      the size of the tiles in pixels, used to estimate the bitmap size.
+     */
+    public MemoryTileCache(long capacityBytes, int tileSize) {
+        this.tileBytes = tileSize * tileSize * 4;
+        this.stats = new TileCacheStats("memory", capacityBytes);
+    }
+
+    @Override
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Changes the byte budget, evicting tiles right away if the cache is now too large.
+     */
+    @Override
+    public synchronized void setCapacityBytes(long capacityBytes) {
+        stats.capacityBytes = capacityBytes;
+        evict();
+    }
+
+    @Override
+    public synchronized boolean containsKey(Job key) {
+        return tiles.containsKey(key);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        purge();
+    }
+
+    @Override
+    public synchronized TileBitmap get(Job key) {
+        TileBitmap bitmap = tiles.get(key);
+        if (bitmap != null) {
+            stats.hits.incrementAndGet();
+            bitmap.incrementRefCount();
+        } else {
+            stats.misses.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    @Override
+    public synchronized int getCapacity() {
+        return (int) (stats.capacityBytes / tileBytes);
+    }
+
+    @Override
+    public int getCapacityFirstLevel() {
+        return getCapacity();
+    }
+
+    @Override
+    public TileBitmap getImmediately(Job key) {
+        return get(key);
+    }
+
+    @Override
+    public synchronized void purge() {
+        for (TileBitmap bitmap : tiles.values()) {
+            bitmap.decrementRefCount();
+        }
+        tiles.clear();
+        stats.bytes.set(0);
+    }
+
+    @Override
+    public void put(Job key, TileBitmap bitmap) {
+        if (key == null || bitmap == null) {
+            throw new IllegalArgumentException("key and bitmap must not be null");
+        }
+
+        synchronized (this) {
+            bitmap.incrementRefCount();
+            TileBitmap old = tiles.put(key, bitmap);
+            if (old != null) {
+                old.decrementRefCount();
+            } else {
+                stats.bytes.addAndGet(sizeOf(bitmap));
+            }
+            evict();
+        }
+        observable.notifyObservers();
+    }
+
+    @Override
+    public synchronized void setWorkingSet(Set<Job> workingSet) {
+        this.workingSet = workingSet;
+    }
+
+    @Override
+    public void addObserver(Observer observer) {
+        observable.addObserver(observer);
+    }
+
+    @Override
+    public void removeObserver(Observer observer) {
+        observable.removeObserver(observer);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Job, TileBitmap>> iterator = tiles.entrySet().iterator();
+        while (iterator.hasNext() && stats.bytes.get() > stats.capacityBytes) {
+            Map.Entry<Job, TileBitmap> entry = iterator.next();
+            if (workingSet.contains(entry.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            stats.bytes.addAndGet(-sizeOf(entry.getValue()));
+            stats.evictions.incrementAndGet();
+            entry.getValue().decrementRefCount();
+        }
+    }
+
+    private static long sizeOf(TileBitmap bitmap) {
+        return (long) bitmap.getWidth() * bitmap.getHeight() * 4;
+    }
+}
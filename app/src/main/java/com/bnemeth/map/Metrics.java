@@ -0,0 +1,282 @@
+package com.bnemeth.map;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the hot paths, cheap enough to stay on in release builds.
+ * <p>
+ * Recording does not lock or allocate, a histogram update is a handful of atomic increments.
+ * Histograms keep their values in buckets of a quarter of a power of two, so percentiles are
+ * accurate to 25% whatever the range. Everything counts from the start of the process; the
+ * {@link #toString()} dump is meant for the log and for a debug screen.
+ */
+public class Metrics {
+
+    /** Time from reading the map data of a tile to putting its bitmap into the tile cache. */
+    public static final String TILE_RENDER = "tile.render";
+    /** Time to read the map data of one tile. */
+    public static final String MAP_READ = "map.read";
+    /** Time from a position fix in view to the location overlay drawing it. */
+    public static final String LOCATION_REDRAW = "location.redraw";
+    /** Time the label layer spends placing labels, per frame. */
+    public static final String LABEL_PLACEMENT = "label.placement";
+    /** Prefix of the draw time of a layer, per frame. */
+    public static final String DRAW = "draw.";
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final Map<String, ThreadTimer> timers = new LinkedHashMap<>();
+    private final List<TileCacheStats> cacheStats = new ArrayList<>();
+
+    /**
+     * The counter of the given name, created on first use. Look it up once and keep it, the
+     * lookup locks.
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter(name);
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * The histogram of the given name, created on first use. Look it up once and keep it, the
+     * lookup locks.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(name);
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * The timer recording into the histogram of the given name, created on first use.
+     */
+    public synchronized ThreadTimer timer(String name) {
+        ThreadTimer timer = timers.get(name);
+        if (timer == null) {
+            timer = new ThreadTimer(histogram(name));
+            timers.put(name, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Includes the counters of a tile cache tier in the dump.
+     */
+    public synchronized void register(TileCacheStats stats) {
+        if (!cacheStats.contains(stats)) {
+            cacheStats.add(stats);
+        }
+    }
+
+    public synchronized List<Counter> getCounters() {
+        return new ArrayList<>(counters.values());
+    }
+
+    public synchronized List<Histogram> getHistograms() {
+        return new ArrayList<>(histograms.values());
+    }
+
+    public synchronized List<TileCacheStats> getCacheStats() {
+        return new ArrayList<>(cacheStats);
+    }
+
+    /**
+     * One line per histogram, counter and cache tier.
+     */
+    @Override
+    public String toString() {
+        StringBuilder dump = new StringBuilder();
+        for (Histogram histogram : getHistograms()) {
+            dump.append(histogram).append('\n');
+        }
+        for (Counter counter : getCounters()) {
+            dump.append(counter).append('\n');
+        }
+        for (TileCacheStats stats : getCacheStats()) {
+            dump.append(stats).append('\n');
+        }
+        return dump.toString();
+    }
+
+    public static final class Counter {
+        public final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + value;
+        }
+    }
+
+    /**
+     * Distribution of durations in nanoseconds.
+     */
+    public static final class Histogram {
+        // values below 4 have a bucket each, above that every power of two has 4 buckets
+        private static final int BUCKETS = 4 * 62;
+
+        public final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                // System.nanoTime() differences are never negative on one thread, but across
+                // threads they may be on some devices
+                nanos = 0;
+            }
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // another thread raised it, check again
+            }
+        }
+
+        /**
+         * Records the time since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : sum.get() / count;
+        }
+
+        /**
+         * The value at the given quantile, between 0 and 1, rounded up to its bucket.
+         */
+        public long getPercentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max.get(), upperBound(i));
+                }
+            }
+            return max.get();
+        }
+
+        static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return 4 * (exponent - 1) + (int) ((value >>> (exponent - 2)) & 3);
+        }
+
+        /**
+         * The largest value of a bucket.
+         */
+        static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int exponent = bucket / 4 + 1;
+            // the last bucket overflows to Long.MIN_VALUE, minus one is Long.MAX_VALUE
+            return ((5L + bucket % 4) << (exponent - 2)) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: count=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms",
+                    name, getCount(), millis(getMean()), millis(getPercentile(0.5)), millis(getPercentile(0.9)),
+                    millis(getPercentile(0.99)), millis(getMax()));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    /**
+     * Times work that starts and ends in different classes but on the same thread, like the
+     * rendering of a tile: the map data store starts the timer, the tile cache stops it when the
+     * bitmap arrives. A stop without a start on the thread records nothing.
+     */
+    public static final class ThreadTimer {
+        private final Histogram histogram;
+        private final ThreadLocal<long[]> starts = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        ThreadTimer(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        public void start() {
+            starts.get()[0] = System.nanoTime();
+        }
+
+        public void stop() {
+            long[] start = starts.get();
+            if (start[0] != 0) {
+                histogram.recordSince(start[0]);
+                start[0] = 0;
+            }
+        }
+
+        public Histogram getHistogram() {
+            return histogram;
+        }
+    }
+}
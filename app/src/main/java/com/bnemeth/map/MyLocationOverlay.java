@@ -2,63 +2,139 @@ package com.bnemeth.map;
 
 import org.mapsforge.core.graphics.Canvas;
 import org.mapsforge.core.graphics.Color;
+import org.mapsforge.core.graphics.GraphicFactory;
 import org.mapsforge.core.graphics.Paint;
 import org.mapsforge.core.graphics.Style;
 import org.mapsforge.core.model.BoundingBox;
-import org.mapsforge.core.model.LatLong;
 import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 import org.mapsforge.map.layer.Layer;
-import org.mapsforge.map.layer.overlay.Circle;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accuracy circle around the current position.
+ * <p>
+ * Fixes arrive on the main thread and are drawn on the render thread. The position is published
+ * through a {@link LocationSnapshot}, so neither side waits for the other and an update does not
+ * allocate. A fix only asks for a redraw if no redraw is pending yet and the old or the new circle
+ * is in the area drawn last. With {@link #setMetrics(Metrics)} the overlay records its draw time
+ * and the time from the first fix that asked for a redraw to the draw that shows it.
+ */
 public class MyLocationOverlay extends Layer {
 
-    Circle circle;
+    private static final double METERS_PER_DEGREE = 111320;
+
     Paint paint;
-    Boolean positionSet = false;
+
+    private final LocationSnapshot snapshot = new LocationSnapshot();
+    private final LocationSnapshot.Reader drawn = new LocationSnapshot.Reader();
+    final AtomicBoolean redrawRequested = new AtomicBoolean();
+    // System.nanoTime() of the oldest fix in view that was not drawn yet, 0 if there is none
+    private final AtomicLong pendingFixNanos = new AtomicLong();
+
+    private Metrics.Histogram drawTime;
+    private Metrics.Histogram redrawLatency;
+    private Metrics.Counter fixes;
+    private Metrics.Counter redraws;
+
+    // last fix, only touched by the thread calling setPosition
+    private boolean positionSet = false;
+    private double lastLatitude;
+    private double lastLongitude;
+    private float lastAccuracy;
+
+    // area of the last draw, a slightly stale value only costs one redraw too many or too few
+    // while the map itself is being redrawn anyway
+    private volatile boolean viewSet;
+    private volatile double viewMinLatitude;
+    private volatile double viewMinLongitude;
+    private volatile double viewMaxLatitude;
+    private volatile double viewMaxLongitude;
 
     public MyLocationOverlay(){
+        this(AndroidGraphicFactory.INSTANCE);
+    }
+
+    public MyLocationOverlay(GraphicFactory graphicFactory){
 
-        paint = AndroidGraphicFactory.INSTANCE.createPaint();
+        paint = graphicFactory.createPaint();
         paint.setColor(Color.RED);
         paint.setStrokeWidth(10);
         paint.setStyle(Style.STROKE);
+    }
 
-        LatLong latLong = new LatLong(47.545809, 19.034227);
-
-        circle = new Circle(latLong, 100, null, paint);
-        //circle.setDisplayModel(this.displayModel);
+    public void setMetrics(Metrics metrics) {
+        drawTime = metrics.histogram(Metrics.DRAW + "location");
+        redrawLatency = metrics.histogram(Metrics.LOCATION_REDRAW);
+        fixes = metrics.counter("location.fixes");
+        redraws = metrics.counter("location.redraws");
     }
 
     @Override
-    public synchronized  void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint){
-        if (positionSet) {
-            this.circle.draw(boundingBox, zoomLevel, canvas, topLeftPoint);
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint){
+        long start = System.nanoTime();
+        redrawRequested.set(false);
+        long fixNanos = pendingFixNanos.getAndSet(0);
+
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, this.displayModel.getTileSize());
+        // the stroke reaches out of the circle, longitude degrees per pixel are the larger ones
+        double margin = this.paint.getStrokeWidth() * 360d / mapSize;
+        viewMinLatitude = boundingBox.minLatitude - margin;
+        viewMinLongitude = boundingBox.minLongitude - margin;
+        viewMaxLatitude = boundingBox.maxLatitude + margin;
+        viewMaxLongitude = boundingBox.maxLongitude + margin;
+        viewSet = true;
+
+        if (snapshot.copyTo(drawn) == 0) {
+            return;
         }
-    }
-    @Override
-    protected void onAdd() {
-        this.circle.setDisplayModel(this.displayModel);
-    }
+        int x = (int) (MercatorProjection.longitudeToPixelX(drawn.longitude, mapSize) - topLeftPoint.x);
+        int y = (int) (MercatorProjection.latitudeToPixelY(drawn.latitude, mapSize) - topLeftPoint.y);
+        int radius = (int) MercatorProjection.metersToPixels(drawn.accuracy, drawn.latitude, mapSize);
+        canvas.drawCircle(x, y, radius, this.paint);
 
-    @Override
-    public void onDestroy() {
-        this.circle.onDestroy();
+        if (drawTime != null) {
+            drawTime.recordSince(start);
+            if (fixNanos != 0) {
+                redrawLatency.recordSince(fixNanos);
+            }
+        }
     }
 
     public void setPosition(double latitude, double longitude, float accuracy) {
-        synchronized (this) {
-            positionSet = true;
-            LatLong latLong = new LatLong(latitude, longitude);
-            //this.marker.setLatLong(latLong);
-            //if (this.circle != null) {
-                //circle = new Circle(latLong, 100, null, paint);
-                this.circle.setLatLong(latLong);
-                this.circle.setRadius(accuracy);
-            //}
-            //circle = new Circle(latLong, 100, null, paint);
-            requestRedraw();
+        snapshot.set(latitude, longitude, accuracy);
+        if (fixes != null) {
+            fixes.increment();
+        }
+
+        boolean affectsView = isInView(latitude, longitude, accuracy)
+                || (positionSet && isInView(lastLatitude, lastLongitude, lastAccuracy));
+        positionSet = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastAccuracy = accuracy;
+
+        if (affectsView) {
+            pendingFixNanos.compareAndSet(0, System.nanoTime());
+            if (redrawRequested.compareAndSet(false, true)) {
+                if (redraws != null) {
+                    redraws.increment();
+                }
+                requestRedraw();
+            }
         }
     }
-}
 
+    private boolean isInView(double latitude, double longitude, float accuracy) {
+        if (!viewSet) {
+            return true;
+        }
+        double latitudeSpan = accuracy / METERS_PER_DEGREE;
+        double longitudeSpan = latitudeSpan / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+        return latitude + latitudeSpan >= viewMinLatitude && latitude - latitudeSpan <= viewMaxLatitude
+                && longitude + longitudeSpan >= viewMinLongitude && longitude - longitudeSpan <= viewMaxLongitude;
+    }
+}
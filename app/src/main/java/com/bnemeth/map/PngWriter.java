@@ -0,0 +1,152 @@
+package com.bnemeth.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an opaque image as PNG one row of pixels after the other, so images far larger than the
+ * memory can be written.
+ * <p>
+ * The rows are stored as 8 bit RGB with the Sub filter, the difference to the pixel on the left,
+ * which turns the flat areas of a map into runs of zeros for the deflater. The compressed data is
+ * cut into IDAT chunks of {@link #CHUNK_SIZE} bytes.
+ */
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater;
+    private final ChunkOutputStream chunks;
+    private final DeflaterOutputStream data;
+    private final byte[] row;
+    private int rowsWritten;
+
+    /**
+     * Writes the header.
+     *
+     * @param level the deflate level, {@link Deflater#BEST_SPEED} keeps up with parallel rendering.
+     */
+    public PngWriter(OutputStream out, int width, int height, int level) throws IOException {
+        if (width <= 0 || height <= 0 || width > (Integer.MAX_VALUE - 1) / 3) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        row = new byte[1 + width * 3];
+        row[0] = 1; // Sub
+
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8); // bit depth
+        headerData.writeByte(2); // RGB
+        headerData.writeByte(0); // deflate
+        headerData.writeByte(0); // adaptive filtering
+        headerData.writeByte(0); // not interlaced
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        deflater = new Deflater(level);
+        chunks = new ChunkOutputStream();
+        data = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the next row.
+     *
+     * @param pixels width ARGB pixels starting at offset, the alpha is ignored.
+     */
+    public void writeRow(int[] pixels, int offset) throws IOException {
+        if (rowsWritten == height) {
+            throw new IllegalStateException("All " + height + " rows written");
+        }
+        int left = 0;
+        for (int x = 0, i = 1; x < width; x++, i += 3) {
+            int pixel = pixels[offset + x];
+            row[i] = (byte) ((pixel >> 16) - (left >> 16));
+            row[i + 1] = (byte) ((pixel >> 8) - (left >> 8));
+            row[i + 2] = (byte) (pixel - left);
+            left = pixel;
+        }
+        data.write(row);
+        rowsWritten++;
+    }
+
+    /**
+     * Writes the rest of the compressed data and the end of the image, without closing the stream.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException(rowsWritten + " of " + height + " rows written");
+        }
+        data.finish();
+        chunks.flush();
+        deflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private void writeChunk(String type, byte[] bytes, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(bytes, 0, length);
+        writeInt(length);
+        out.write(typeBytes);
+        out.write(bytes, 0, length);
+        writeInt((int) crc.getValue());
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Collects the compressed data into IDAT chunks.
+     */
+    private class ChunkOutputStream extends OutputStream {
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int count) throws IOException {
+            while (count > 0) {
+                int copied = Math.min(count, CHUNK_SIZE - length);
+                System.arraycopy(source, offset, chunk, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+                if (length == CHUNK_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                writeChunk("IDAT", chunk, length);
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.reader.header.MapFileException;
+import org.mapsforge.map.reader.header.MapFileInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map data store over all map files of a directory, one file per region.
+ * <p>
+ * The bounding box and zoom range of every file are kept in an index file, so a start with
+ * unchanged map files does not open any of them. A file is opened when the first tile that
+ * intersects it is read, and only a bounded number of files stays open, the least recently used
+ * one is closed first. Each tile is read from the files it intersects only. Files are read
+ * through a {@link MappedFileChannel}, so reading a block does not take a system call.
+ */
+public class RegionMapDataStore extends MapDataStore {
+
+    static final String EXTENSION = ".map";
+    private static final int INDEX_VERSION = 1;
+
+    private enum Selector {ALL, LABELS, POIS}
+
+    static final class Region {
+        final File file;
+        final long length;
+        final long lastModified;
+        final BoundingBox boundingBox;
+        final LatLong startPosition;
+        final byte startZoomLevel;
+        final byte zoomLevelMin;
+        final byte zoomLevelMax;
+        final long mapDate;
+
+        Region(File file, long length, long lastModified, BoundingBox boundingBox, LatLong startPosition,
+               byte startZoomLevel, byte zoomLevelMin, byte zoomLevelMax, long mapDate) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.boundingBox = boundingBox;
+            this.startPosition = startPosition;
+            this.startZoomLevel = startZoomLevel;
+            this.zoomLevelMin = zoomLevelMin;
+            this.zoomLevelMax = zoomLevelMax;
+            this.mapDate = mapDate;
+        }
+
+        boolean supports(BoundingBox area, byte zoomLevel) {
+            return zoomLevel >= zoomLevelMin && zoomLevel <= zoomLevelMax && boundingBox.intersects(area);
+        }
+    }
+
+    private static final class Handle {
+        final MapFile mapFile;
+        int users;
+
+        Handle(MapFile mapFile) {
+            this.mapFile = mapFile;
+        }
+    }
+
+    private final File directory;
+    private final File indexFile;
+    private final int maxOpenFiles;
+    private final LinkedHashMap<File, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private List<Region> regions;
+    private BoundingBox boundingBox;
+
+    // file opens, for the index and for reading
+    int fileOpens;
+
+    private Metrics.Histogram readTime;
+    private Metrics.ThreadTimer renderTimer;
+
+    /**
+     * @param directory    the directory with the map files.
+     * @param indexFile    where the bounding boxes of the map files are kept between starts.
+     * @param maxOpenFiles how many map files may be open at the same time, unless more are in use.
+     * @param language     the preferred language of names, or null.
+     */
+    public RegionMapDataStore(File directory, File indexFile, int maxOpenFiles, String language) {
+        super(language);
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Records the read time of the map data of a tile, and starts the render timer of the tile,
+     * which the tile cache stops. Must be called before the first tile is read.
+     */
+    public void setMetrics(Metrics metrics) {
+        readTime = metrics.histogram(Metrics.MAP_READ);
+        renderTimer = metrics.timer(Metrics.TILE_RENDER);
+    }
+
+    /**
+     * The map files found in the directory, in name order.
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<>();
+        for (Region region : regions()) {
+            files.add(region.file);
+        }
+        return files;
+    }
+
+    public synchronized int getOpenFileCount() {
+        return handles.size();
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        regions();
+        return boundingBox;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Handle handle : handles.values()) {
+            handle.mapFile.close();
+        }
+        handles.clear();
+    }
+
+    @Override
+    public long getDataTimestamp(Tile tile) {
+        long timestamp = 0;
+        for (Region region : regions()) {
+            if (region.supports(tile.getBoundingBox(), tile.zoomLevel)) {
+                timestamp = Math.max(timestamp, region.mapDate);
+            }
+        }
+        return timestamp;
+    }
+
+    @Override
+    public MapReadResult readLabels(Tile tile) {
+        return read(tile, tile, Selector.LABELS);
+    }
+
+    @Override
+    public MapReadResult readLabels(Tile upperLeft, Tile lowerRight) {
+        return read(upperLeft, lowerRight, Selector.LABELS);
+    }
+
+    /**
+     * The renderer reads the map data of a tile first, so this is where rendering a tile starts.
+     */
+    @Override
+    public MapReadResult readMapData(Tile tile) {
+        if (readTime == null) {
+            return read(tile, tile, Selector.ALL);
+        }
+        renderTimer.start();
+        long start = System.nanoTime();
+        MapReadResult result = read(tile, tile, Selector.ALL);
+        readTime.recordSince(start);
+        return result;
+    }
+
+    @Override
+    public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+        return read(upperLeft, lowerRight, Selector.ALL);
+    }
+
+    @Override
+    public MapReadResult readPoiData(Tile tile) {
+        return read(tile, tile, Selector.POIS);
+    }
+
+    @Override
+    public MapReadResult readPoiData(Tile upperLeft, Tile lowerRight) {
+        return read(upperLeft, lowerRight, Selector.POIS);
+    }
+
+    @Override
+    public LatLong startPosition() {
+        BoundingBox boundingBox = boundingBox();
+        return boundingBox == null ? null : boundingBox.getCenterPoint();
+    }
+
+    @Override
+    public Byte startZoomLevel() {
+        byte startZoomLevel = Byte.MAX_VALUE;
+        for (Region region : regions()) {
+            startZoomLevel = (byte) Math.min(startZoomLevel, region.startZoomLevel);
+        }
+        return startZoomLevel == Byte.MAX_VALUE ? null : startZoomLevel;
+    }
+
+    @Override
+    public boolean supportsTile(Tile tile) {
+        for (Region region : regions()) {
+            if (region.supports(tile.getBoundingBox(), tile.zoomLevel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MapReadResult read(Tile upperLeft, Tile lowerRight, Selector selector) {
+        BoundingBox area = Tile.getBoundingBox(upperLeft, lowerRight);
+        MapReadResult result = null;
+        for (Region region : regions()) {
+            if (!region.supports(area, upperLeft.zoomLevel)) {
+                continue;
+            }
+            Handle handle = acquire(region);
+            try {
+                MapReadResult regionResult;
+                if (selector == Selector.POIS) {
+                    regionResult = handle.mapFile.readPoiData(upperLeft, lowerRight);
+                } else if (selector == Selector.LABELS) {
+                    regionResult = handle.mapFile.readLabels(upperLeft, lowerRight);
+                } else {
+                    regionResult = handle.mapFile.readMapData(upperLeft, lowerRight);
+                }
+                if (regionResult == null) {
+                    continue;
+                }
+                if (result == null) {
+                    result = regionResult;
+                } else {
+                    // neighbouring extracts overlap at the border and carry the same elements
+                    result.add(regionResult, true);
+                }
+            } finally {
+                release(handle);
+            }
+        }
+        return result != null ? result : new MapReadResult();
+    }
+
+    private synchronized Handle acquire(Region region) {
+        Handle handle = handles.get(region.file);
+        if (handle == null) {
+            handle = new Handle(open(region.file));
+            handles.put(region.file, handle);
+        }
+        handle.users++;
+        evict();
+        return handle;
+    }
+
+    private synchronized void release(Handle handle) {
+        handle.users--;
+        evict();
+    }
+
+    /**
+     * Closes the least recently used files that are not being read until the limit is met.
+     */
+    private void evict() {
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (handles.size() > maxOpenFiles && iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.users == 0) {
+                handle.mapFile.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private MapFile open(File file) {
+        fileOpens++;
+        try {
+            return new MapFile(MappedFileChannel.open(file), file.lastModified(), preferredLanguage);
+        } catch (IOException e) {
+            // what MapFile throws for a file it cannot read
+            throw new MapFileException(file + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized List<Region> regions() {
+        if (regions == null) {
+            regions = loadRegions();
+            for (Region region : regions) {
+                boundingBox = boundingBox == null ? region.boundingBox : boundingBox.extendBoundingBox(region.boundingBox);
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Lists the map files, reading the headers of the new and changed ones only.
+     */
+    private List<Region> loadRegions() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+
+        Map<String, Region> indexed = readIndex();
+        List<Region> regions = new ArrayList<>(files.length);
+        boolean changed = indexed.size() != files.length;
+        for (File file : files) {
+            Region region = indexed.get(file.getAbsolutePath());
+            if (region == null || region.length != file.length() || region.lastModified != file.lastModified()) {
+                changed = true;
+                try {
+                    region = readRegion(file);
+                } catch (RuntimeException e) {
+                    // mapsforge reports broken files with unchecked exceptions, skip them
+                    e.printStackTrace();
+                    continue;
+                }
+            }
+            regions.add(region);
+        }
+        if (changed) {
+            writeIndex(regions);
+        }
+        return regions;
+    }
+
+    private Region readRegion(File file) {
+        MapFile mapFile = open(file);
+        try {
+            MapFileInfo info = mapFile.getMapFileInfo();
+            return new Region(file, file.length(), file.lastModified(), info.boundingBox,
+                    mapFile.startPosition(), mapFile.startZoomLevel(), info.zoomLevelMin, info.zoomLevelMax,
+                    info.mapDate);
+        } finally {
+            mapFile.close();
+        }
+    }
+
+    private Map<String, Region> readIndex() {
+        Map<String, Region> regions = new HashMap<>();
+        if (!indexFile.exists()) {
+            return regions;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_VERSION) {
+                    return regions;
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    File file = new File(in.readUTF());
+                    regions.put(file.getAbsolutePath(), new Region(file, in.readLong(), in.readLong(),
+                            new BoundingBox(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()),
+                            new LatLong(in.readDouble(), in.readDouble()), in.readByte(), in.readByte(),
+                            in.readByte(), in.readLong()));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // a damaged index is rebuilt from the map files
+            e.printStackTrace();
+            regions.clear();
+        }
+        return regions;
+    }
+
+    private void writeIndex(List<Region> regions) {
+        File temp = null;
+        try {
+            // a name of its own, several stores may write the same index at once
+            temp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(regions.size());
+                for (Region region : regions) {
+                    out.writeUTF(region.file.getAbsolutePath());
+                    out.writeLong(region.length);
+                    out.writeLong(region.lastModified);
+                    out.writeDouble(region.boundingBox.minLatitude);
+                    out.writeDouble(region.boundingBox.minLongitude);
+                    out.writeDouble(region.boundingBox.maxLatitude);
+                    out.writeDouble(region.boundingBox.maxLongitude);
+                    out.writeDouble(region.startPosition.latitude);
+                    out.writeDouble(region.startPosition.longitude);
+                    out.writeByte(region.startZoomLevel);
+                    out.writeByte(region.zoomLevelMin);
+                    out.writeByte(region.zoomLevelMax);
+                    out.writeLong(region.mapDate);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile)) {
+                throw new IOException("Could not replace " + indexFile);
+            }
+        } catch (IOException e) {
+            // without an index the headers are read again on the next start
+            e.printStackTrace();
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
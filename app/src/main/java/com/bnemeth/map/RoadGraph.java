@@ -0,0 +1,867 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.Way;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The roads of the map as a graph for car routing, extracted from the map data once and then
+ * memory-mapped, queries read it in place.
+ * <p>
+ * Vertices are the junctions and the ends of the roads, edges the stretches of road between them,
+ * with their travel time at a speed that depends on the highway class. The file holds:
+ * <ul>
+ * <li>the vertices, a position each, sorted by the cell of a regular grid over the map, and the
+ * first vertex of every cell, to find the vertex closest to a position,</li>
+ * <li>the edges leaving every vertex in compressed sparse row form: the first edge of every
+ * vertex, and the target, travel time and segment of every edge. A road both directions may be
+ * driven on has an edge either way,</li>
+ * <li>the segments, the stretches of road themselves, with their name, length and the points
+ * between their two vertices.</li>
+ * </ul>
+ * The map is read a tile at a time and every road is clipped to the tile, so each stretch is used
+ * once however many tiles the map file stores it in, and the map writer's clipping of ways at
+ * tile borders does not matter: the pieces meet on the border, where they become a vertex.
+ * <p>
+ * Junctions are the points used more than once. Which those are is counted in a first pass over
+ * the map with a compact sketch instead of a table of all road points; its rare false positives
+ * only split a road at a point that is no junction.
+ */
+public class RoadGraph {
+
+    static final int MAGIC = 0x4D524447; // "MRDG"
+    static final int VERSION = 1;
+
+    /** Zoom level of the tiles the map is read in, the base zoom level of the most detailed sub-file. */
+    static final byte BUILD_ZOOM = 14;
+
+    /** Zoom level the tiles are queried at, so roads that appear on any zoom level are included. */
+    private static final byte READ_ZOOM = 17;
+
+    /** Limits the grid to 1 MB of cell table. */
+    private static final int MAX_CELLS = 1 << 18;
+    private static final double MIN_CELL_DEGREES = 0.002;
+
+    /** 2^26 two bit counters, 16 MB. */
+    private static final int COUNTER_BITS = 26;
+
+    /** Points of the same tile border closer than this many microdegrees are the same point. */
+    private static final int BORDER_TOLERANCE = 2;
+
+    static final double METERS_PER_DEGREE = 111320;
+
+    static final int FORWARD = 1 << 8;
+    static final int BACKWARD = 1 << 9;
+    private static final int SPEED_MASK = 0xff;
+
+    /** Highway classes cars use, with their speed in km/h. */
+    private static final String[] HIGHWAYS = {"motorway", "motorway_link", "trunk", "trunk_link", "primary",
+            "primary_link", "secondary", "secondary_link", "tertiary", "tertiary_link", "unclassified",
+            "residential", "living_street", "service", "road"};
+    private static final int[] SPEEDS = {110, 60, 90, 50, 70, 50, 60, 50, 50, 40, 40, 30, 10, 15, 30};
+
+    private final ByteBuffer buffer;
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double cellDegrees;
+    private final int columns;
+    private final int rows;
+    private final int vertexCount;
+    private final int edgeCount;
+    private final int segmentCount;
+    private final int maxSpeed;
+    private final IntBuffer cells;
+    private final IntBuffer vertices;
+    private final IntBuffer firstEdges;
+    private final IntBuffer edges;
+    private final IntBuffer segments;
+    private final IntBuffer shapeStarts;
+    private final IntBuffer shape;
+    private final int stringsOffset;
+
+    private RoadGraph(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int position = buffer.position();
+        minLatitude = buffer.getDouble(position);
+        minLongitude = buffer.getDouble(position + 8);
+        cellDegrees = buffer.getDouble(position + 16);
+        columns = buffer.getInt(position + 24);
+        rows = buffer.getInt(position + 28);
+        vertexCount = buffer.getInt(position + 32);
+        edgeCount = buffer.getInt(position + 36);
+        segmentCount = buffer.getInt(position + 40);
+        int shapeCount = buffer.getInt(position + 44);
+        maxSpeed = buffer.getInt(position + 48);
+        cells = ints(buffer, buffer.getInt(position + 52), rows * columns + 1);
+        vertices = ints(buffer, buffer.getInt(position + 56), vertexCount * 2);
+        firstEdges = ints(buffer, buffer.getInt(position + 60), vertexCount + 1);
+        edges = ints(buffer, buffer.getInt(position + 64), edgeCount * 3);
+        segments = ints(buffer, buffer.getInt(position + 68), segmentCount * 2);
+        shapeStarts = ints(buffer, buffer.getInt(position + 72), segmentCount + 1);
+        shape = ints(buffer, buffer.getInt(position + 76), shapeCount * 2);
+        stringsOffset = buffer.getInt(position + 80);
+    }
+
+    /**
+     * Maps the graph file, or returns null if it does not exist or was built from other map files.
+     */
+    public static RoadGraph open(File graphFile, String sourceKey) throws IOException {
+        MappedByteBuffer buffer = MappedFiles.map(graphFile, MAGIC, VERSION, sourceKey);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            buffer.position(align(buffer.position()));
+            return new RoadGraph(buffer);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // cut off, built again like a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Reads every tile of the map twice, to find the junctions and then to collect the roads, and
+     * writes the graph, replacing the file only once it is complete.
+     */
+    public static void build(MapDataStore mapDataStore, File graphFile, String sourceKey) throws IOException {
+        BoundingBox boundingBox = mapDataStore.boundingBox();
+        if (boundingBox == null) {
+            throw new IOException("No map data to route on");
+        }
+        Builder builder = new Builder(boundingBox);
+
+        int left = MercatorProjection.longitudeToTileX(boundingBox.minLongitude, BUILD_ZOOM);
+        int right = MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, BUILD_ZOOM);
+        int top = MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, BUILD_ZOOM);
+        int bottom = MercatorProjection.latitudeToTileY(boundingBox.minLatitude, BUILD_ZOOM);
+        int shift = READ_ZOOM - BUILD_ZOOM;
+        for (int pass = 0; pass < 2; pass++) {
+            builder.counting = pass == 0;
+            for (int y = top; y <= bottom; y++) {
+                for (int x = left; x <= right; x++) {
+                    Tile tile = new Tile(x, y, BUILD_ZOOM, 256);
+                    if (!mapDataStore.supportsTile(tile)) {
+                        continue;
+                    }
+                    MapReadResult result = mapDataStore.readMapData(new Tile(x << shift, y << shift, READ_ZOOM, 256),
+                            new Tile(((x + 1) << shift) - 1, ((y + 1) << shift) - 1, READ_ZOOM, 256));
+                    builder.add(tile, result.ways);
+                }
+            }
+        }
+        builder.write(graphFile, sourceKey);
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    /** The highest speed of the graph in km/h, which bounds the travel time left in a search. */
+    int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /** The highest latitude of the graph, north or south, where a degree of longitude is shortest. */
+    double getMaxAbsoluteLatitude() {
+        return Math.max(Math.abs(minLatitude), Math.abs(minLatitude + rows * cellDegrees));
+    }
+
+    int getLatitudeE6(int vertex) {
+        return vertices.get(vertex * 2);
+    }
+
+    int getLongitudeE6(int vertex) {
+        return vertices.get(vertex * 2 + 1);
+    }
+
+    /** The first edge leaving the vertex, those of the next vertex follow its last one. */
+    int getFirstEdge(int vertex) {
+        return firstEdges.get(vertex);
+    }
+
+    int getTarget(int edge) {
+        return edges.get(edge * 3);
+    }
+
+    /** Travel time in tenths of a second. */
+    int getTime(int edge) {
+        return edges.get(edge * 3 + 1);
+    }
+
+    /** The segment of the edge times two, plus one if the edge runs against the segment. */
+    int getSegment(int edge) {
+        return edges.get(edge * 3 + 2);
+    }
+
+    /** The name or ref of the road, or null. */
+    String getName(int segment) {
+        return string(segments.get(segment * 2));
+    }
+
+    int getNameId(int segment) {
+        return segments.get(segment * 2);
+    }
+
+    /** Length in meters. */
+    double getLength(int segment) {
+        return segments.get(segment * 2 + 1) / 10.0;
+    }
+
+    /** The points between the two vertices of the segment are [start, start of the next segment). */
+    int getShapeStart(int segment) {
+        return shapeStarts.get(segment);
+    }
+
+    int getShapeLatitudeE6(int point) {
+        return shape.get(point * 2);
+    }
+
+    int getShapeLongitudeE6(int point) {
+        return shape.get(point * 2 + 1);
+    }
+
+    /**
+     * The vertex closest to the position, or -1 if the graph is empty.
+     */
+    public int findVertex(double latitude, double longitude) {
+        if (vertexCount == 0) {
+            return -1;
+        }
+        int row = clamp((int) ((latitude - minLatitude) / cellDegrees), rows);
+        int column = clamp((int) ((longitude - minLongitude) / cellDegrees), columns);
+        double longitudeScale = Math.cos(Math.toRadians(latitude));
+        int latitudeE6 = (int) Math.round(latitude * 1e6);
+        int longitudeE6 = (int) Math.round(longitude * 1e6);
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int radius = 0; radius <= rows + columns; radius++) {
+            for (int r = Math.max(0, row - radius); r <= Math.min(rows - 1, row + radius); r++) {
+                boolean edgeRow = r == row - radius || r == row + radius;
+                // the inner cells were looked at with a smaller radius
+                int step = edgeRow ? 1 : 2 * radius;
+                for (int c = column - radius; c <= column + radius; c += Math.max(1, step)) {
+                    if (c < 0 || c >= columns) {
+                        continue;
+                    }
+                    int cell = r * columns + c;
+                    for (int vertex = cells.get(cell), end = cells.get(cell + 1); vertex < end; vertex++) {
+                        double dy = vertices.get(vertex * 2) - latitudeE6;
+                        double dx = (vertices.get(vertex * 2 + 1) - longitudeE6) * longitudeScale;
+                        double distance = dx * dx + dy * dy;
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = vertex;
+                        }
+                    }
+                }
+            }
+            // whatever lies outside the cells looked at is further than the radius
+            double covered = radius * cellDegrees * 1e6 * longitudeScale;
+            if (best >= 0 && bestDistance <= covered * covered) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    private String string(int stringOffset) {
+        if (stringOffset < 0) {
+            return null;
+        }
+        int position = stringsOffset + stringOffset;
+        byte[] bytes = new byte[buffer.getShort(position) & 0xffff];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + 2 + i);
+        }
+        return new String(bytes, MappedFiles.UTF_8);
+    }
+
+    private static IntBuffer ints(ByteBuffer buffer, int offset, int count) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + count * 4);
+        return view.slice().asIntBuffer();
+    }
+
+    private static int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+    /**
+     * The speed in km/h with the {@link #FORWARD} and {@link #BACKWARD} bits of the directions the
+     * way may be driven in, or 0 if it is no road for cars.
+     */
+    static int road(List<Tag> tags) {
+        int speed = 0;
+        boolean motorway = false;
+        boolean roundabout = false;
+        String oneway = null;
+        for (Tag tag : tags) {
+            if ("highway".equals(tag.key)) {
+                for (int i = 0; i < HIGHWAYS.length; i++) {
+                    if (HIGHWAYS[i].equals(tag.value)) {
+                        speed = SPEEDS[i];
+                        motorway = tag.value.startsWith("motorway");
+                        break;
+                    }
+                }
+            } else if ("oneway".equals(tag.key)) {
+                oneway = tag.value;
+            } else if ("junction".equals(tag.key)) {
+                roundabout = "roundabout".equals(tag.value);
+            } else if ("area".equals(tag.key) && "yes".equals(tag.value)) {
+                return 0;
+            }
+        }
+        if (speed == 0) {
+            return 0;
+        }
+        if ("-1".equals(oneway) || "reverse".equals(oneway)) {
+            return speed | BACKWARD;
+        }
+        if ("yes".equals(oneway) || "true".equals(oneway) || "1".equals(oneway)
+                || (oneway == null && (motorway || roundabout))) {
+            return speed | FORWARD;
+        }
+        return speed | FORWARD | BACKWARD;
+    }
+
+    private static String name(List<Tag> tags) {
+        String ref = null;
+        for (Tag tag : tags) {
+            if ("name".equals(tag.key)) {
+                return tag.value;
+            } else if ("ref".equals(tag.key)) {
+                ref = tag.value;
+            }
+        }
+        return ref;
+    }
+
+    static long key(int latitudeE6, int longitudeE6) {
+        return (long) latitudeE6 << 32 | (longitudeE6 & 0xffffffffL);
+    }
+
+    static double meters(int latitudeE6, int longitudeE6, int latitudeE6b, int longitudeE6b) {
+        double dy = latitudeE6b - latitudeE6;
+        double dx = (longitudeE6b - longitudeE6) * Math.cos(Math.toRadians(latitudeE6 / 1e6));
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE / 1e6;
+    }
+
+    /**
+     * Collects the roads tile by tile and writes the graph file.
+     */
+    static class Builder {
+
+        /** Whether this pass only counts the points, the first of the two. */
+        boolean counting = true;
+
+        private final double minLatitude;
+        private final double minLongitude;
+        private final double cellDegrees;
+        private final int columns;
+        private final int rows;
+
+        private final PointCounts counts = new PointCounts(COUNTER_BITS);
+        private final LongIntMap vertexIds = new LongIntMap();
+        private final SearchIndex.IntList vertexLatitudes = new SearchIndex.IntList();
+        private final SearchIndex.IntList vertexLongitudes = new SearchIndex.IntList();
+
+        // the segments: their vertices, road, name, length in decimeters and first shape point
+        private final SearchIndex.IntList segmentFrom = new SearchIndex.IntList();
+        private final SearchIndex.IntList segmentTo = new SearchIndex.IntList();
+        private final SearchIndex.IntList segmentRoads = new SearchIndex.IntList();
+        private final SearchIndex.IntList segmentNames = new SearchIndex.IntList();
+        private final SearchIndex.IntList segmentDecimeters = new SearchIndex.IntList();
+        private final SearchIndex.IntList shapeStarts = new SearchIndex.IntList();
+        private final SearchIndex.IntList shape = new SearchIndex.IntList();
+        private final SearchIndex.Strings strings = new SearchIndex.Strings();
+
+        // the lines of a way clipped to the tile, every line ending where the next one starts
+        private int[] lineLatitudes = new int[256];
+        private int[] lineLongitudes = new int[256];
+        private int[] lineEnds = new int[16];
+        private int pointCount;
+        private int lineCount;
+
+        // the tile in microdegrees
+        private int south;
+        private int west;
+        private int north;
+        private int east;
+
+        Builder(BoundingBox boundingBox) {
+            minLatitude = boundingBox.minLatitude;
+            minLongitude = boundingBox.minLongitude;
+            double latitudeSpan = Math.max(boundingBox.getLatitudeSpan(), MIN_CELL_DEGREES);
+            double longitudeSpan = Math.max(boundingBox.getLongitudeSpan(), MIN_CELL_DEGREES);
+            cellDegrees = Math.max(MIN_CELL_DEGREES, Math.sqrt(latitudeSpan * longitudeSpan / MAX_CELLS));
+            columns = Math.max(1, (int) Math.ceil(longitudeSpan / cellDegrees));
+            rows = Math.max(1, (int) Math.ceil(latitudeSpan / cellDegrees));
+        }
+
+        /**
+         * Adds the parts of the roads that lie in the tile, or only counts their points in the
+         * first pass.
+         */
+        void add(Tile tile, List<Way> ways) {
+            BoundingBox area = tile.getBoundingBox();
+            south = (int) Math.round(area.minLatitude * 1e6);
+            west = (int) Math.round(area.minLongitude * 1e6);
+            north = (int) Math.round(area.maxLatitude * 1e6);
+            east = (int) Math.round(area.maxLongitude * 1e6);
+            for (Way way : ways) {
+                int road = road(way.tags);
+                if (road == 0) {
+                    continue;
+                }
+                int name = -1;
+                if (!counting) {
+                    String text = name(way.tags);
+                    name = text == null ? -1 : strings.offset(text);
+                }
+                for (LatLong[] part : way.latLongs) {
+                    clip(part);
+                    for (int line = 0, start = 0; line < lineCount; start = lineEnds[line++]) {
+                        if (counting) {
+                            count(start, lineEnds[line]);
+                        } else {
+                            addLine(start, lineEnds[line], road, name);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Clips the way to the tile, into lines of at least two points. A stretch that runs along
+         * the border belongs to the tile east or north of it, like a point on the border does.
+         */
+        private void clip(LatLong[] part) {
+            pointCount = 0;
+            lineCount = 0;
+            boolean open = false;
+            for (int i = 1; i < part.length; i++) {
+                int latitude0 = (int) Math.round(part[i - 1].latitude * 1e6);
+                int longitude0 = (int) Math.round(part[i - 1].longitude * 1e6);
+                int latitude1 = (int) Math.round(part[i].latitude * 1e6);
+                int longitude1 = (int) Math.round(part[i].longitude * 1e6);
+                int dx = longitude1 - longitude0;
+                int dy = latitude1 - latitude0;
+
+                // Liang-Barsky
+                double[] t = {0, 1};
+                if (!clip(-dx, longitude0 - west, t) || !clip(dx, east - longitude0, t)
+                        || !clip(-dy, latitude0 - south, t) || !clip(dy, north - latitude0, t)) {
+                    open = endLine(open);
+                    continue;
+                }
+                int startLatitude = t[0] == 0 ? latitude0 : (int) Math.round(latitude0 + t[0] * dy);
+                int startLongitude = t[0] == 0 ? longitude0 : (int) Math.round(longitude0 + t[0] * dx);
+                int endLatitude = t[1] == 1 ? latitude1 : (int) Math.round(latitude0 + t[1] * dy);
+                int endLongitude = t[1] == 1 ? longitude1 : (int) Math.round(longitude0 + t[1] * dx);
+                if (startLatitude == endLatitude && startLongitude == endLongitude) {
+                    continue;
+                }
+                long middleLatitude = (long) startLatitude + endLatitude;
+                long middleLongitude = (long) startLongitude + endLongitude;
+                if (middleLatitude < 2L * south || middleLatitude >= 2L * north
+                        || middleLongitude < 2L * west || middleLongitude >= 2L * east) {
+                    open = endLine(open);
+                    continue;
+                }
+
+                if (open && (lineLatitudes[pointCount - 1] != startLatitude
+                        || lineLongitudes[pointCount - 1] != startLongitude)) {
+                    open = endLine(open);
+                }
+                if (!open) {
+                    addPoint(startLatitude, startLongitude);
+                }
+                addPoint(endLatitude, endLongitude);
+                open = true;
+            }
+            endLine(open);
+        }
+
+        private static boolean clip(double p, double q, double[] t) {
+            if (p == 0) {
+                return q >= 0;
+            }
+            double r = q / p;
+            if (p < 0) {
+                if (r > t[1]) {
+                    return false;
+                }
+                t[0] = Math.max(t[0], r);
+            } else {
+                if (r < t[0]) {
+                    return false;
+                }
+                t[1] = Math.min(t[1], r);
+            }
+            return true;
+        }
+
+        private void addPoint(int latitude, int longitude) {
+            if (pointCount == lineLatitudes.length) {
+                lineLatitudes = Arrays.copyOf(lineLatitudes, pointCount * 2);
+                lineLongitudes = Arrays.copyOf(lineLongitudes, pointCount * 2);
+            }
+            lineLatitudes[pointCount] = latitude;
+            lineLongitudes[pointCount] = longitude;
+            pointCount++;
+        }
+
+        /**
+         * Ends the line if one is open, and returns false, as no line is open then.
+         */
+        private boolean endLine(boolean open) {
+            if (!open) {
+                return false;
+            }
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+            }
+            lineEnds[lineCount++] = pointCount;
+            return false;
+        }
+
+        private void count(int start, int end) {
+            // the ends are vertices anyway
+            counts.add(key(lineLatitudes[start], lineLongitudes[start]), 2);
+            for (int i = start + 1; i < end - 1; i++) {
+                counts.add(key(lineLatitudes[i], lineLongitudes[i]), 1);
+            }
+            counts.add(key(lineLatitudes[end - 1], lineLongitudes[end - 1]), 2);
+        }
+
+        private void addLine(int start, int end, int road, int name) {
+            int from = vertex(lineLatitudes[start], lineLongitudes[start]);
+            int shapeStart = shape.size;
+            double meters = 0;
+            for (int i = start + 1; i < end; i++) {
+                int latitude = lineLatitudes[i];
+                int longitude = lineLongitudes[i];
+                meters += meters(lineLatitudes[i - 1], lineLongitudes[i - 1], latitude, longitude);
+                if (i < end - 1 && !counts.isShared(key(latitude, longitude))) {
+                    shape.add(latitude);
+                    shape.add(longitude);
+                    continue;
+                }
+                int to = vertex(latitude, longitude);
+                if (from != to || shape.size > shapeStart) {
+                    segmentFrom.add(from);
+                    segmentTo.add(to);
+                    segmentRoads.add(road);
+                    segmentNames.add(name);
+                    segmentDecimeters.add((int) Math.round(meters * 10));
+                    shapeStarts.add(shapeStart / 2);
+                }
+                from = to;
+                shapeStart = shape.size;
+                meters = 0;
+            }
+        }
+
+        /**
+         * The vertex at the point, a new one if there is none yet. Where a road crosses the tile
+         * border, the point is computed from the points of the road on either side, which the
+         * map writer may have cut differently, so a point of the border also matches the points
+         * that are off by the rounding.
+         */
+        private int vertex(int latitude, int longitude) {
+            int vertex = vertexIds.get(key(latitude, longitude));
+            if (vertex >= 0) {
+                return vertex;
+            }
+            if (latitude == south || latitude == north || longitude == west || longitude == east) {
+                for (int distance = 1; distance <= BORDER_TOLERANCE; distance++) {
+                    for (int dy = -distance; dy <= distance; dy++) {
+                        for (int dx = -distance; dx <= distance; dx++) {
+                            if (Math.max(Math.abs(dx), Math.abs(dy)) == distance) {
+                                vertex = vertexIds.get(key(latitude + dy, longitude + dx));
+                                if (vertex >= 0) {
+                                    return vertex;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            vertex = vertexLatitudes.size;
+            vertexIds.put(key(latitude, longitude), vertex);
+            vertexLatitudes.add(latitude);
+            vertexLongitudes.add(longitude);
+            return vertex;
+        }
+
+        void write(File graphFile, String sourceKey) throws IOException {
+            int vertexCount = vertexLatitudes.size;
+            int segmentCount = segmentFrom.size;
+
+            // vertices by cell, stable
+            int[] cellStarts = new int[rows * columns + 1];
+            int[] vertexCells = new int[vertexCount];
+            for (int i = 0; i < vertexCount; i++) {
+                int row = clamp((int) ((vertexLatitudes.values[i] / 1e6 - minLatitude) / cellDegrees), rows);
+                int column = clamp((int) ((vertexLongitudes.values[i] / 1e6 - minLongitude) / cellDegrees), columns);
+                vertexCells[i] = row * columns + column;
+                cellStarts[vertexCells[i] + 1]++;
+            }
+            for (int cell = 0; cell < rows * columns; cell++) {
+                cellStarts[cell + 1] += cellStarts[cell];
+            }
+            int[] next = Arrays.copyOf(cellStarts, cellStarts.length - 1);
+            int[] ids = new int[vertexCount];
+            int[] order = new int[vertexCount];
+            for (int i = 0; i < vertexCount; i++) {
+                ids[i] = next[vertexCells[i]]++;
+                order[ids[i]] = i;
+            }
+
+            // edges by the vertex they leave
+            int[] firstEdges = new int[vertexCount + 1];
+            int maxSpeed = 1;
+            for (int s = 0; s < segmentCount; s++) {
+                int road = segmentRoads.values[s];
+                if ((road & FORWARD) != 0) {
+                    firstEdges[ids[segmentFrom.values[s]] + 1]++;
+                }
+                if ((road & BACKWARD) != 0) {
+                    firstEdges[ids[segmentTo.values[s]] + 1]++;
+                }
+                maxSpeed = Math.max(maxSpeed, road & SPEED_MASK);
+            }
+            for (int v = 0; v < vertexCount; v++) {
+                firstEdges[v + 1] += firstEdges[v];
+            }
+            int edgeCount = firstEdges[vertexCount];
+            int[] edges = new int[edgeCount * 3];
+            next = Arrays.copyOf(firstEdges, vertexCount);
+            for (int s = 0; s < segmentCount; s++) {
+                int road = segmentRoads.values[s];
+                int from = ids[segmentFrom.values[s]];
+                int to = ids[segmentTo.values[s]];
+                // tenths of a second
+                int time = Math.max(1, (int) Math.round(segmentDecimeters.values[s] * 3.6 / (road & SPEED_MASK)));
+                if ((road & FORWARD) != 0) {
+                    int edge = next[from]++ * 3;
+                    edges[edge] = to;
+                    edges[edge + 1] = time;
+                    edges[edge + 2] = s * 2;
+                }
+                if ((road & BACKWARD) != 0) {
+                    int edge = next[to]++ * 3;
+                    edges[edge] = from;
+                    edges[edge + 1] = time;
+                    edges[edge + 2] = s * 2 + 1;
+                }
+            }
+
+            byte[] key = sourceKey.getBytes(MappedFiles.UTF_8);
+            int headerSize = align(4 + 4 + 2 + key.length) + 3 * 8 + 15 * 4;
+            int cellsOffset = headerSize;
+            int verticesOffset = cellsOffset + cellStarts.length * 4;
+            int firstEdgesOffset = verticesOffset + vertexCount * 8;
+            int edgesOffset = firstEdgesOffset + firstEdges.length * 4;
+            int segmentsOffset = edgesOffset + edges.length * 4;
+            int shapeStartsOffset = segmentsOffset + segmentCount * 8;
+            int shapeOffset = shapeStartsOffset + (segmentCount + 1) * 4;
+            int stringsOffset = shapeOffset + shape.size * 4;
+
+            File temp = new File(graphFile.getPath() + ".tmp");
+            File parent = graphFile.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeShort(key.length);
+                out.write(key);
+                // the arrays are read as ints
+                while (out.size() % 4 != 0) {
+                    out.writeByte(0);
+                }
+                out.writeDouble(minLatitude);
+                out.writeDouble(minLongitude);
+                out.writeDouble(cellDegrees);
+                out.writeInt(columns);
+                out.writeInt(rows);
+                out.writeInt(vertexCount);
+                out.writeInt(edgeCount);
+                out.writeInt(segmentCount);
+                out.writeInt(shape.size / 2);
+                out.writeInt(maxSpeed);
+                out.writeInt(cellsOffset);
+                out.writeInt(verticesOffset);
+                out.writeInt(firstEdgesOffset);
+                out.writeInt(edgesOffset);
+                out.writeInt(segmentsOffset);
+                out.writeInt(shapeStartsOffset);
+                out.writeInt(shapeOffset);
+                out.writeInt(stringsOffset);
+                for (int cellStart : cellStarts) {
+                    out.writeInt(cellStart);
+                }
+                for (int vertex : order) {
+                    out.writeInt(vertexLatitudes.values[vertex]);
+                    out.writeInt(vertexLongitudes.values[vertex]);
+                }
+                for (int firstEdge : firstEdges) {
+                    out.writeInt(firstEdge);
+                }
+                for (int value : edges) {
+                    out.writeInt(value);
+                }
+                for (int s = 0; s < segmentCount; s++) {
+                    out.writeInt(segmentNames.values[s]);
+                    out.writeInt(segmentDecimeters.values[s]);
+                }
+                for (int s = 0; s < segmentCount; s++) {
+                    out.writeInt(shapeStarts.values[s]);
+                }
+                out.writeInt(shape.size / 2);
+                for (int i = 0; i < shape.size; i++) {
+                    out.writeInt(shape.values[i]);
+                }
+                strings.bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(graphFile)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp);
+            }
+        }
+    }
+
+    /**
+     * How often points were used, counted up to two in two bit counters. Every point is counted
+     * in two counters chosen by hashing it, and its count is the smaller of the two, so a count
+     * can be too high if both counters are shared with other points, but never too low.
+     */
+    static final class PointCounts {
+        private final long[] words;
+        private final int mask;
+
+        PointCounts(int bits) {
+            words = new long[1 << (bits - 5)];
+            mask = (1 << bits) - 1;
+        }
+
+        void add(long point, int count) {
+            long hash = mix(point);
+            increment((int) hash & mask, count);
+            increment((int) (hash >>> 32) & mask, count);
+        }
+
+        boolean isShared(long point) {
+            long hash = mix(point);
+            return get((int) hash & mask) >= 2 && get((int) (hash >>> 32) & mask) >= 2;
+        }
+
+        private int get(int counter) {
+            return (int) (words[counter >>> 5] >>> ((counter & 31) * 2)) & 3;
+        }
+
+        private void increment(int counter, int count) {
+            int value = Math.min(2, get(counter) + count);
+            int shift = (counter & 31) * 2;
+            words[counter >>> 5] = words[counter >>> 5] & ~(3L << shift) | (long) value << shift;
+        }
+
+        private static long mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            return value ^ (value >>> 33);
+        }
+    }
+
+    /**
+     * Open addressing map from points to vertex numbers, without boxing.
+     */
+    static final class LongIntMap {
+        // no point has the lowest latitude
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys = new long[1024];
+        private int[] values = new int[1024];
+        private int size;
+
+        LongIntMap() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /** The value of the key, or -1. */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = (int) PointCounts.mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = (int) PointCounts.mix(key) & mask;
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == EMPTY) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Cap;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Join;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.graphics.Style;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.Layer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws a route found by the {@link Router}.
+ * <p>
+ * Like the {@link TrackLayer}, the route is projected to pixels once for every zoom level that is
+ * drawn, relative to its first point, and points closer than a pixel to the previous one are
+ * left out, so a route across the country is drawn with few segments when zoomed out. A new route
+ * replaces the projections; it is set from any thread, the render thread notices the change.
+ */
+public class RouteLayer extends Layer {
+
+    private static final class Level {
+        int[] xs;
+        int[] ys;
+        int count;
+    }
+
+    Paint paint;
+
+    private final Path path;
+    private volatile Router.Route route;
+    private Router.Route levelRoute;
+    private final Level[] levels = new Level[Byte.MAX_VALUE + 1];
+    private int levelTileSize;
+    private double originLatitude;
+    private double originLongitude;
+
+    public RouteLayer(GraphicFactory graphicFactory) {
+        this.path = graphicFactory.createPath();
+        paint = graphicFactory.createPaint();
+        paint.setColor(graphicFactory.createColor(180, 120, 40, 200));
+        paint.setStrokeWidth(10);
+        paint.setStrokeCap(Cap.ROUND);
+        paint.setStrokeJoin(Join.ROUND);
+        paint.setStyle(Style.STROKE);
+    }
+
+    public Router.Route getRoute() {
+        return route;
+    }
+
+    /**
+     * Shows the route, or nothing if it is null.
+     */
+    public void setRoute(Router.Route route) {
+        this.route = route;
+        requestRedraw();
+    }
+
+    @Override
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+        Router.Route route = this.route;
+        if (route == null || route.points.size() < 2 || zoomLevel < 0) {
+            return;
+        }
+        int tileSize = displayModel.getTileSize();
+        if (route != levelRoute || tileSize != levelTileSize) {
+            Arrays.fill(levels, null);
+            levelRoute = route;
+            levelTileSize = tileSize;
+            originLatitude = route.points.get(0).latitude;
+            originLongitude = route.points.get(0).longitude;
+        }
+        Level level = levels[zoomLevel];
+        if (level == null) {
+            level = project(route.points, MercatorProjection.getMapSize(zoomLevel, tileSize));
+            levels[zoomLevel] = level;
+        }
+
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, tileSize);
+        double originX = MercatorProjection.longitudeToPixelX(originLongitude, mapSize);
+        double originY = MercatorProjection.latitudeToPixelY(originLatitude, mapSize);
+        // the view in the pixels of the level, grown by the stroke
+        double margin = paint.getStrokeWidth();
+        double left = MercatorProjection.longitudeToPixelX(boundingBox.minLongitude, mapSize) - originX - margin;
+        double right = MercatorProjection.longitudeToPixelX(boundingBox.maxLongitude, mapSize) - originX + margin;
+        double top = MercatorProjection.latitudeToPixelY(boundingBox.maxLatitude, mapSize) - originY - margin;
+        double bottom = MercatorProjection.latitudeToPixelY(boundingBox.minLatitude, mapSize) - originY + margin;
+        float offsetX = (float) (originX - topLeftPoint.x);
+        float offsetY = (float) (originY - topLeftPoint.y);
+
+        path.clear();
+        boolean drawing = false;
+        int[] xs = level.xs;
+        int[] ys = level.ys;
+        for (int i = 1; i < level.count; i++) {
+            int x0 = xs[i - 1];
+            int y0 = ys[i - 1];
+            int x1 = xs[i];
+            int y1 = ys[i];
+            if (Math.max(x0, x1) < left || Math.min(x0, x1) > right
+                    || Math.max(y0, y1) < top || Math.min(y0, y1) > bottom) {
+                drawing = false;
+                continue;
+            }
+            if (!drawing) {
+                path.moveTo(x0 + offsetX, y0 + offsetY);
+                drawing = true;
+            }
+            path.lineTo(x1 + offsetX, y1 + offsetY);
+        }
+        if (!path.isEmpty()) {
+            canvas.drawPath(path, paint);
+        }
+    }
+
+    private Level project(List<LatLong> points, long mapSize) {
+        double originX = MercatorProjection.longitudeToPixelX(originLongitude, mapSize);
+        double originY = MercatorProjection.latitudeToPixelY(originLatitude, mapSize);
+        Level level = new Level();
+        level.xs = new int[points.size()];
+        level.ys = new int[points.size()];
+        int last = points.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            LatLong point = points.get(i);
+            int x = (int) Math.round(MercatorProjection.longitudeToPixelX(point.longitude, mapSize) - originX);
+            int y = (int) Math.round(MercatorProjection.latitudeToPixelY(point.latitude, mapSize) - originY);
+            if (level.count > 0 && i < last && Math.abs(x - level.xs[level.count - 1]) <= 1
+                    && Math.abs(y - level.ys[level.count - 1]) <= 1) {
+                continue;
+            }
+            level.xs[level.count] = x;
+            level.ys[level.count] = y;
+            level.count++;
+        }
+        return level;
+    }
+
+    /**
+     * The number of points drawn at a zoom level, for tests.
+     */
+    int getProjectedCount(byte zoomLevel) {
+        Level level = levels[zoomLevel];
+        return level == null ? 0 : level.count;
+    }
+}
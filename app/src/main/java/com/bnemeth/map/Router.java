@@ -0,0 +1,333 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.LatLong;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the fastest route between two positions on a {@link RoadGraph} with A*.
+ * <p>
+ * The search estimates the time left from the straight distance to the destination at the
+ * highest speed of the graph, which never overestimates it, so the route found is the fastest.
+ * Its state is kept in arrays as large as the graph that are reused by every query: a vertex
+ * counts as visited only if it carries the number of the current query, so nothing needs to be
+ * cleared between queries. A router is not thread safe, use one per thread.
+ */
+public class Router {
+
+    public enum Turn {DEPART, CONTINUE, SLIGHT_LEFT, LEFT, SHARP_LEFT, SLIGHT_RIGHT, RIGHT, SHARP_RIGHT, U_TURN, ARRIVE}
+
+    /**
+     * A step of the directions, given where the road name changes.
+     */
+    public static class Instruction {
+        public final Turn turn;
+        /** The road to follow, or null if it has no name. */
+        public final String name;
+        /** How far to follow it, in meters. */
+        public final double distance;
+        public final LatLong position;
+
+        Instruction(Turn turn, String name, double distance, LatLong position) {
+            this.turn = turn;
+            this.name = name;
+            this.distance = distance;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            String text = turn.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+            if (turn == Turn.ARRIVE) {
+                return text;
+            }
+            return text + (name != null ? " onto " + name : "") + ", " + Math.round(distance) + " m";
+        }
+    }
+
+    /**
+     * A route from vertex to vertex of the graph.
+     */
+    public static class Route {
+        public final List<LatLong> points;
+        public final List<Instruction> instructions;
+        /** Length in meters. */
+        public final double distance;
+        /** Travel time in seconds. */
+        public final double duration;
+
+        Route(List<LatLong> points, List<Instruction> instructions, double distance, double duration) {
+            this.points = Collections.unmodifiableList(points);
+            this.instructions = Collections.unmodifiableList(instructions);
+            this.distance = distance;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1f km, %d min", distance / 1000, Math.round(duration / 60));
+        }
+    }
+
+    private final RoadGraph graph;
+    private final double longitudeScale;
+    // tenths of a second per microdegree at the highest speed, a little less, so the rounding of
+    // the edge times cannot make the estimate too high
+    private final double timePerMicrodegree;
+
+    private final int[] times;
+    private final int[] parents;
+    private final int[] parentEdges;
+    private final int[] reached;
+    private final int[] settled;
+    private int query;
+    private int settledCount;
+
+    // binary heap of vertices by estimated total time, a vertex is added again when it gets faster
+    private int[] heapVertices = new int[1024];
+    private int[] heapKeys = new int[1024];
+    private int heapSize;
+
+    public Router(RoadGraph graph) {
+        this.graph = graph;
+        longitudeScale = Math.cos(Math.toRadians(graph.getMaxAbsoluteLatitude()));
+        timePerMicrodegree = 0.98 * RoadGraph.METERS_PER_DEGREE / 1e6 * 36 / graph.getMaxSpeed();
+        int vertexCount = graph.getVertexCount();
+        times = new int[vertexCount];
+        parents = new int[vertexCount];
+        parentEdges = new int[vertexCount];
+        reached = new int[vertexCount];
+        settled = new int[vertexCount];
+    }
+
+    /**
+     * The fastest route between the vertices closest to the two positions, or null if there is
+     * none.
+     */
+    public Route route(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        int source = graph.findVertex(fromLatitude, fromLongitude);
+        int target = graph.findVertex(toLatitude, toLongitude);
+        if (source < 0 || target < 0 || !search(source, target)) {
+            return null;
+        }
+        return route(source, target);
+    }
+
+    public RoadGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * The vertices the last query settled, the measure of its work.
+     */
+    public int getSettledCount() {
+        return settledCount;
+    }
+
+    private boolean search(int source, int target) {
+        if (++query == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            query = 1;
+        }
+        settledCount = 0;
+        heapSize = 0;
+        int targetLatitude = graph.getLatitudeE6(target);
+        int targetLongitude = graph.getLongitudeE6(target);
+
+        reached[source] = query;
+        times[source] = 0;
+        parents[source] = -1;
+        push(source, estimate(source, targetLatitude, targetLongitude));
+        while (heapSize > 0) {
+            int vertex = pop();
+            if (settled[vertex] == query) {
+                // reached faster after it was added
+                continue;
+            }
+            settled[vertex] = query;
+            settledCount++;
+            if (vertex == target) {
+                return true;
+            }
+            int time = times[vertex];
+            for (int edge = graph.getFirstEdge(vertex), end = graph.getFirstEdge(vertex + 1); edge < end; edge++) {
+                int next = graph.getTarget(edge);
+                if (settled[next] == query) {
+                    continue;
+                }
+                int nextTime = time + graph.getTime(edge);
+                if (reached[next] != query || nextTime < times[next]) {
+                    reached[next] = query;
+                    times[next] = nextTime;
+                    parents[next] = vertex;
+                    parentEdges[next] = edge;
+                    push(next, nextTime + estimate(next, targetLatitude, targetLongitude));
+                }
+            }
+        }
+        return false;
+    }
+
+    private int estimate(int vertex, int targetLatitude, int targetLongitude) {
+        double dy = graph.getLatitudeE6(vertex) - targetLatitude;
+        double dx = (graph.getLongitudeE6(vertex) - targetLongitude) * longitudeScale;
+        return (int) (Math.sqrt(dx * dx + dy * dy) * timePerMicrodegree);
+    }
+
+    private void push(int vertex, int key) {
+        if (heapSize == heapVertices.length) {
+            heapVertices = Arrays.copyOf(heapVertices, heapSize * 2);
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapVertices[i] = heapVertices[parent];
+            heapKeys[i] = heapKeys[parent];
+            i = parent;
+        }
+        heapVertices[i] = vertex;
+        heapKeys[i] = key;
+    }
+
+    private int pop() {
+        int top = heapVertices[0];
+        int vertex = heapVertices[--heapSize];
+        int key = heapKeys[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= key) {
+                break;
+            }
+            heapVertices[i] = heapVertices[child];
+            heapKeys[i] = heapKeys[child];
+            i = child;
+        }
+        heapVertices[i] = vertex;
+        heapKeys[i] = key;
+        return top;
+    }
+
+    /**
+     * Follows the parents back from the target and lays out the points and directions.
+     */
+    private Route route(int source, int target) {
+        int count = 0;
+        for (int vertex = target; vertex != source; vertex = parents[vertex]) {
+            count++;
+        }
+        int[] path = new int[count];
+        for (int vertex = target, i = count; vertex != source; vertex = parents[vertex]) {
+            path[--i] = parentEdges[vertex];
+        }
+
+        List<LatLong> points = new ArrayList<>();
+        List<Instruction> instructions = new ArrayList<>();
+        points.add(position(graph.getLatitudeE6(source), graph.getLongitudeE6(source)));
+        double distance = 0;
+        // the road followed since the last instruction, named by its first segment
+        int stretchSegment = -1;
+        int stretchPoint = 0;
+        double stretch = 0;
+        Turn turn = Turn.DEPART;
+        for (int edge : path) {
+            int segment = graph.getSegment(edge) >> 1;
+            if (stretchSegment < 0 || graph.getNameId(segment) != graph.getNameId(stretchSegment)) {
+                if (stretchSegment >= 0) {
+                    instructions.add(new Instruction(turn, graph.getName(stretchSegment), stretch,
+                            points.get(stretchPoint)));
+                    turn = turn(points, edge);
+                }
+                stretchSegment = segment;
+                stretchPoint = points.size() - 1;
+                stretch = 0;
+            }
+            addShape(points, edge);
+            double length = graph.getLength(segment);
+            distance += length;
+            stretch += length;
+        }
+        if (stretchSegment >= 0) {
+            instructions.add(new Instruction(turn, graph.getName(stretchSegment), stretch, points.get(stretchPoint)));
+        }
+        instructions.add(new Instruction(Turn.ARRIVE, null, 0, points.get(points.size() - 1)));
+        return new Route(points, instructions, distance, times[target] / 10.0);
+    }
+
+    private void addShape(List<LatLong> points, int edge) {
+        int segment = graph.getSegment(edge);
+        int start = graph.getShapeStart(segment >> 1);
+        int end = graph.getShapeStart((segment >> 1) + 1);
+        if ((segment & 1) == 0) {
+            for (int i = start; i < end; i++) {
+                points.add(position(graph.getShapeLatitudeE6(i), graph.getShapeLongitudeE6(i)));
+            }
+        } else {
+            for (int i = end - 1; i >= start; i--) {
+                points.add(position(graph.getShapeLatitudeE6(i), graph.getShapeLongitudeE6(i)));
+            }
+        }
+        int target = graph.getTarget(edge);
+        points.add(position(graph.getLatitudeE6(target), graph.getLongitudeE6(target)));
+    }
+
+    /**
+     * The turn from the road that arrives at the last point onto the edge that leaves it.
+     */
+    private Turn turn(List<LatLong> points, int edge) {
+        LatLong before = points.get(points.size() - 2);
+        LatLong at = points.get(points.size() - 1);
+        int segment = graph.getSegment(edge);
+        int start = graph.getShapeStart(segment >> 1);
+        int end = graph.getShapeStart((segment >> 1) + 1);
+        LatLong next;
+        if (start == end) {
+            int target = graph.getTarget(edge);
+            next = position(graph.getLatitudeE6(target), graph.getLongitudeE6(target));
+        } else {
+            int first = (segment & 1) == 0 ? start : end - 1;
+            next = position(graph.getShapeLatitudeE6(first), graph.getShapeLongitudeE6(first));
+        }
+        double angle = bearing(at, next) - bearing(before, at);
+        angle = (angle + 540) % 360 - 180;
+        double size = Math.abs(angle);
+        if (size < 20) {
+            return Turn.CONTINUE;
+        }
+        if (size > 165) {
+            return Turn.U_TURN;
+        }
+        if (angle < 0) {
+            return size < 45 ? Turn.SLIGHT_LEFT : size < 135 ? Turn.LEFT : Turn.SHARP_LEFT;
+        }
+        return size < 45 ? Turn.SLIGHT_RIGHT : size < 135 ? Turn.RIGHT : Turn.SHARP_RIGHT;
+    }
+
+    /**
+     * Compass bearing in degrees, clockwise from north.
+     */
+    private static double bearing(LatLong from, LatLong to) {
+        double dy = to.latitude - from.latitude;
+        double dx = (to.longitude - from.longitude) * Math.cos(Math.toRadians(from.latitude));
+        return Math.toDegrees(Math.atan2(dx, dy));
+    }
+
+    private static LatLong position(int latitudeE6, int longitudeE6) {
+        return new LatLong(latitudeE6 / 1e6, longitudeE6 / 1e6);
+    }
+}
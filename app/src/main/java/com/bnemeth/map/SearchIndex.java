@@ -0,0 +1,737 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offline search for named places and POI categories, e.g. "bakery" or "andrassy ut", ordered by
+ * the distance from a given position.
+ * <p>
+ * The index is built once from the map data and then memory-mapped, queries read it in place.
+ * The file holds:
+ * <ul>
+ * <li>the entries, a position, a name and a category each, sorted by the cell of a regular grid
+ * over the map, and the first entry of every cell,</li>
+ * <li>the search terms, the words of the names and of the category values, normalized and sorted
+ * by their UTF-8 bytes, so the terms with a prefix are one range found by binary search,</li>
+ * <li>a posting list of entry numbers for every term.</li>
+ * </ul>
+ * Because the entries are sorted by cell, the part of a posting list that falls into one grid row
+ * of the search window is one range of it as well. A query looks at the cells around the position
+ * first and doubles the window until enough results are found that no entry outside it can be
+ * closer.
+ */
+public class SearchIndex {
+
+    static final int MAGIC = 0x4D535849; // "MSXI"
+    static final int VERSION = 1;
+
+    /** Zoom level the map is read at, the base zoom level of the most detailed sub-file. */
+    static final byte BUILD_ZOOM = 14;
+
+    /** Limits the grid to 256 KB of cell table. */
+    private static final int MAX_CELLS = 65536;
+    private static final double MIN_CELL_DEGREES = 0.01;
+
+    /** Pieces of the same named way closer than this are indexed once. */
+    private static final double WAY_DEDUPLICATION_DEGREES = 0.05;
+
+    /** A very short prefix is narrowed to the first terms it matches. */
+    private static final int MAX_TERMS_PER_PREFIX = 512;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static final int ENTRY_SIZE = 16;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Keys whose values are searchable as category, in order of preference. */
+    private static final String[] CATEGORY_KEYS = {"amenity", "shop", "tourism", "leisure", "historic",
+            "office", "craft", "healthcare", "sport", "public_transport", "railway", "aeroway", "highway",
+            "place", "natural", "waterway", "landuse"};
+
+    /**
+     * A search hit.
+     */
+    public static class Result {
+        /** The name, or null for an unnamed POI found by its category. */
+        public final String name;
+        /** The category as "key=value", or null. */
+        public final String category;
+        public final double latitude;
+        public final double longitude;
+        /** Distance from the search position in meters. */
+        public final double distance;
+
+        Result(String name, String category, double latitude, double longitude, double distance) {
+            this.name = name;
+            this.category = category;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return (name != null ? name : category) + " (" + Math.round(distance) + " m)";
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double cellDegrees;
+    private final int columns;
+    private final int rows;
+    private final int entryCount;
+    private final int termCount;
+    private final int cellsOffset;
+    private final int entriesOffset;
+    private final int categoriesOffset;
+    private final int termsOffset;
+    private final int postingStartsOffset;
+    private final int postingsOffset;
+    private final int stringsOffset;
+
+    private SearchIndex(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        int position = buffer.position();
+        minLatitude = buffer.getDouble(position);
+        minLongitude = buffer.getDouble(position + 8);
+        cellDegrees = buffer.getDouble(position + 16);
+        columns = buffer.getInt(position + 24);
+        rows = buffer.getInt(position + 28);
+        entryCount = buffer.getInt(position + 32);
+        termCount = buffer.getInt(position + 36);
+        cellsOffset = buffer.getInt(position + 40);
+        entriesOffset = buffer.getInt(position + 44);
+        categoriesOffset = buffer.getInt(position + 48);
+        termsOffset = buffer.getInt(position + 52);
+        postingStartsOffset = buffer.getInt(position + 56);
+        postingsOffset = buffer.getInt(position + 60);
+        stringsOffset = buffer.getInt(position + 64);
+    }
+
+    /**
+     * Maps the index file, or returns null if it does not exist or was built from other map files.
+     */
+    public static SearchIndex open(File indexFile, String sourceKey) throws IOException {
+        MappedByteBuffer buffer = MappedFiles.map(indexFile, MAGIC, VERSION, sourceKey);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            return new SearchIndex(buffer);
+        } catch (IndexOutOfBoundsException e) {
+            // cut off, built again like a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Identifies the map files by path, size and modification time.
+     */
+    public static String sourceKey(List<File> mapFiles) {
+        StringBuilder key = new StringBuilder();
+        for (File mapFile : mapFiles) {
+            key.append(mapFile.getName()).append(':').append(mapFile.length()).append(':')
+                    .append(mapFile.lastModified()).append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Reads every tile of the map once and writes the index, replacing the file only once it is
+     * complete.
+     */
+    public static void build(MapDataStore mapDataStore, File indexFile, String sourceKey) throws IOException {
+        BoundingBox boundingBox = mapDataStore.boundingBox();
+        if (boundingBox == null) {
+            throw new IOException("No map data to index");
+        }
+        Builder builder = new Builder(boundingBox);
+
+        int left = MercatorProjection.longitudeToTileX(boundingBox.minLongitude, BUILD_ZOOM);
+        int right = MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, BUILD_ZOOM);
+        int top = MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, BUILD_ZOOM);
+        int bottom = MercatorProjection.latitudeToTileY(boundingBox.minLatitude, BUILD_ZOOM);
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                Tile tile = new Tile(x, y, BUILD_ZOOM, 256);
+                if (!mapDataStore.supportsTile(tile)) {
+                    continue;
+                }
+                // labels are all POIs and the ways with a name, house number or ref
+                MapReadResult result = mapDataStore.readLabels(tile);
+                for (PointOfInterest poi : result.pointOfInterests) {
+                    builder.add(poi.position.latitude, poi.position.longitude, poi.tags, false);
+                }
+                for (Way way : result.ways) {
+                    LatLong position = way.labelPosition;
+                    if (position == null) {
+                        if (way.latLongs.length == 0 || way.latLongs[0].length == 0) {
+                            continue;
+                        }
+                        position = way.latLongs[0][way.latLongs[0].length / 2];
+                    }
+                    builder.add(position.latitude, position.longitude, way.tags, true);
+                }
+            }
+        }
+        builder.write(indexFile, sourceKey);
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Finds the entries closest to the given position whose name or category has a word starting
+     * with every word of the query.
+     *
+     * @param query     e.g. "bakery" or "szent ist".
+     * @param latitude  the position to sort by.
+     * @param longitude the position to sort by.
+     * @param limit     the maximum number of results.
+     * @return the results, closest first.
+     */
+    public List<Result> search(String query, double latitude, double longitude, int limit) {
+        String[] words = tokens(query);
+        if (words.length == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int[][] termRanges = new int[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            termRanges[i] = termRange(words[i].getBytes(UTF_8));
+            if (termRanges[i][0] == termRanges[i][1]) {
+                return Collections.emptyList();
+            }
+        }
+
+        int row = clamp((int) ((latitude - minLatitude) / cellDegrees), rows);
+        int column = clamp((int) ((longitude - minLongitude) / cellDegrees), columns);
+        double longitudeScale = Math.cos(Math.toRadians(latitude));
+        for (int radius = 1; ; radius *= 2) {
+            int row0 = Math.max(0, row - radius);
+            int row1 = Math.min(rows - 1, row + radius);
+            int column0 = Math.max(0, column - radius);
+            int column1 = Math.min(columns - 1, column + radius);
+
+            int[] matches = collect(termRanges[0], row0, row1, column0, column1);
+            for (int i = 1; i < words.length && matches.length > 0; i++) {
+                matches = intersect(matches, collect(termRanges[i], row0, row1, column0, column1));
+            }
+
+            double[] distances = new double[matches.length];
+            for (int i = 0; i < matches.length; i++) {
+                int entry = entriesOffset + matches[i] * ENTRY_SIZE;
+                distances[i] = distance(latitude, longitude, longitudeScale,
+                        buffer.getInt(entry) / 1e6, buffer.getInt(entry + 4) / 1e6);
+            }
+            Integer[] order = closest(distances, limit);
+
+            boolean wholeGrid = row0 == 0 && column0 == 0 && row1 == rows - 1 && column1 == columns - 1;
+            if (!wholeGrid && order.length < limit) {
+                continue;
+            }
+            // the window is only complete up to its nearest border inside the grid
+            double covered = Double.MAX_VALUE;
+            if (row0 > 0) {
+                covered = Math.min(covered, latitude - (minLatitude + row0 * cellDegrees));
+            }
+            if (row1 < rows - 1) {
+                covered = Math.min(covered, minLatitude + (row1 + 1) * cellDegrees - latitude);
+            }
+            if (column0 > 0) {
+                covered = Math.min(covered, longitudeScale * (longitude - (minLongitude + column0 * cellDegrees)));
+            }
+            if (column1 < columns - 1) {
+                covered = Math.min(covered, longitudeScale * (minLongitude + (column1 + 1) * cellDegrees - longitude));
+            }
+            if (wholeGrid || distances[order[order.length - 1]] <= covered * METERS_PER_DEGREE) {
+                List<Result> results = new ArrayList<>(order.length);
+                for (Integer i : order) {
+                    results.add(result(matches[i], distances[i]));
+                }
+                return results;
+            }
+        }
+    }
+
+    /**
+     * Indices of the smallest distances, at most limit of them, in ascending order.
+     */
+    private static Integer[] closest(final double[] distances, int limit) {
+        Integer[] order = new Integer[distances.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+        return order.length > limit ? Arrays.copyOf(order, limit) : order;
+    }
+
+    private Result result(int entryNumber, double distance) {
+        int entry = entriesOffset + entryNumber * ENTRY_SIZE;
+        int name = buffer.getInt(entry + 8);
+        int category = buffer.getInt(entry + 12);
+        return new Result(name < 0 ? null : string(name),
+                category < 0 ? null : string(buffer.getInt(categoriesOffset + category * 4)),
+                buffer.getInt(entry) / 1e6, buffer.getInt(entry + 4) / 1e6, distance);
+    }
+
+    /**
+     * The entries of the terms in the range that lie in the window, sorted and without duplicates.
+     */
+    private int[] collect(int[] termRange, int row0, int row1, int column0, int column1) {
+        int[] entries = new int[64];
+        int size = 0;
+        for (int term = termRange[0]; term < termRange[1]; term++) {
+            int postingStart = buffer.getInt(postingStartsOffset + term * 4);
+            int postingEnd = buffer.getInt(postingStartsOffset + term * 4 + 4);
+            for (int row = row0; row <= row1; row++) {
+                int first = buffer.getInt(cellsOffset + (row * columns + column0) * 4);
+                int end = buffer.getInt(cellsOffset + (row * columns + column1 + 1) * 4);
+                for (int p = lowerBound(postingStart, postingEnd, first); p < postingEnd; p++) {
+                    int entry = buffer.getInt(postingsOffset + p * 4);
+                    if (entry >= end) {
+                        break;
+                    }
+                    if (size == entries.length) {
+                        entries = Arrays.copyOf(entries, size * 2);
+                    }
+                    entries[size++] = entry;
+                }
+            }
+        }
+        if (termRange[1] - termRange[0] == 1) {
+            // a single posting list is sorted already
+            return Arrays.copyOf(entries, size);
+        }
+        Arrays.sort(entries, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || entries[unique - 1] != entries[i]) {
+                entries[unique++] = entries[i];
+            }
+        }
+        return Arrays.copyOf(entries, unique);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, size);
+    }
+
+    /**
+     * First posting in [start, end) whose entry is not below the given one.
+     */
+    private int lowerBound(int start, int end, int entry) {
+        while (start < end) {
+            int middle = (start + end) >>> 1;
+            if (buffer.getInt(postingsOffset + middle * 4) < entry) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * The terms starting with the prefix, as [first, end).
+     */
+    private int[] termRange(byte[] prefix) {
+        int first = termSearch(prefix, false);
+        int end = termSearch(prefix, true);
+        return new int[]{first, Math.min(end, first + MAX_TERMS_PER_PREFIX)};
+    }
+
+    /**
+     * First term whose prefix of the query's length is not below (or, with after, above) the query.
+     */
+    private int termSearch(byte[] prefix, boolean after) {
+        int low = 0;
+        int high = termCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int c = comparePrefix(buffer.getInt(termsOffset + middle * 4), prefix);
+            if (c < 0 || (after && c == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the first bytes of the string at the offset with the prefix, unsigned.
+     */
+    private int comparePrefix(int stringOffset, byte[] prefix) {
+        int position = stringsOffset + stringOffset;
+        int length = buffer.getShort(position) & 0xffff;
+        int n = Math.min(length, prefix.length);
+        for (int i = 0; i < n; i++) {
+            int c = (buffer.get(position + 2 + i) & 0xff) - (prefix[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length < prefix.length ? -1 : 0;
+    }
+
+    private String string(int stringOffset) {
+        int position = stringsOffset + stringOffset;
+        byte[] bytes = new byte[buffer.getShort(position) & 0xffff];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+    private static double distance(double latitude1, double longitude1, double longitudeScale,
+                                   double latitude2, double longitude2) {
+        double dy = latitude2 - latitude1;
+        double dx = (longitude2 - longitude1) * longitudeScale;
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Lower case words without accents, so "Szent István" is found as "szent istvan".
+     */
+    static String[] tokens(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            normalized.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        String trimmed = normalized.toString().trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split(" +");
+    }
+
+    /**
+     * Collects the entries and writes the index file.
+     */
+    static class Builder {
+
+        private static class Entry {
+            final int latitude;
+            final int longitude;
+            final int cell;
+            final String name;
+            final String category;
+
+            Entry(int latitude, int longitude, int cell, String name, String category) {
+                this.latitude = latitude;
+                this.longitude = longitude;
+                this.cell = cell;
+                this.name = name;
+                this.category = category;
+            }
+        }
+
+        private final double minLatitude;
+        private final double minLongitude;
+        private final double cellDegrees;
+        private final int columns;
+        private final int rows;
+        private final List<Entry> entries = new ArrayList<>();
+        private final Set<String> indexedWays = new HashSet<>();
+
+        Builder(BoundingBox boundingBox) {
+            minLatitude = boundingBox.minLatitude;
+            minLongitude = boundingBox.minLongitude;
+            double latitudeSpan = Math.max(boundingBox.getLatitudeSpan(), MIN_CELL_DEGREES);
+            double longitudeSpan = Math.max(boundingBox.getLongitudeSpan(), MIN_CELL_DEGREES);
+            cellDegrees = Math.max(MIN_CELL_DEGREES, Math.sqrt(latitudeSpan * longitudeSpan / MAX_CELLS));
+            columns = Math.max(1, (int) Math.ceil(longitudeSpan / cellDegrees));
+            rows = Math.max(1, (int) Math.ceil(latitudeSpan / cellDegrees));
+        }
+
+        /**
+         * Adds an element with a name or a category, others are skipped.
+         */
+        void add(double latitude, double longitude, List<Tag> tags, boolean way) {
+            String name = null;
+            String category = null;
+            int categoryRank = CATEGORY_KEYS.length;
+            for (Tag tag : tags) {
+                if ("name".equals(tag.key)) {
+                    name = tag.value;
+                    continue;
+                }
+                for (int i = 0; i < categoryRank; i++) {
+                    if (CATEGORY_KEYS[i].equals(tag.key)) {
+                        category = tag.key + '=' + tag.value;
+                        categoryRank = i;
+                        break;
+                    }
+                }
+            }
+            if (name == null && (way || category == null)) {
+                return;
+            }
+            if (way) {
+                // ways are read from every tile they cross
+                String key = name + '\n' + category + '\n' + (int) Math.floor(latitude / WAY_DEDUPLICATION_DEGREES)
+                        + ',' + (int) Math.floor(longitude / WAY_DEDUPLICATION_DEGREES);
+                if (!indexedWays.add(key)) {
+                    return;
+                }
+            }
+            add(latitude, longitude, name, category);
+        }
+
+        void add(double latitude, double longitude, String name, String category) {
+            int row = clamp((int) ((latitude - minLatitude) / cellDegrees), rows);
+            int column = clamp((int) ((longitude - minLongitude) / cellDegrees), columns);
+            entries.add(new Entry((int) Math.round(latitude * 1e6), (int) Math.round(longitude * 1e6),
+                    row * columns + column, name, category));
+        }
+
+        void write(File indexFile, String sourceKey) throws IOException {
+            // stable, so entries of a cell keep the order they were read in
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.cell < b.cell ? -1 : (a.cell == b.cell ? 0 : 1);
+                }
+            });
+
+            Strings strings = new Strings();
+            Map<String, Integer> categoryIndex = new HashMap<>();
+            List<Integer> categoryOffsets = new ArrayList<>();
+            Map<String, IntList> postings = new HashMap<>();
+            int[] cellStarts = new int[rows * columns + 1];
+            int[] nameOffsets = new int[entries.size()];
+            int[] categories = new int[entries.size()];
+            int cell = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                while (cell <= entry.cell) {
+                    cellStarts[cell++] = i;
+                }
+                nameOffsets[i] = entry.name == null ? -1 : strings.offset(entry.name);
+                categories[i] = -1;
+                if (entry.category != null) {
+                    Integer category = categoryIndex.get(entry.category);
+                    if (category == null) {
+                        category = categoryOffsets.size();
+                        categoryIndex.put(entry.category, category);
+                        categoryOffsets.add(strings.offset(entry.category));
+                    }
+                    categories[i] = category;
+                    addTerms(postings, entry.category.substring(entry.category.indexOf('=') + 1), i);
+                }
+                if (entry.name != null) {
+                    addTerms(postings, entry.name, i);
+                }
+            }
+            while (cell < cellStarts.length) {
+                cellStarts[cell++] = entries.size();
+            }
+
+            List<byte[]> terms = new ArrayList<>(postings.size());
+            for (String term : postings.keySet()) {
+                terms.add(term.getBytes(UTF_8));
+            }
+            Collections.sort(terms, new Comparator<byte[]>() {
+                @Override
+                public int compare(byte[] a, byte[] b) {
+                    int n = Math.min(a.length, b.length);
+                    for (int i = 0; i < n; i++) {
+                        int c = (a[i] & 0xff) - (b[i] & 0xff);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return a.length - b.length;
+                }
+            });
+            int[] termOffsets = new int[terms.size()];
+            int postingCount = 0;
+            for (int i = 0; i < terms.size(); i++) {
+                termOffsets[i] = strings.offset(terms.get(i));
+                postingCount += postings.get(new String(terms.get(i), UTF_8)).size;
+            }
+
+            byte[] key = sourceKey.getBytes(UTF_8);
+            int headerSize = 4 + 4 + 2 + key.length + 3 * 8 + 11 * 4;
+            int cellsOffset = headerSize;
+            int entriesOffset = cellsOffset + cellStarts.length * 4;
+            int categoriesOffset = entriesOffset + entries.size() * ENTRY_SIZE;
+            int termsOffset = categoriesOffset + categoryOffsets.size() * 4;
+            int postingStartsOffset = termsOffset + terms.size() * 4;
+            int postingsOffset = postingStartsOffset + (terms.size() + 1) * 4;
+            int stringsOffset = postingsOffset + postingCount * 4;
+
+            File temp = new File(indexFile.getPath() + ".tmp");
+            File parent = indexFile.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeShort(key.length);
+                out.write(key);
+                out.writeDouble(minLatitude);
+                out.writeDouble(minLongitude);
+                out.writeDouble(cellDegrees);
+                out.writeInt(columns);
+                out.writeInt(rows);
+                out.writeInt(entries.size());
+                out.writeInt(terms.size());
+                out.writeInt(cellsOffset);
+                out.writeInt(entriesOffset);
+                out.writeInt(categoriesOffset);
+                out.writeInt(termsOffset);
+                out.writeInt(postingStartsOffset);
+                out.writeInt(postingsOffset);
+                out.writeInt(stringsOffset);
+                for (int cellStart : cellStarts) {
+                    out.writeInt(cellStart);
+                }
+                for (int i = 0; i < entries.size(); i++) {
+                    out.writeInt(entries.get(i).latitude);
+                    out.writeInt(entries.get(i).longitude);
+                    out.writeInt(nameOffsets[i]);
+                    out.writeInt(categories[i]);
+                }
+                for (int categoryOffset : categoryOffsets) {
+                    out.writeInt(categoryOffset);
+                }
+                for (int termOffset : termOffsets) {
+                    out.writeInt(termOffset);
+                }
+                int postingStart = 0;
+                for (byte[] term : terms) {
+                    out.writeInt(postingStart);
+                    postingStart += postings.get(new String(term, UTF_8)).size;
+                }
+                out.writeInt(postingStart);
+                for (byte[] term : terms) {
+                    IntList list = postings.get(new String(term, UTF_8));
+                    for (int i = 0; i < list.size; i++) {
+                        out.writeInt(list.values[i]);
+                    }
+                }
+                strings.bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp);
+            }
+        }
+
+        private static void addTerms(Map<String, IntList> postings, String text, int entry) {
+            for (String token : tokens(text)) {
+                IntList list = postings.get(token);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(token, list);
+                }
+                // entries are added in order, a repeated word only once
+                if (list.size == 0 || list.values[list.size - 1] != entry) {
+                    list.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pool of length prefixed UTF-8 strings, each distinct string stored once.
+     */
+    static class Strings {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        private final Map<String, Integer> offsets = new HashMap<>();
+
+        int offset(String string) {
+            Integer offset = offsets.get(string);
+            if (offset == null) {
+                offset = append(string.getBytes(UTF_8));
+                offsets.put(string, offset);
+            }
+            return offset;
+        }
+
+        int offset(byte[] string) {
+            return offset(new String(string, UTF_8));
+        }
+
+        private int append(byte[] string) {
+            int length = Math.min(string.length, 0xffff);
+            int offset = bytes.size();
+            bytes.write(length >>> 8);
+            bytes.write(length);
+            bytes.write(string, 0, length);
+            return offset;
+        }
+    }
+
+    static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.bnemeth.map;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the startup stages of the app in parallel on background threads and records when each one
+ * started and finished, relative to the creation of the pipeline.
+ * <p>
+ * A stage that needs the result of another one waits for its {@link Future}. Points in time that
+ * are not stages, like the first tile on screen, are recorded with {@link #mark(String)}. Every
+ * record is passed to the listener as it happens, so cold start and time to first tile can be
+ * followed in the log. A stage that throws is reported to the listener as well, as nobody may ever
+ * ask its {@link Future} for the result.
+ */
+public class StartupPipeline {
+
+    public interface Listener {
+        /**
+         * @param name     the stage or mark.
+         * @param atMillis when it finished, since the pipeline was created.
+         * @param tookMillis how long the stage ran, 0 for a mark.
+         */
+        void onMark(String name, long atMillis, long tookMillis);
+
+        /**
+         * A stage threw, called after it was marked and before its {@link Future} completes.
+         */
+        void onFailure(String name, Exception error);
+    }
+
+    public static class Mark {
+        public final String name;
+        public final long atMillis;
+        public final long tookMillis;
+
+        Mark(String name, long atMillis, long tookMillis) {
+            this.name = name;
+            this.atMillis = atMillis;
+            this.tookMillis = tookMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name + " at " + atMillis + " ms" + (tookMillis > 0 ? " (" + tookMillis + " ms)" : "");
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final ExecutorService executor;
+    private final Listener listener;
+    private final List<Mark> marks = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+
+    /**
+     * @param threads  how many stages may run at the same time.
+     * @param listener is told about every mark, on the thread that recorded it; may be null.
+     */
+    public StartupPipeline(int threads, Listener listener) {
+        this.listener = listener;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "startup-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a stage on a background thread. It is marked when it completes, also if it throws, and
+     * the listener is told about the exception.
+     */
+    public <T> Future<T> stage(final String name, final Callable<T> work) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                T result;
+                try {
+                    result = work.call();
+                } catch (Exception e) {
+                    record(name, (System.nanoTime() - start) / 1000000, false);
+                    if (listener != null) {
+                        listener.onFailure(name, e);
+                    }
+                    throw e;
+                }
+                record(name, (System.nanoTime() - start) / 1000000, false);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Records a point in time.
+     */
+    public void mark(String name) {
+        record(name, 0, false);
+    }
+
+    /**
+     * Records a point in time unless a mark of this name exists already, e.g. for the first of
+     * many events.
+     *
+     * @return true if the mark was recorded.
+     */
+    public boolean markOnce(String name) {
+        return record(name, 0, true);
+    }
+
+    public boolean hasMark(String name) {
+        synchronized (marks) {
+            return names.contains(name);
+        }
+    }
+
+    public List<Mark> getMarks() {
+        synchronized (marks) {
+            return new ArrayList<>(marks);
+        }
+    }
+
+    /**
+     * Lets running stages finish, but accepts no new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Mark mark : getMarks()) {
+            builder.append(builder.length() == 0 ? "" : ", ").append(mark);
+        }
+        return builder.toString();
+    }
+
+    private boolean record(String name, long tookMillis, boolean once) {
+        Mark mark = new Mark(name, (System.nanoTime() - startNanos) / 1000000, tookMillis);
+        synchronized (marks) {
+            if (!names.add(name) && once) {
+                return false;
+            }
+            marks.add(mark);
+        }
+        if (listener != null) {
+            listener.onMark(mark.name, mark.atMillis, mark.tookMillis);
+        }
+        return true;
+    }
+}
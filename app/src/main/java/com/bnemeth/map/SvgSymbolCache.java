@@ -0,0 +1,479 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Color;
+import org.mapsforge.core.graphics.Display;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.HillshadingBitmap;
+import org.mapsforge.core.graphics.Matrix;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.graphics.Position;
+import org.mapsforge.core.graphics.ResourceBitmap;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.mapelements.PointTextContainer;
+import org.mapsforge.core.mapelements.SymbolContainer;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Graphic factory that rasterizes every SVG symbol once per size and scale factor and keeps the
+ * bitmaps as PNG in a pack file across restarts, in front of the factory of the platform.
+ * <p>
+ * mapsforge parses and rasterizes the SVG symbols of a theme the first time a tile needs them, on
+ * every launch, which takes longer than decoding the same symbol as PNG. The pack holds:
+ * <ul>
+ * <li>a header with the key of the theme it belongs to,</li>
+ * <li>an index with, per symbol, the CRC and length of the SVG, the scale factor, the size
+ * requested by the theme, the place of the PNG and how long rasterizing took,</li>
+ * <li>the PNGs.</li>
+ * </ul>
+ * The pack is only mapped on the first SVG symbol asked for. A symbol that is not in it is
+ * rasterized by the platform factory right away, as the render thread needs it, and is encoded
+ * and added to the pack on a background thread. The SVG content is part of the key, so an edited
+ * symbol is rasterized again, while a pack of another theme is dropped as a whole.
+ */
+public class SvgSymbolCache implements GraphicFactory {
+
+    static final int MAGIC = 0x4D53594D; // "MSYM"
+    static final int VERSION = 1;
+    private static final int ENTRY_BYTES = 9 * 4;
+
+    private static final class Key {
+        final int crc;
+        final int length;
+        final float scaleFactor;
+        final int width;
+        final int height;
+        final int percent;
+
+        Key(int crc, int length, float scaleFactor, int width, int height, int percent) {
+            this.crc = crc;
+            this.length = length;
+            this.scaleFactor = scaleFactor;
+            this.width = width;
+            this.height = height;
+            this.percent = percent;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return crc == key.crc && length == key.length && Float.compare(scaleFactor, key.scaleFactor) == 0
+                    && width == key.width && height == key.height && percent == key.percent;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = crc;
+            result = 31 * result + length;
+            result = 31 * result + Float.floatToIntBits(scaleFactor);
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return 31 * result + percent;
+        }
+    }
+
+    /**
+     * A PNG in the mapped pack, or in memory until the pack is written again.
+     */
+    private static final class Entry {
+        final ByteBuffer buffer;
+        final int offset;
+        final int length;
+        final byte[] png;
+        final int rasterizeMicros;
+
+        Entry(ByteBuffer buffer, int offset, int length, byte[] png, int rasterizeMicros) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.png = png;
+            this.rasterizeMicros = rasterizeMicros;
+        }
+
+        byte[] read() {
+            if (png != null) {
+                return png;
+            }
+            // a view of its own, the render threads read at the same time
+            ByteBuffer data = buffer.duplicate();
+            data.position(offset);
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return bytes;
+        }
+    }
+
+    private final GraphicFactory graphicFactory;
+    private final File file;
+    private final String key;
+    private final ExecutorService writer;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final TileCacheStats stats;
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    private Map<Key, Entry> entries;
+    private boolean dirty;
+
+    /**
+     * @param graphicFactory the factory of the platform, everything but SVG goes straight to it.
+     * @param file           the pack, created when the first symbol is added.
+     * @param key            identifies the theme, e.g. a hash of its content, a pack of another
+     *                       key is replaced.
+     */
+    public SvgSymbolCache(GraphicFactory graphicFactory, File file, String key) {
+        this.graphicFactory = graphicFactory;
+        this.file = file;
+        this.key = key;
+        this.stats = new TileCacheStats("svg symbols", 0);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SvgSymbolCache");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Hits, misses and the bytes of the pack.
+     */
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * The time the symbols served from the pack would have taken to rasterize, minus the time
+     * decoding them took.
+     */
+    public long getSavedMillis() {
+        return savedNanos.get() / 1000000;
+    }
+
+    @Override
+    public ResourceBitmap renderSvg(InputStream inputStream, float scaleFactor, int width, int height, int percent,
+                                    int hash) throws IOException {
+        byte[] svg = readFully(inputStream);
+        CRC32 crc = new CRC32();
+        crc.update(svg);
+        Key symbol = new Key((int) crc.getValue(), svg.length, scaleFactor, width, height, percent);
+
+        Entry entry = get(symbol);
+        if (entry != null) {
+            long start = System.nanoTime();
+            try {
+                // the same hash as the SVG, so the platform shares the bitmap with the one it rendered
+                ResourceBitmap bitmap = graphicFactory.createResourceBitmap(new ByteArrayInputStream(entry.read()),
+                        1f, 0, 0, 100, hash);
+                stats.hits.incrementAndGet();
+                savedNanos.addAndGet(entry.rasterizeMicros * 1000L - (System.nanoTime() - start));
+                return bitmap;
+            } catch (IOException e) {
+                // damaged, rasterized again below
+            }
+        }
+
+        stats.misses.incrementAndGet();
+        long start = System.nanoTime();
+        ResourceBitmap bitmap = graphicFactory.renderSvg(new ByteArrayInputStream(svg), scaleFactor, width, height,
+                percent, hash);
+        int rasterizeMicros = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - start) / 1000);
+        add(symbol, bitmap, rasterizeMicros);
+        return bitmap;
+    }
+
+    /**
+     * Waits until the symbols rasterized so far are in the pack.
+     */
+    public void flush() throws IOException {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes the symbols still pending in the background and stops the writer thread.
+     */
+    public void close() {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+        writer.shutdown();
+    }
+
+    private synchronized Entry get(Key symbol) throws IOException {
+        if (entries == null) {
+            entries = new HashMap<>();
+            load();
+        }
+        return entries.get(symbol);
+    }
+
+    /**
+     * Encodes the symbol on the writer thread and writes the pack once no more symbols are queued,
+     * which keeps the rewrites down while the first tiles add their symbols one by one.
+     */
+    private void add(final Key symbol, final ResourceBitmap bitmap, final int rasterizeMicros) {
+        bitmap.incrementRefCount();
+        pending.incrementAndGet();
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ByteArrayOutputStream png = new ByteArrayOutputStream();
+                        bitmap.compress(png);
+                        synchronized (SvgSymbolCache.this) {
+                            if (!entries.containsKey(symbol)) {
+                                entries.put(symbol, new Entry(null, 0, png.size(), png.toByteArray(),
+                                        rasterizeMicros));
+                                dirty = true;
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        bitmap.decrementRefCount();
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        write();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // closed, the symbol is rasterized again next time
+            pending.decrementAndGet();
+            bitmap.decrementRefCount();
+        }
+    }
+
+    /**
+     * Maps the pack if it exists and belongs to the theme.
+     */
+    private void load() throws IOException {
+        MappedByteBuffer buffer = MappedFiles.map(file, MAGIC, VERSION, key);
+        if (buffer == null) {
+            return;
+        }
+        try {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                Key symbol = new Key(buffer.getInt(), buffer.getInt(), buffer.getFloat(), buffer.getInt(),
+                        buffer.getInt(), buffer.getInt());
+                entries.put(symbol, new Entry(buffer, buffer.getInt(), buffer.getInt(), null, buffer.getInt()));
+            }
+            stats.bytes.set(buffer.capacity());
+        } catch (BufferUnderflowException e) {
+            // cut off, the symbols are rasterized again
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes all symbols into a new pack, replacing the file only once it is complete. The entries
+     * keep reading from the mapping of the old pack, which stays valid after the replace.
+     */
+    private void write() {
+        List<Map.Entry<Key, Entry>> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            snapshot = new ArrayList<>(entries.entrySet());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        boolean complete = false;
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(header);
+            byte[] keyBytes = key.getBytes(MappedFiles.UTF_8);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeShort(keyBytes.length);
+            data.write(keyBytes);
+            data.writeInt(snapshot.size());
+            int offset = header.size() + snapshot.size() * ENTRY_BYTES;
+            for (Map.Entry<Key, Entry> entry : snapshot) {
+                Key symbol = entry.getKey();
+                data.writeInt(symbol.crc);
+                data.writeInt(symbol.length);
+                data.writeFloat(symbol.scaleFactor);
+                data.writeInt(symbol.width);
+                data.writeInt(symbol.height);
+                data.writeInt(symbol.percent);
+                data.writeInt(offset);
+                data.writeInt(entry.getValue().length);
+                data.writeInt(entry.getValue().rasterizeMicros);
+                offset += entry.getValue().length;
+            }
+            data.flush();
+
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                out.setLength(0);
+                out.write(header.toByteArray());
+                for (Map.Entry<Key, Entry> entry : snapshot) {
+                    out.write(entry.getValue().read());
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            stats.bytes.set(offset);
+            complete = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (!complete) {
+                temp.delete();
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "SvgSymbolCache [symbols=%d, hits=%d, misses=%d, saved=%d ms, bytes=%d]",
+                entries != null ? entries.size() : 0, stats.getHits(), stats.getMisses(), getSavedMillis(),
+                stats.getBytes());
+    }
+
+    @Override
+    public Bitmap createBitmap(int width, int height) {
+        return graphicFactory.createBitmap(width, height);
+    }
+
+    @Override
+    public Bitmap createBitmap(int width, int height, boolean isTransparent) {
+        return graphicFactory.createBitmap(width, height, isTransparent);
+    }
+
+    @Override
+    public Canvas createCanvas() {
+        return graphicFactory.createCanvas();
+    }
+
+    @Override
+    public int createColor(Color color) {
+        return graphicFactory.createColor(color);
+    }
+
+    @Override
+    public int createColor(int alpha, int red, int green, int blue) {
+        return graphicFactory.createColor(alpha, red, green, blue);
+    }
+
+    @Override
+    public Matrix createMatrix() {
+        return graphicFactory.createMatrix();
+    }
+
+    @Override
+    public HillshadingBitmap createMonoBitmap(int width, int height, byte[] buffer, int padding, BoundingBox area) {
+        return graphicFactory.createMonoBitmap(width, height, buffer, padding, area);
+    }
+
+    @Override
+    public Paint createPaint() {
+        return graphicFactory.createPaint();
+    }
+
+    @Override
+    public Paint createPaint(Paint paint) {
+        return graphicFactory.createPaint(paint);
+    }
+
+    @Override
+    public Path createPath() {
+        return graphicFactory.createPath();
+    }
+
+    @Override
+    public PointTextContainer createPointTextContainer(Point xy, Display display, int priority, String text,
+                                                       Paint paintFront, Paint paintBack,
+                                                       SymbolContainer symbolContainer, Position position,
+                                                       int maxTextWidth) {
+        return graphicFactory.createPointTextContainer(xy, display, priority, text, paintFront, paintBack,
+                symbolContainer, position, maxTextWidth);
+    }
+
+    @Override
+    public ResourceBitmap createResourceBitmap(InputStream inputStream, float scaleFactor, int width, int height,
+                                               int percent, int hash) throws IOException {
+        return graphicFactory.createResourceBitmap(inputStream, scaleFactor, width, height, percent, hash);
+    }
+
+    @Override
+    public TileBitmap createTileBitmap(InputStream inputStream, int tileSize, boolean isTransparent)
+            throws IOException {
+        return graphicFactory.createTileBitmap(inputStream, tileSize, isTransparent);
+    }
+
+    @Override
+    public TileBitmap createTileBitmap(int tileSize, boolean isTransparent) {
+        return graphicFactory.createTileBitmap(tileSize, isTransparent);
+    }
+
+    @Override
+    public InputStream platformSpecificSources(String relativePathPrefix, String src) throws IOException {
+        return graphicFactory.platformSpecificSources(relativePathPrefix, src);
+    }
+}
@@ -0,0 +1,54 @@
+package com.bnemeth.map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters of one tile cache tier, plus its current size in bytes.
+ */
+public class TileCacheStats {
+
+    public final String name;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    volatile long capacityBytes;
+
+    TileCacheStats(String name, long capacityBytes) {
+        this.name = name;
+        this.capacityBytes = capacityBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public float getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : hits / (float) total;
+    }
+
+    @Override
+    public String toString() {
+        return name + " [hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", bytes=" + bytes + "/" + capacityBytes + ", hit rate=" + Math.round(getHitRate() * 100) + "%]";
+    }
+}
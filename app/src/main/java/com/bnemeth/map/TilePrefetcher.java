@@ -0,0 +1,315 @@
+package com.bnemeth.map;
+
+import android.location.Location;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.Dimension;
+import org.mapsforge.core.model.MapPosition;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.labels.LabelStore;
+import org.mapsforge.map.layer.labels.TileBasedLabelStore;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.layer.renderer.TileRendererLayer;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.IMapViewPosition;
+import org.mapsforge.map.model.common.Observer;
+import org.mapsforge.map.view.MapView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders tiles ahead of the user into the tile cache of a TileRendererLayer.
+ * <p>
+ * Every location fix schedules the tiles around the position at the current zoom level, ordered
+ * by distance and, while moving, by how well they line up with the heading. Tiles behind the user
+ * are skipped. A new fix makes all jobs of the previous one stale: queued jobs are dropped and
+ * jobs that are already running finish, but nothing new is started for the old position.
+ * <p>
+ * The prefetcher also watches the map position and counts how many newly visible tiles were
+ * already in the cache, which is the number that tells whether prefetching pays off. It is kept as
+ * the hits and misses of {@link #getViewportStats()}. As the map position changes with every frame
+ * of a move, only the tiles that came into view allocate anything there.
+ */
+public class TilePrefetcher implements Observer {
+
+    private static final int BASE_RADIUS_TILES = 2;
+    private static final int MAX_AHEAD_TILES = 6;
+    private static final int MAX_JOBS_PER_FIX = 48;
+    private static final float LOOK_AHEAD_SECONDS = 30f;
+    private static final float MIN_SPEED_FOR_HEADING = 1f;
+
+    static final String SCHEDULED = "prefetch.scheduled";
+    static final String RENDERED = "prefetch.rendered";
+    static final String CANCELLED = "prefetch.cancelled";
+
+    private final TileRendererLayer tileRendererLayer;
+    private final TileCache tileCache;
+    private final MapView mapView;
+    private final DatabaseRenderer databaseRenderer;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final TileCacheStats viewport = new TileCacheStats("prefetch viewport", 0);
+
+    final ThreadPoolExecutor executor;
+
+    Metrics.Counter tilesScheduled = new Metrics.Counter(SCHEDULED);
+    Metrics.Counter tilesRendered = new Metrics.Counter(RENDERED);
+    Metrics.Counter tilesCancelled = new Metrics.Counter(CANCELLED);
+
+    // the tiles in view after the last map position change, -1 before the first one
+    private byte visibleZoomLevel = -1;
+    private int visibleLeft;
+    private int visibleTop;
+    private int visibleRight;
+    private int visibleBottom;
+
+    public TilePrefetcher(TileRendererLayer tileRendererLayer, TileCache tileCache, MapView mapView,
+                          GraphicFactory graphicFactory, int threads) {
+        this.tileRendererLayer = tileRendererLayer;
+        this.tileCache = tileCache;
+        this.mapView = mapView;
+
+        /*
+         * A renderer of our own, configured like the one of the layer, so the bitmaps we put into
+         * the cache are the ones the layer would have produced. When the layer leaves its labels
+         * to a label layer, ours go into the same label store.
+         */
+        LabelStore labelStore = tileRendererLayer.getLabelStore();
+        this.databaseRenderer = new DatabaseRenderer(tileRendererLayer.getMapDataStore(),
+                graphicFactory, tileCache,
+                labelStore instanceof TileBasedLabelStore ? (TileBasedLabelStore) labelStore : null,
+                labelStore == null, labelStore != null, null);
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TilePrefetcher-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        mapView.getModel().mapViewPosition.addObserver(this);
+    }
+
+    /**
+     * Counts scheduled, rendered and cancelled tiles in the given metrics, and includes the
+     * newly visible tiles that were already rendered in the dump.
+     */
+    public void setMetrics(Metrics metrics) {
+        tilesScheduled = metrics.counter(SCHEDULED);
+        tilesRendered = metrics.counter(RENDERED);
+        tilesCancelled = metrics.counter(CANCELLED);
+        metrics.register(viewport);
+    }
+
+    /**
+     * Schedules the tiles around the given fix and cancels whatever was scheduled before.
+     */
+    public void onLocation(Location location) {
+        schedule(location.getLatitude(), location.getLongitude(),
+                location.hasBearing() ? location.getBearing() : Float.NaN,
+                location.hasSpeed() ? location.getSpeed() : 0);
+    }
+
+    /**
+     * @param bearing in degrees, NaN if not known.
+     * @param speed   in meters per second.
+     */
+    void schedule(double latitude, double longitude, float bearing, float speed) {
+        int currentGeneration = generation.incrementAndGet();
+        List<Runnable> stale = new ArrayList<>();
+        executor.getQueue().drainTo(stale);
+        tilesCancelled.add(stale.size());
+
+        DisplayModel displayModel = mapView.getModel().displayModel;
+        IMapViewPosition mapViewPosition = mapView.getModel().mapViewPosition;
+        byte zoomLevel = mapViewPosition.getZoomLevel();
+        int tileSize = displayModel.getTileSize();
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, tileSize);
+        int maxTile = Tile.getMaxTileNumber(zoomLevel);
+
+        double pixelX = MercatorProjection.longitudeToPixelX(longitude, mapSize);
+        double pixelY = MercatorProjection.latitudeToPixelY(latitude, mapSize);
+        double positionX = pixelX / tileSize;
+        double positionY = pixelY / tileSize;
+
+        boolean moving = !Float.isNaN(bearing) && speed >= MIN_SPEED_FOR_HEADING;
+        double headingX = 0;
+        double headingY = 0;
+        int aheadTiles = 0;
+        if (moving) {
+            double radians = Math.toRadians(bearing);
+            headingX = Math.sin(radians);
+            headingY = -Math.cos(radians);
+            double metersPerTile = MercatorProjection.calculateGroundResolution(latitude, mapSize) * tileSize;
+            aheadTiles = (int) Math.min(MAX_AHEAD_TILES,
+                    Math.ceil(speed * LOOK_AHEAD_SECONDS / metersPerTile));
+        }
+
+        int radius = BASE_RADIUS_TILES + aheadTiles;
+        int centerX = (int) positionX;
+        int centerY = (int) positionY;
+        List<PrefetchJob> jobs = new ArrayList<>();
+        for (int y = Math.max(0, centerY - radius); y <= Math.min(maxTile, centerY + radius); y++) {
+            for (int x = Math.max(0, centerX - radius); x <= Math.min(maxTile, centerX + radius); x++) {
+                double dx = x + 0.5 - positionX;
+                double dy = y + 0.5 - positionY;
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                double priority = distance;
+                if (moving && distance > 0) {
+                    double alignment = (dx * headingX + dy * headingY) / distance;
+                    if (alignment < -0.3 && distance > BASE_RADIUS_TILES) {
+                        // behind us and outside of the area we may still turn into
+                        continue;
+                    }
+                    priority = distance * (2 - alignment);
+                } else if (distance > radius) {
+                    continue;
+                }
+
+                RendererJob job = createJob(new Tile(x, y, zoomLevel, tileSize), displayModel);
+                if (!tileCache.containsKey(job)) {
+                    jobs.add(new PrefetchJob(job, priority, currentGeneration));
+                }
+            }
+        }
+
+        Collections.sort(jobs);
+        for (int i = 0; i < jobs.size() && i < MAX_JOBS_PER_FIX; i++) {
+            tilesScheduled.increment();
+            executor.execute(jobs.get(i));
+        }
+    }
+
+    /**
+     * Counts the tiles that became visible with the latest map position change and how many of
+     * them were already in the cache. Called on the UI thread and by the animation thread.
+     */
+    @Override
+    public synchronized void onChange() {
+        Dimension dimension = mapView.getDimension();
+        if (dimension == null) {
+            return;
+        }
+
+        DisplayModel displayModel = mapView.getModel().displayModel;
+        int tileSize = displayModel.getTileSize();
+        MapPosition mapPosition = mapView.getModel().mapViewPosition.getMapPosition();
+        byte zoomLevel = mapPosition.zoomLevel;
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, tileSize);
+        int maxTile = Tile.getMaxTileNumber(zoomLevel);
+        double centerX = MercatorProjection.longitudeToPixelX(mapPosition.latLong.longitude, mapSize);
+        double centerY = MercatorProjection.latitudeToPixelY(mapPosition.latLong.latitude, mapSize);
+        int left = clamp((centerX - dimension.width / 2d) / tileSize, maxTile);
+        int top = clamp((centerY - dimension.height / 2d) / tileSize, maxTile);
+        int right = clamp((centerX + dimension.width / 2d) / tileSize, maxTile);
+        int bottom = clamp((centerY + dimension.height / 2d) / tileSize, maxTile);
+
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                if (zoomLevel == visibleZoomLevel && x >= visibleLeft && x <= visibleRight
+                        && y >= visibleTop && y <= visibleBottom) {
+                    continue;
+                }
+                if (tileCache.containsKey(createJob(new Tile(x, y, zoomLevel, tileSize), displayModel))) {
+                    viewport.hits.incrementAndGet();
+                } else {
+                    viewport.misses.incrementAndGet();
+                }
+            }
+        }
+        visibleZoomLevel = zoomLevel;
+        visibleLeft = left;
+        visibleTop = top;
+        visibleRight = right;
+        visibleBottom = bottom;
+    }
+
+    /**
+     * Newly visible tiles that were already rendered count as hits, the others as misses.
+     */
+    public TileCacheStats getViewportStats() {
+        return viewport;
+    }
+
+    /**
+     * Share of newly visible tiles that were already rendered, between 0 and 1.
+     */
+    public float getHitRate() {
+        return viewport.getHitRate();
+    }
+
+    @Override
+    public String toString() {
+        return "TilePrefetcher [scheduled=" + tilesScheduled.get() + ", rendered=" + tilesRendered.get()
+                + ", cancelled=" + tilesCancelled.get() + ", viewport=" + (viewport.getHits() + viewport.getMisses())
+                + ", warm=" + viewport.getHits() + "]";
+    }
+
+    public void destroy() {
+        generation.incrementAndGet();
+        mapView.getModel().mapViewPosition.removeObserver(this);
+        executor.shutdownNow();
+    }
+
+    private static int clamp(double tile, int maxTile) {
+        return Math.max(0, Math.min(maxTile, (int) Math.floor(tile)));
+    }
+
+    private RendererJob createJob(Tile tile, DisplayModel displayModel) {
+        return new RendererJob(tile, tileRendererLayer.getMapDataStore(),
+                tileRendererLayer.getRenderThemeFuture(), displayModel,
+                tileRendererLayer.getTextScale(), false, false);
+    }
+
+    class PrefetchJob implements Runnable, Comparable<PrefetchJob> {
+        final RendererJob job;
+        private final double priority;
+        private final int generation;
+
+        PrefetchJob(RendererJob job, double priority, int generation) {
+            this.job = job;
+            this.priority = priority;
+            this.generation = generation;
+        }
+
+        @Override
+        public int compareTo(PrefetchJob other) {
+            return Double.compare(priority, other.priority);
+        }
+
+        @Override
+        public void run() {
+            if (generation != TilePrefetcher.this.generation.get()) {
+                tilesCancelled.increment();
+                return;
+            }
+            if (tileCache.containsKey(job) || job.renderThemeFuture == null) {
+                return;
+            }
+
+            TileBitmap bitmap = databaseRenderer.executeJob(job);
+            if (bitmap != null) {
+                tileCache.put(job, bitmap);
+                bitmap.decrementRefCount();
+                tilesRendered.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * The tiles of the low zoom levels, rendered once from the map and the theme into a single file
+ * and served from there by the {@link LayeredTileCache}.
+ * <p>
+ * At the zoom levels that show the whole country a tile covers hundreds of map blocks, rendering
+ * it live takes seconds. The pyramid holds these tiles as PNG, which only need to be decoded.
+ * The file is memory-mapped and holds:
+ * <ul>
+ * <li>a header with the key of the map and theme it was rendered from, and for every zoom level
+ * the range of tiles that covers the map,</li>
+ * <li>an index per zoom level, the offset of every tile of the range in row order plus the end
+ * of the last one, a tile without data has the same offset as the next one,</li>
+ * <li>the compressed tiles.</li>
+ * </ul>
+ * The tiles are rendered without labels, like the ones of the map layer, the label layer places
+ * those.
+ */
+public class TilePyramid {
+
+    static final int MAGIC = 0x4D545059; // "MTPY"
+    static final int VERSION = 1;
+
+    /** The zoom levels that show Hungary in a few screens, above them live rendering is fast. */
+    public static final byte MIN_ZOOM = 5;
+    public static final byte MAX_ZOOM = 10;
+
+    private final MappedByteBuffer buffer;
+    private final GraphicFactory graphicFactory;
+    private final long timestamp;
+    private final int tileSize;
+    private final byte minZoom;
+    private final byte maxZoom;
+    private final int[] lefts;
+    private final int[] tops;
+    private final int[] columns;
+    private final int[] rows;
+    private final int[] indexOffsets;
+    private final TileCacheStats stats;
+
+    private TilePyramid(MappedByteBuffer buffer, GraphicFactory graphicFactory, long timestamp) {
+        this.buffer = buffer;
+        this.graphicFactory = graphicFactory;
+        this.timestamp = timestamp;
+        tileSize = buffer.getInt();
+        minZoom = buffer.get();
+        maxZoom = buffer.get();
+        int zoomCount = maxZoom - minZoom + 1;
+        lefts = new int[zoomCount];
+        tops = new int[zoomCount];
+        columns = new int[zoomCount];
+        rows = new int[zoomCount];
+        indexOffsets = new int[zoomCount];
+        for (int i = 0; i < zoomCount; i++) {
+            lefts[i] = buffer.getInt();
+            tops[i] = buffer.getInt();
+            columns[i] = buffer.getInt();
+            rows[i] = buffer.getInt();
+            indexOffsets[i] = buffer.getInt();
+        }
+        stats = new TileCacheStats("pyramid", buffer.capacity());
+        stats.bytes.set(buffer.capacity());
+    }
+
+    /**
+     * Maps the pyramid file, or returns null if it does not exist or was rendered from another map
+     * or theme.
+     */
+    public static TilePyramid open(File file, String key, GraphicFactory graphicFactory) throws IOException {
+        MappedByteBuffer buffer = MappedFiles.map(file, MAGIC, VERSION, key);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            return new TilePyramid(buffer, graphicFactory, file.lastModified());
+        } catch (BufferUnderflowException e) {
+            // cut off, rendered again like a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Renders the tiles of the given zoom levels that cover the map and writes the pyramid,
+     * replacing the file only once it is complete. Tiles the renderer fails on are left out, they
+     * are rendered live.
+     */
+    public static void build(MapDataStore mapDataStore, RenderThemeFuture renderThemeFuture,
+                             DisplayModel displayModel, GraphicFactory graphicFactory, File file, String key,
+                             byte minZoom, byte maxZoom) throws IOException {
+        BoundingBox boundingBox = mapDataStore.boundingBox();
+        if (boundingBox == null) {
+            throw new IOException("No map data to render");
+        }
+        int tileSize = displayModel.getTileSize();
+        int zoomCount = maxZoom - minZoom + 1;
+        int[] lefts = new int[zoomCount];
+        int[] tops = new int[zoomCount];
+        int[] columns = new int[zoomCount];
+        int[] rows = new int[zoomCount];
+        int[] indexOffsets = new int[zoomCount];
+        byte[] keyBytes = key.getBytes(MappedFiles.UTF_8);
+        long position = 4 + 4 + 2 + keyBytes.length + 4 + 2 + zoomCount * 20;
+        for (int i = 0; i < zoomCount; i++) {
+            byte zoomLevel = (byte) (minZoom + i);
+            lefts[i] = MercatorProjection.longitudeToTileX(boundingBox.minLongitude, zoomLevel);
+            tops[i] = MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, zoomLevel);
+            columns[i] = MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, zoomLevel) - lefts[i] + 1;
+            rows[i] = MercatorProjection.latitudeToTileY(boundingBox.minLatitude, zoomLevel) - tops[i] + 1;
+            indexOffsets[i] = (int) position;
+            position += (columns[i] * rows[i] + 1) * 4L;
+        }
+
+        DatabaseRenderer renderer = new DatabaseRenderer(mapDataStore, graphicFactory, null, null, false, false, null);
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        boolean complete = false;
+        try {
+            out.setLength(0);
+            ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+            // the index is written at the end, the tiles follow it
+            int[][] offsets = new int[zoomCount][];
+            out.seek(position);
+            for (int i = 0; i < zoomCount; i++) {
+                byte zoomLevel = (byte) (minZoom + i);
+                offsets[i] = new int[columns[i] * rows[i] + 1];
+                for (int row = 0; row < rows[i]; row++) {
+                    for (int column = 0; column < columns[i]; column++) {
+                        offsets[i][row * columns[i] + column] = offset(position);
+                        Tile tile = new Tile(lefts[i] + column, tops[i] + row, zoomLevel, tileSize);
+                        if (!mapDataStore.supportsTile(tile)) {
+                            continue;
+                        }
+                        TileBitmap bitmap = renderer.executeJob(new RendererJob(tile, mapDataStore,
+                                renderThemeFuture, displayModel, 1f, false, false));
+                        if (bitmap == null) {
+                            continue;
+                        }
+                        try {
+                            png.reset();
+                            bitmap.compress(png);
+                        } finally {
+                            bitmap.decrementRefCount();
+                        }
+                        out.write(png.toByteArray());
+                        position += png.size();
+                    }
+                }
+                offsets[i][offsets[i].length - 1] = offset(position);
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(header);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeShort(keyBytes.length);
+            data.write(keyBytes);
+            data.writeInt(tileSize);
+            data.writeByte(minZoom);
+            data.writeByte(maxZoom);
+            for (int i = 0; i < zoomCount; i++) {
+                data.writeInt(lefts[i]);
+                data.writeInt(tops[i]);
+                data.writeInt(columns[i]);
+                data.writeInt(rows[i]);
+                data.writeInt(indexOffsets[i]);
+            }
+            for (int[] zoomOffsets : offsets) {
+                for (int offset : zoomOffsets) {
+                    data.writeInt(offset);
+                }
+            }
+            data.flush();
+            out.seek(0);
+            out.write(header.toByteArray());
+            complete = true;
+        } finally {
+            out.close();
+            if (!complete) {
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    private static int offset(long position) throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Tile pyramid larger than 2 GB");
+        }
+        return (int) position;
+    }
+
+    public TileCacheStats getStats() {
+        return stats;
+    }
+
+    public byte getMinZoom() {
+        return minZoom;
+    }
+
+    public byte getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Whether the pyramid has the tile. Outside of its zoom levels and the area of the map it
+     * never has, tiles of another size neither.
+     */
+    public boolean contains(Tile tile) {
+        int start = start(tile);
+        return start >= 0 && buffer.getInt(start + 4) > buffer.getInt(start);
+    }
+
+    /**
+     * Decodes the tile from the mapped file, or returns null if the pyramid does not have it.
+     */
+    public TileBitmap get(Job key) {
+        int start = start(key.tile);
+        int from = start >= 0 ? buffer.getInt(start) : 0;
+        int to = start >= 0 ? buffer.getInt(start + 4) : 0;
+        if (to <= from) {
+            stats.misses.incrementAndGet();
+            return null;
+        }
+        // a view of its own, the render threads read at the same time
+        ByteBuffer data = buffer.duplicate();
+        data.limit(to);
+        data.position(from);
+        try {
+            TileBitmap bitmap = graphicFactory.createTileBitmap(new ByteBufferInputStream(data), tileSize,
+                    key.hasAlpha);
+            // not older than the map, so the layer does not render it again
+            bitmap.setTimestamp(timestamp);
+            stats.hits.incrementAndGet();
+            return bitmap;
+        } catch (Exception e) {
+            stats.misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * The position of the offset of the tile in the index, or -1 if the tile is not in its range.
+     */
+    private int start(Tile tile) {
+        if (tile.zoomLevel < minZoom || tile.zoomLevel > maxZoom || tile.tileSize != tileSize) {
+            return -1;
+        }
+        int i = tile.zoomLevel - minZoom;
+        int column = tile.tileX - lefts[i];
+        int row = tile.tileY - tops[i];
+        if (column < 0 || column >= columns[i] || row < 0 || row >= rows[i]) {
+            return -1;
+        }
+        return indexOffsets[i] + (row * columns[i] + column) * 4;
+    }
+
+    @Override
+    public String toString() {
+        return "TilePyramid [zoom=" + minZoom + '-' + maxZoom + ", bytes=" + buffer.capacity() + ']';
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] destination, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(destination, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Color;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.graphics.Style;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.Layer;
+
+import java.util.Arrays;
+
+/**
+ * Draws a recorded track as a line, broken between its segments.
+ * <p>
+ * For every zoom level that is drawn, the track is projected to pixels once and simplified with
+ * Douglas-Peucker to within a pixel, so a long track is drawn with about as many line segments as
+ * the screen can show. New points only update the end of the simplified line: the points after
+ * the last frozen one are simplified again on every change, and once there are more than
+ * {@link #FREEZE_POINTS} of them, they are frozen as well. Every segment is simplified on its
+ * own, so the ends of the segments are kept.
+ * <p>
+ * Pixels are kept relative to the first point of the track, so they fit into ints at every zoom
+ * level. Only the render thread draws, so nothing here is synchronized.
+ */
+public class TrackLayer extends Layer {
+
+    static final int FREEZE_POINTS = 512;
+    private static final double TOLERANCE_PIXELS = 1;
+
+    private static final class Level {
+        final long mapSize;
+        final double originX;
+        final double originY;
+        int[] xs = new int[64];
+        int[] ys = new int[64];
+        // whether the point starts a segment, no line leads to it
+        boolean[] segmentStarts = new boolean[64];
+        // points of the simplified line, the first frozenCount are final
+        int count;
+        int frozenCount;
+        // index of the track point the frozen part ends with, -1 if none is frozen
+        int frozenSource = -1;
+        // the track size the line was simplified for
+        int simplifiedSize;
+
+        Level(long mapSize, double originX, double originY) {
+            this.mapSize = mapSize;
+            this.originX = originX;
+            this.originY = originY;
+        }
+
+        void add(int x, int y, boolean segmentStart) {
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+                segmentStarts = Arrays.copyOf(segmentStarts, count * 2);
+            }
+            xs[count] = x;
+            ys[count] = y;
+            segmentStarts[count] = segmentStart;
+            count++;
+        }
+    }
+
+    Paint paint;
+
+    private final TrackRecorder track;
+    private final Path path;
+    private final Level[] levels = new Level[Byte.MAX_VALUE + 1];
+    private int levelTileSize;
+
+    // scratch space of the simplification
+    private int[] projectedX = new int[FREEZE_POINTS * 2];
+    private int[] projectedY = new int[FREEZE_POINTS * 2];
+    private boolean[] keep = new boolean[FREEZE_POINTS * 2];
+    private int[] stack = new int[64];
+
+    public TrackLayer(GraphicFactory graphicFactory, TrackRecorder track) {
+        this.track = track;
+        this.path = graphicFactory.createPath();
+        paint = graphicFactory.createPaint();
+        paint.setColor(Color.BLUE);
+        paint.setStrokeWidth(6);
+        paint.setStyle(Style.STROKE);
+    }
+
+    @Override
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+        int size = track.size();
+        if (size < 2 || zoomLevel < 0) {
+            return;
+        }
+        Level level = getLevel(zoomLevel, size);
+
+        // the view in the pixels of the level, grown by the stroke
+        double margin = paint.getStrokeWidth();
+        double left = MercatorProjection.longitudeToPixelX(boundingBox.minLongitude, level.mapSize)
+                - level.originX - margin;
+        double right = MercatorProjection.longitudeToPixelX(boundingBox.maxLongitude, level.mapSize)
+                - level.originX + margin;
+        double top = MercatorProjection.latitudeToPixelY(boundingBox.maxLatitude, level.mapSize)
+                - level.originY - margin;
+        double bottom = MercatorProjection.latitudeToPixelY(boundingBox.minLatitude, level.mapSize)
+                - level.originY + margin;
+        float offsetX = (float) (level.originX - topLeftPoint.x);
+        float offsetY = (float) (level.originY - topLeftPoint.y);
+
+        path.clear();
+        boolean drawing = false;
+        int[] xs = level.xs;
+        int[] ys = level.ys;
+        boolean[] segmentStarts = level.segmentStarts;
+        for (int i = 1; i < level.count; i++) {
+            if (segmentStarts[i]) {
+                drawing = false;
+                continue;
+            }
+            int x0 = xs[i - 1];
+            int y0 = ys[i - 1];
+            int x1 = xs[i];
+            int y1 = ys[i];
+            if (Math.max(x0, x1) < left || Math.min(x0, x1) > right
+                    || Math.max(y0, y1) < top || Math.min(y0, y1) > bottom) {
+                drawing = false;
+                continue;
+            }
+            if (!drawing) {
+                path.moveTo(x0 + offsetX, y0 + offsetY);
+                drawing = true;
+            }
+            path.lineTo(x1 + offsetX, y1 + offsetY);
+        }
+        if (!path.isEmpty()) {
+            canvas.drawPath(path, paint);
+        }
+    }
+
+    /**
+     * The simplified line of a zoom level, brought up to date with the track.
+     */
+    private Level getLevel(byte zoomLevel, int size) {
+        int tileSize = displayModel.getTileSize();
+        if (tileSize != levelTileSize) {
+            Arrays.fill(levels, null);
+            levelTileSize = tileSize;
+        }
+        Level level = levels[zoomLevel];
+        if (level == null) {
+            long mapSize = MercatorProjection.getMapSize(zoomLevel, tileSize);
+            level = new Level(mapSize, MercatorProjection.longitudeToPixelX(track.getLongitude(0), mapSize),
+                    MercatorProjection.latitudeToPixelY(track.getLatitude(0), mapSize));
+            levels[zoomLevel] = level;
+        }
+        if (level.simplifiedSize != size) {
+            update(level, size);
+        }
+        return level;
+    }
+
+    private void update(Level level, int size) {
+        int start = Math.max(0, level.frozenSource);
+        int points = size - start;
+        if (projectedX.length < points) {
+            projectedX = new int[points * 2];
+            projectedY = new int[points * 2];
+            keep = new boolean[points * 2];
+        }
+        for (int i = 0; i < points; i++) {
+            projectedX[i] = (int) Math.round(MercatorProjection.longitudeToPixelX(track.getLongitude(start + i),
+                    level.mapSize) - level.originX);
+            projectedY[i] = (int) Math.round(MercatorProjection.latitudeToPixelY(track.getLatitude(start + i),
+                    level.mapSize) - level.originY);
+        }
+        for (int first = 0; first < points; ) {
+            int end = Math.min(points, track.getSegmentEnd(start + first) - start);
+            simplify(projectedX, projectedY, first, end - 1, TOLERANCE_PIXELS, keep);
+            first = end;
+        }
+
+        level.count = level.frozenCount;
+        // the first point of the tail is the last frozen one
+        int segmentEnd = track.getSegmentEnd(start);
+        for (int i = level.frozenCount > 0 ? 1 : 0; i < points; i++) {
+            boolean segmentStart = start + i == segmentEnd;
+            if (segmentStart) {
+                segmentEnd = track.getSegmentEnd(start + i);
+            }
+            if (keep[i]) {
+                level.add(projectedX[i], projectedY[i], segmentStart);
+            }
+        }
+        if (points > FREEZE_POINTS) {
+            level.frozenCount = level.count;
+            level.frozenSource = size - 1;
+        }
+        level.simplifiedSize = size;
+    }
+
+    /**
+     * Douglas-Peucker: marks the points to keep so that no dropped point is further than the
+     * tolerance from the line. The ends are always kept.
+     */
+    void simplify(int[] xs, int[] ys, int count, double tolerance, boolean[] keep) {
+        simplify(xs, ys, 0, count - 1, tolerance, keep);
+    }
+
+    /**
+     * Simplifies the points from one index to another, both included.
+     */
+    private void simplify(int[] xs, int[] ys, int from, int to, double tolerance, boolean[] keep) {
+        double toleranceSquared = tolerance * tolerance;
+        if (to < from) {
+            return;
+        }
+        Arrays.fill(keep, from, to + 1, false);
+        keep[from] = true;
+        keep[to] = true;
+
+        int top = 0;
+        stack = push(stack, top, from, to);
+        top += 2;
+        while (top > 0) {
+            top -= 2;
+            int first = stack[top];
+            int last = stack[top + 1];
+            double farthest = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distanceSquared(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > farthest) {
+                    farthest = distance;
+                    index = i;
+                }
+            }
+            if (farthest > toleranceSquared) {
+                keep[index] = true;
+                stack = push(stack, top, first, index);
+                top += 2;
+                stack = push(stack, top, index, last);
+                top += 2;
+            }
+        }
+    }
+
+    private static int[] push(int[] stack, int top, int first, int last) {
+        if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top] = first;
+        stack[top + 1] = last;
+        return stack;
+    }
+
+    /**
+     * Squared distance of a point to a segment.
+     */
+    static double distanceSquared(long x, long y, long x0, long y0, long x1, long y1) {
+        long dx = x1 - x0;
+        long dy = y1 - y0;
+        long lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x0) * dx + (y - y0) * dy) / (double) lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double px = x0 + t * dx - x;
+        double py = y0 + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * The number of points of the simplified line of a zoom level, for tests.
+     */
+    int getSimplifiedCount(byte zoomLevel) {
+        Level level = levels[zoomLevel];
+        return level == null ? 0 : level.count;
+    }
+}
@@ -0,0 +1,303 @@
+package com.bnemeth.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A recorded GPS track, kept in memory in chunks of primitive arrays and appended to a file in
+ * the background.
+ * <p>
+ * A point costs 16 bytes in memory and on disk: the time and the coordinates in 1e-7 degrees,
+ * about a centimeter. Chunks are never copied when the track grows. One thread adds points while
+ * any other thread reads them: a point is written before the size that includes it is published.
+ * Adding a point only stores it, a writer thread appends the points added since its last write
+ * and flushes them, so the thread receiving the fixes never waits for the disk.
+ * <p>
+ * Every time the track is opened again, the next point starts a new segment, so the gap between
+ * two recordings is not drawn as a line. The file is a header followed by fixed size records, a
+ * record with the time {@link #SEGMENT_MARK} starts a segment. An interrupted write only loses
+ * the last point, which is cut off when the file is opened again.
+ */
+public class TrackRecorder {
+
+    private static final int MAGIC = 0x54524B31; // "TRK1"
+    private static final int HEADER_BYTES = 4;
+    private static final int RECORD_BYTES = 16;
+    // the time of the record that starts a segment, no fix is that old
+    static final long SEGMENT_MARK = Long.MIN_VALUE;
+
+    static final int CHUNK_SHIFT = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final double E7 = 1e7;
+
+    private final File file;
+    private final DataOutputStream out;
+    private final ExecutorService writer;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            write();
+        }
+    };
+    private volatile IOException writeError;
+    private boolean closed;
+    // whether the next point added starts a segment
+    private boolean newSegment;
+    // only touched by the writer thread once the track is open
+    private int written;
+    private int writtenSegments;
+
+    // chunk tables, replaced by larger ones when full
+    private volatile long[][] times = new long[4][];
+    private volatile int[][] latitudes = new int[4][];
+    private volatile int[][] longitudes = new int[4][];
+    private volatile int size;
+    // the first points of the segments after the first one, replaced when one is added
+    private volatile int[] segmentStarts = new int[0];
+
+    /**
+     * Opens the track of the given file, reading the points recorded so far, and continues it.
+     */
+    public TrackRecorder(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            read();
+        }
+        boolean empty = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+        newSegment = size > 0;
+        written = size;
+        writtenSegments = segmentStarts.length;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TrackRecorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The number of points, all of them can be read.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTime(int index) {
+        return times[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index >>> CHUNK_SHIFT][index & CHUNK_MASK] / E7;
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index >>> CHUNK_SHIFT][index & CHUNK_MASK] / E7;
+    }
+
+    /**
+     * The index after the last point of the segment the given point is in, Integer.MAX_VALUE if
+     * that is the last segment.
+     */
+    public int getSegmentEnd(int index) {
+        int[] starts = segmentStarts;
+        int next = Arrays.binarySearch(starts, index + 1);
+        if (next < 0) {
+            next = -next - 1;
+        }
+        return next < starts.length ? starts[next] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Adds a fix, the writer thread writes it to the file. Must only be called from one thread at
+     * a time.
+     *
+     * @param time the time of the fix in milliseconds since the epoch.
+     * @throws IOException if the track is closed, or writing an earlier point failed.
+     */
+    public void add(long time, double latitude, double longitude) throws IOException {
+        if (closed) {
+            throw new IOException("Track is closed");
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (newSegment) {
+            startSegment(size);
+            newSegment = false;
+        }
+        append(time, (int) Math.round(latitude * E7), (int) Math.round(longitude * E7));
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.execute(writeTask);
+        }
+    }
+
+    /**
+     * Writes the points still pending and closes the file.
+     *
+     * @throws IOException if writing failed, or the writer thread did not finish in time, which
+     * leaves the file open to the writer thread.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.execute(writeTask);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                throw new IOException("Timed out writing " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing " + file);
+        }
+        out.close();
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * Appends the points added since the last write, each segment after its mark, on the writer
+     * thread.
+     */
+    private void write() {
+        if (writeError != null) {
+            return;
+        }
+        int size = this.size;
+        int[] starts = segmentStarts;
+        try {
+            for (int i = written; i < size; i++) {
+                if (writtenSegments < starts.length && starts[writtenSegments] == i) {
+                    out.writeLong(SEGMENT_MARK);
+                    out.writeInt(0);
+                    out.writeInt(0);
+                    writtenSegments++;
+                }
+                out.writeLong(getTime(i));
+                out.writeInt(latitudes[i >>> CHUNK_SHIFT][i & CHUNK_MASK]);
+                out.writeInt(longitudes[i >>> CHUNK_SHIFT][i & CHUNK_MASK]);
+            }
+            out.flush();
+            written = size;
+        } catch (IOException e) {
+            writeError = e;
+        }
+    }
+
+    private void startSegment(int index) {
+        int[] starts = segmentStarts;
+        if (index == 0 || starts.length > 0 && starts[starts.length - 1] == index) {
+            return;
+        }
+        starts = Arrays.copyOf(starts, starts.length + 1);
+        starts[starts.length - 1] = index;
+        // published before the size that includes its first point
+        segmentStarts = starts;
+    }
+
+    private void append(long time, int latitudeE7, int longitudeE7) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        long[][] times = this.times;
+        int[][] latitudes = this.latitudes;
+        int[][] longitudes = this.longitudes;
+        if (chunk == times.length) {
+            times = copyOf(times, chunk * 2);
+            latitudes = copyOf(latitudes, chunk * 2);
+            longitudes = copyOf(longitudes, chunk * 2);
+        }
+        if (times[chunk] == null) {
+            times[chunk] = new long[CHUNK_SIZE];
+            latitudes[chunk] = new int[CHUNK_SIZE];
+            longitudes[chunk] = new int[CHUNK_SIZE];
+        }
+        times[chunk][index & CHUNK_MASK] = time;
+        latitudes[chunk][index & CHUNK_MASK] = latitudeE7;
+        longitudes[chunk][index & CHUNK_MASK] = longitudeE7;
+        this.times = times;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        // publishes the point
+        size = index + 1;
+    }
+
+    private void read() throws IOException {
+        long length = file.length();
+        long records = Math.max(0, (length - HEADER_BYTES) / RECORD_BYTES);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (length >= HEADER_BYTES && in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a track");
+            }
+            for (long i = 0; i < records; i++) {
+                long time = in.readLong();
+                int latitudeE7 = in.readInt();
+                int longitudeE7 = in.readInt();
+                if (time == SEGMENT_MARK) {
+                    startSegment(size);
+                } else {
+                    append(time, latitudeE7, longitudeE7);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is shorter than its length", e);
+        } finally {
+            in.close();
+        }
+
+        long complete = length < HEADER_BYTES ? 0 : HEADER_BYTES + records * RECORD_BYTES;
+        if (complete != length) {
+            // the last point was being written when the app stopped
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(complete);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static long[][] copyOf(long[][] chunks, int length) {
+        long[][] copy = new long[length][];
+        System.arraycopy(chunks, 0, copy, 0, chunks.length);
+        return copy;
+    }
+
+    private static int[][] copyOf(int[][] chunks, int length) {
+        int[][] copy = new int[length][];
+        System.arraycopy(chunks, 0, copy, 0, chunks.length);
+        return copy;
+    }
+}
@@ -0,0 +1,233 @@
+package com.bnemeth.map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.Way;
+import org.mapsforge.map.reader.MapFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CachingMapDataStoreTest {
+
+    private static final BoundingBox AREA = new BoundingBox(47.48, 19.02, 47.52, 19.08);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File maps;
+
+    /**
+     * Counts the reads that reach the map files.
+     */
+    private class CountingStore extends RegionMapDataStore {
+        final AtomicInteger tileReads = new AtomicInteger();
+        final AtomicInteger areaReads = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        CountingStore() {
+            super(maps, new File(folder.getRoot(), "regions.index"), 4, null);
+        }
+
+        @Override
+        public MapReadResult readMapData(Tile tile) {
+            tileReads.incrementAndGet();
+            return super.readMapData(tile);
+        }
+
+        @Override
+        public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+            areaReads.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return super.readMapData(upperLeft, lowerRight);
+        }
+    }
+
+    @Before
+    public void writeMaps() throws Exception {
+        maps = folder.newFolder("maps");
+        TestMapFile map = new TestMapFile(AREA);
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            double latitude = AREA.minLatitude + random.nextDouble() * AREA.getLatitudeSpan();
+            double longitude = AREA.minLongitude + random.nextDouble() * AREA.getLongitudeSpan();
+            double length = random.nextDouble() * 0.004;
+            map.way(new double[]{latitude, longitude, latitude + length, longitude + length / 2},
+                    "highway=residential", "name=Utca " + i);
+            map.poi(latitude, longitude, "amenity=cafe", "name=Kávézó " + i);
+        }
+        map.write(new File(maps, "budapest.map"));
+    }
+
+    @Test
+    public void readMapData_returnsWhatTheMapFileReturns() {
+        CachingMapDataStore cached = new CachingMapDataStore(new CountingStore(), 64L * 1024 * 1024);
+        RegionMapDataStore direct = new RegionMapDataStore(maps, new File(folder.getRoot(), "regions.index"), 4, null);
+
+        for (byte zoomLevel : new byte[]{12, 14, 16, 17}) {
+            for (Tile tile : tiles(zoomLevel)) {
+                MapReadResult expected = direct.readMapData(tile);
+                MapReadResult actual = cached.readMapData(tile);
+
+                assertEquals(new HashSet<>(expected.pointOfInterests), new HashSet<>(actual.pointOfInterests));
+                assertEquals(expected.isWater, actual.isWater);
+                Set<Way> ways = new HashSet<>(actual.ways);
+                assertTrue(tile + " misses ways", ways.containsAll(expected.ways));
+                // any more are just as close to the tile
+                BoundingBox area = tile.getBoundingBox().extendMeters(MapFile.wayFilterDistance);
+                for (Way way : ways) {
+                    assertTrue(tile + " " + way.tags, area.intersects(new BoundingBox(asList(way.latLongs))));
+                }
+            }
+        }
+        cached.close();
+        direct.close();
+    }
+
+    @Test
+    public void readMapData_decodesEachBaseTileOnce() {
+        CountingStore source = new CountingStore();
+        CachingMapDataStore cached = new CachingMapDataStore(source, 64L * 1024 * 1024);
+
+        List<Tile> tiles = tiles((byte) 16);
+        for (int round = 0; round < 3; round++) {
+            for (Tile tile : tiles) {
+                cached.readMapData(tile);
+            }
+        }
+
+        int baseTiles = cached.getEntryCount();
+        assertTrue(baseTiles + " base tiles", baseTiles > 1 && baseTiles * 8 < tiles.size());
+        assertEquals(baseTiles, source.areaReads.get());
+        assertEquals(baseTiles, cached.getStats().getMisses());
+        assertEquals(3 * tiles.size() - baseTiles, cached.getStats().getHits());
+        cached.close();
+    }
+
+    @Test
+    public void readMapData_sharesOneReadBetweenThreads() throws Exception {
+        final CountingStore source = new CountingStore();
+        source.getFiles();
+        source.gate = new CountDownLatch(1);
+        final CachingMapDataStore cached = new CachingMapDataStore(source, 64L * 1024 * 1024);
+        final Tile tile = tile(47.5, 19.05, (byte) 16);
+        final List<MapReadResult> results = new ArrayList<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // neighbours in the same base tile
+            final Tile neighbour = new Tile(tile.tileX & ~3 | i % 4, tile.tileY & ~3, tile.zoomLevel, tile.tileSize);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    MapReadResult result = cached.readMapData(neighbour);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        while (source.areaReads.get() == 0) {
+            Thread.sleep(1);
+        }
+        // give the others time to queue up behind the first read
+        Thread.sleep(50);
+        source.gate.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(6, results.size());
+        assertEquals(1, source.areaReads.get());
+        cached.close();
+    }
+
+    @Test
+    public void readMapData_dropsLeastRecentlyUsedBaseTiles() {
+        CountingStore source = new CountingStore();
+        CachingMapDataStore probe = new CachingMapDataStore(source, Long.MAX_VALUE);
+        List<Tile> tiles = tiles((byte) 17);
+        for (Tile tile : tiles) {
+            probe.readMapData(tile);
+        }
+        long allBytes = probe.getStats().getBytes();
+        int allEntries = probe.getEntryCount();
+
+        CachingMapDataStore cached = new CachingMapDataStore(source, allBytes / 4);
+        for (Tile tile : tiles) {
+            cached.readMapData(tile);
+        }
+
+        assertTrue(cached.getStats().getBytes() <= allBytes / 4);
+        assertTrue(cached.getEntryCount() < allEntries);
+        assertEquals(allEntries - cached.getEntryCount(), cached.getStats().getEvictions());
+        // the first tile was dropped, the last one is still there
+        long misses = cached.getStats().getMisses();
+        cached.readMapData(tiles.get(tiles.size() - 1));
+        assertEquals(misses, cached.getStats().getMisses());
+        cached.readMapData(tiles.get(0));
+        assertEquals(misses + 1, cached.getStats().getMisses());
+    }
+
+    @Test
+    public void readMapData_asksTheFileAboutTilesWithoutWays() {
+        CountingStore source = new CountingStore();
+        CachingMapDataStore cached = new CachingMapDataStore(source, 64L * 1024 * 1024);
+
+        // outside the map, sea or land only the file can tell
+        MapReadResult result = cached.readMapData(tile(47.0, 18.0, (byte) 16));
+
+        assertTrue(result.ways.isEmpty());
+        assertEquals(1, source.tileReads.get());
+    }
+
+    private static List<Tile> tiles(byte zoomLevel) {
+        List<Tile> tiles = new ArrayList<>();
+        Tile upperLeft = tile(AREA.maxLatitude, AREA.minLongitude, zoomLevel);
+        Tile lowerRight = tile(AREA.minLatitude, AREA.maxLongitude, zoomLevel);
+        for (int y = upperLeft.tileY; y <= lowerRight.tileY; y++) {
+            for (int x = upperLeft.tileX; x <= lowerRight.tileX; x++) {
+                tiles.add(new Tile(x, y, zoomLevel, 256));
+            }
+        }
+        return tiles;
+    }
+
+    private static Tile tile(double latitude, double longitude, byte zoomLevel) {
+        return new Tile(MercatorProjection.longitudeToTileX(longitude, zoomLevel),
+                MercatorProjection.latitudeToTileY(latitude, zoomLevel), zoomLevel, 256);
+    }
+
+    private static List<LatLong> asList(LatLong[][] latLongs) {
+        List<LatLong> list = new ArrayList<>();
+        for (LatLong[] part : latLongs) {
+            for (LatLong latLong : part) {
+                list.add(latLong);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,70 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import static org.junit.Assert.*;
+
+public class CompiledRenderThemeTest {
+
+    private static final File OPENMAPS_THEME = new File("src/main/assets/OpenmapsTheme/theme.xml");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compiledTheme_replaysXmlEvents() throws Exception {
+        File compiled = folder.newFile("theme.xml.bin");
+        CompiledRenderTheme.compile(new KXmlParser(), new FileInputStream(OPENMAPS_THEME), compiled, "v1");
+
+        XmlPullParser xml = new KXmlParser();
+        xml.setInput(new FileInputStream(OPENMAPS_THEME), null);
+        XmlPullParser binary = new CompiledThemeParser(new KXmlParser());
+        binary.setInput(new CompiledRenderTheme.CompiledStream(CompiledRenderTheme.map(compiled, "v1")), null);
+
+        int tags = 0;
+        assertEquals(XmlPullParser.START_DOCUMENT, binary.getEventType());
+        while (true) {
+            int eventType = nextTag(xml);
+            assertEquals(eventType, binary.next());
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+
+            assertEquals(xml.getName(), binary.getName());
+            assertEquals(xml.getDepth(), binary.getDepth());
+            assertEquals(xml.getAttributeCount(), binary.getAttributeCount());
+            for (int i = 0; i < xml.getAttributeCount(); i++) {
+                assertEquals(xml.getAttributeName(i), binary.getAttributeName(i));
+                assertEquals(xml.getAttributeValue(i), binary.getAttributeValue(i));
+            }
+            tags++;
+        }
+        assertTrue(tags > 1000);
+    }
+
+    @Test
+    public void map_rejectsOtherSourceKey() throws Exception {
+        File compiled = folder.newFile("theme.xml.bin");
+        CompiledRenderTheme.compile(new KXmlParser(), new FileInputStream(OPENMAPS_THEME), compiled, "v1");
+
+        assertNotNull(CompiledRenderTheme.map(compiled, "v1"));
+        assertNull(CompiledRenderTheme.map(compiled, "v2"));
+        assertNull(CompiledRenderTheme.map(new File(folder.getRoot(), "missing.bin"), "v1"));
+    }
+
+    private static int nextTag(XmlPullParser parser) throws Exception {
+        int eventType;
+        do {
+            eventType = parser.next();
+        } while (eventType != XmlPullParser.START_TAG && eventType != XmlPullParser.END_TAG
+                && eventType != XmlPullParser.END_DOCUMENT);
+        return eventType;
+    }
+}
@@ -0,0 +1,158 @@
+package com.bnemeth.map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DiskTileCacheTest {
+
+    private static final GraphicFactory GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
+    private static final int TILE_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private long tileBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("tiles");
+        // blank tiles all compress to the same size
+        DiskTileCache probe = new DiskTileCache(folder.newFolder("probe"), Long.MAX_VALUE, GRAPHIC_FACTORY, TILE_SIZE);
+        put(probe, 0);
+        tileBytes = probe.getStats().getBytes();
+        assertTrue(tileBytes > 0);
+    }
+
+    @Test
+    public void put_evictsTheLeastRecentlyUsedTilesBeyondTheCapacity() {
+        DiskTileCache cache = new DiskTileCache(directory, 3 * tileBytes, GRAPHIC_FACTORY, TILE_SIZE);
+        for (int i = 0; i < 3; i++) {
+            put(cache, i);
+        }
+        get(cache, 0);
+
+        put(cache, 3);
+
+        assertEquals(3 * tileBytes, cache.getStats().getBytes());
+        assertEquals(1, cache.getStats().getEvictions());
+        assertFalse(cache.containsKey(job(1)));
+        assertFalse(new File(directory, job(1).getKey() + DiskTileCache.FILE_EXTENSION).exists());
+        for (int i : new int[]{0, 2, 3}) {
+            assertTrue(cache.containsKey(job(i)));
+        }
+
+        cache.setCapacityBytes(tileBytes);
+        assertEquals(tileBytes, cache.getStats().getBytes());
+        assertTrue(cache.containsKey(job(3)));
+    }
+
+    @Test
+    public void load_findsTheTilesOfThePreviousRun() throws Exception {
+        DiskTileCache previous = new DiskTileCache(directory, 10 * tileBytes, GRAPHIC_FACTORY, TILE_SIZE);
+        for (int i = 0; i < 3; i++) {
+            put(previous, i);
+            // the oldest tile of the previous run is evicted first
+            File file = new File(directory, job(i).getKey() + DiskTileCache.FILE_EXTENSION);
+            assertTrue(file.setLastModified(1000000000000L + i * 1000));
+        }
+        File leftover = new File(new File(directory, job(0).getKey()).getParentFile(), "tile123.tmp");
+        assertTrue(leftover.createNewFile());
+
+        DiskTileCache cache = new DiskTileCache(directory, 10 * tileBytes, GRAPHIC_FACTORY, TILE_SIZE);
+        cache.load();
+
+        assertEquals(3 * tileBytes, cache.getStats().getBytes());
+        assertFalse(leftover.exists());
+        get(cache, 1);
+        cache.setCapacityBytes(2 * tileBytes);
+        assertFalse(cache.containsKey(job(0)));
+        assertTrue(cache.containsKey(job(1)));
+        assertTrue(cache.containsKey(job(2)));
+    }
+
+    @Test
+    public void get_forgetsACorruptTile() throws Exception {
+        DiskTileCache cache = new DiskTileCache(directory, 10 * tileBytes, GRAPHIC_FACTORY, TILE_SIZE);
+        put(cache, 0);
+        write(new File(directory, job(0).getKey() + DiskTileCache.FILE_EXTENSION), "not a png");
+
+        assertNull(cache.get(job(0)));
+        assertFalse(cache.containsKey(job(0)));
+        assertEquals(0, cache.getStats().getBytes());
+    }
+
+    @Test
+    public void create_deletesTheTilesOfAnotherMapOrTheme() throws Exception {
+        File mapFile = folder.newFile("test.map");
+        File theme = folder.newFile("theme.xml");
+        write(theme, "<rendertheme xmlns=\"http://mapsforge.org/renderTheme\" version=\"5\"/>");
+        List<File> mapFiles = Collections.singletonList(mapFile);
+        String hash = LayeredTileCache.hash(mapFiles, new ExternalRenderTheme(theme), TILE_SIZE);
+        assertEquals(hash, LayeredTileCache.hash(mapFiles, new ExternalRenderTheme(theme), TILE_SIZE));
+
+        LayeredTileCache cache = LayeredTileCache.create(directory, hash, 10 * tileBytes, 10 * tileBytes,
+                TILE_SIZE, GRAPHIC_FACTORY);
+        put(cache.getDiskTier(), 0);
+
+        write(theme, "<rendertheme xmlns=\"http://mapsforge.org/renderTheme\" version=\"5\" map-background=\"#000000\"/>");
+        String themeHash = LayeredTileCache.hash(mapFiles, new ExternalRenderTheme(theme), TILE_SIZE);
+        assertNotEquals(hash, themeHash);
+        assertTrue(mapFile.setLastModified(mapFile.lastModified() - 10000));
+        String mapHash = LayeredTileCache.hash(mapFiles, new ExternalRenderTheme(theme), TILE_SIZE);
+        assertNotEquals(themeHash, mapHash);
+        assertNotEquals(themeHash, LayeredTileCache.hash(mapFiles, new ExternalRenderTheme(theme), 512));
+
+        // the same look keeps its tiles
+        cache = LayeredTileCache.create(directory, hash, 10 * tileBytes, 10 * tileBytes, TILE_SIZE, GRAPHIC_FACTORY);
+        assertTrue(cache.getDiskTier().containsKey(job(0)));
+
+        cache = LayeredTileCache.create(directory, mapHash, 10 * tileBytes, 10 * tileBytes, TILE_SIZE,
+                GRAPHIC_FACTORY);
+        assertFalse(cache.getDiskTier().containsKey(job(0)));
+        assertFalse(new File(directory, hash).exists());
+    }
+
+    private static void put(DiskTileCache cache, int x) {
+        TileBitmap bitmap = GRAPHIC_FACTORY.createTileBitmap(TILE_SIZE, false);
+        cache.put(job(x), bitmap);
+        bitmap.decrementRefCount();
+    }
+
+    private static void get(DiskTileCache cache, int x) {
+        TileBitmap bitmap = cache.get(job(x));
+        assertNotNull(bitmap);
+        bitmap.decrementRefCount();
+    }
+
+    private static Job job(int x) {
+        return new Job(new Tile(x, 0, (byte) 10, TILE_SIZE), false);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HillshaderTest {
+
+    private static final int SIZE = 1201;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void getHeight_interpolatesBetweenSamples() throws Exception {
+        // rises 1 m per sample to the east and 2 m per sample to the north
+        writeHgt(folder.getRoot(), 47, 19, new Terrain() {
+            @Override
+            public short height(int row, int column) {
+                return (short) (column + 2 * (SIZE - 1 - row));
+            }
+        });
+        ElevationData elevation = new ElevationData(folder.getRoot(), 4);
+
+        assertEquals(0, elevation.getHeight(47, 19), 1e-3);
+        assertEquals(1200 + 2400, elevation.getHeight(47.999999, 19.999999), 0.01);
+        double sample = 1.0 / (SIZE - 1);
+        assertEquals(10.5 + 2 * 20.25, elevation.getHeight(47 + 20.25 * sample, 19 + 10.5 * sample), 1e-3);
+        assertTrue(Float.isNaN(elevation.getHeight(46.5, 19.5)));
+    }
+
+    @Test
+    public void getHeight_isNaNInVoids() throws Exception {
+        writeHgt(folder.getRoot(), 47, 19, new Terrain() {
+            @Override
+            public short height(int row, int column) {
+                return row == 600 && column == 600 ? Short.MIN_VALUE : 100;
+            }
+        });
+        ElevationData elevation = new ElevationData(folder.getRoot(), 4);
+
+        assertTrue(Float.isNaN(elevation.getHeight(47.5, 19.5)));
+        assertEquals(100, elevation.getHeight(47.25, 19.25), 1e-3);
+    }
+
+    @Test
+    public void getCell_keepsABoundedNumberOfFilesMapped() throws Exception {
+        for (int west = 16; west < 23; west++) {
+            writeHgt(folder.getRoot(), 47, west, flat(100));
+        }
+        ElevationData elevation = new ElevationData(folder.getRoot(), 2);
+
+        ElevationData.Cell first = elevation.getCell(47, 16);
+        assertSame(first, elevation.getCell(47, 16));
+        for (int west = 17; west < 23; west++) {
+            assertNotNull(elevation.getCell(47, west));
+        }
+        assertNotSame("mapped again after it was dropped", first, elevation.getCell(47, 16));
+        assertNull(elevation.getCell(48, 16));
+    }
+
+    @Test
+    public void getKey_changesWithTheFiles() throws Exception {
+        writeHgt(folder.getRoot(), 47, 19, flat(100));
+        String key = new ElevationData(folder.getRoot(), 2).getKey();
+        assertEquals(key, new ElevationData(folder.getRoot(), 2).getKey());
+
+        writeHgt(folder.getRoot(), 46, 19, flat(100));
+        assertNotEquals(key, new ElevationData(folder.getRoot(), 2).getKey());
+    }
+
+    @Test
+    public void shade_darkensSlopesFacingAwayFromTheLight() throws Exception {
+        // a ridge running north to south through the middle of the cell
+        writeHgt(folder.getRoot(), 47, 19, new Terrain() {
+            @Override
+            public short height(int row, int column) {
+                // about 25 degrees steep
+                return (short) (10000 - Math.abs(column - 600) * 30);
+            }
+        });
+        Hillshader hillshader = new Hillshader(new ElevationData(folder.getRoot(), 4), 1);
+        byte zoomLevel = 12;
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, 256);
+        Tile tile = new Tile(MercatorProjection.pixelXToTileX(
+                MercatorProjection.longitudeToPixelX(19.5, mapSize), zoomLevel, 256),
+                MercatorProjection.pixelYToTileY(MercatorProjection.latitudeToPixelY(47.5, mapSize), zoomLevel, 256),
+                zoomLevel, 256);
+        int ridge = (int) (MercatorProjection.longitudeToPixelX(19.5, mapSize) - tile.tileX * 256L);
+        int[] pixels = new int[256 * 256];
+
+        assertTrue(hillshader.shade(tile, pixels));
+
+        int west = pixels[128 * 256 + Math.max(0, ridge - 20)];
+        int east = pixels[128 * 256 + Math.min(255, ridge + 20)];
+        // lit from the north west: the western slope is lightened, the eastern one darkened
+        assertEquals(0xFFFFFF, west & 0xFFFFFF);
+        assertTrue(Integer.toHexString(west), west >>> 24 > 0);
+        assertEquals(0, east & 0xFFFFFF);
+        assertTrue(Integer.toHexString(east), east >>> 24 > west >>> 24);
+    }
+
+    @Test
+    public void shade_leavesFlatGroundAndMissingDataTransparent() throws Exception {
+        writeHgt(folder.getRoot(), 47, 19, flat(120));
+        Hillshader hillshader = new Hillshader(new ElevationData(folder.getRoot(), 4), 2);
+        int[] pixels = new int[256 * 256];
+
+        // inside the cell, and far away from it
+        assertTrue(hillshader.shade(tileAt(47.5, 19.5, (byte) 13), pixels));
+        for (int pixel : pixels) {
+            assertEquals(0, pixel >>> 24);
+        }
+        assertFalse(hillshader.shade(tileAt(40, 10, (byte) 13), pixels));
+        for (int pixel : pixels) {
+            assertEquals(0, pixel);
+        }
+    }
+
+    static Tile tileAt(double latitude, double longitude, byte zoomLevel) {
+        return new Tile(MercatorProjection.longitudeToTileX(longitude, zoomLevel),
+                MercatorProjection.latitudeToTileY(latitude, zoomLevel), zoomLevel, 256);
+    }
+
+    interface Terrain {
+        short height(int row, int column);
+    }
+
+    private static Terrain flat(final int height) {
+        return new Terrain() {
+            @Override
+            public short height(int row, int column) {
+                return (short) height;
+            }
+        };
+    }
+
+    static void writeHgt(File directory, int south, int west, Terrain terrain) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, ElevationData.fileName(south, west)))));
+        try {
+            for (int row = 0; row < SIZE; row++) {
+                for (int column = 0; column < SIZE; column++) {
+                    out.writeShort(terrain.height(row, column));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
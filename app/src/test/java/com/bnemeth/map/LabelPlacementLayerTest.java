@@ -0,0 +1,232 @@
+package com.bnemeth.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Display;
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.mapelements.SymbolContainer;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.layer.labels.LabelStore;
+import org.mapsforge.map.model.DisplayModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LabelPlacementLayerTest {
+
+    private static final int TILE_SIZE = 256;
+    private static final int VIEW_SIZE = 768;
+
+    /**
+     * Hands out the labels whose anchor lies in the requested tiles, like a TileBasedLabelStore
+     * with every tile rendered.
+     */
+    private static class FakeLabelStore implements LabelStore {
+        final List<MapElementContainer> items = new ArrayList<>();
+        int version;
+        int requests;
+
+        @Override
+        public void clear() {
+            items.clear();
+            version++;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public List<MapElementContainer> getVisibleItems(Tile upperLeft, Tile lowerRight) {
+            requests++;
+            List<MapElementContainer> visible = new ArrayList<>();
+            for (MapElementContainer item : items) {
+                Point point = item.getPoint();
+                long tileX = (long) Math.floor(point.x / TILE_SIZE);
+                long tileY = (long) Math.floor(point.y / TILE_SIZE);
+                if (tileX >= upperLeft.tileX && tileX <= lowerRight.tileX && tileY >= upperLeft.tileY
+                        && tileY <= lowerRight.tileY) {
+                    visible.add(item);
+                }
+            }
+            return visible;
+        }
+
+        void add(MapElementContainer item) {
+            items.add(item);
+            version++;
+        }
+    }
+
+    private final FakeLabelStore store = new FakeLabelStore();
+    private final Metrics metrics = new Metrics();
+    private LabelPlacementLayer layer;
+    private Bitmap bitmap;
+    private Bitmap symbol;
+    private Canvas canvas;
+
+    @Before
+    public void setUp() {
+        layer = new LabelPlacementLayer(AwtGraphicFactory.INSTANCE, store);
+        layer.setDisplayModel(new DisplayModel());
+        layer.setMetrics(metrics);
+        bitmap = AwtGraphicFactory.INSTANCE.createBitmap(VIEW_SIZE, VIEW_SIZE);
+        canvas = AwtGraphicFactory.INSTANCE.createCanvas();
+        canvas.setBitmap(bitmap);
+        symbol = AwtGraphicFactory.INSTANCE.createBitmap(40, 20);
+    }
+
+    @After
+    public void tearDown() {
+        canvas.destroy();
+        bitmap.decrementRefCount();
+        symbol.decrementRefCount();
+    }
+
+    @Test
+    public void draw_placesByPriorityWithoutCollisions() {
+        MapElementContainer low = label(1000, 1000, 1);
+        MapElementContainer high = label(1020, 1005, 5);
+        MapElementContainer apart = label(1100, 1000, 1);
+        MapElementContainer always = new SymbolContainer(new Point(1000, 1000), Display.ALWAYS, 0, symbol);
+        store.add(low);
+        store.add(high);
+        store.add(apart);
+        store.add(always);
+        // the same label stored with the neighbouring tile
+        store.add(label(1020, 1005, 5));
+
+        draw(1000, 1000, (byte) 14);
+
+        LabelPlacementLayer.Placement placement = layer.getPlacement((byte) 14);
+        assertTrue(placement.isPlaced(high));
+        assertFalse(placement.isPlaced(low));
+        assertTrue(placement.isPlaced(apart));
+        assertTrue(placement.isPlaced(always));
+        assertEquals(3, placement.placed.size());
+        assertEquals(4, metrics.counter("labels.solved").get());
+    }
+
+    @Test
+    public void draw_solvesOnlyNewlyExposedLabelsAndKeepsPlacedOnes() {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            store.add(label(random.nextInt(16 * TILE_SIZE), random.nextInt(4 * TILE_SIZE), random.nextInt(10)));
+        }
+        draw(VIEW_SIZE / 2, VIEW_SIZE / 2, (byte) 14);
+        LabelPlacementLayer.Placement placement = layer.getPlacement((byte) 14);
+        List<MapElementContainer> placedBefore = new ArrayList<>();
+        for (MapElementContainer item : store.items) {
+            if (placement.isPlaced(item)) {
+                placedBefore.add(item);
+            }
+        }
+        long solvedBefore = metrics.counter("labels.solved").get();
+
+        // the same view again, nothing to solve
+        int requests = store.requests;
+        draw(VIEW_SIZE / 2, VIEW_SIZE / 2, (byte) 14);
+        assertEquals(requests, store.requests);
+        assertEquals(solvedBefore, metrics.counter("labels.solved").get());
+
+        // one tile to the east exposes a column of tiles
+        draw(VIEW_SIZE / 2 + TILE_SIZE, VIEW_SIZE / 2, (byte) 14);
+        long solvedAfter = metrics.counter("labels.solved").get();
+        assertTrue(solvedAfter > solvedBefore);
+        assertTrue(solvedAfter - solvedBefore < solvedBefore);
+        for (MapElementContainer item : placedBefore) {
+            assertTrue("stays placed: " + item, placement.isPlaced(item));
+        }
+        assertNoClashes(placement);
+        assertEquals(3, metrics.histogram(Metrics.LABEL_PLACEMENT).getCount());
+    }
+
+    @Test
+    public void draw_keepsThePlacementsOfAdjacentZoomLevels() {
+        store.add(label(1000, 1000, 1));
+        draw(1000, 1000, (byte) 14);
+        LabelPlacementLayer.Placement placement = layer.getPlacement((byte) 14);
+
+        draw(2000, 2000, (byte) 15);
+        draw(1000, 1000, (byte) 14);
+        assertSame(placement, layer.getPlacement((byte) 14));
+        assertEquals(1, metrics.counter("labels.solved").get());
+
+        draw(4000, 4000, (byte) 16);
+        draw(8000, 8000, (byte) 17);
+        assertFalse(layer.hasPlacement((byte) 15));
+        assertTrue(layer.hasPlacement((byte) 14));
+    }
+
+    @Test
+    public void draw_forgetsLabelsFarFromTheView() {
+        for (int i = 0; i < LabelPlacementLayer.MAX_LABELS + 100; i++) {
+            // a long row of labels that do not touch
+            store.add(label(50 * i, 100, 1));
+        }
+        int last = 50 * (LabelPlacementLayer.MAX_LABELS + 99);
+        for (int x = VIEW_SIZE / 2; x < last; x += VIEW_SIZE) {
+            draw(x, VIEW_SIZE / 2, (byte) 14);
+        }
+        draw(last, VIEW_SIZE / 2, (byte) 14);
+
+        LabelPlacementLayer.Placement placement = layer.getPlacement((byte) 14);
+        assertTrue(placement.placed.size() + " labels", placement.placed.size() < LabelPlacementLayer.MAX_LABELS);
+        assertFalse(placement.isPlaced(store.items.get(0)));
+        assertTrue(placement.isPlaced(store.items.get(store.items.size() - 1)));
+    }
+
+    @Test
+    public void findCells_coversTheBoundaryOfTheLabel() {
+        int[] cells = new int[4];
+        // 40x20 around the anchor, crossing a cell border
+        assertTrue(LabelPlacementLayer.findCells(label(130, 70, 1), cells));
+        assertArrayEquals(new int[]{1, 0, 2, 1}, cells);
+
+        assertTrue(LabelPlacementLayer.findCells(label(-100, 32, 1), cells));
+        assertArrayEquals(new int[]{-2, 0, -2, 0}, cells);
+    }
+
+    private MapElementContainer label(double x, double y, int priority) {
+        return new SymbolContainer(new Point(x, y), Display.IFSPACE, priority, symbol);
+    }
+
+    private void assertNoClashes(LabelPlacementLayer.Placement placement) {
+        List<MapElementContainer> placed = new ArrayList<>();
+        for (MapElementContainer item : store.items) {
+            if (placement.isPlaced(item)) {
+                placed.add(item);
+            }
+        }
+        for (int i = 0; i < placed.size(); i++) {
+            for (int j = i + 1; j < placed.size(); j++) {
+                assertFalse(placed.get(i) + " " + placed.get(j), placed.get(i).clashesWith(placed.get(j)));
+            }
+        }
+    }
+
+    private void draw(double centerX, double centerY, byte zoomLevel) {
+        BoundingBox view = view(centerX, centerY, zoomLevel);
+        layer.draw(view, zoomLevel, canvas, new Point(centerX - VIEW_SIZE / 2, centerY - VIEW_SIZE / 2));
+    }
+
+    private static BoundingBox view(double centerX, double centerY, byte zoomLevel) {
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, TILE_SIZE);
+        double half = VIEW_SIZE / 2 - 1;
+        return new BoundingBox(MercatorProjection.pixelYToLatitude(centerY + half, mapSize),
+                MercatorProjection.pixelXToLongitude(centerX - half, mapSize),
+                MercatorProjection.pixelYToLatitude(centerY - half, mapSize),
+                MercatorProjection.pixelXToLongitude(centerX + half, mapSize));
+    }
+}
@@ -0,0 +1,187 @@
+package com.bnemeth.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class MapExporterTest {
+
+    private static final GraphicFactory GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
+    private static final BoundingBox AREA = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+    private static final int TILE_SIZE = 256;
+
+    private static final MapExporter.PixelReader AWT_PIXELS = new MapExporter.PixelReader() {
+        @Override
+        public void getPixels(Bitmap bitmap, int[] pixels) {
+            AwtGraphicFactory.getBitmap(bitmap).getRGB(0, 0, bitmap.getWidth(), bitmap.getHeight(), pixels, 0,
+                    bitmap.getWidth());
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DisplayModel displayModel;
+    private RenderThemeFuture renderThemeFuture;
+
+    @Before
+    public void setUp() throws Exception {
+        displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        // areas, lines and captions, symbols would be decoded differently on every platform
+        File theme = folder.newFile("theme.xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(theme), "UTF-8");
+        try {
+            writer.write("<rendertheme xmlns=\"http://mapsforge.org/renderTheme\" version=\"5\" map-background=\"#f8f4f0\">"
+                    + "<rule e=\"way\" k=\"natural\" v=\"water\"><area fill=\"#b5d0d0\"/></rule>"
+                    + "<rule e=\"way\" k=\"highway\" v=\"*\"><line stroke=\"#e892a2\" stroke-width=\"2\"/></rule>"
+                    + "<rule e=\"node\" k=\"place\" v=\"*\"><caption k=\"name\" font-size=\"14\" fill=\"#000000\"/></rule>"
+                    + "</rendertheme>");
+        } finally {
+            writer.close();
+        }
+        renderThemeFuture = new RenderThemeFuture(GRAPHIC_FACTORY, new ExternalRenderTheme(theme), displayModel);
+        renderThemeFuture.run();
+    }
+
+    @After
+    public void tearDown() {
+        renderThemeFuture.decrementRefCount();
+    }
+
+    @Test
+    public void pngWriter_writesWhatImageIoReads() throws Exception {
+        // noise does not compress, so the data spans several chunks
+        int width = 300;
+        int height = 200;
+        Random random = new Random(1);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngWriter png = new PngWriter(out, width, height, Deflater.BEST_SPEED);
+        for (int y = 0; y < height; y++) {
+            png.writeRow(pixels, y * width);
+        }
+        png.finish();
+
+        assertTrue(out.size() > 2 * PngWriter.CHUNK_SIZE);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(pixels[y * width + x], image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void zoomLevelFor_reachesTheWidth() {
+        byte zoomLevel = MapExporter.zoomLevelFor(AREA, 10000, TILE_SIZE);
+
+        assertTrue(MapExporter.getPixelBounds(AREA, zoomLevel, TILE_SIZE)[2] >= 10000);
+        assertTrue(MapExporter.getPixelBounds(AREA, (byte) (zoomLevel - 1), TILE_SIZE)[2] < 10000);
+    }
+
+    @Test
+    public void exportPng_drawsTheAreaTheSameWithAnyNumberOfThreads() throws Exception {
+        File mapFile = new TestMapFile(AREA)
+                .way(square(47.5, 19.05, 0.01), "natural=water")
+                .way(new double[]{47.48, 18.96, 47.49, 19.14}, "highway=primary")
+                .poi(47.48, 19.0, "place=suburb", "name=Kelenföld")
+                .poi(47.52, 19.1, "place=suburb", "name=Zugló")
+                .write(folder.newFile("test.map"));
+        BoundingBox area = new BoundingBox(47.47, 18.98, 47.53, 19.12);
+        byte zoomLevel = 13;
+        long[] bounds = MapExporter.getPixelBounds(area, zoomLevel, TILE_SIZE);
+        final List<Integer> progress = new ArrayList<>();
+
+        BufferedImage single = export(mapFile, area, zoomLevel, 1, null);
+        BufferedImage parallel = export(mapFile, area, zoomLevel, 4, new MapExporter.ProgressListener() {
+            @Override
+            public void onProgress(int tilesWritten, int tilesTotal) {
+                progress.add(tilesWritten);
+                assertTrue(tilesWritten <= tilesTotal);
+            }
+        });
+
+        assertEquals(bounds[2], parallel.getWidth());
+        assertEquals(bounds[3], parallel.getHeight());
+        int differing = 0;
+        for (int y = 0; y < parallel.getHeight(); y++) {
+            for (int x = 0; x < parallel.getWidth(); x++) {
+                if (single.getRGB(x, y) != parallel.getRGB(x, y)) {
+                    differing++;
+                }
+            }
+        }
+        assertEquals(0, differing);
+        int rows = (int) ((bounds[1] + bounds[3] - 1) / TILE_SIZE - bounds[1] / TILE_SIZE + 1);
+        assertEquals(rows, progress.size());
+
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, TILE_SIZE);
+        int lakeX = (int) (MercatorProjection.longitudeToPixelX(19.05, mapSize) - bounds[0]);
+        int lakeY = (int) (MercatorProjection.latitudeToPixelY(47.5, mapSize) - bounds[1]);
+        assertEquals(0xffb5d0d0, parallel.getRGB(lakeX, lakeY));
+        assertEquals(0xfff8f4f0, parallel.getRGB(0, parallel.getHeight() - 1));
+        // the captions are drawn, in black
+        int black = 0;
+        for (int y = 0; y < parallel.getHeight(); y++) {
+            for (int x = 0; x < parallel.getWidth(); x++) {
+                if (parallel.getRGB(x, y) == 0xff000000) {
+                    black++;
+                }
+            }
+        }
+        assertTrue(black + " black pixels", black > 20);
+    }
+
+    private BufferedImage export(File mapFile, BoundingBox area, byte zoomLevel, int threads,
+                                 MapExporter.ProgressListener progressListener) throws Exception {
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new MapExporter(mapDataStore, renderThemeFuture, displayModel, GRAPHIC_FACTORY, AWT_PIXELS, threads)
+                    .exportPng(area, zoomLevel, out, progressListener);
+        } finally {
+            mapDataStore.close();
+        }
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static double[] square(double latitude, double longitude, double radius) {
+        return new double[]{latitude - radius, longitude - radius, latitude + radius, longitude - radius,
+                latitude + radius, longitude + radius, latitude - radius, longitude + radius,
+                latitude - radius, longitude - radius};
+    }
+}
@@ -0,0 +1,141 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class MapExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void extractSingle_writesFirstEntry() throws IOException {
+        byte[] content = randomBytes(3 * MapExtractor.BUFFER_SIZE + 17);
+        File zip = createZip(folder.newFile("map.zip"), "hungary_openmaps.map", content);
+        File target = new File(folder.getRoot(), "hungary.map");
+
+        final long[] lastProgress = new long[2];
+        new MapExtractor(new MapExtractor.ProgressListener() {
+            @Override
+            public void onProgress(long bytesWritten, long bytesTotal) {
+                lastProgress[0] = bytesWritten;
+                lastProgress[1] = bytesTotal;
+            }
+        }).extractSingle(zip, target);
+
+        assertArrayEquals(content, readFile(target));
+        assertFalse(new File(target.getPath() + MapExtractor.TEMP_SUFFIX).exists());
+        assertEquals(content.length, lastProgress[0]);
+        assertEquals(content.length, lastProgress[1]);
+    }
+
+    @Test
+    public void extractSingle_keepsOldFileOnCorruptArchive() throws IOException {
+        byte[] content = randomBytes(64 * 1024);
+        File zip = createZip(folder.newFile("map.zip"), "hungary.map", content);
+        corruptStoredEntry(zip);
+
+        File target = folder.newFile("hungary.map");
+        byte[] old = "old map".getBytes("UTF-8");
+        writeFile(target, old);
+
+        try {
+            new MapExtractor(null).extractSingle(zip, target);
+            fail("corrupt entry extracted");
+        } catch (ZipException expected) {
+        }
+
+        assertArrayEquals(old, readFile(target));
+        assertFalse(new File(target.getPath() + MapExtractor.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void extractAll_rejectsEntriesOutsideTarget() throws IOException {
+        File zip = createZip(folder.newFile("theme.zip"), "../evil.xml", new byte[10]);
+        File targetDir = folder.newFolder("files");
+
+        try {
+            new MapExtractor(null).extractAll(zip, targetDir);
+            fail("entry outside of target extracted");
+        } catch (ZipException expected) {
+        }
+        assertFalse(new File(folder.getRoot(), "evil.xml").exists());
+    }
+
+    private static File createZip(File zip, String entryName, byte[] content) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            ZipEntry entry = new ZipEntry(entryName);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(content);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    /** Flips a byte in the middle of the first (stored) entry, so only the CRC check can notice. */
+    private static void corruptStoredEntry(File zip) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zip, "rw");
+        try {
+            long position = file.length() / 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.bnemeth.map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class MapUpdaterTest {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private FileServer files;
+
+    @Before
+    public void startServer() throws IOException {
+        files = new FileServer(folder.newFolder("server"));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", files);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void update_fetchesOnlyChangedBlocks() throws Exception {
+        Random random = new Random(1);
+        byte[] oldMap = randomBytes(random, 2 * 1024 * 1024 + 1234);
+        byte[] newMap = edit(random, oldMap);
+        File mapFile = write(folder.newFile("hungary.map"), oldMap);
+        publish("hungary.map", newMap);
+
+        MapUpdater.Result result = new MapUpdater(null).update(url("hungary.map"), url("hungary.map.blocks"), mapFile);
+
+        assertArrayEquals(newMap, readAll(mapFile));
+        assertFalse(new File(mapFile.getPath() + MapUpdater.TEMP_SUFFIX).exists());
+        assertEquals(files.bytesSent.get(), result.bytesDownloaded);
+        // three edits touch a few blocks each
+        assertTrue(result.toString(), result.bytesDownloaded < newMap.length / 10);
+        assertTrue(result.toString(), result.bytesReused > newMap.length * 8 / 10);
+    }
+
+    @Test
+    public void update_isFullDownloadWithoutOldFile() throws Exception {
+        byte[] newMap = randomBytes(new Random(2), 300000);
+        publish("hungary.map", newMap);
+        File mapFile = new File(folder.getRoot(), "hungary.map");
+
+        MapUpdater.Result result = new MapUpdater(null).update(url("hungary.map"), url("hungary.map.blocks"), mapFile);
+
+        assertArrayEquals(newMap, readAll(mapFile));
+        assertEquals(0, result.bytesReused);
+    }
+
+    @Test
+    public void update_resumesAfterInterruption() throws Exception {
+        Random random = new Random(3);
+        byte[] oldMap = randomBytes(random, 1024 * 1024);
+        byte[] newMap = randomBytes(random, 1024 * 1024);
+        File mapFile = write(folder.newFile("hungary.map"), oldMap);
+        publish("hungary.map", newMap);
+
+        files.failAfterBytes = 300 * 1024;
+        MapUpdater updater = new MapUpdater(null);
+        updater.attempts = 1;
+        try {
+            updater.update(url("hungary.map"), url("hungary.map.blocks"), mapFile);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals("the old map stays until the new one is complete", oldMap, readAll(mapFile));
+        long firstAttempt = files.bytesSent.get();
+
+        files.failAfterBytes = -1;
+        MapUpdater.Result result = updater.update(url("hungary.map"), url("hungary.map.blocks"), mapFile);
+
+        assertArrayEquals(newMap, readAll(mapFile));
+        // only a partly received block is fetched twice
+        assertTrue(firstAttempt + " + " + result.bytesDownloaded,
+                firstAttempt + result.bytesDownloaded < newMap.length + 2 * BLOCK_SIZE + 4096);
+    }
+
+    @Test
+    public void update_keepsOldFileIfDataDoesNotMatchTheIndex() throws Exception {
+        Random random = new Random(4);
+        byte[] oldMap = randomBytes(random, 200000);
+        byte[] newMap = edit(random, oldMap);
+        File mapFile = write(folder.newFile("hungary.map"), oldMap);
+        publish("hungary.map", newMap);
+        // the map changed on the server after its index was written
+        write(new File(files.root, "hungary.map"), randomBytes(random, newMap.length));
+
+        MapUpdater updater = new MapUpdater(null);
+        try {
+            updater.update(url("hungary.map"), url("hungary.map.blocks"), mapFile);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("does not match"));
+        }
+        assertArrayEquals(oldMap, readAll(mapFile));
+    }
+
+    @Test
+    public void download_resumesPartialFile() throws Exception {
+        byte[] archive = randomBytes(new Random(5), 500000);
+        write(new File(files.root, "hungary.zip"), archive);
+        File target = new File(folder.getRoot(), "hungary.zip");
+
+        files.failAfterBytes = 200000;
+        MapUpdater updater = new MapUpdater(null);
+        updater.attempts = 1;
+        try {
+            updater.download(url("hungary.zip"), target);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+
+        files.failAfterBytes = -1;
+        MapUpdater.Result result = updater.download(url("hungary.zip"), target);
+
+        assertArrayEquals(archive, readAll(target));
+        assertEquals(archive.length - 200000, result.bytesDownloaded);
+    }
+
+    @Test
+    public void download_restartsWhenFileChangedOnServer() throws Exception {
+        Random random = new Random(6);
+        write(new File(files.root, "hungary.zip"), randomBytes(random, 100000));
+        File target = new File(folder.getRoot(), "hungary.zip");
+        files.failAfterBytes = 50000;
+        MapUpdater updater = new MapUpdater(null);
+        updater.attempts = 1;
+        try {
+            updater.download(url("hungary.zip"), target);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        byte[] changed = randomBytes(random, 120000);
+        write(new File(files.root, "hungary.zip"), changed);
+        new File(files.root, "hungary.zip").setLastModified(System.currentTimeMillis() + 60000);
+        files.failAfterBytes = -1;
+        updater.download(url("hungary.zip"), target);
+
+        assertArrayEquals(changed, readAll(target));
+    }
+
+    @Test
+    public void downloadIfModified_skipsTheArchiveUntilItChanges() throws Exception {
+        Random random = new Random(7);
+        byte[] archive = randomBytes(random, 100000);
+        write(new File(files.root, "hungary.zip"), archive);
+        File target = new File(folder.getRoot(), "hungary.zip");
+        File state = new File(folder.getRoot(), "hungary.zip.state");
+        MapUpdater updater = new MapUpdater(null);
+
+        MapUpdater.Result result = updater.downloadIfModified(url("hungary.zip"), target, state);
+        assertEquals(archive.length, result.bytesDownloaded);
+        assertArrayEquals(archive, readAll(target));
+        // extracted and deleted, the state still tells which version it was
+        assertTrue(target.delete());
+        files.bytesSent.set(0);
+
+        assertNull(updater.downloadIfModified(url("hungary.zip"), target, state));
+        assertEquals(0, files.bytesSent.get());
+        assertFalse(target.exists());
+        files.etags = false;
+        assertNull(updater.downloadIfModified(url("hungary.zip"), target, state));
+        assertEquals(0, files.bytesSent.get());
+
+        byte[] changed = randomBytes(random, 120000);
+        write(new File(files.root, "hungary.zip"), changed);
+        new File(files.root, "hungary.zip").setLastModified(System.currentTimeMillis() + 60000);
+        result = updater.downloadIfModified(url("hungary.zip"), target, state);
+        assertEquals(changed.length, result.bytesDownloaded);
+        assertArrayEquals(changed, readAll(target));
+    }
+
+    /**
+     * Bytes transferred and wall time of an update against a full download of a map with a few
+     * edits.
+     * Run with: ./gradlew testDebugUnitTest -Pbenchmark --tests '*MapUpdaterTest*'
+     */
+    @Test
+    public void benchmark_updateVersusFullDownload() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        int megabytes = Integer.getInteger("benchmark.updateMegabytes", 64);
+        Random random = new Random(7);
+        byte[] oldMap = randomBytes(random, megabytes * 1024 * 1024);
+        byte[] newMap = edit(random, oldMap);
+        File mapFile = write(folder.newFile("hungary.map"), oldMap);
+        File indexFile = new File(files.root, "hungary.map.blocks");
+        write(new File(files.root, "hungary.map"), newMap);
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            MapUpdater.writeBlockIndex(new File(files.root, "hungary.map"), MapUpdater.DEFAULT_BLOCK_SIZE, out);
+        } finally {
+            out.close();
+        }
+
+        MapUpdater.Result full = new MapUpdater(null).download(url("hungary.map"),
+                new File(folder.getRoot(), "full.map"));
+        MapUpdater.Result delta = new MapUpdater(null).update(url("hungary.map"), url("hungary.map.blocks"),
+                mapFile);
+
+        assertArrayEquals(newMap, readAll(mapFile));
+        System.out.println("Full download: " + full);
+        System.out.println("Update:        " + delta + ", block index " + indexFile.length() / 1024 + " KB");
+    }
+
+    /**
+     * Inserts, overwrites and deletes a few bytes, like a map update with a few changed tiles.
+     */
+    private static byte[] edit(Random random, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int third = data.length / 3;
+        out.write(data, 0, third);
+        out.write(randomBytes(random, 3000), 0, 3000);
+        out.write(data, third, third);
+        out.write(randomBytes(random, 500), 0, 500);
+        out.write(data, 2 * third + 500, data.length - 2 * third - 1500);
+        return out.toByteArray();
+    }
+
+    private void publish(String name, byte[] data) throws IOException {
+        File file = write(new File(files.root, name), data);
+        OutputStream out = new FileOutputStream(new File(files.root, name + ".blocks"));
+        try {
+            MapUpdater.writeBlockIndex(file, BLOCK_SIZE, out);
+        } finally {
+            out.close();
+        }
+        files.bytesSent.set(0);
+    }
+
+    private URL url(String name) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/" + name);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serves the files of a directory with range requests, ETag, Last-Modified, If-Range and the
+     * conditional requests, and can drop the connection after some bytes to simulate a lost
+     * network.
+     */
+    private static class FileServer implements HttpHandler {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+        final File root;
+        final AtomicLong bytesSent = new AtomicLong();
+        volatile long failAfterBytes = -1;
+        volatile boolean etags = true;
+
+        FileServer(File root) {
+            this.root = root;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            File file = new File(root, exchange.getRequestURI().getPath().substring(1));
+            if (!file.isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            byte[] data = readAll(file);
+            String lastModified = String.valueOf(file.lastModified() / 1000);
+            String etag = etags ? "\"" + lastModified + "-" + data.length + "\"" : null;
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if (etag != null && ifNoneMatch != null ? ifNoneMatch.equals(etag) : lastModified.equals(ifModifiedSince)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            int from = 0;
+            int to = data.length;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            Matcher matcher = range != null ? RANGE.matcher(range) : null;
+            if (matcher != null && matcher.matches() && (ifRange == null || ifRange.equals(lastModified) || ifRange.equals(etag))) {
+                from = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    to = Math.min(to, Integer.parseInt(matcher.group(2)) + 1);
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + data.length);
+            }
+            exchange.getResponseHeaders().set("Last-Modified", lastModified);
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            exchange.sendResponseHeaders(status, to - from);
+
+            OutputStream out = exchange.getResponseBody();
+            try {
+                for (int position = from; position < to; ) {
+                    int length = Math.min(8192, to - position);
+                    long fail = failAfterBytes;
+                    if (fail >= 0 && bytesSent.get() + length > fail) {
+                        length = (int) Math.max(0, fail - bytesSent.get());
+                        out.write(data, position, length);
+                        bytesSent.addAndGet(length);
+                        out.flush();
+                        // leaves the response short, the client sees a premature end
+                        throw new IOException("connection dropped");
+                    }
+                    out.write(data, position, length);
+                    bytesSent.addAndGet(length);
+                    position += length;
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MappedFilesTest {
+
+    private static final int MAGIC = 0x54455354; // "TEST"
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void map_positionsBehindKey() throws Exception {
+        File file = write(header(MAGIC, 3, "key"), new byte[]{42});
+
+        MappedByteBuffer buffer = MappedFiles.map(file, MAGIC, 3, "key");
+        assertNotNull(buffer);
+        assertEquals(1, buffer.remaining());
+        assertEquals(42, buffer.get());
+    }
+
+    @Test
+    public void map_rejectsOtherFiles() throws Exception {
+        File file = write(header(MAGIC, 3, "key"));
+
+        assertNull(MappedFiles.map(new File(folder.getRoot(), "missing.bin"), MAGIC, 3, "key"));
+        assertNull(MappedFiles.map(file, MAGIC + 1, 3, "key"));
+        assertNull(MappedFiles.map(file, MAGIC, 4, "key"));
+        assertNull(MappedFiles.map(file, MAGIC, 3, "other"));
+        assertNull(MappedFiles.map(write(new byte[0]), MAGIC, 3, "key"));
+    }
+
+    @Test
+    public void map_rejectsCutOffHeader() throws Exception {
+        byte[] header = header(MAGIC, 3, "a longer key");
+        for (int length = 0; length < header.length; length++) {
+            assertNull(MappedFiles.map(write(Arrays.copyOf(header, length)), MAGIC, 3, "a longer key"));
+        }
+        assertNotNull(MappedFiles.map(write(header), MAGIC, 3, "a longer key"));
+    }
+
+    private static byte[] header(int magic, int version, String key) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] keyBytes = key.getBytes(MappedFiles.UTF_8);
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        return bytes.toByteArray();
+    }
+
+    private File write(byte[]... parts) throws Exception {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
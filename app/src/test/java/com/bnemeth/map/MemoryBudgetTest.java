@@ -0,0 +1,167 @@
+package com.bnemeth.map;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.layer.queue.Job;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    private static final int TILE_SIZE = 256;
+    private static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    @Test
+    public void trim_shrinksEveryConsumerToTheShareOfTheLevel() {
+        MemoryTileCache tiles = new MemoryTileCache(20 * TILE_BYTES, TILE_SIZE);
+        FakeConsumer mapData = new FakeConsumer("map data");
+        MemoryBudget budget = new MemoryBudget();
+        budget.register(tiles, 20 * TILE_BYTES);
+        budget.register(mapData, 1000);
+        fill(tiles, 0, 20);
+        mapData.fill();
+
+        int[] levels = {ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL,
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND};
+        int[] shares = {75, 50, 25, 0};
+        for (int i = 0; i < levels.length; i++) {
+            assertTrue(budget.trim(levels[i]));
+            assertEquals(20 * TILE_BYTES * shares[i] / 100, tiles.getStats().getBytes());
+            assertEquals(1000 * shares[i] / 100, mapData.getStats().getBytes());
+            // what the app uses while under pressure stays within the budget
+            fill(tiles, 100, 10);
+            assertTrue(tiles.getStats().getBytes() <= 20 * TILE_BYTES * shares[i] / 100);
+            assertEquals(budget.getBytes(), tiles.getStats().getBytes() + mapData.getStats().getBytes());
+        }
+        assertEquals(0, budget.getBytes());
+        assertEquals(2, budget.getUsage().size());
+    }
+
+    @Test
+    public void trim_neverGrowsTheBudgets() {
+        FakeConsumer consumer = new FakeConsumer("consumer");
+        MemoryBudget budget = new MemoryBudget();
+        budget.register(consumer, 1000);
+
+        assertTrue(budget.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertFalse(budget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertFalse(budget.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+
+        assertEquals(250, consumer.getStats().getCapacityBytes());
+        assertTrue(budget.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        assertEquals(0, consumer.getStats().getCapacityBytes());
+    }
+
+    @Test
+    public void relax_growsTheBudgetsBackOneStepAtATime() {
+        MemoryTileCache tiles = new MemoryTileCache(20 * TILE_BYTES, TILE_SIZE);
+        MemoryBudget budget = new MemoryBudget();
+        budget.register(tiles, 20 * TILE_BYTES);
+        fill(tiles, 0, 20);
+        budget.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertTrue(budget.relax());
+        assertEquals(20 * TILE_BYTES / 4, tiles.getStats().getCapacityBytes());
+        // nothing is loaded back, the cache fills as it is used
+        assertEquals(0, tiles.getStats().getBytes());
+        assertTrue(budget.relax());
+        assertTrue(budget.relax());
+        assertFalse(budget.relax());
+        assertFalse(budget.relax());
+        assertEquals(20 * TILE_BYTES, tiles.getStats().getCapacityBytes());
+        fill(tiles, 0, 20);
+        assertEquals(20 * TILE_BYTES, tiles.getStats().getBytes());
+    }
+
+    @Test
+    public void trim_keepsServingTheWorkingSet() {
+        MemoryTileCache tiles = new MemoryTileCache(20 * TILE_BYTES, TILE_SIZE);
+        MemoryBudget budget = new MemoryBudget();
+        budget.register(tiles, 20 * TILE_BYTES);
+        fill(tiles, 0, 20);
+        Set<Job> workingSet = new HashSet<>();
+        for (int i = 5; i < 10; i++) {
+            workingSet.add(job(i));
+        }
+        tiles.setWorkingSet(workingSet);
+
+        budget.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(5 * TILE_BYTES, tiles.getStats().getBytes());
+        for (Job job : workingSet) {
+            TileBitmap bitmap = tiles.getImmediately(job);
+            assertNotNull(bitmap);
+            bitmap.decrementRefCount();
+        }
+        // the map moved: the new tiles on screen are kept, the old ones go with the next put
+        workingSet = new HashSet<>();
+        for (int i = 8; i < 13; i++) {
+            workingSet.add(job(i));
+        }
+        tiles.setWorkingSet(workingSet);
+        fill(tiles, 10, 3);
+        assertEquals(5 * TILE_BYTES, tiles.getStats().getBytes());
+        for (Job job : workingSet) {
+            assertTrue(tiles.containsKey(job));
+        }
+        assertFalse(tiles.containsKey(job(5)));
+    }
+
+    @Test
+    public void register_underPressure_limitsTheNewConsumer() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        FakeConsumer consumer = new FakeConsumer("consumer");
+
+        budget.register(consumer, 1000);
+
+        assertEquals(500, consumer.getStats().getCapacityBytes());
+        assertTrue(budget.toString(), budget.toString().contains("consumer=0/500"));
+    }
+
+    private static void fill(MemoryTileCache cache, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            TileBitmap bitmap = AwtGraphicFactory.INSTANCE.createTileBitmap(TILE_SIZE, false);
+            cache.put(job(i), bitmap);
+            bitmap.decrementRefCount();
+        }
+    }
+
+    private static Job job(int x) {
+        return new Job(new Tile(x, 0, (byte) 10, TILE_SIZE), false);
+    }
+
+    /**
+     * A consumer that is always as full as its budget allows once filled.
+     */
+    private static class FakeConsumer implements MemoryConsumer {
+        private final TileCacheStats stats;
+
+        FakeConsumer(String name) {
+            stats = new TileCacheStats(name, 0);
+        }
+
+        void fill() {
+            stats.bytes.set(stats.capacityBytes);
+        }
+
+        @Override
+        public TileCacheStats getStats() {
+            return stats;
+        }
+
+        @Override
+        public void setCapacityBytes(long capacityBytes) {
+            stats.capacityBytes = capacityBytes;
+            stats.bytes.set(Math.min(stats.bytes.get(), capacityBytes));
+        }
+    }
+}
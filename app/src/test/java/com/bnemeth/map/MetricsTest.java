@@ -0,0 +1,140 @@
+package com.bnemeth.map;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void buckets_coverValuesWithinAQuarter() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = Metrics.Histogram.bucket(value);
+            assertTrue(value + " above its bucket", value <= Metrics.Histogram.upperBound(bucket));
+            assertTrue(value + " below its bucket", bucket == 0 || value > Metrics.Histogram.upperBound(bucket - 1));
+            assertTrue(value + " in a wide bucket", Metrics.Histogram.upperBound(bucket) - value <= value / 4);
+        }
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBound(Metrics.Histogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void histogram_reportsPercentiles() {
+        Metrics.Histogram histogram = new Metrics().histogram(Metrics.TILE_RENDER);
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        // 1 to 1000 ms
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000000L, histogram.getMax());
+        assertEquals(500500000L, histogram.getMean());
+        assertWithinAQuarter(500000000L, histogram.getPercentile(0.5));
+        assertWithinAQuarter(990000000L, histogram.getPercentile(0.99));
+        assertEquals(histogram.getMax(), histogram.getPercentile(1));
+        assertTrue(histogram.toString(), histogram.toString().startsWith("tile.render: count=1000 mean=500.50"));
+    }
+
+    @Test
+    public void histogram_countsConcurrentRecords() throws Exception {
+        final Metrics.Histogram histogram = new Metrics().histogram("draw.tiles");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999 + 3, histogram.getMax());
+    }
+
+    @Test
+    public void timer_recordsOnlyWhatWasStartedOnTheSameThread() throws Exception {
+        Metrics metrics = new Metrics();
+        final Metrics.ThreadTimer timer = metrics.timer(Metrics.TILE_RENDER);
+        assertSame(timer.getHistogram(), metrics.histogram(Metrics.TILE_RENDER));
+
+        timer.start();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                timer.stop();
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(0, timer.getHistogram().getCount());
+
+        Thread.sleep(5);
+        timer.stop();
+        timer.stop();
+        assertEquals(1, timer.getHistogram().getCount());
+        assertTrue(timer.getHistogram().getMax() >= 5000000L);
+    }
+
+    @Test
+    public void dump_listsEveryMetric() {
+        Metrics metrics = new Metrics();
+        metrics.histogram(Metrics.MAP_READ).record(2000000);
+        metrics.counter("location.fixes").add(3);
+        assertSame(metrics.counter("location.fixes"), metrics.counter("location.fixes"));
+        MemoryTileCache cache = new MemoryTileCache(1024, 256);
+        metrics.register(cache.getStats());
+        metrics.register(cache.getStats());
+
+        String[] lines = metrics.toString().split("\n");
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("map.read: count=1 mean=2.00"));
+        assertEquals("location.fixes: 3", lines[1]);
+        assertTrue(lines[2], lines[2].startsWith("memory [hits=0"));
+    }
+
+    @Test
+    public void record_doesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram(Metrics.DRAW + "tiles");
+        Metrics.ThreadTimer timer = metrics.timer(Metrics.TILE_RENDER);
+        Metrics.Counter counter = metrics.counter("location.fixes");
+        timer.start();
+        timer.stop();
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000000; i++) {
+            histogram.record(i);
+            timer.start();
+            timer.stop();
+            counter.increment();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(allocated + " bytes", allocated < 1024);
+    }
+
+    private static void assertWithinAQuarter(long expected, long actual) {
+        assertTrue(expected + " != " + actual, actual >= expected && actual <= expected + expected / 4);
+    }
+}
@@ -0,0 +1,143 @@
+package com.bnemeth.map;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.model.DisplayModel;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MyLocationOverlayTest {
+
+    private static final BoundingBox BUDAPEST = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+
+    @Test
+    public void setPosition_doesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        MyLocationOverlay overlay = new MyLocationOverlay(AwtGraphicFactory.INSTANCE);
+        overlay.setMetrics(new Metrics());
+        for (int i = 0; i < 100000; i++) {
+            update(overlay, i);
+        }
+
+        int updates = 1000000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < updates; i++) {
+            update(overlay, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // a handful of bytes may come from the measurement itself
+        assertTrue(allocated + " bytes for " + updates + " updates", allocated < 1024);
+    }
+
+    @Test
+    public void setPosition_coalescesRedrawsUntilDrawn() {
+        MyLocationOverlay overlay = newDrawnOverlay();
+
+        overlay.setPosition(47.5, 19.04, 50);
+        assertTrue(overlay.redrawRequested.get());
+        overlay.setPosition(47.5001, 19.04, 50);
+        assertTrue(overlay.redrawRequested.get());
+
+        draw(overlay);
+        assertFalse(overlay.redrawRequested.get());
+    }
+
+    @Test
+    public void setPosition_skipsRedrawOutsideView() {
+        MyLocationOverlay overlay = newDrawnOverlay();
+
+        overlay.setPosition(48.2, 16.37, 50); // Vienna
+        assertFalse(overlay.redrawRequested.get());
+        overlay.setPosition(47.5, 19.04, 50);
+        assertTrue(overlay.redrawRequested.get());
+
+        draw(overlay);
+        // moving out of the view must clear the old circle
+        overlay.setPosition(48.2, 16.37, 50);
+        assertTrue(overlay.redrawRequested.get());
+    }
+
+    @Test
+    public void draw_recordsLatencyFromFirstFixInView() throws Exception {
+        Metrics metrics = new Metrics();
+        MyLocationOverlay overlay = newDrawnOverlay();
+        overlay.setMetrics(metrics);
+        Metrics.Histogram latency = metrics.histogram(Metrics.LOCATION_REDRAW);
+
+        overlay.setPosition(48.2, 16.37, 50); // Vienna
+        draw(overlay);
+        assertEquals("nothing to show in the view", 0, latency.getCount());
+
+        overlay.setPosition(47.5, 19.04, 50);
+        Thread.sleep(5);
+        overlay.setPosition(47.5001, 19.04, 50);
+        draw(overlay);
+        draw(overlay);
+
+        assertEquals(1, latency.getCount());
+        assertTrue(latency.getMax() >= 5000000L);
+        assertEquals(3, metrics.counter("location.fixes").get());
+        assertEquals(1, metrics.counter("location.redraws").get());
+        assertEquals(3, metrics.histogram(Metrics.DRAW + "location").getCount());
+    }
+
+    @Test
+    public void snapshot_isConsistentUnderConcurrentWrites() throws Exception {
+        final LocationSnapshot snapshot = new LocationSnapshot();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; running.get(); i++) {
+                    snapshot.set(i, -i, i * 2);
+                }
+            }
+        });
+        writer.start();
+
+        LocationSnapshot.Reader reader = new LocationSnapshot.Reader();
+        try {
+            for (int i = 0; i < 1000000; i++) {
+                if (snapshot.copyTo(reader) != 0) {
+                    assertEquals(reader.latitude, -reader.longitude, 0);
+                    assertEquals(reader.latitude * 2, reader.accuracy, 0);
+                }
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    private static void update(MyLocationOverlay overlay, int i) {
+        overlay.setPosition(47.5 + (i % 100) * 1e-5, 19.04, 10 + i % 7);
+    }
+
+    private static MyLocationOverlay newDrawnOverlay() {
+        MyLocationOverlay overlay = new MyLocationOverlay(AwtGraphicFactory.INSTANCE);
+        overlay.setDisplayModel(new DisplayModel());
+        draw(overlay);
+        return overlay;
+    }
+
+    private static void draw(MyLocationOverlay overlay) {
+        Bitmap bitmap = AwtGraphicFactory.INSTANCE.createBitmap(256, 256);
+        Canvas canvas = AwtGraphicFactory.INSTANCE.createCanvas();
+        canvas.setBitmap(bitmap);
+        overlay.draw(BUDAPEST, (byte) 12, canvas, new Point(0, 0));
+        canvas.destroy();
+    }
+}
@@ -0,0 +1,212 @@
+package com.bnemeth.map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RegionMapDataStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File maps;
+    private File index;
+
+    @Before
+    public void writeMaps() throws Exception {
+        maps = folder.newFolder("maps");
+        index = new File(folder.getRoot(), "regions.index");
+        // three neighbouring extracts, west and middle overlap at 19.0
+        new TestMapFile(new BoundingBox(47.4, 18.9, 47.6, 19.0))
+                .poi(47.5, 18.995, "amenity=cafe", "name=West").write(new File(maps, "a-west.map"));
+        new TestMapFile(new BoundingBox(47.4, 18.99, 47.6, 19.1))
+                .poi(47.5, 19.05, "amenity=cafe", "name=Middle").write(new File(maps, "b-middle.map"));
+        new TestMapFile(new BoundingBox(47.4, 19.5, 47.6, 19.6))
+                .poi(47.5, 19.55, "amenity=cafe", "name=East").write(new File(maps, "c-east.map"));
+        new File(maps, "notes.txt").createNewFile();
+    }
+
+    @Test
+    public void index_avoidsOpeningFilesOnNextStart() {
+        RegionMapDataStore first = new RegionMapDataStore(maps, index, 4, null);
+        assertEquals(3, first.getFiles().size());
+        assertEquals(3, first.fileOpens);
+        assertTrue(index.exists());
+
+        RegionMapDataStore second = new RegionMapDataStore(maps, index, 4, null);
+        assertEquals(3, second.getFiles().size());
+        assertEquals(new BoundingBox(47.4, 18.9, 47.6, 19.6), second.boundingBox());
+        assertEquals(0, second.fileOpens);
+
+        assertEquals(names(second.readMapData(tile(47.5, 19.55, 14))), set("East"));
+        assertEquals(1, second.fileOpens);
+        assertEquals(1, second.getOpenFileCount());
+    }
+
+    @Test
+    public void index_readsChangedFilesAgain() throws Exception {
+        new RegionMapDataStore(maps, index, 4, null).getFiles();
+
+        File east = new File(maps, "c-east.map");
+        new TestMapFile(new BoundingBox(47.4, 19.5, 47.7, 19.6)).mapDate(1600000000000L)
+                .poi(47.65, 19.55, "amenity=cafe", "name=North east").write(east);
+        east.setLastModified(east.lastModified() + 2000);
+
+        RegionMapDataStore store = new RegionMapDataStore(maps, index, 4, null);
+        assertEquals(47.7, store.boundingBox().maxLatitude, 1e-6);
+        assertEquals(1, store.fileOpens);
+        assertEquals(1600000000000L, store.getDataTimestamp(tile(47.65, 19.55, 14)));
+    }
+
+    @Test
+    public void readMapData_mergesFilesAtBorder() {
+        RegionMapDataStore store = new RegionMapDataStore(maps, index, 4, null);
+        store.getFiles();
+        store.fileOpens = 0;
+
+        // a zoom 10 tile covers west and middle but not east
+        Tile tile = tile(47.5, 19.0, 10);
+        assertEquals(set("West", "Middle"), names(store.readMapData(tile)));
+        assertEquals(2, store.fileOpens);
+        assertFalse(store.supportsTile(tile(47.5, 20.5, 14)));
+        assertTrue(store.readMapData(tile(47.5, 20.5, 14)).pointOfInterests.isEmpty());
+    }
+
+    @Test
+    public void pool_closesLeastRecentlyUsedFiles() {
+        RegionMapDataStore store = new RegionMapDataStore(maps, index, 1, null);
+        store.getFiles();
+        store.fileOpens = 0;
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(set("West"), names(store.readPoiData(tile(47.5, 18.995, 14))));
+            assertEquals(set("East"), names(store.readPoiData(tile(47.5, 19.55, 14))));
+            assertEquals(1, store.getOpenFileCount());
+        }
+        // the west tile also touches the middle file, so every round opens three files
+        assertEquals(9, store.fileOpens);
+
+        store.close();
+        assertEquals(0, store.getOpenFileCount());
+    }
+
+    @Test
+    public void mappedFileChannel_readsLikeTheFile() throws Exception {
+        byte[] content = new byte[10000];
+        new Random(4).nextBytes(content);
+        File file = folder.newFile("content.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        MappedFileChannel channel = MappedFileChannel.open(file);
+        assertEquals(content.length, channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        channel.position(9800);
+        assertEquals(200, channel.read(buffer));
+        assertEquals(10000, channel.position());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(content[9800 + i], buffer.get(i));
+        }
+        buffer.clear();
+        assertEquals(-1, channel.read(buffer));
+        assertEquals(300, channel.read(buffer, 17));
+        assertEquals(content[17 + 299], buffer.get(299));
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        assertEquals(100, channel.transferTo(9900, 500, Channels.newChannel(transferred)));
+        assertArrayEquals(Arrays.copyOfRange(content, 9900, 10000), transferred.toByteArray());
+        assertEquals(0, channel.transferTo(10000, 1, Channels.newChannel(transferred)));
+        assertEquals(10000, channel.position());
+        try {
+            channel.write(ByteBuffer.allocate(1));
+            fail();
+        } catch (NonWritableChannelException e) {
+            // read only
+        }
+        channel.close();
+    }
+
+    @Test
+    public void mappedFileChannel_mapsAndLocksReadOnly() throws Exception {
+        byte[] content = new byte[10000];
+        new Random(5).nextBytes(content);
+        File file = folder.newFile("content.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        MappedFileChannel channel = MappedFileChannel.open(file);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 9000, 1000);
+        assertTrue(mapped.isReadOnly());
+        assertEquals(1000, mapped.remaining());
+        assertEquals(content[9000], mapped.get(0));
+        assertEquals(content[9999], mapped.get(999));
+        assertEquals(0, channel.map(FileChannel.MapMode.READ_ONLY, 10000, 0).remaining());
+        try {
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, 1);
+            fail();
+        } catch (NonWritableChannelException e) {
+            // read only
+        }
+
+        try {
+            channel.lock(0, Long.MAX_VALUE, false);
+            fail();
+        } catch (NonWritableChannelException e) {
+            // exclusive locks need a writable channel
+        }
+        FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+        assertTrue(lock.isShared());
+        assertTrue(lock.isValid());
+        assertSame(channel, lock.channel());
+        lock.release();
+        assertFalse(lock.isValid());
+        FileLock tryLock = channel.tryLock(0, 100, true);
+        assertNotNull(tryLock);
+        channel.close();
+        assertFalse(tryLock.isValid());
+    }
+
+    private static Tile tile(double latitude, double longitude, int zoomLevel) {
+        return new Tile(MercatorProjection.longitudeToTileX(longitude, (byte) zoomLevel),
+                MercatorProjection.latitudeToTileY(latitude, (byte) zoomLevel), (byte) zoomLevel, 256);
+    }
+
+    private static Set<String> names(MapReadResult result) {
+        Set<String> names = new HashSet<>();
+        for (PointOfInterest poi : result.pointOfInterests) {
+            names.add(poi.tags.get(poi.tags.size() - 1).value);
+        }
+        return names;
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> set = new HashSet<>();
+        for (String value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,212 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.reader.MapFile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RoadGraphTest {
+
+    private static final BoundingBox BUDAPEST = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void route_followsTheStreetGrid() throws Exception {
+        // 7 streets east-west and 11 north-south, sharing their crossings, over several base tiles
+        TestMapFile map = new TestMapFile(BUDAPEST);
+        addGrid(map, 47.485, 19.025, 7, 11, 0.005, "highway=residential");
+        RoadGraph graph = build(map);
+        assertTrue(graph.getVertexCount() + " vertices", graph.getVertexCount() >= 7 * 11);
+
+        Router.Route route = new Router(graph).route(47.4849, 19.0249, 47.5151, 19.0751);
+
+        assertNotNull(route);
+        assertNear(new LatLong(47.485, 19.025), route.points.get(0));
+        assertNear(new LatLong(47.515, 19.075), route.points.get(route.points.size() - 1));
+        double blocks = RoadGraph.meters(47485000, 19025000, 47515000, 19025000)
+                + RoadGraph.meters(47515000, 19025000, 47515000, 19075000);
+        assertEquals(blocks, route.distance, blocks * 0.01);
+        // every fifth street is a primary road, the first row and the last column among them
+        assertEquals(blocks / 70 * 3.6, route.duration, blocks / 70 * 3.6 * 0.01);
+        assertEquals(Router.Turn.DEPART, route.instructions.get(0).turn);
+        assertEquals(Router.Turn.ARRIVE, route.instructions.get(route.instructions.size() - 1).turn);
+    }
+
+    @Test
+    public void route_respectsOnewayStreets() throws Exception {
+        TestMapFile map = new TestMapFile(BUDAPEST)
+                .way(new double[]{47.50, 19.04, 47.50, 19.05}, "highway=residential", "oneway=yes", "name=Egyirányú utca")
+                // the way around, north of it
+                .way(new double[]{47.50, 19.04, 47.505, 19.04, 47.505, 19.05, 47.50, 19.05},
+                        "highway=residential", "name=Kerülő utca");
+        RoadGraph graph = build(map);
+        Router router = new Router(graph);
+
+        Router.Route along = router.route(47.50, 19.04, 47.50, 19.05);
+        Router.Route against = router.route(47.50, 19.05, 47.50, 19.04);
+
+        assertEquals(RoadGraph.meters(47500000, 19040000, 47500000, 19050000), along.distance, 1);
+        assertEquals("Egyirányú utca", along.instructions.get(0).name);
+        assertTrue(against.distance > along.distance * 2);
+        assertEquals("Kerülő utca", against.instructions.get(0).name);
+        // the corners of the way around, there is a tile border in between
+        assertNear(new LatLong(47.505, 19.05), against.points.get(2));
+        assertNear(new LatLong(47.505, 19.04), against.points.get(3));
+    }
+
+    @Test
+    public void route_prefersFasterRoadsAndDescribesTheTurns() throws Exception {
+        TestMapFile map = new TestMapFile(BUDAPEST)
+                .way(new double[]{47.50, 19.04, 47.50, 19.06}, "highway=residential", "name=Lassú utca")
+                // 70 instead of 30 km/h over 1.6 times the distance
+                .way(new double[]{47.50, 19.04, 47.503, 19.04}, "highway=primary", "name=Első út")
+                .way(new double[]{47.503, 19.04, 47.503, 19.06}, "highway=primary", "name=Fő út")
+                .way(new double[]{47.503, 19.06, 47.50, 19.06}, "highway=primary", "name=Harmadik út");
+        RoadGraph graph = build(map);
+
+        Router.Route route = new Router(graph).route(47.50, 19.04, 47.50, 19.06);
+
+        List<String> steps = new ArrayList<>();
+        for (Router.Instruction instruction : route.instructions) {
+            steps.add(instruction.turn + " " + instruction.name);
+        }
+        assertEquals("[DEPART Első út, RIGHT Fő út, RIGHT Harmadik út, ARRIVE null]", steps.toString());
+        assertEquals(333.9, route.instructions.get(0).distance, 1);
+    }
+
+    @Test
+    public void build_joinsWaysCutAtTileBorders() throws Exception {
+        // a diagonal road, cut into pieces that reach a little over the borders of the base
+        // tiles, like the map writer stores long ways
+        double[] start = {47.4851, 19.0213};
+        double[] end = {47.5187, 19.0791};
+        List<Double> cuts = new ArrayList<>();
+        for (int x = MercatorProjection.longitudeToTileX(start[1], (byte) 14) + 1;
+             x <= MercatorProjection.longitudeToTileX(end[1], (byte) 14); x++) {
+            cuts.add((MercatorProjection.tileXToLongitude(x, (byte) 14) - start[1]) / (end[1] - start[1]));
+        }
+        for (int y = MercatorProjection.latitudeToTileY(start[0], (byte) 14);
+             y > MercatorProjection.latitudeToTileY(end[0], (byte) 14); y--) {
+            cuts.add((MercatorProjection.tileYToLatitude(y, (byte) 14) - start[0]) / (end[0] - start[0]));
+        }
+        Collections.sort(cuts);
+        assertTrue(cuts.size() >= 4);
+        TestMapFile map = new TestMapFile(BUDAPEST);
+        double from = 0;
+        for (int i = 0; i <= cuts.size(); i++) {
+            double to = i < cuts.size() ? cuts.get(i) + 0.004 : 1;
+            map.way(new double[]{point(start, end, from, 0), point(start, end, from, 1),
+                    point(start, end, to, 0), point(start, end, to, 1)}, "highway=secondary", "name=Átlós út");
+            from = i < cuts.size() ? cuts.get(i) - 0.004 : 1;
+        }
+        RoadGraph graph = build(map);
+
+        Router.Route route = new Router(graph).route(start[0], start[1], end[0], end[1]);
+
+        assertNotNull(route);
+        double length = RoadGraph.meters(47485100, 19021300, 47518700, 19079100);
+        assertEquals(length, route.distance, length * 0.01);
+        assertEquals(2, route.instructions.size());
+    }
+
+    @Test
+    public void open_rejectsAGraphOfOtherMaps() throws Exception {
+        File mapFile = new TestMapFile(BUDAPEST)
+                .way(new double[]{47.50, 19.04, 47.50, 19.05}, "highway=residential")
+                .write(folder.newFile());
+        File graphFile = new File(folder.getRoot(), "roads.graph");
+        String key = SearchIndex.sourceKey(Collections.singletonList(mapFile));
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        try {
+            RoadGraph.build(mapDataStore, graphFile, key);
+        } finally {
+            mapDataStore.close();
+        }
+
+        assertNotNull(RoadGraph.open(graphFile, key));
+        assertNull(RoadGraph.open(graphFile, key + "x"));
+        assertNull(RoadGraph.open(new File(folder.getRoot(), "missing.graph"), key));
+        RandomAccessFile raf = new RandomAccessFile(graphFile, "rw");
+        try {
+            raf.setLength(10 + key.getBytes(MappedFiles.UTF_8).length + 20);
+        } finally {
+            raf.close();
+        }
+        assertNull(RoadGraph.open(graphFile, key));
+    }
+
+    @Test
+    public void road_readsClassAndDirections() throws Exception {
+        RoadGraph graph = build(new TestMapFile(BUDAPEST)
+                .way(new double[]{47.50, 19.04, 47.50, 19.05}, "highway=motorway")
+                .way(new double[]{47.51, 19.04, 47.51, 19.05}, "highway=primary", "oneway=-1")
+                .way(new double[]{47.52, 19.04, 47.52, 19.05}, "highway=footway"));
+
+        assertEquals(4, graph.getVertexCount());
+        assertEquals(2, graph.getEdgeCount());
+        Router router = new Router(graph);
+        assertNotNull(router.route(47.50, 19.04, 47.50, 19.05));
+        assertNull(router.route(47.50, 19.05, 47.50, 19.04));
+        assertNull(router.route(47.51, 19.04, 47.51, 19.05));
+        assertNotNull(router.route(47.51, 19.05, 47.51, 19.04));
+    }
+
+    /**
+     * Streets along a grid, every one through all of its crossings.
+     */
+    private static void addGrid(TestMapFile map, double south, double west, int rows, int columns, double step,
+                                String tag) {
+        for (int row = 0; row < rows; row++) {
+            double[] coordinates = new double[columns * 2];
+            for (int column = 0; column < columns; column++) {
+                coordinates[column * 2] = south + row * step;
+                coordinates[column * 2 + 1] = west + column * step;
+            }
+            map.way(coordinates, row % 5 == 0 ? "highway=primary" : tag, "name=Utca " + row);
+        }
+        for (int column = 0; column < columns; column++) {
+            double[] coordinates = new double[rows * 2];
+            for (int row = 0; row < rows; row++) {
+                coordinates[row * 2] = south + row * step;
+                coordinates[row * 2 + 1] = west + column * step;
+            }
+            map.way(coordinates, column % 5 == 0 ? "highway=primary" : tag, "name=Út " + column);
+        }
+    }
+
+    private static void assertNear(LatLong expected, LatLong actual) {
+        // the map file stores microdegrees
+        assertEquals(expected.latitude, actual.latitude, 2e-6);
+        assertEquals(expected.longitude, actual.longitude, 2e-6);
+    }
+
+    private static double point(double[] start, double[] end, double t, int coordinate) {
+        return Math.round((start[coordinate] + t * (end[coordinate] - start[coordinate])) * 1e6) / 1e6;
+    }
+
+    private RoadGraph build(TestMapFile testMap) throws Exception {
+        File mapFile = testMap.write(folder.newFile());
+        File graphFile = new File(folder.getRoot(), mapFile.getName() + ".graph");
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        try {
+            RoadGraph.build(mapDataStore, graphFile, "test");
+        } finally {
+            mapDataStore.close();
+        }
+        return RoadGraph.open(graphFile, "test");
+    }
+}
@@ -0,0 +1,151 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.reader.MapFile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    private static final BoundingBox BUDAPEST = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void search_findsCategoryClosestFirst() throws Exception {
+        SearchIndex index = build(new TestMapFile(BUDAPEST)
+                .poi(47.50, 19.05, "shop=bakery", "name=Lipóti Pékség")
+                .poi(47.51, 19.05, "shop=bakery")
+                .poi(47.46, 19.10, "shop=bakery", "name=Fornetti")
+                .poi(47.50, 19.051, "amenity=cafe", "name=Central"));
+
+        List<SearchIndex.Result> results = index.search("Bakery", 47.509, 19.05, 10);
+
+        assertEquals(3, results.size());
+        assertNull(results.get(0).name);
+        assertEquals("shop=bakery", results.get(0).category);
+        assertEquals("Lipóti Pékség", results.get(1).name);
+        assertEquals("Fornetti", results.get(2).name);
+        assertEquals(111, results.get(0).distance, 2);
+        assertEquals(1, index.search("bakery", 47.509, 19.05, 1).size());
+    }
+
+    @Test
+    public void search_matchesPrefixesOfAllWordsIgnoringAccents() throws Exception {
+        SearchIndex index = build(new TestMapFile(BUDAPEST)
+                .poi(47.5008, 19.0539, "amenity=place_of_worship", "name=Szent István-bazilika")
+                .poi(47.4869, 19.0497, "natural=peak", "name=Szent Gellért-hegy")
+                .poi(47.5190, 19.0811, "leisure=park", "name=Városliget"));
+
+        List<SearchIndex.Result> results = index.search("szent ist", 47.5, 19.05, 10);
+        assertEquals(1, results.size());
+        assertEquals("Szent István-bazilika", results.get(0).name);
+
+        assertEquals(2, index.search("SZENT", 47.5, 19.05, 10).size());
+        assertEquals("Városliget", index.search("varos", 47.5, 19.05, 10).get(0).name);
+        assertTrue(index.search("szent varos", 47.5, 19.05, 10).isEmpty());
+        assertTrue(index.search(" - ", 47.5, 19.05, 10).isEmpty());
+    }
+
+    @Test
+    public void build_indexesNamedWaysOnce() throws Exception {
+        SearchIndex index = build(new TestMapFile(BUDAPEST)
+                // crosses several base tiles, so it is read several times
+                .way(new double[]{47.503, 19.055, 47.510, 19.070, 47.515, 19.080},
+                        "highway=primary", "name=Andrássy út")
+                .way(new double[]{47.49, 19.0, 47.49, 19.01}, "highway=residential"));
+
+        assertEquals(1, index.getEntryCount());
+        List<SearchIndex.Result> results = index.search("andrassy", 47.5, 19.05, 10);
+        assertEquals(1, results.size());
+        assertEquals("highway=primary", results.get(0).category);
+    }
+
+    @Test
+    public void search_returnsTheClosestOfManyEntries() throws Exception {
+        BoundingBox area = new BoundingBox(45.7, 16.1, 48.6, 22.9);
+        SearchIndex.Builder builder = new SearchIndex.Builder(area);
+        Random random = new Random(42);
+        double[][] bakeries = new double[3000][];
+        for (int i = 0; i < bakeries.length; i++) {
+            bakeries[i] = randomPosition(random, area);
+            builder.add(bakeries[i][0], bakeries[i][1], null, "shop=bakery");
+            double[] other = randomPosition(random, area);
+            builder.add(other[0], other[1], "Other " + i, "amenity=cafe");
+        }
+        File file = folder.newFile("grid.idx");
+        builder.write(file, "key");
+        SearchIndex index = SearchIndex.open(file, "key");
+
+        for (int query = 0; query < 200; query++) {
+            double[] position = randomPosition(random, area);
+            double latitudeScale = Math.cos(Math.toRadians(position[0]));
+            double[] expected = new double[bakeries.length];
+            for (int i = 0; i < bakeries.length; i++) {
+                double dy = bakeries[i][0] - position[0];
+                double dx = (bakeries[i][1] - position[1]) * latitudeScale;
+                expected[i] = Math.sqrt(dx * dx + dy * dy) * 111320;
+            }
+            Arrays.sort(expected);
+
+            List<SearchIndex.Result> results = index.search("bakery", position[0], position[1], 5);
+            assertEquals(5, results.size());
+            for (int i = 0; i < 5; i++) {
+                // positions are stored in microdegrees
+                assertEquals(expected[i], results.get(i).distance, 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void open_rejectsIndexOfOtherMaps() throws Exception {
+        File mapFile = new TestMapFile(BUDAPEST).poi(47.5, 19.05, "shop=bakery").write(folder.newFile("a.map"));
+        File indexFile = new File(folder.getRoot(), "search.idx");
+        String key = SearchIndex.sourceKey(Collections.singletonList(mapFile));
+        MapFile mapDataStore = new MapFile(mapFile);
+        try {
+            SearchIndex.build(mapDataStore, indexFile, key);
+        } finally {
+            mapDataStore.close();
+        }
+
+        assertNotNull(SearchIndex.open(indexFile, key));
+        assertNull(SearchIndex.open(indexFile, key + "x"));
+        assertNull(SearchIndex.open(new File(folder.getRoot(), "missing.idx"), key));
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            raf.setLength(10 + key.getBytes(MappedFiles.UTF_8).length + 20);
+        } finally {
+            raf.close();
+        }
+        assertNull(SearchIndex.open(indexFile, key));
+    }
+
+    private SearchIndex build(TestMapFile testMap) throws Exception {
+        File mapFile = testMap.write(folder.newFile());
+        File indexFile = new File(folder.getRoot(), mapFile.getName() + ".idx");
+        MapFile mapDataStore = new MapFile(mapFile);
+        try {
+            SearchIndex.build(mapDataStore, indexFile, "test");
+        } finally {
+            mapDataStore.close();
+        }
+        return SearchIndex.open(indexFile, "test");
+    }
+
+    private static double[] randomPosition(Random random, BoundingBox area) {
+        return new double[]{area.minLatitude + random.nextDouble() * area.getLatitudeSpan(),
+                area.minLongitude + random.nextDouble() * area.getLongitudeSpan()};
+    }
+}
@@ -0,0 +1,118 @@
+package com.bnemeth.map;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StartupPipelineTest {
+
+    @Test
+    public void stages_runInParallelAndWaitForTheirInputs() throws Exception {
+        StartupPipeline pipeline = new StartupPipeline(3, null);
+        // each stage only finishes once the other one runs as well
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final Future<String> map = pipeline.stage("open map", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                bothRunning.countDown();
+                assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+                return "map";
+            }
+        });
+        final Future<String> theme = pipeline.stage("load theme", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                bothRunning.countDown();
+                assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+                Thread.sleep(20);
+                return "theme";
+            }
+        });
+        Future<String> cache = pipeline.stage("warm cache", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return map.get() + "+" + theme.get();
+            }
+        });
+
+        assertEquals("map+theme", cache.get(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+
+        List<String> names = new ArrayList<>();
+        for (StartupPipeline.Mark mark : pipeline.getMarks()) {
+            names.add(mark.name);
+        }
+        assertEquals("warm cache", names.get(2));
+        assertTrue(names.containsAll(Arrays.asList("open map", "load theme")));
+        StartupPipeline.Mark themeMark = pipeline.getMarks().get(names.indexOf("load theme"));
+        assertTrue(themeMark.tookMillis >= 20);
+        assertTrue(pipeline.getMarks().get(2).atMillis >= themeMark.atMillis);
+    }
+
+    @Test
+    public void stage_isMarkedAndReportedWhenItFails() throws Exception {
+        final List<String> reported = new ArrayList<>();
+        StartupPipeline pipeline = new StartupPipeline(1, new StartupPipeline.Listener() {
+            @Override
+            public void onMark(String name, long atMillis, long tookMillis) {
+                reported.add(name);
+            }
+
+            @Override
+            public void onFailure(String name, Exception error) {
+                reported.add(name + ": " + error.getMessage());
+            }
+        });
+        Future<Void> failing = pipeline.stage("open map", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw new IOException("no map");
+            }
+        });
+        try {
+            failing.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("no map", e.getCause().getMessage());
+        }
+        assertTrue(pipeline.hasMark("open map"));
+        // reported although nobody asked the future
+        assertEquals(Arrays.asList("open map", "open map: no map"), reported);
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void markOnce_recordsTheFirstEventOnly() {
+        final List<String> reported = new ArrayList<>();
+        StartupPipeline pipeline = new StartupPipeline(1, new StartupPipeline.Listener() {
+            @Override
+            public void onMark(String name, long atMillis, long tookMillis) {
+                reported.add(name);
+            }
+
+            @Override
+            public void onFailure(String name, Exception error) {
+                fail(name);
+            }
+        });
+        pipeline.shutdown();
+
+        assertTrue(pipeline.markOnce("first tile"));
+        assertFalse(pipeline.markOnce("first tile"));
+        pipeline.mark("create");
+        pipeline.mark("create");
+
+        assertEquals(Arrays.asList("first tile", "create", "create"), reported);
+        assertTrue(pipeline.toString().startsWith("first tile at "));
+    }
+}
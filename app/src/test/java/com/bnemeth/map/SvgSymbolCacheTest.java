@@ -0,0 +1,172 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.graphics.ResourceBitmap;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class SvgSymbolCacheTest {
+
+    private static final byte[] SVG = svg(0).getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void renderSvg_rasterizesOnceAcrossRestarts() throws Exception {
+        File pack = new File(folder.getRoot(), "symbols.pack");
+        CountingRasterizer rasterizer = new CountingRasterizer();
+        SvgSymbolCache first = new SvgSymbolCache(rasterizer, pack, "theme");
+        ResourceBitmap rasterized = first.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        first.flush();
+        first.close();
+
+        SvgSymbolCache second = new SvgSymbolCache(rasterizer, pack, "theme");
+        ResourceBitmap loaded = second.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+
+        assertEquals(1, rasterizer.count);
+        assertEquals(1, second.getStats().getHits());
+        assertEquals(0, second.getStats().getMisses());
+        assertEquals(pack.length(), second.getStats().getBytes());
+        BufferedImage expected = AwtGraphicFactory.getBitmap(rasterized);
+        BufferedImage actual = AwtGraphicFactory.getBitmap(loaded);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void renderSvg_rasterizesEverySizeAndContentOfItsOwn() throws Exception {
+        File pack = new File(folder.getRoot(), "symbols.pack");
+        CountingRasterizer rasterizer = new CountingRasterizer();
+        SvgSymbolCache first = new SvgSymbolCache(rasterizer, pack, "theme");
+        first.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        first.flush();
+
+        SvgSymbolCache second = new SvgSymbolCache(rasterizer, pack, "theme");
+        second.renderSvg(new ByteArrayInputStream(SVG), 3f, 0, 0, 100, 1);
+        second.renderSvg(new ByteArrayInputStream(SVG), 2f, 32, 0, 100, 1);
+        second.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 50, 1);
+        second.renderSvg(new ByteArrayInputStream(svg(1).getBytes()), 2f, 0, 0, 100, 1);
+        second.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        second.flush();
+
+        assertEquals(5, rasterizer.count);
+        assertEquals(1, second.getStats().getHits());
+        SvgSymbolCache third = new SvgSymbolCache(rasterizer, pack, "theme");
+        third.renderSvg(new ByteArrayInputStream(SVG), 3f, 0, 0, 100, 1);
+        assertEquals(5, rasterizer.count);
+        assertTrue(third.toString(), third.toString().startsWith("SvgSymbolCache [symbols=5, hits=1, misses=0"));
+    }
+
+    @Test
+    public void renderSvg_ignoresThePackOfAnotherTheme() throws Exception {
+        File pack = new File(folder.getRoot(), "symbols.pack");
+        CountingRasterizer rasterizer = new CountingRasterizer();
+        SvgSymbolCache first = new SvgSymbolCache(rasterizer, pack, "theme");
+        first.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        first.flush();
+
+        SvgSymbolCache second = new SvgSymbolCache(rasterizer, pack, "other theme");
+        second.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        second.flush();
+
+        assertEquals(2, rasterizer.count);
+        assertEquals(1, second.getStats().getMisses());
+        // replaced by the pack of the other theme
+        SvgSymbolCache third = new SvgSymbolCache(rasterizer, pack, "other theme");
+        third.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        assertEquals(2, rasterizer.count);
+    }
+
+    @Test
+    public void renderSvg_rasterizesAgainWhenThePackIsDamaged() throws Exception {
+        File pack = new File(folder.getRoot(), "symbols.pack");
+        CountingRasterizer rasterizer = new CountingRasterizer();
+        SvgSymbolCache first = new SvgSymbolCache(rasterizer, pack, "theme");
+        first.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+        first.flush();
+        RandomAccessFile file = new RandomAccessFile(pack, "rw");
+        try {
+            // the PNG signature of the symbol, after the header and its index entry
+            file.seek(4 + 4 + 2 + "theme".length() + 4 + 36);
+            file.write(new byte[8]);
+        } finally {
+            file.close();
+        }
+
+        SvgSymbolCache second = new SvgSymbolCache(rasterizer, pack, "theme");
+        ResourceBitmap bitmap = second.renderSvg(new ByteArrayInputStream(SVG), 2f, 0, 0, 100, 1);
+
+        assertNotNull(bitmap);
+        assertEquals(2, rasterizer.count);
+        assertEquals(1, second.getStats().getMisses());
+    }
+
+    /**
+     * A symbol with a few shapes, like the ones of the Vectorial theme, in a color of its own.
+     */
+    private static String svg(int seed) {
+        String color = String.format("#%06x", (seed * 2654435761L) & 0xffffff);
+        StringBuilder svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" "
+                + "height=\"100\" viewBox=\"0 0 100 100\">"
+                + "<circle cx=\"50\" cy=\"50\" r=\"46\" fill=\"" + color + "\" stroke=\"#ffffff\" stroke-width=\"4\"/>"
+                + "<path fill=\"#ffffff\" d=\"M50 12");
+        for (int i = 1; i < 10; i++) {
+            double angle = Math.PI * i / 5;
+            double radius = i % 2 == 0 ? 36 : 15;
+            svg.append(String.format(java.util.Locale.ROOT, " L%.1f %.1f", 50 + radius * Math.sin(angle),
+                    50 - radius * Math.cos(angle)));
+        }
+        return svg.append(" Z\"/></svg>").toString();
+    }
+
+    /**
+     * Rasterizes every SVG into a square of 20 pixels at the scale, in a color of the content.
+     */
+    private static class CountingRasterizer extends AwtGraphicFactory {
+        int count;
+
+        @Override
+        public ResourceBitmap renderSvg(InputStream inputStream, float scaleFactor, int width, int height,
+                                        int percent, int hash) throws IOException {
+            count++;
+            ByteArrayOutputStream svg = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                svg.write(buffer, 0, read);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(svg.toByteArray());
+            int size = Math.round((width > 0 ? width : 20) * scaleFactor * percent / 100f);
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    image.setRGB(x, y, x < y ? 0 : 0xff000000 | (int) crc.getValue());
+                }
+            }
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            return createResourceBitmap(new ByteArrayInputStream(png.toByteArray()), 1f, 0, 0, 100, hash);
+        }
+    }
+}
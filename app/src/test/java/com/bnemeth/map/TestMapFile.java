@@ -0,0 +1,290 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.util.LatLongUtils;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes small mapsforge map files (version 3, one sub-file) for tests, so they do not depend on a
+ * downloaded country map or on the osmosis based map writer.
+ * <p>
+ * Every element is stored in all base tiles its bounding box touches and shows on all zoom levels.
+ * "name", "addr:housenumber" and "ref" tags are written as the dedicated fields, like the real
+ * writer does.
+ */
+class TestMapFile {
+
+    static final byte BASE_ZOOM = 14;
+    static final byte ZOOM_MIN = 0;
+    static final byte ZOOM_MAX = 21;
+
+    private static class Element {
+        final LatLong[] nodes;
+        final List<String> tags = new ArrayList<>();
+        String name;
+        String houseNumber;
+        String ref;
+
+        Element(LatLong[] nodes, String[] tags) {
+            this.nodes = nodes;
+            for (String tag : tags) {
+                if (tag.startsWith("name=")) {
+                    name = tag.substring(5);
+                } else if (tag.startsWith("addr:housenumber=")) {
+                    houseNumber = tag.substring(17);
+                } else if (tag.startsWith("ref=")) {
+                    ref = tag.substring(4);
+                } else {
+                    this.tags.add(tag);
+                }
+            }
+        }
+    }
+
+    private final BoundingBox boundingBox;
+    private final List<Element> pois = new ArrayList<>();
+    private final List<Element> ways = new ArrayList<>();
+    private long mapDate = 1500000000000L;
+
+    TestMapFile(BoundingBox boundingBox) {
+        this.boundingBox = boundingBox;
+    }
+
+    TestMapFile mapDate(long mapDate) {
+        this.mapDate = mapDate;
+        return this;
+    }
+
+    /**
+     * Adds a POI with tags written as "key=value".
+     */
+    TestMapFile poi(double latitude, double longitude, String... tags) {
+        pois.add(new Element(new LatLong[]{new LatLong(latitude, longitude)}, tags));
+        return this;
+    }
+
+    /**
+     * Adds a way through the given latitude, longitude pairs.
+     */
+    TestMapFile way(double[] coordinates, String... tags) {
+        LatLong[] nodes = new LatLong[coordinates.length / 2];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new LatLong(coordinates[i * 2], coordinates[i * 2 + 1]);
+        }
+        ways.add(new Element(nodes, tags));
+        return this;
+    }
+
+    File write(File file) throws IOException {
+        Map<String, Integer> poiTags = tagIds(pois);
+        Map<String, Integer> wayTags = tagIds(ways);
+        byte[] subFile = subFile(poiTags, wayTags);
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(3);
+        header.writeLong(0); // file size, patched below
+        header.writeLong(mapDate);
+        header.writeInt(LatLongUtils.degreesToMicrodegrees(boundingBox.minLatitude));
+        header.writeInt(LatLongUtils.degreesToMicrodegrees(boundingBox.minLongitude));
+        header.writeInt(LatLongUtils.degreesToMicrodegrees(boundingBox.maxLatitude));
+        header.writeInt(LatLongUtils.degreesToMicrodegrees(boundingBox.maxLongitude));
+        header.writeShort(256);
+        writeString(header, "Mercator");
+        header.writeByte(0); // no optional fields
+        writeTags(header, poiTags);
+        writeTags(header, wayTags);
+        header.writeByte(1);
+        header.writeByte(BASE_ZOOM);
+        header.writeByte(ZOOM_MIN);
+        header.writeByte(ZOOM_MAX);
+        int subFileStartOffset = headerBytes.size();
+        header.writeLong(0); // start address, patched below
+        header.writeLong(subFile.length);
+
+        byte[] remainingHeader = headerBytes.toByteArray();
+        long startAddress = 20 + 4 + remainingHeader.length;
+        long fileSize = startAddress + subFile.length;
+        patchLong(remainingHeader, 4, fileSize);
+        patchLong(remainingHeader, subFileStartOffset, startAddress);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.write("mapsforge binary OSM".getBytes("UTF-8"));
+            out.writeInt(remainingHeader.length);
+            out.write(remainingHeader);
+            out.write(subFile);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private byte[] subFile(Map<String, Integer> poiTags, Map<String, Integer> wayTags) throws IOException {
+        long left = MercatorProjection.longitudeToTileX(boundingBox.minLongitude, BASE_ZOOM);
+        long right = MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, BASE_ZOOM);
+        long top = MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, BASE_ZOOM);
+        long bottom = MercatorProjection.latitudeToTileY(boundingBox.minLatitude, BASE_ZOOM);
+        int blocks = (int) ((right - left + 1) * (bottom - top + 1));
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long[] offsets = new long[blocks];
+        int block = 0;
+        for (long y = top; y <= bottom; y++) {
+            for (long x = left; x <= right; x++) {
+                offsets[block++] = blocks * 5L + data.size();
+                data.write(block(x, y, poiTags, wayTags));
+            }
+        }
+
+        ByteArrayOutputStream subFile = new ByteArrayOutputStream();
+        for (long offset : offsets) {
+            for (int shift = 32; shift >= 0; shift -= 8) {
+                subFile.write((int) (offset >>> shift));
+            }
+        }
+        data.writeTo(subFile);
+        return subFile.toByteArray();
+    }
+
+    private byte[] block(long tileX, long tileY, Map<String, Integer> poiTags, Map<String, Integer> wayTags)
+            throws IOException {
+        double tileLatitude = MercatorProjection.tileYToLatitude(tileY, BASE_ZOOM);
+        double tileLongitude = MercatorProjection.tileXToLongitude(tileX, BASE_ZOOM);
+        BoundingBox tile = new BoundingBox(MercatorProjection.tileYToLatitude(tileY + 1, BASE_ZOOM), tileLongitude,
+                tileLatitude, MercatorProjection.tileXToLongitude(tileX + 1, BASE_ZOOM));
+
+        ByteArrayOutputStream poiBytes = new ByteArrayOutputStream();
+        int poiCount = 0;
+        for (Element poi : pois) {
+            if (!tile.contains(poi.nodes[0])) {
+                continue;
+            }
+            poiCount++;
+            writeSigned(poiBytes, microdegrees(poi.nodes[0].latitude - tileLatitude));
+            writeSigned(poiBytes, microdegrees(poi.nodes[0].longitude - tileLongitude));
+            poiBytes.write(5 << 4 | poi.tags.size());
+            writeTagIds(poiBytes, poi, poiTags);
+            poiBytes.write((poi.name != null ? 0x80 : 0) | (poi.houseNumber != null ? 0x40 : 0));
+            writeString(poiBytes, poi.name);
+            writeString(poiBytes, poi.houseNumber);
+        }
+
+        ByteArrayOutputStream wayBytes = new ByteArrayOutputStream();
+        int wayCount = 0;
+        for (Element way : ways) {
+            if (!tile.intersects(new BoundingBox(java.util.Arrays.asList(way.nodes)))) {
+                continue;
+            }
+            wayCount++;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(0xff);
+            body.write(0xff); // tile bitmask, the way shows in all sub tiles
+            body.write(5 << 4 | way.tags.size());
+            writeTagIds(body, way, wayTags);
+            body.write((way.name != null ? 0x80 : 0) | (way.houseNumber != null ? 0x40 : 0) | (way.ref != null ? 0x20 : 0));
+            writeString(body, way.name);
+            writeString(body, way.houseNumber);
+            writeString(body, way.ref);
+            writeUnsigned(body, 1); // coordinate blocks
+            writeUnsigned(body, way.nodes.length);
+            int previousLatitude = microdegrees(tileLatitude);
+            int previousLongitude = microdegrees(tileLongitude);
+            for (LatLong node : way.nodes) {
+                int latitude = microdegrees(node.latitude);
+                int longitude = microdegrees(node.longitude);
+                writeSigned(body, latitude - previousLatitude);
+                writeSigned(body, longitude - previousLongitude);
+                previousLatitude = latitude;
+                previousLongitude = longitude;
+            }
+            writeUnsigned(wayBytes, body.size());
+            body.writeTo(wayBytes);
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for (int zoomLevel = ZOOM_MIN; zoomLevel <= ZOOM_MAX; zoomLevel++) {
+            writeUnsigned(block, zoomLevel == ZOOM_MIN ? poiCount : 0);
+            writeUnsigned(block, zoomLevel == ZOOM_MIN ? wayCount : 0);
+        }
+        writeUnsigned(block, poiBytes.size());
+        poiBytes.writeTo(block);
+        wayBytes.writeTo(block);
+        return block.toByteArray();
+    }
+
+    private static Map<String, Integer> tagIds(List<Element> elements) {
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        for (Element element : elements) {
+            for (String tag : element.tags) {
+                if (!ids.containsKey(tag)) {
+                    ids.put(tag, ids.size());
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static void writeTags(DataOutputStream out, Map<String, Integer> tags) throws IOException {
+        out.writeShort(tags.size());
+        for (String tag : tags.keySet()) {
+            writeString(out, tag);
+        }
+    }
+
+    private static void writeTagIds(ByteArrayOutputStream out, Element element, Map<String, Integer> ids) {
+        for (String tag : element.tags) {
+            writeUnsigned(out, ids.get(tag));
+        }
+    }
+
+    private static int microdegrees(double degrees) {
+        return LatLongUtils.degreesToMicrodegrees(degrees);
+    }
+
+    private static void writeString(java.io.OutputStream out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        ByteArrayOutputStream length = new ByteArrayOutputStream();
+        writeUnsigned(length, bytes.length);
+        length.writeTo(out);
+        out.write(bytes);
+    }
+
+    private static void writeUnsigned(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, int value) {
+        int sign = value < 0 ? 0x40 : 0;
+        value = Math.abs(value);
+        while ((value & ~0x3f) != 0) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value | sign);
+    }
+
+    private static void patchLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.bnemeth.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.MapPosition;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.awt.view.MapView;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.layer.renderer.TileRendererLayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TilePrefetcherTest {
+
+    private static final byte ZOOM_LEVEL = 14;
+    private static final int TILE_SIZE = 256;
+    // a tile in Hungary
+    private static final int X = 9058;
+    private static final int Y = 5762;
+
+    private MapView mapView;
+    private InMemoryTileCache tileCache;
+    private TileRendererLayer layer;
+    private TilePrefetcher prefetcher;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        mapView = new MapView();
+        mapView.getModel().mapViewPosition.setMapPosition(new MapPosition(center(X, Y), ZOOM_LEVEL));
+        tileCache = new InMemoryTileCache(1000);
+        layer = new TileRendererLayer(tileCache, new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL),
+                mapView.getModel().mapViewPosition, AwtGraphicFactory.INSTANCE);
+        layer.setDisplayModel(mapView.getModel().displayModel);
+        prefetcher = new TilePrefetcher(layer, tileCache, mapView, AwtGraphicFactory.INSTANCE, 1);
+        // keeps the only thread busy, so the jobs stay in the queue
+        prefetcher.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // destroyed
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        prefetcher.destroy();
+        release.countDown();
+        mapView.destroyAll();
+    }
+
+    @Test
+    public void schedule_standingStill_queuesTheTilesAroundByDistance() {
+        LatLong position = center(X, Y);
+        prefetcher.schedule(position.latitude, position.longitude, Float.NaN, 0);
+
+        List<TilePrefetcher.PrefetchJob> jobs = queued();
+        // all tiles within two tiles of the center
+        assertEquals(13, jobs.size());
+        assertEquals(13, prefetcher.tilesScheduled.get());
+        assertEquals(tile(X, Y), jobs.get(0).job.tile);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(1, distance(jobs.get(i).job.tile), 0);
+        }
+        for (TilePrefetcher.PrefetchJob job : jobs) {
+            assertTrue(distance(job.job.tile) <= 2);
+        }
+    }
+
+    @Test
+    public void schedule_moving_prefersTheTilesAheadAndSkipsTheOnesFarBehind() {
+        LatLong position = center(X, Y);
+        // east, fast enough to look one tile further ahead
+        prefetcher.schedule(position.latitude, position.longitude, 90, 20);
+
+        List<Tile> tiles = new ArrayList<>();
+        for (TilePrefetcher.PrefetchJob job : queued()) {
+            tiles.add(job.job.tile);
+        }
+        assertEquals(tile(X, Y), tiles.get(0));
+        assertEquals(tile(X + 1, Y), tiles.get(1));
+        assertTrue(tiles.indexOf(tile(X + 2, Y)) < tiles.indexOf(tile(X - 1, Y)));
+        assertTrue(tiles.contains(tile(X + 3, Y)));
+        assertTrue(tiles.contains(tile(X - 2, Y)));
+        assertFalse(tiles.contains(tile(X - 3, Y)));
+    }
+
+    @Test
+    public void schedule_skipsCachedTilesAndCapsTheJobsPerFix() {
+        RendererJob cached = new RendererJob(tile(X, Y), layer.getMapDataStore(), layer.getRenderThemeFuture(),
+                mapView.getModel().displayModel, 1, false, false);
+        TileBitmap bitmap = AwtGraphicFactory.INSTANCE.createTileBitmap(TILE_SIZE, false);
+        tileCache.put(cached, bitmap);
+        bitmap.decrementRefCount();
+        LatLong position = center(X, Y);
+
+        prefetcher.schedule(position.latitude, position.longitude, Float.NaN, 0);
+        assertEquals(12, queued().size());
+
+        // as far ahead as it gets
+        prefetcher.schedule(position.latitude, position.longitude, 0, 200);
+        assertEquals(48, queued().size());
+        assertEquals(12 + 48, prefetcher.tilesScheduled.get());
+    }
+
+    @Test
+    public void schedule_cancelsTheJobsOfThePreviousFix() {
+        LatLong first = center(X, Y);
+        prefetcher.schedule(first.latitude, first.longitude, Float.NaN, 0);
+        List<TilePrefetcher.PrefetchJob> stale = queued();
+
+        LatLong second = center(X + 10, Y);
+        prefetcher.schedule(second.latitude, second.longitude, Float.NaN, 0);
+
+        assertEquals(13, prefetcher.tilesCancelled.get());
+        List<TilePrefetcher.PrefetchJob> jobs = queued();
+        assertEquals(13, jobs.size());
+        assertEquals(tile(X + 10, Y), jobs.get(0).job.tile);
+
+        // a job of the old fix that was already taken from the queue does not render
+        stale.get(0).run();
+        assertEquals(14, prefetcher.tilesCancelled.get());
+        assertEquals(0, prefetcher.tilesRendered.get());
+    }
+
+    @Test
+    public void onChange_countsTheNewlyVisibleTilesThatWereCached() {
+        Metrics metrics = new Metrics();
+        prefetcher.setMetrics(metrics);
+        // the animation thread of the map view reports changes as well, at its own time
+        mapView.getModel().mapViewPosition.removeObserver(prefetcher);
+        // four tiles wide and high, centered on a tile, touches five by five tiles
+        mapView.setSize(4 * TILE_SIZE, 4 * TILE_SIZE);
+        moveTo(X + 10, Y);
+        moveTo(X, Y);
+        assertEquals(50, prefetcher.getViewportStats().getMisses());
+
+        TileBitmap bitmap = AwtGraphicFactory.INSTANCE.createTileBitmap(TILE_SIZE, false);
+        for (int y = Y - 2; y <= Y + 2; y++) {
+            tileCache.put(new RendererJob(tile(X + 3, y), layer.getMapDataStore(), layer.getRenderThemeFuture(),
+                    mapView.getModel().displayModel, 1, false, false), bitmap);
+        }
+        bitmap.decrementRefCount();
+        // one tile east, the column that comes into view is cached
+        moveTo(X + 1, Y);
+
+        assertEquals(5, prefetcher.getViewportStats().getHits());
+        assertEquals(50, prefetcher.getViewportStats().getMisses());
+        assertEquals(5 / 55f, prefetcher.getHitRate(), 0.001f);
+        assertTrue(metrics.getCacheStats().contains(prefetcher.getViewportStats()));
+        assertTrue(metrics.toString(), metrics.toString().contains("prefetch viewport [hits=5, misses=50"));
+        mapView.getModel().mapViewPosition.addObserver(prefetcher);
+    }
+
+    private void moveTo(int x, int y) {
+        mapView.getModel().mapViewPosition.setCenter(center(x, y));
+        prefetcher.onChange();
+        // a change that reveals nothing new
+        prefetcher.onChange();
+    }
+
+    private List<TilePrefetcher.PrefetchJob> queued() {
+        List<TilePrefetcher.PrefetchJob> jobs = new ArrayList<>();
+        for (Runnable runnable : prefetcher.executor.getQueue()) {
+            jobs.add((TilePrefetcher.PrefetchJob) runnable);
+        }
+        Collections.sort(jobs);
+        return jobs;
+    }
+
+    private static double distance(Tile tile) {
+        return Math.hypot(tile.tileX - X, tile.tileY - Y);
+    }
+
+    private static Tile tile(int x, int y) {
+        return new Tile(x, y, ZOOM_LEVEL, TILE_SIZE);
+    }
+
+    private static LatLong center(int x, int y) {
+        long mapSize = MercatorProjection.getMapSize(ZOOM_LEVEL, TILE_SIZE);
+        return new LatLong(MercatorProjection.pixelYToLatitude((y + 0.5) * TILE_SIZE, mapSize),
+                MercatorProjection.pixelXToLongitude((x + 0.5) * TILE_SIZE, mapSize));
+    }
+}
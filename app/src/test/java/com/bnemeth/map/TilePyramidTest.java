@@ -0,0 +1,187 @@
+package com.bnemeth.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+public class TilePyramidTest {
+
+    private static final GraphicFactory GRAPHIC_FACTORY = AwtGraphicFactory.INSTANCE;
+    private static final BoundingBox AREA = new BoundingBox(47.3, 18.8, 47.7, 19.3);
+    private static final int TILE_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DisplayModel displayModel;
+    private RenderThemeFuture renderThemeFuture;
+
+    @Before
+    public void setUp() throws Exception {
+        displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        // areas and lines only, symbols would be decoded differently on every platform
+        File theme = folder.newFile("theme.xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(theme), "UTF-8");
+        try {
+            writer.write("<rendertheme xmlns=\"http://mapsforge.org/renderTheme\" version=\"5\" map-background=\"#f8f4f0\">"
+                    + "<rule e=\"way\" k=\"natural\" v=\"water\"><area fill=\"#b5d0d0\"/></rule>"
+                    + "<rule e=\"way\" k=\"landuse\" v=\"forest\"><area fill=\"#add19e\"/></rule>"
+                    + "<rule e=\"way\" k=\"highway\" v=\"*\"><line stroke=\"#e892a2\" stroke-width=\"2\"/></rule>"
+                    + "</rendertheme>");
+        } finally {
+            writer.close();
+        }
+        renderThemeFuture = new RenderThemeFuture(GRAPHIC_FACTORY, new ExternalRenderTheme(theme), displayModel);
+        renderThemeFuture.run();
+    }
+
+    @After
+    public void tearDown() {
+        renderThemeFuture.decrementRefCount();
+    }
+
+    @Test
+    public void build_coversTheMapAtItsZoomLevels() throws Exception {
+        TilePyramid pyramid = build(map(), "test", (byte) 5, (byte) 10);
+
+        assertNotNull(pyramid);
+        for (byte zoomLevel = 5; zoomLevel <= 10; zoomLevel++) {
+            assertTrue("zoom " + zoomLevel, pyramid.contains(tileAt(47.5, 19.05, zoomLevel)));
+        }
+        assertFalse(pyramid.contains(tileAt(47.5, 19.05, (byte) 4)));
+        assertFalse(pyramid.contains(tileAt(47.5, 19.05, (byte) 11)));
+        assertFalse(pyramid.contains(tileAt(45.0, 19.05, (byte) 10)));
+        Tile tile = tileAt(47.5, 19.05, (byte) 10);
+        assertFalse(pyramid.contains(new Tile(tile.tileX, tile.tileY, tile.zoomLevel, 512)));
+        assertNull(pyramid.get(new Job(tileAt(45.0, 19.05, (byte) 10), false)));
+    }
+
+    @Test
+    public void get_returnsTheTileTheRendererDraws() throws Exception {
+        File mapFile = map().write(folder.newFile("test.map"));
+        TilePyramid pyramid = build(mapFile, "test", (byte) 8, (byte) 10);
+        Tile tile = tileAt(47.5, 19.05, (byte) 10);
+
+        TileBitmap stored = pyramid.get(new Job(tile, false));
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        TileBitmap rendered;
+        try {
+            rendered = new DatabaseRenderer(mapDataStore, GRAPHIC_FACTORY, null, null, false, false, null)
+                    .executeJob(new RendererJob(tile, mapDataStore, renderThemeFuture, displayModel, 1f, false, false));
+        } finally {
+            mapDataStore.close();
+        }
+
+        assertNotNull(stored);
+        assertEquals(TILE_SIZE, stored.getWidth());
+        BufferedImage expected = AwtGraphicFactory.getBitmap(rendered);
+        BufferedImage actual = AwtGraphicFactory.getBitmap(stored);
+        int differing = 0;
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    differing++;
+                }
+            }
+        }
+        assertEquals(0, differing);
+        // the lake and the land around it
+        long mapSize = MercatorProjection.getMapSize(tile.zoomLevel, TILE_SIZE);
+        int lakeX = (int) MercatorProjection.longitudeToPixelX(19.05, mapSize) - tile.tileX * TILE_SIZE;
+        int lakeY = (int) MercatorProjection.latitudeToPixelY(47.5, mapSize) - tile.tileY * TILE_SIZE;
+        assertNotEquals(actual.getRGB(0, 0), actual.getRGB(lakeX, lakeY));
+        assertEquals(1, pyramid.getStats().getHits());
+    }
+
+    @Test
+    public void open_rejectsOtherMapsAndThemes() throws Exception {
+        File mapFile = map().write(folder.newFile("test.map"));
+        build(mapFile, "old", (byte) 5, (byte) 6);
+        File pyramidFile = new File(folder.getRoot(), "test.pyramid");
+
+        assertNull(TilePyramid.open(pyramidFile, "new", GRAPHIC_FACTORY));
+        assertNull(TilePyramid.open(new File(folder.getRoot(), "missing.pyramid"), "old", GRAPHIC_FACTORY));
+        assertNotNull(TilePyramid.open(pyramidFile, "old", GRAPHIC_FACTORY));
+    }
+
+    @Test
+    public void layeredTileCache_servesThePyramidInsteadOfTheDisk() throws Exception {
+        TilePyramid pyramid = build(map(), "test", (byte) 5, (byte) 10);
+        DiskTileCache disk = new DiskTileCache(folder.newFolder("tiles"), 1 << 20, GRAPHIC_FACTORY, TILE_SIZE);
+        LayeredTileCache cache = new LayeredTileCache(new MemoryTileCache(1 << 20, TILE_SIZE), disk);
+        Job overview = new Job(tileAt(47.5, 19.05, (byte) 8), false);
+        Job detail = new Job(tileAt(47.5, 19.05, (byte) 14), false);
+        assertFalse(cache.containsKey(overview));
+
+        cache.setPyramid(pyramid);
+        assertTrue(cache.containsKey(overview));
+        assertFalse(cache.containsKey(detail));
+        TileBitmap bitmap = cache.get(overview);
+        assertNotNull(bitmap);
+        assertNotNull(cache.getImmediately(overview));
+
+        // a tile rendered while the pyramid was built is not stored twice
+        cache.put(overview, bitmap);
+        cache.put(detail, GRAPHIC_FACTORY.createTileBitmap(TILE_SIZE, false));
+        assertFalse(disk.containsKey(overview));
+        assertTrue(disk.containsKey(detail));
+    }
+
+    private static TestMapFile map() {
+        return new TestMapFile(AREA)
+                .way(square(47.5, 19.05, 0.02), "natural=water")
+                .way(new double[]{47.35, 18.85, 47.65, 19.25}, "highway=motorway");
+    }
+
+    private static double[] square(double latitude, double longitude, double radius) {
+        return new double[]{latitude - radius, longitude - radius, latitude + radius, longitude - radius,
+                latitude + radius, longitude + radius, latitude - radius, longitude + radius,
+                latitude - radius, longitude - radius};
+    }
+
+    private static Tile tileAt(double latitude, double longitude, byte zoomLevel) {
+        return new Tile(MercatorProjection.longitudeToTileX(longitude, zoomLevel),
+                MercatorProjection.latitudeToTileY(latitude, zoomLevel), zoomLevel, TILE_SIZE);
+    }
+
+    private TilePyramid build(TestMapFile testMap, String key, byte minZoom, byte maxZoom) throws Exception {
+        return build(testMap.write(folder.newFile("test.map")), key, minZoom, maxZoom);
+    }
+
+    private TilePyramid build(File mapFile, String key, byte minZoom, byte maxZoom) throws Exception {
+        File pyramidFile = new File(folder.getRoot(), "test.pyramid");
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        try {
+            TilePyramid.build(mapDataStore, renderThemeFuture, displayModel, GRAPHIC_FACTORY, pyramidFile, key,
+                    minZoom, maxZoom);
+        } finally {
+            mapDataStore.close();
+        }
+        return TilePyramid.open(pyramidFile, key, GRAPHIC_FACTORY);
+    }
+}
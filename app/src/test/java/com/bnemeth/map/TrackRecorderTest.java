@@ -0,0 +1,244 @@
+package com.bnemeth.map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.model.DisplayModel;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrackRecorderTest {
+
+    private static final BoundingBox BUDAPEST = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void add_isReadBackAfterReopening() throws Exception {
+        File file = new File(folder.getRoot(), "track.bin");
+        TrackRecorder recorder = new TrackRecorder(file);
+        int points = TrackRecorder.CHUNK_SIZE * 5 + 17;
+        for (int i = 0; i < points; i++) {
+            recorder.add(1000L * i, 47.5 + i * 1e-5, 19.04 - i * 1e-5);
+        }
+        recorder.close();
+
+        TrackRecorder reopened = new TrackRecorder(file);
+        reopened.add(1000L * points, 47.6, 19.1);
+        reopened.close();
+
+        TrackRecorder track = new TrackRecorder(file);
+        assertEquals(points + 1, track.size());
+        for (int i = 0; i < points; i++) {
+            assertEquals(1000L * i, track.getTime(i));
+            assertEquals(47.5 + i * 1e-5, track.getLatitude(i), 1e-7);
+            assertEquals(19.04 - i * 1e-5, track.getLongitude(i), 1e-7);
+        }
+        assertEquals(19.1, track.getLongitude(points), 1e-7);
+        track.close();
+    }
+
+    @Test
+    public void open_dropsAPartlyWrittenPoint() throws Exception {
+        File file = new File(folder.getRoot(), "track.bin");
+        TrackRecorder recorder = new TrackRecorder(file);
+        recorder.add(1, 47.5, 19.04);
+        recorder.add(2, 47.6, 19.05);
+        recorder.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        recorder = new TrackRecorder(file);
+        assertEquals(1, recorder.size());
+        recorder.add(3, 47.7, 19.06);
+        recorder.close();
+
+        recorder = new TrackRecorder(file);
+        assertEquals(2, recorder.size());
+        assertEquals(3, recorder.getTime(1));
+        recorder.close();
+    }
+
+    @Test
+    public void open_startsASegmentForTheNextPoint() throws Exception {
+        File file = new File(folder.getRoot(), "track.bin");
+        TrackRecorder recorder = new TrackRecorder(file);
+        for (int i = 0; i < 3; i++) {
+            recorder.add(i, 47.5, 19.04 + i * 1e-4);
+        }
+        recorder.close();
+        // opened without a fix, no empty segment
+        new TrackRecorder(file).close();
+        recorder = new TrackRecorder(file);
+        assertEquals(Integer.MAX_VALUE, recorder.getSegmentEnd(0));
+        recorder.add(3, 47.6, 19.04);
+        recorder.add(4, 47.6, 19.05);
+        assertEquals(3, recorder.getSegmentEnd(0));
+        recorder.close();
+
+        recorder = new TrackRecorder(file);
+        assertEquals(5, recorder.size());
+        assertEquals(3, recorder.getSegmentEnd(2));
+        assertEquals(Integer.MAX_VALUE, recorder.getSegmentEnd(3));
+        assertEquals(47.6, recorder.getLatitude(3), 1e-7);
+        assertEquals(4 + 5 * 16 + 16, file.length());
+        recorder.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void add_failsOnceClosed() throws Exception {
+        TrackRecorder recorder = new TrackRecorder(new File(folder.getRoot(), "track.bin"));
+        recorder.close();
+        recorder.add(1, 47.5, 19.04);
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsOtherFiles() throws Exception {
+        File file = folder.newFile("track.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(42);
+        raf.close();
+
+        new TrackRecorder(file);
+    }
+
+    @Test
+    public void simplify_keepsEveryPointThatIsFurtherThanTheTolerance() {
+        Random random = new Random(1);
+        int count = 2000;
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        for (int i = 1; i < count; i++) {
+            xs[i] = xs[i - 1] + random.nextInt(5) - 1;
+            ys[i] = ys[i - 1] + random.nextInt(5) - 2;
+        }
+        boolean[] keep = new boolean[count];
+
+        new TrackLayer(AwtGraphicFactory.INSTANCE, null).simplify(xs, ys, count, 2, keep);
+
+        assertTrue(keep[0]);
+        assertTrue(keep[count - 1]);
+        int previous = 0;
+        int kept = 1;
+        for (int i = 1; i < count; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            for (int j = previous + 1; j < i; j++) {
+                assertTrue(j + " is too far", TrackLayer.distanceSquared(xs[j], ys[j], xs[previous], ys[previous],
+                        xs[i], ys[i]) <= 4);
+            }
+            previous = i;
+            kept++;
+        }
+        assertTrue(kept + " points kept", kept < count / 4);
+    }
+
+    @Test
+    public void draw_simplifiesPerZoomLevelAndFollowsTheTrack() throws Exception {
+        TrackRecorder track = new TrackRecorder(new File(folder.getRoot(), "track.bin"));
+        TrackLayer layer = newLayer(track);
+        Random random = new Random(2);
+        // a walk through the city, with GPS noise of a few meters
+        int points = 3 * TrackLayer.FREEZE_POINTS + 100;
+        for (int i = 0; i < points; i++) {
+            track.add(i * 1000L, 47.49 + i * 2e-5 + random.nextGaussian() * 2e-5,
+                    19.0 + i * 3e-5 + random.nextGaussian() * 2e-5);
+            if (i % 97 == 0) {
+                draw(layer, (byte) 16);
+            }
+        }
+        draw(layer, (byte) 10);
+        draw(layer, (byte) 16);
+
+        int zoomedOut = layer.getSimplifiedCount((byte) 10);
+        int zoomedIn = layer.getSimplifiedCount((byte) 16);
+        assertTrue(zoomedOut + " points at zoom 10", zoomedOut < 10);
+        assertTrue(zoomedIn + " points at zoom 16", zoomedIn > zoomedOut && zoomedIn < points);
+
+        // simplified as it grew, the line still ends at the last point
+        TrackLayer fresh = newLayer(track);
+        draw(fresh, (byte) 16);
+        int difference = Math.abs(fresh.getSimplifiedCount((byte) 16) - zoomedIn);
+        assertTrue(difference + " points more or less", difference < zoomedIn / 5);
+        track.close();
+    }
+
+    @Test
+    public void draw_breaksTheLineBetweenSegments() throws Exception {
+        File file = new File(folder.getRoot(), "track.bin");
+        TrackRecorder track = new TrackRecorder(file);
+        for (int i = 0; i < 100; i++) {
+            track.add(i, 47.5, 19.0 + i * 1e-4);
+        }
+        track.close();
+        track = new TrackRecorder(file);
+        for (int i = 0; i < 100; i++) {
+            track.add(100 + i, 47.51, 19.0 + i * 1e-4);
+        }
+        TrackLayer layer = newLayer(track);
+        BoundingBox view = new BoundingBox(47.498, 18.998, 47.512, 19.012);
+        Bitmap bitmap = AwtGraphicFactory.INSTANCE.createBitmap(512, 512);
+        Canvas canvas = AwtGraphicFactory.INSTANCE.createCanvas();
+        canvas.setBitmap(bitmap);
+        draw(layer, view, (byte) 15, canvas);
+
+        // two straight lines, each simplified to its ends
+        assertEquals(4, layer.getSimplifiedCount((byte) 15));
+        long mapSize = MercatorProjection.getMapSize((byte) 15, layer.getDisplayModel().getTileSize());
+        int left = (int) MercatorProjection.longitudeToPixelX(view.minLongitude, mapSize);
+        int top = (int) MercatorProjection.latitudeToPixelY(view.maxLatitude, mapSize);
+        int start = (int) MercatorProjection.longitudeToPixelX(19.0, mapSize) - left;
+        int end = (int) MercatorProjection.longitudeToPixelX(19.0 + 99 * 1e-4, mapSize) - left;
+        int lower = (int) MercatorProjection.latitudeToPixelY(47.5, mapSize) - top;
+        int upper = (int) MercatorProjection.latitudeToPixelY(47.51, mapSize) - top;
+        BufferedImage image = AwtGraphicFactory.getBitmap(bitmap);
+        assertNotEquals(0, image.getRGB(end - 10, lower));
+        assertNotEquals(0, image.getRGB(end - 10, upper));
+        // nothing from the end of the first segment to the start of the second
+        assertEquals(0, image.getRGB((start + end) / 2, (lower + upper) / 2));
+        canvas.destroy();
+        bitmap.decrementRefCount();
+        track.close();
+    }
+
+    private static TrackLayer newLayer(TrackRecorder track) {
+        TrackLayer layer = new TrackLayer(AwtGraphicFactory.INSTANCE, track);
+        layer.setDisplayModel(new DisplayModel());
+        return layer;
+    }
+
+    private static void draw(TrackLayer layer, byte zoomLevel) {
+        draw(layer, BUDAPEST, zoomLevel);
+    }
+
+    private static void draw(TrackLayer layer, BoundingBox view, byte zoomLevel) {
+        Bitmap bitmap = AwtGraphicFactory.INSTANCE.createBitmap(512, 512);
+        Canvas canvas = AwtGraphicFactory.INSTANCE.createCanvas();
+        canvas.setBitmap(bitmap);
+        draw(layer, view, zoomLevel, canvas);
+        canvas.destroy();
+        bitmap.decrementRefCount();
+    }
+
+    private static void draw(TrackLayer layer, BoundingBox view, byte zoomLevel, Canvas canvas) {
+        long mapSize = MercatorProjection.getMapSize(zoomLevel, layer.getDisplayModel().getTileSize());
+        Point topLeft = new Point(MercatorProjection.longitudeToPixelX(view.minLongitude, mapSize),
+                MercatorProjection.latitudeToPixelY(view.maxLatitude, mapSize));
+        layer.draw(view, zoomLevel, canvas, topLeft);
+    }
+}
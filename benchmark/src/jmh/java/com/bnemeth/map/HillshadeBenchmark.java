@@ -0,0 +1,142 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shades tiles with {@link Hillshader}, one tile per operation, cycling through the 8x8 tiles
+ * around 47.5N 19.5E at the given zoom level.
+ * <p>
+ * The elevation data is shared by all threads and every thread has a shader of its own, like the
+ * workers of {@link HillshadeLayer}, so comparing the thread counts shows how the throughput
+ * scales with the cores. The terrain is generated from a fixed seed, hills of a few hundred
+ * meters over one HGT file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HillshadeBenchmark {
+
+    private static final int SIZE = 1201;
+    private static final int TILES = 8;
+
+    @Param({"10", "13", "16"})
+    public byte zoomLevel;
+
+    private File directory;
+    private ElevationData elevation;
+    private int firstTileX;
+    private int firstTileY;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        Hillshader hillshader;
+        int[] pixels = new int[256 * 256];
+        int next;
+
+        @Setup
+        public void setUp(HillshadeBenchmark benchmark) {
+            hillshader = new Hillshader(benchmark.elevation, 2);
+            next = new Random().nextInt(TILES * TILES);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = File.createTempFile("elevation", "");
+        directory.delete();
+        directory.mkdirs();
+        writeTerrain(new File(directory, ElevationData.fileName(47, 19)));
+        elevation = new ElevationData(directory, 4);
+        firstTileX = MercatorProjection.longitudeToTileX(19.5, zoomLevel) - TILES / 2;
+        firstTileY = MercatorProjection.latitudeToTileY(47.5, zoomLevel) - TILES / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean tilesPerSecond1(Worker worker) {
+        return shade(worker);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean tilesPerSecond2(Worker worker) {
+        return shade(worker);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean tilesPerSecond4(Worker worker) {
+        return shade(worker);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean tilesPerSecondMax(Worker worker) {
+        return shade(worker);
+    }
+
+    private boolean shade(Worker worker) {
+        int index = worker.next++ % (TILES * TILES);
+        Tile tile = new Tile(firstTileX + index % TILES, firstTileY + index / TILES, zoomLevel, 256);
+        return worker.hillshader.shade(tile, worker.pixels);
+    }
+
+    /**
+     * Sums a few octaves of random waves, about 800 meters between the lowest and highest points.
+     */
+    private static void writeTerrain(File file) throws IOException {
+        Random random = new Random(42);
+        int octaves = 6;
+        double[] phases = new double[octaves * 2];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = random.nextDouble() * 2 * Math.PI;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int row = 0; row < SIZE; row++) {
+                for (int column = 0; column < SIZE; column++) {
+                    double height = 400;
+                    for (int octave = 0; octave < octaves; octave++) {
+                        double frequency = (2 << octave) * Math.PI / SIZE;
+                        double amplitude = 200.0 / (1 << octave);
+                        height += amplitude * Math.sin(row * frequency + phases[2 * octave])
+                                * Math.cos(column * frequency * 1.3 + phases[2 * octave + 1]);
+                    }
+                    out.writeShort((int) height);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
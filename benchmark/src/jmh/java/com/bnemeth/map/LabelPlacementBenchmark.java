@@ -0,0 +1,159 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Display;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.mapelements.MapElementContainer;
+import org.mapsforge.core.mapelements.SymbolContainer;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.layer.labels.LabelStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.util.LayerUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Places the labels of a dense city while the map pans east, one frame per operation, 16 pixels
+ * apart, starting over in the west at the end of the strip.
+ * <p>
+ * {@link #incremental()} draws the frame with {@link LabelPlacementLayer}, which only solves the
+ * labels of newly exposed tiles. {@link #everyFrame()} solves all visible labels every frame, like
+ * mapsforge's LabelLayer, without drawing them.
+ * <p>
+ * The labels are 200000 symbols at random positions with random priorities, on a strip of 64 by
+ * 4 tiles at zoom level 14, handed out per tile like a TileBasedLabelStore with every tile
+ * rendered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LabelPlacementBenchmark {
+
+    private static final byte ZOOM_LEVEL = 14;
+    private static final int TILE_SIZE = 256;
+    private static final int VIEW_SIZE = 768;
+    private static final int COLUMNS = 64;
+    private static final int ROWS = 4;
+    private static final int LABELS = 200000;
+
+    /**
+     * The labels of the strip by tile.
+     */
+    private static class StripLabelStore implements LabelStore {
+        @SuppressWarnings("unchecked")
+        final List<MapElementContainer>[] tiles = new List[COLUMNS * ROWS];
+
+        StripLabelStore() {
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = new ArrayList<>();
+            }
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public List<MapElementContainer> getVisibleItems(Tile upperLeft, Tile lowerRight) {
+            List<MapElementContainer> visible = new ArrayList<>();
+            for (int x = upperLeft.tileX; x <= lowerRight.tileX; x++) {
+                for (int y = upperLeft.tileY; y <= lowerRight.tileY; y++) {
+                    if (x >= 0 && x < COLUMNS && y >= 0 && y < ROWS) {
+                        visible.addAll(tiles[x * ROWS + y]);
+                    }
+                }
+            }
+            return visible;
+        }
+
+        void add(MapElementContainer item) {
+            Point point = item.getPoint();
+            tiles[(int) (point.x / TILE_SIZE) * ROWS + (int) (point.y / TILE_SIZE)].add(item);
+        }
+    }
+
+    private final StripLabelStore store = new StripLabelStore();
+    private LabelPlacementLayer layer;
+    private Bitmap symbol;
+    private Bitmap bitmap;
+    private Canvas canvas;
+    private int centerX;
+
+    @Setup
+    public void setUp() {
+        GraphicFactory graphicFactory = AwtGraphicFactory.INSTANCE;
+        symbol = graphicFactory.createBitmap(40, 20);
+        Random random = new Random(2);
+        for (int i = 0; i < LABELS; i++) {
+            store.add(new SymbolContainer(new Point(random.nextInt(COLUMNS * TILE_SIZE),
+                    random.nextInt(ROWS * TILE_SIZE)), Display.IFSPACE, random.nextInt(20), symbol));
+        }
+        layer = new LabelPlacementLayer(graphicFactory, store);
+        layer.setDisplayModel(new DisplayModel());
+        bitmap = graphicFactory.createBitmap(VIEW_SIZE, VIEW_SIZE);
+        canvas = graphicFactory.createCanvas();
+        canvas.setBitmap(bitmap);
+        centerX = VIEW_SIZE / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        canvas.destroy();
+        bitmap.decrementRefCount();
+        symbol.decrementRefCount();
+    }
+
+    @Benchmark
+    public void incremental() {
+        double x = nextCenter();
+        double y = ROWS * TILE_SIZE / 2;
+        layer.draw(view(x, y), ZOOM_LEVEL, canvas, new Point(x - VIEW_SIZE / 2, y - VIEW_SIZE / 2));
+    }
+
+    @Benchmark
+    public List<MapElementContainer> everyFrame() {
+        BoundingBox view = view(nextCenter(), ROWS * TILE_SIZE / 2);
+        return LayerUtil.collisionFreeOrdered(store.getVisibleItems(
+                LayerUtil.getUpperLeft(view, ZOOM_LEVEL, TILE_SIZE),
+                LayerUtil.getLowerRight(view, ZOOM_LEVEL, TILE_SIZE)));
+    }
+
+    private int nextCenter() {
+        int x = centerX;
+        centerX += 16;
+        if (centerX >= COLUMNS * TILE_SIZE - VIEW_SIZE) {
+            centerX = VIEW_SIZE / 2;
+        }
+        return x;
+    }
+
+    private static BoundingBox view(double centerX, double centerY) {
+        long mapSize = MercatorProjection.getMapSize(ZOOM_LEVEL, TILE_SIZE);
+        double half = VIEW_SIZE / 2 - 1;
+        return new BoundingBox(MercatorProjection.pixelYToLatitude(centerY + half, mapSize),
+                MercatorProjection.pixelXToLongitude(centerX - half, mapSize),
+                MercatorProjection.pixelYToLatitude(centerY - half, mapSize),
+                MercatorProjection.pixelXToLongitude(centerX + half, mapSize));
+    }
+}
@@ -0,0 +1,129 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports an area of Budapest the given number of pixels wide to a PNG file with
+ * {@link MapExporter} and OpenmapsTheme/theme.xml, one whole export per operation, rendering
+ * with the given number of threads. The speed-up is the time with one thread divided by the
+ * time with more.
+ * <p>
+ * The map is a generated street grid with lakes and named suburbs, or the map given with
+ * -Dbenchmark.mapFile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MapExportBenchmark {
+
+    private static final BoundingBox AREA = new BoundingBox(47.45, 18.95, 47.55, 19.15);
+    private static final int TILE_SIZE = 256;
+
+    private static final MapExporter.PixelReader AWT_PIXELS = new MapExporter.PixelReader() {
+        @Override
+        public void getPixels(Bitmap bitmap, int[] pixels) {
+            AwtGraphicFactory.getBitmap(bitmap).getRGB(0, 0, bitmap.getWidth(), bitmap.getHeight(), pixels, 0,
+                    bitmap.getWidth());
+        }
+    };
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"4096"})
+    public int width;
+
+    private File generatedMap;
+    private File exportFile;
+    private MapDataStore mapDataStore;
+    private RenderThemeFuture renderThemeFuture;
+    private MapExporter exporter;
+    private byte zoomLevel;
+
+    @Setup
+    public void setUp() throws Exception {
+        String path = System.getProperty("benchmark.mapFile");
+        if (path == null) {
+            generatedMap = File.createTempFile("budapest", ".map");
+            generateMap(generatedMap);
+        }
+        mapDataStore = new MapFile(path != null ? new File(path) : generatedMap);
+        exportFile = File.createTempFile("export", ".png");
+
+        GraphicFactory graphicFactory = AwtGraphicFactory.INSTANCE;
+        DisplayModel displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        renderThemeFuture = new RenderThemeFuture(graphicFactory, new ExternalRenderTheme(
+                new File(System.getProperty("benchmark.assets"), "OpenmapsTheme/theme.xml")), displayModel);
+        renderThemeFuture.run();
+        renderThemeFuture.get();
+        exporter = new MapExporter(mapDataStore, renderThemeFuture, displayModel, graphicFactory, AWT_PIXELS,
+                threads);
+        zoomLevel = MapExporter.zoomLevelFor(AREA, width, TILE_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapDataStore.close();
+        renderThemeFuture.decrementRefCount();
+        exportFile.delete();
+        if (generatedMap != null) {
+            generatedMap.delete();
+        }
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        OutputStream out = new FileOutputStream(exportFile);
+        try {
+            exporter.exportPng(AREA, zoomLevel, out, null);
+        } finally {
+            out.close();
+        }
+        return exportFile.length();
+    }
+
+    static void generateMap(File file) throws IOException {
+        TestMapFile map = new TestMapFile(AREA);
+        for (double latitude = 47.452; latitude < 47.55; latitude += 0.004) {
+            map.way(new double[]{latitude, 18.952, latitude, 19.148}, "highway=residential");
+        }
+        for (double longitude = 18.952; longitude < 19.15; longitude += 0.004) {
+            map.way(new double[]{47.452, longitude, 47.548, longitude}, "highway=residential");
+        }
+        for (double latitude = 47.455; latitude < 47.55; latitude += 0.02) {
+            for (double longitude = 18.955; longitude < 19.15; longitude += 0.02) {
+                double radius = 0.003;
+                map.way(new double[]{latitude - radius, longitude - radius, latitude + radius, longitude - radius,
+                        latitude + radius, longitude + radius, latitude - radius, longitude + radius,
+                        latitude - radius, longitude - radius}, "natural=water");
+                map.poi(latitude + 0.01, longitude + 0.01, "place=suburb",
+                        "name=" + Math.round(latitude * 1000) + "/" + Math.round(longitude * 1000));
+            }
+        }
+        map.write(file);
+    }
+}
@@ -0,0 +1,98 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the map data of one tile per operation, the way the renderer asks for it while the map
+ * pans east across the generated map of {@link TileRenderBenchmark}: a column of six newly
+ * exposed tiles after the other.
+ * <p>
+ * With cached=false every tile is decoded from the map file, with cached=true the reads go
+ * through a {@link CachingMapDataStore}, which starts empty on every pass across the map. The
+ * difference of the two is the decode time saved per rendered tile, and the gc profiler shows
+ * the difference in allocated bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapReadBenchmark {
+
+    private static final int TILE_SIZE = 256;
+    private static final int VIEW_TILES = 6;
+
+    @Param({"14", "16", "17"})
+    public byte zoomLevel;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private File maps;
+    private File indexFile;
+    private RegionMapDataStore regionMapDataStore;
+    private MapDataStore mapDataStore;
+    private final List<Tile> tiles = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        maps = File.createTempFile("maps", "");
+        maps.delete();
+        maps.mkdir();
+        TileRenderBenchmark.generateMap(new File(maps, "budapest" + RegionMapDataStore.EXTENSION));
+        indexFile = File.createTempFile("regions", ".index");
+        indexFile.delete();
+        regionMapDataStore = new RegionMapDataStore(maps, indexFile, 4, null);
+
+        // the map spans 0.14 degrees of longitude around 19.04
+        int west = MercatorProjection.longitudeToTileX(18.975, zoomLevel);
+        int east = MercatorProjection.longitudeToTileX(19.105, zoomLevel);
+        int top = MercatorProjection.latitudeToTileY(47.498333, zoomLevel) - VIEW_TILES / 2;
+        for (int x = west; x <= east; x++) {
+            for (int y = top; y < top + VIEW_TILES; y++) {
+                tiles.add(new Tile(x, y, zoomLevel, TILE_SIZE));
+            }
+        }
+        startPass();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapDataStore.close();
+        indexFile.delete();
+        for (File file : maps.listFiles()) {
+            file.delete();
+        }
+        maps.delete();
+    }
+
+    @Benchmark
+    public MapReadResult readMapData() {
+        MapReadResult result = mapDataStore.readMapData(tiles.get(next));
+        if (++next == tiles.size()) {
+            startPass();
+        }
+        return result;
+    }
+
+    private void startPass() {
+        next = 0;
+        mapDataStore = cached ? new CachingMapDataStore(regionMapDataStore, 16L * 1024 * 1024) : regionMapDataStore;
+    }
+}
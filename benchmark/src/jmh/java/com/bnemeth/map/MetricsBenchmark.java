@@ -0,0 +1,59 @@
+package com.bnemeth.map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of timing a tile with {@link Metrics}, a start and a stop of the render timer per
+ * operation, to set against the milliseconds a tile takes to render, see
+ * {@link TileRenderBenchmark}.
+ * <p>
+ * All threads record into the same histogram like the render threads of the app, so comparing
+ * the thread counts shows what the contention on its buckets costs. The gc profiler should show
+ * no allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.ThreadTimer timer = metrics.timer(Metrics.TILE_RENDER);
+    private final Metrics.Counter counter = metrics.counter("benchmark");
+
+    @Benchmark
+    @Threads(1)
+    public void timedTile1() {
+        time();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void timedTile2() {
+        time();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void timedTile4() {
+        time();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void counter() {
+        counter.increment();
+    }
+
+    private void time() {
+        timer.start();
+        timer.stop();
+    }
+}
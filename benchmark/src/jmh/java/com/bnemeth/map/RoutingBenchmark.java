@@ -0,0 +1,136 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.reader.MapFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the {@link RoadGraph} of a map and finds routes on it with {@link Router}.
+ * <p>
+ * {@link #buildGraph()} is one whole build per operation. {@link #route()} answers one query per
+ * operation between random positions on the map, cycling through a fixed set of queries, and
+ * reports the latency distribution with its p0.50 and p1.00 percentiles.
+ * <p>
+ * The map is a generated street grid the size of Hungary, every fifth street a primary road, or
+ * the map given with -Dbenchmark.mapFile.
+ */
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    private static final int QUERIES = 50;
+
+    private File generatedMap;
+    private File mapFile;
+    private File graphFile;
+    private File builtGraphFile;
+    private Router router;
+    private final double[][] queries = new double[QUERIES][];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        String path = System.getProperty("benchmark.mapFile");
+        if (path == null) {
+            generatedMap = File.createTempFile("grid", ".map");
+            generateMap(generatedMap);
+        }
+        mapFile = path != null ? new File(path) : generatedMap;
+        graphFile = File.createTempFile("roads", ".graph");
+        builtGraphFile = File.createTempFile("built", ".graph");
+        build(graphFile);
+        RoadGraph graph = RoadGraph.open(graphFile, "benchmark");
+        if (graph == null) {
+            throw new IllegalStateException("Could not open " + graphFile);
+        }
+        router = new Router(graph);
+
+        MapFile map = new MapFile(mapFile);
+        BoundingBox area = map.boundingBox();
+        map.close();
+        Random random = new Random(2);
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = new double[]{area.minLatitude + random.nextDouble() * area.getLatitudeSpan(),
+                    area.minLongitude + random.nextDouble() * area.getLongitudeSpan(),
+                    area.minLatitude + random.nextDouble() * area.getLatitudeSpan(),
+                    area.minLongitude + random.nextDouble() * area.getLongitudeSpan()};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphFile.delete();
+        builtGraphFile.delete();
+        if (generatedMap != null) {
+            generatedMap.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long buildGraph() throws IOException {
+        build(builtGraphFile);
+        return builtGraphFile.length();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Router.Route route() {
+        double[] query = queries[next];
+        next = next + 1 == QUERIES ? 0 : next + 1;
+        return router.route(query[0], query[1], query[2], query[3]);
+    }
+
+    private void build(File file) throws IOException {
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        try {
+            RoadGraph.build(mapDataStore, file, "benchmark");
+        } finally {
+            mapDataStore.close();
+        }
+    }
+
+    /**
+     * Writes a grid of streets 0.02 degrees apart over Hungary, every one through all of its
+     * crossings.
+     */
+    static void generateMap(File file) throws IOException {
+        TestMapFile map = new TestMapFile(new BoundingBox(45.7, 16.1, 48.6, 22.9));
+        double south = 45.75;
+        double west = 16.15;
+        double step = 0.02;
+        int rows = 141;
+        int columns = 336;
+        for (int row = 0; row < rows; row++) {
+            double[] coordinates = new double[columns * 2];
+            for (int column = 0; column < columns; column++) {
+                coordinates[column * 2] = south + row * step;
+                coordinates[column * 2 + 1] = west + column * step;
+            }
+            map.way(coordinates, row % 5 == 0 ? "highway=primary" : "highway=tertiary", "name=Utca " + row);
+        }
+        for (int column = 0; column < columns; column++) {
+            double[] coordinates = new double[rows * 2];
+            for (int row = 0; row < rows; row++) {
+                coordinates[row * 2] = south + row * step;
+                coordinates[row * 2 + 1] = west + column * step;
+            }
+            map.way(coordinates, column % 5 == 0 ? "highway=primary" : "highway=tertiary", "name=Út " + column);
+        }
+        map.write(file);
+    }
+}
@@ -0,0 +1,123 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.reader.MapFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the {@link SearchIndex} of a map and searches it.
+ * <p>
+ * {@link #build()} is one whole build per operation, the same for every query, so one of them is
+ * enough: -p query=bakery. {@link #search()} answers the given query for the ten places closest
+ * to one position per operation, cycling through random positions on the map, and reports the
+ * latency distribution with its p0.50 and p0.99 percentiles.
+ * <p>
+ * The map is a generated one with 20000 named POIs of eight categories around Budapest, or the
+ * map given with -Dbenchmark.mapFile.
+ */
+@State(Scope.Thread)
+public class SearchIndexBenchmark {
+
+    private static final int POSITIONS = 100;
+
+    @Param({"bakery", "cafe", "pharm", "place 1", "szent", "utca", "x"})
+    public String query;
+
+    private File generatedMap;
+    private File mapFile;
+    private File indexFile;
+    private File builtIndexFile;
+    private SearchIndex index;
+    private final double[][] positions = new double[POSITIONS][];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        String path = System.getProperty("benchmark.mapFile");
+        if (path == null) {
+            generatedMap = File.createTempFile("places", ".map");
+            generateMap(generatedMap);
+        }
+        mapFile = path != null ? new File(path) : generatedMap;
+        indexFile = File.createTempFile("places", ".idx");
+        builtIndexFile = File.createTempFile("built", ".idx");
+        build(indexFile);
+        index = SearchIndex.open(indexFile, "benchmark");
+        if (index == null) {
+            throw new IllegalStateException("Could not open " + indexFile);
+        }
+
+        MapFile map = new MapFile(mapFile);
+        BoundingBox area = map.boundingBox();
+        map.close();
+        Random random = new Random(2);
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = new double[]{area.minLatitude + random.nextDouble() * area.getLatitudeSpan(),
+                    area.minLongitude + random.nextDouble() * area.getLongitudeSpan()};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        indexFile.delete();
+        builtIndexFile.delete();
+        if (generatedMap != null) {
+            generatedMap.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long build() throws IOException {
+        build(builtIndexFile);
+        return builtIndexFile.length();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<SearchIndex.Result> search() {
+        double[] position = positions[next];
+        next = next + 1 == POSITIONS ? 0 : next + 1;
+        return index.search(query, position[0], position[1], 10);
+    }
+
+    private void build(File file) throws IOException {
+        MapDataStore mapDataStore = new MapFile(mapFile);
+        try {
+            SearchIndex.build(mapDataStore, file, "benchmark");
+        } finally {
+            mapDataStore.close();
+        }
+    }
+
+    static void generateMap(File file) throws IOException {
+        BoundingBox area = new BoundingBox(47.3, 18.8, 47.7, 19.3);
+        TestMapFile map = new TestMapFile(area);
+        String[] categories = {"shop=bakery", "amenity=cafe", "amenity=pharmacy", "shop=supermarket",
+                "amenity=restaurant", "tourism=hotel", "amenity=bank", "highway=bus_stop"};
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            map.poi(area.minLatitude + random.nextDouble() * area.getLatitudeSpan(),
+                    area.minLongitude + random.nextDouble() * area.getLongitudeSpan(),
+                    categories[i % categories.length], "name=Place " + i);
+        }
+        map.write(file);
+    }
+}
@@ -0,0 +1,169 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a theme of many SVG symbols through {@link SvgSymbolCache} and renders the first tile
+ * with it, one theme load and tile per operation, the time from opening the map to seeing it.
+ * <p>
+ * With packed=false the pack is deleted before every operation, so svg-salamander rasterizes
+ * every symbol, with packed=true the symbols come from the pack the setup wrote.
+ * <p>
+ * The symbols are a circle and a star each, like the ones of the Vectorial theme, every one in a
+ * color of its own, on a generated map with a POI for each of them in the first tile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SvgSymbolBenchmark {
+
+    private static final BoundingBox AREA = new BoundingBox(47.49, 19.03, 47.51, 19.07);
+    private static final byte ZOOM_LEVEL = 14;
+    private static final int TILE_SIZE = 256;
+
+    @Param({"150"})
+    public int symbols;
+
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private File directory;
+    private File theme;
+    private File pack;
+    private MapDataStore mapDataStore;
+    private Tile tile;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = File.createTempFile("symbols", "");
+        directory.delete();
+        directory.mkdir();
+        theme = writeTheme(directory, symbols);
+        TestMapFile map = new TestMapFile(AREA);
+        for (int i = 0; i < symbols; i++) {
+            map.poi(47.492 + 0.016 * (i / 15) / 10, 19.032 + 0.036 * (i % 15) / 15, "amenity=s" + i);
+        }
+        mapDataStore = new MapFile(map.write(new File(directory, "symbols.map")));
+        pack = new File(directory, "symbols.pack");
+        tile = new Tile(MercatorProjection.longitudeToTileX(AREA.getCenterPoint().longitude, ZOOM_LEVEL),
+                MercatorProjection.latitudeToTileY(AREA.getCenterPoint().latitude, ZOOM_LEVEL), ZOOM_LEVEL,
+                TILE_SIZE);
+        // writes the pack, and shows every symbol rasterizes
+        firstTile();
+    }
+
+    @Setup(Level.Iteration)
+    public void deletePack() {
+        if (!packed) {
+            pack.delete();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapDataStore.close();
+        for (File file : new File(directory, "symbols").listFiles()) {
+            file.delete();
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void firstTile() throws Exception {
+        DisplayModel displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        SvgSymbolCache cache = new SvgSymbolCache(AwtGraphicFactory.INSTANCE, pack, "benchmark");
+        try {
+            RenderThemeFuture renderThemeFuture = new RenderThemeFuture(cache, new ExternalRenderTheme(theme),
+                    displayModel);
+            renderThemeFuture.run();
+            // symbols drawn on the tile, so the renderer needs a tile cache for the ones crossing its border
+            DatabaseRenderer renderer = new DatabaseRenderer(mapDataStore, cache, new InMemoryTileCache(4), null,
+                    true, false, null);
+            TileBitmap bitmap = renderer.executeJob(new RendererJob(tile, mapDataStore, renderThemeFuture,
+                    displayModel, 1f, false, false));
+            if (bitmap == null) {
+                throw new IllegalStateException("Could not render " + tile);
+            }
+            bitmap.decrementRefCount();
+            renderThemeFuture.decrementRefCount();
+            cache.flush();
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static File writeTheme(File directory, int symbols) throws IOException {
+        File symbolDirectory = new File(directory, "symbols");
+        symbolDirectory.mkdir();
+        File theme = new File(directory, "theme.xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(theme), "UTF-8");
+        try {
+            writer.write("<rendertheme xmlns=\"http://mapsforge.org/renderTheme\" version=\"5\" "
+                    + "map-background=\"#f8f4f0\">");
+            for (int i = 0; i < symbols; i++) {
+                Writer symbol = new OutputStreamWriter(new FileOutputStream(new File(symbolDirectory, "s" + i + ".svg")),
+                        "UTF-8");
+                try {
+                    symbol.write(svg(i));
+                } finally {
+                    symbol.close();
+                }
+                writer.write("<rule e=\"node\" k=\"amenity\" v=\"s" + i + "\"><symbol src=\"file:symbols/s" + i
+                        + ".svg\" symbol-width=\"24\"/></rule>");
+            }
+            writer.write("</rendertheme>");
+        } finally {
+            writer.close();
+        }
+        return theme;
+    }
+
+    private static String svg(int seed) {
+        String color = String.format("#%06x", (seed * 2654435761L) & 0xffffff);
+        StringBuilder svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" "
+                + "height=\"100\" viewBox=\"0 0 100 100\">"
+                + "<circle cx=\"50\" cy=\"50\" r=\"46\" fill=\"" + color + "\" stroke=\"#ffffff\" stroke-width=\"4\"/>"
+                + "<path fill=\"#ffffff\" d=\"M50 12");
+        for (int i = 1; i < 10; i++) {
+            double angle = Math.PI * i / 5;
+            double radius = i % 2 == 0 ? 36 : 15;
+            svg.append(String.format(Locale.ROOT, " L%.1f %.1f", 50 + radius * Math.sin(angle),
+                    50 - radius * Math.cos(angle)));
+        }
+        return svg.append(" Z\"/></svg>").toString();
+    }
+}
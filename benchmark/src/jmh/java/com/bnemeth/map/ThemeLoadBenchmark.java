@@ -0,0 +1,113 @@
+package com.bnemeth.map;
+
+import org.kxml2.io.KXmlParser;
+import org.mapsforge.map.rendertheme.InternalRenderTheme;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a render theme from its XML file and from its {@link CompiledRenderTheme} copy, walking all
+ * events and attributes like mapsforge's RenderThemeHandler does, one whole theme per operation.
+ * {@link #compile()} is the one time cost of writing the compiled copy.
+ * <p>
+ * The themes are OpenmapsTheme/theme.xml of the app assets and mapsforge's default.xml.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ThemeLoadBenchmark {
+
+    @Param({"openmaps", "default"})
+    public String theme;
+
+    private File xmlFile;
+    private File compiledFile;
+    private File compiledCopy;
+
+    @Setup
+    public void setUp() throws Exception {
+        xmlFile = File.createTempFile("theme", ".xml");
+        InputStream source = "default".equals(theme) ? InternalRenderTheme.DEFAULT.getRenderThemeAsStream()
+                : new FileInputStream(new File(System.getProperty("benchmark.assets"), "OpenmapsTheme/theme.xml"));
+        copy(source, xmlFile);
+        compiledFile = File.createTempFile("theme", ".xml.bin");
+        compiledCopy = File.createTempFile("copy", ".xml.bin");
+        CompiledRenderTheme.compile(new KXmlParser(), new FileInputStream(xmlFile), compiledFile, "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        xmlFile.delete();
+        compiledFile.delete();
+        compiledCopy.delete();
+    }
+
+    @Benchmark
+    public int xml() throws Exception {
+        InputStream in = new FileInputStream(xmlFile);
+        try {
+            XmlPullParser parser = new KXmlParser();
+            parser.setInput(in, null);
+            return consume(parser);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public int compiled() throws Exception {
+        XmlPullParser parser = new CompiledThemeParser(new KXmlParser());
+        parser.setInput(new CompiledRenderTheme.CompiledStream(CompiledRenderTheme.map(compiledFile, "benchmark")),
+                null);
+        return consume(parser);
+    }
+
+    @Benchmark
+    public long compile() throws Exception {
+        CompiledRenderTheme.compile(new KXmlParser(), new FileInputStream(xmlFile), compiledCopy, "benchmark");
+        return compiledCopy.length();
+    }
+
+    private static int consume(XmlPullParser parser) throws Exception {
+        int hash = 0;
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+            if (eventType == XmlPullParser.START_TAG) {
+                hash += parser.getName().hashCode();
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    hash += parser.getAttributeName(i).length() + parser.getAttributeValue(i).length();
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static void copy(InputStream in, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
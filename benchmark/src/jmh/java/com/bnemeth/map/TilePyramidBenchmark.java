@@ -0,0 +1,161 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a {@link TilePyramid} of a map with OpenmapsTheme/theme.xml and gets its overview tiles,
+ * compared to rendering them.
+ * <p>
+ * {@link #build()} is one whole build of all pyramid zoom levels per operation, the same at every
+ * zoomLevel, so one of them is enough: -p zoomLevel=5. {@link #read()} and {@link #render()} take
+ * one tile per operation, cycling through all tiles of the map at the given zoom level.
+ * <p>
+ * The map is a generated forest with a lake every 0.1 degrees and roads between them, the size of
+ * Hungary, or the map given with -Dbenchmark.mapFile.
+ */
+@State(Scope.Thread)
+public class TilePyramidBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    @Param({"5", "6", "7", "8", "9", "10"})
+    public byte zoomLevel;
+
+    private final GraphicFactory graphicFactory = AwtGraphicFactory.INSTANCE;
+    private File generatedMap;
+    private File mapFile;
+    private File pyramidFile;
+    private File builtPyramidFile;
+    private MapDataStore mapDataStore;
+    private DisplayModel displayModel;
+    private RenderThemeFuture renderThemeFuture;
+    private DatabaseRenderer renderer;
+    private TilePyramid pyramid;
+    private final List<Tile> tiles = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        String path = System.getProperty("benchmark.mapFile");
+        if (path == null) {
+            generatedMap = File.createTempFile("forest", ".map");
+            generateMap(generatedMap);
+        }
+        mapFile = path != null ? new File(path) : generatedMap;
+        pyramidFile = File.createTempFile("overview", ".pyramid");
+        builtPyramidFile = File.createTempFile("built", ".pyramid");
+
+        displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        renderThemeFuture = new RenderThemeFuture(graphicFactory, new ExternalRenderTheme(
+                new File(System.getProperty("benchmark.assets"), "OpenmapsTheme/theme.xml")), displayModel);
+        renderThemeFuture.run();
+        renderThemeFuture.get();
+        mapDataStore = new MapFile(mapFile);
+        TilePyramid.build(mapDataStore, renderThemeFuture, displayModel, graphicFactory, pyramidFile, "benchmark",
+                TilePyramid.MIN_ZOOM, TilePyramid.MAX_ZOOM);
+        pyramid = TilePyramid.open(pyramidFile, "benchmark", graphicFactory);
+        if (pyramid == null) {
+            throw new IllegalStateException("Could not open " + pyramidFile);
+        }
+        renderer = new DatabaseRenderer(mapDataStore, graphicFactory, null, null, false, false, null);
+
+        BoundingBox area = mapDataStore.boundingBox();
+        int left = MercatorProjection.longitudeToTileX(area.minLongitude, zoomLevel);
+        int right = MercatorProjection.longitudeToTileX(area.maxLongitude, zoomLevel);
+        int top = MercatorProjection.latitudeToTileY(area.maxLatitude, zoomLevel);
+        int bottom = MercatorProjection.latitudeToTileY(area.minLatitude, zoomLevel);
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                tiles.add(new Tile(x, y, zoomLevel, TILE_SIZE));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapDataStore.close();
+        renderThemeFuture.decrementRefCount();
+        pyramidFile.delete();
+        builtPyramidFile.delete();
+        if (generatedMap != null) {
+            generatedMap.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long build() throws IOException {
+        TilePyramid.build(mapDataStore, renderThemeFuture, displayModel, graphicFactory, builtPyramidFile,
+                "benchmark", TilePyramid.MIN_ZOOM, TilePyramid.MAX_ZOOM);
+        return builtPyramidFile.length();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void read() {
+        pyramid.get(new Job(nextTile(), false)).decrementRefCount();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void render() {
+        renderer.executeJob(new RendererJob(nextTile(), mapDataStore, renderThemeFuture, displayModel, 1f, false,
+                false)).decrementRefCount();
+    }
+
+    private Tile nextTile() {
+        Tile tile = tiles.get(next);
+        next = next + 1 == tiles.size() ? 0 : next + 1;
+        return tile;
+    }
+
+    static void generateMap(File file) throws IOException {
+        TestMapFile map = new TestMapFile(new BoundingBox(45.7, 16.1, 48.6, 22.9));
+        for (double latitude = 45.75; latitude < 48.55; latitude += 0.1) {
+            for (double longitude = 16.15; longitude < 22.85; longitude += 0.1) {
+                map.way(square(latitude, longitude, 0.03), "landuse=forest");
+                map.way(square(latitude + 0.04, longitude + 0.04, 0.01), "natural=water");
+                map.way(new double[]{latitude, longitude, latitude, longitude + 0.1}, "highway=secondary");
+                map.way(new double[]{latitude, longitude, latitude + 0.1, longitude}, "highway=tertiary");
+            }
+        }
+        map.write(file);
+    }
+
+    private static double[] square(double latitude, double longitude, double radius) {
+        return new double[]{latitude - radius, longitude - radius, latitude + radius, longitude - radius,
+                latitude + radius, longitude + radius, latitude - radius, longitude + radius,
+                latitude - radius, longitude - radius};
+    }
+}
@@ -0,0 +1,216 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders tiles with mapsforge's AWT backend and OpenmapsTheme/theme.xml, one tile per operation,
+ * cycling through the 4x4 tiles around the Budapest center at the given zoom level.
+ * <p>
+ * {@link #tilesPerSecond()} reports the throughput, {@link #tileLatency()} the latency
+ * distribution with its p0.50 and p0.99 percentiles, and the gc profiler adds
+ * gc.alloc.rate.norm, the bytes allocated per tile.
+ * <p>
+ * The map is generated from a fixed seed, a street grid with buildings, parks, water and named
+ * POIs, so results only change with the code. A directory of real maps can be given with
+ * -Dbenchmark.mapDirectory, it is read through a {@link RegionMapDataStore} like in the app.
+ * The tile cache stays empty, so every tile lays out its labels on its own.
+ * <p>
+ * With instrumented=true the tiles are timed into {@link Metrics} the way the app times them,
+ * the difference to instrumented=false is the cost of the instrumentation.
+ */
+@State(Scope.Thread)
+public class TileRenderBenchmark {
+
+    private static final LatLong CENTER = new LatLong(47.498333, 19.0408337);
+    private static final int TILE_SIZE = 256;
+
+    @Param({"12", "13", "14", "15", "16", "17"})
+    public byte zoomLevel;
+
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    private File generatedMaps;
+    private File indexFile;
+    private RegionMapDataStore mapDataStore;
+    private Metrics.ThreadTimer renderTimer;
+    private RenderThemeFuture renderThemeFuture;
+    private DatabaseRenderer renderer;
+    private final List<RendererJob> jobs = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        String path = System.getProperty("benchmark.mapDirectory");
+        if (path == null) {
+            generatedMaps = File.createTempFile("maps", "");
+            generatedMaps.delete();
+            generatedMaps.mkdir();
+            generateMap(new File(generatedMaps, "budapest" + RegionMapDataStore.EXTENSION));
+        }
+        File mapDirectory = path != null ? new File(path) : generatedMaps;
+        indexFile = File.createTempFile("regions", ".index");
+        indexFile.delete();
+        mapDataStore = new RegionMapDataStore(mapDirectory, indexFile, 4, null);
+        if (instrumented) {
+            Metrics metrics = new Metrics();
+            mapDataStore.setMetrics(metrics);
+            renderTimer = metrics.timer(Metrics.TILE_RENDER);
+        }
+
+        GraphicFactory graphicFactory = AwtGraphicFactory.INSTANCE;
+        DisplayModel displayModel = new DisplayModel();
+        displayModel.setFixedTileSize(TILE_SIZE);
+        renderThemeFuture = new RenderThemeFuture(graphicFactory, new ExternalRenderTheme(
+                new File(System.getProperty("benchmark.assets"), "OpenmapsTheme/theme.xml")), displayModel);
+        // parsed here, not in the first measured tile
+        renderThemeFuture.run();
+        renderThemeFuture.get();
+        renderer = new DatabaseRenderer(mapDataStore, graphicFactory, new InMemoryTileCache(16), null, true, false, null);
+
+        int centerX = MercatorProjection.longitudeToTileX(CENTER.longitude, zoomLevel);
+        int centerY = MercatorProjection.latitudeToTileY(CENTER.latitude, zoomLevel);
+        for (int y = centerY - 1; y <= centerY + 2; y++) {
+            for (int x = centerX - 1; x <= centerX + 2; x++) {
+                jobs.add(new RendererJob(new Tile(x, y, zoomLevel, TILE_SIZE), mapDataStore, renderThemeFuture,
+                        displayModel, 1f, false, false));
+            }
+        }
+        // the renderer only logs failures, so check once that every tile renders
+        for (int i = 0; i < jobs.size(); i++) {
+            render();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mapDataStore.close();
+        renderThemeFuture.decrementRefCount();
+        indexFile.delete();
+        if (generatedMaps != null) {
+            for (File file : generatedMaps.listFiles()) {
+                file.delete();
+            }
+            generatedMaps.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public TileBitmap tilesPerSecond() {
+        return render();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TileBitmap tileLatency() {
+        return render();
+    }
+
+    private TileBitmap render() {
+        RendererJob job = jobs.get(next);
+        next = next + 1 == jobs.size() ? 0 : next + 1;
+        TileBitmap bitmap = renderer.executeJob(job);
+        if (renderTimer != null) {
+            // where the app puts the tile into LayeredTileCache
+            renderTimer.stop();
+        }
+        if (bitmap == null) {
+            throw new IllegalStateException("Could not render " + job.tile);
+        }
+        bitmap.decrementRefCount();
+        return bitmap;
+    }
+
+    /**
+     * Writes a map of about 10 by 7 km around the center: a street grid with names, blocks of
+     * buildings, parks, a river and shops, cafes and restaurants.
+     */
+    static void generateMap(File file) throws IOException {
+        double latitudeSpan = 0.06;
+        double longitudeSpan = 0.14;
+        BoundingBox area = new BoundingBox(CENTER.latitude - latitudeSpan / 2, CENTER.longitude - longitudeSpan / 2,
+                CENTER.latitude + latitudeSpan / 2, CENTER.longitude + longitudeSpan / 2);
+        TestMapFile map = new TestMapFile(area);
+        Random random = new Random(12);
+
+        double step = 0.004;
+        int row = 0;
+        for (double latitude = area.minLatitude + step / 2; latitude < area.maxLatitude; latitude += step, row++) {
+            map.way(new double[]{latitude, area.minLongitude, latitude, area.maxLongitude},
+                    row % 4 == 0 ? "highway=primary" : "highway=residential", "name=Utca " + row);
+        }
+        int column = 0;
+        for (double longitude = area.minLongitude + step / 2; longitude < area.maxLongitude; longitude += step, column++) {
+            map.way(new double[]{area.minLatitude, longitude, area.maxLatitude, longitude},
+                    column % 5 == 0 ? "highway=secondary" : "highway=tertiary", "name=Út " + column);
+        }
+
+        // the river, running north to south west of the center
+        double river = CENTER.longitude - 0.005;
+        map.way(new double[]{area.maxLatitude, river - 0.004, area.maxLatitude, river + 0.004,
+                area.minLatitude, river + 0.004, area.minLatitude, river - 0.004, area.maxLatitude, river - 0.004},
+                "natural=water");
+
+        for (double latitude = area.minLatitude + step / 2; latitude + step < area.maxLatitude; latitude += step) {
+            for (double longitude = area.minLongitude + step / 2; longitude + step < area.maxLongitude; longitude += step) {
+                if (Math.abs(longitude + step / 2 - river) < 0.006) {
+                    continue;
+                }
+                if (random.nextInt(12) == 0) {
+                    map.way(rectangle(latitude + 0.0003, longitude + 0.0003, step - 0.0006, step - 0.0006),
+                            "leisure=park", "name=Park " + random.nextInt(100));
+                    continue;
+                }
+                // four buildings per block
+                double size = (step - 0.0012) / 2;
+                for (int i = 0; i < 4; i++) {
+                    map.way(rectangle(latitude + 0.0004 + (i / 2) * (size + 0.0004),
+                            longitude + 0.0004 + (i % 2) * (size + 0.0004), size, size), "building=yes");
+                }
+                if (random.nextInt(3) == 0) {
+                    String[] kinds = {"shop=bakery", "amenity=cafe", "amenity=restaurant", "amenity=pharmacy",
+                            "shop=supermarket"};
+                    map.poi(latitude + 0.0002, longitude + step / 2, kinds[random.nextInt(kinds.length)],
+                            "name=Hely " + random.nextInt(1000));
+                }
+            }
+        }
+        map.write(file);
+    }
+
+    private static double[] rectangle(double latitude, double longitude, double height, double width) {
+        return new double[]{latitude, longitude, latitude + height, longitude, latitude + height, longitude + width,
+                latitude, longitude + width, latitude, longitude};
+    }
+}
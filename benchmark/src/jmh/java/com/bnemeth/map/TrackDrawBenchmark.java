@@ -0,0 +1,103 @@
+package com.bnemeth.map;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.model.DisplayModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws a recorded track with {@link TrackLayer} at zoom level 16, with the view on the end of the
+ * track, one draw per operation.
+ * <p>
+ * {@link #firstDraw()} draws with a new layer, which projects and simplifies the whole track.
+ * {@link #draw()} draws again with a layer that already did, the cost of every frame after the
+ * first one.
+ * <p>
+ * The track is a drive at 30 km/h with some turns and GPS noise, one fix per second for the
+ * given number of hours.
+ */
+@State(Scope.Thread)
+public class TrackDrawBenchmark {
+
+    private static final byte ZOOM_LEVEL = 16;
+
+    @Param({"1", "10"})
+    public int hours;
+
+    private File file;
+    private TrackRecorder track;
+    private TrackLayer layer;
+    private BoundingBox view;
+    private Point topLeft;
+    private Bitmap bitmap;
+    private Canvas canvas;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("track", ".bin");
+        file.delete();
+        track = new TrackRecorder(file);
+        Random random = new Random(3);
+        double latitude = 47.3;
+        double longitude = 18.8;
+        for (int i = 0; i < hours * 3600; i++) {
+            double heading = Math.sin(i / 600.0) * Math.PI;
+            latitude += Math.cos(heading) * 8.3 / 111320 + random.nextGaussian() * 2e-5;
+            longitude += Math.sin(heading) * 8.3 / 75000 + random.nextGaussian() * 2e-5;
+            track.add(i * 1000L, latitude, longitude);
+        }
+        view = new BoundingBox(latitude - 0.01, longitude - 0.015, latitude + 0.01, longitude + 0.015);
+        layer = newLayer();
+        long mapSize = MercatorProjection.getMapSize(ZOOM_LEVEL, layer.getDisplayModel().getTileSize());
+        topLeft = new Point(MercatorProjection.longitudeToPixelX(view.minLongitude, mapSize),
+                MercatorProjection.latitudeToPixelY(view.maxLatitude, mapSize));
+        bitmap = AwtGraphicFactory.INSTANCE.createBitmap(512, 512);
+        canvas = AwtGraphicFactory.INSTANCE.createCanvas();
+        canvas.setBitmap(bitmap);
+        layer.draw(view, ZOOM_LEVEL, canvas, topLeft);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        canvas.destroy();
+        bitmap.decrementRefCount();
+        track.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void firstDraw() {
+        newLayer().draw(view, ZOOM_LEVEL, canvas, topLeft);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void draw() {
+        layer.draw(view, ZOOM_LEVEL, canvas, topLeft);
+    }
+
+    private TrackLayer newLayer() {
+        TrackLayer layer = new TrackLayer(AwtGraphicFactory.INSTANCE, track);
+        layer.setDisplayModel(new DisplayModel());
+        return layer;
+    }
+}